@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.TreeMap;
+
+import jmh.Target;
+
+/*
+ * Jmh Targets. What the JMH benchmarks in the jmh package time, built here where the
+ * servers' classes can be named (see Target). The code timed is the same as in
+ * RingBench, on the same keys, ranges and frames, so both harnesses can be compared.
+ */
+public class JmhTargets {
+
+	private static final int[] MEMBERS = { 0, 322, 527 }; // Ring the owns benchmark's server is on, as in RingBench
+	private static final int PAIRS = 64; // Pairs in batch and reply frames
+
+	public static Target of(String name, String store, int size) throws IOException {
+		Random random = new Random(1);
+		switch (name) {
+		case "ring/hash": {
+			String[] names = new String[Target.BATCH];
+			for (int i = 0; i < names.length; i++)
+				names[i] = "key" + random.nextInt();
+			return () -> {
+				long h = 0;
+				for (String key : names)
+					h ^= Ring.hash(key);
+				return h;
+			};
+		}
+		case "ring/inRange": {
+			// Half of the ranges wrap past the end of the ring
+			long[] values = new long[Target.BATCH];
+			long[] starts = new long[Target.BATCH];
+			long[] ends = new long[Target.BATCH];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = random.nextLong();
+				long a = random.nextLong();
+				long b = random.nextLong();
+				starts[i] = i % 2 == 0 ? Math.min(a, b) : Math.max(a, b);
+				ends[i] = i % 2 == 0 ? Math.max(a, b) : Math.min(a, b);
+			}
+			return () -> {
+				long hits = 0;
+				for (int i = 0; i < values.length; i++) {
+					if (Ring.inRange(values[i], starts[i], ends[i]))
+						hits++;
+				}
+				return hits;
+			};
+		}
+		case "ring/owns": {
+			long[] values = new long[Target.BATCH];
+			for (int i = 0; i < values.length; i++)
+				values[i] = random.nextLong();
+			TokenRanges ranges = RingBench.ranges(MEMBERS, 0);
+			return () -> {
+				long hits = 0;
+				for (long value : values) {
+					if (ranges.owns(value))
+						hits++;
+				}
+				return hits;
+			};
+		}
+		case "store/get":
+		case "store/put": {
+			KeyStore keyStore = RingBench.filled(store, size, 0);
+			long[] keys = new long[Target.BATCH];
+			for (int i = 0; i < keys.length; i++)
+				keys[i] = RingBench.key(random.nextInt(size));
+			if (name.equals("store/get")) {
+				return () -> {
+					long found = 0;
+					for (long key : keys)
+						found += keyStore.get(key).length();
+					return found;
+				};
+			}
+			return () -> {
+				for (long key : keys)
+					keyStore.put(key, "value");
+				return keyStore.size();
+			};
+		}
+		case "codec/LOOKUP":
+		case "codec/INSERT":
+		case "codec/MGET":
+		case "codec/BATCH_REPLY":
+			return codec(name.substring("codec/".length()));
+		default:
+			throw new IllegalArgumentException("Unknown benchmark " + name);
+		}
+	}
+
+	// Writes a frame, reads it back through a stream in memory and decodes it
+	private static Target codec(String command) throws IOException {
+		InetAddress ip = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+		RingNode node = new RingNode(322, 8322, ip);
+		VisitedNodes visited = new VisitedNodes();
+		for (int id : MEMBERS)
+			visited.add(id);
+		VisitedNodes into = new VisitedNodes();
+
+		Random random = new Random(2);
+		TreeMap<Long, String> pairs = new TreeMap<Long, String>();
+		Batch keys = new Batch(false);
+		for (int i = 0; i < PAIRS; i++) {
+			long key = random.nextLong();
+			pairs.put(key, "value" + i);
+			keys.add(key, null);
+		}
+
+		Frame frame = new Frame();
+		RingBench.Loopback wire = new RingBench.Loopback();
+		Target encode;
+		Target decode;
+		switch (command) {
+		case "LOOKUP":
+			encode = () -> {
+				frame.begin(Opcode.LOOKUP).putVarInt(1).putNode(node).putLong(42).putVisited(visited);
+				return 0;
+			};
+			decode = () -> frame.getVarInt() + frame.getNode().getID() + frame.getLong() + frame.getVisited(into).size();
+			break;
+		case "INSERT":
+			encode = () -> {
+				frame.begin(Opcode.INSERT).putVarInt(1).putNode(node).putLong(42).putString("value").putVisited(visited);
+				return 0;
+			};
+			decode = () -> frame.getVarInt() + frame.getNode().getID() + frame.getLong() + frame.getString().length()
+					+ frame.getVisited(into).size();
+			break;
+		case "MGET":
+			encode = () -> {
+				frame.begin(Opcode.MGET).putVarInt(1).putNode(node);
+				keys.write(frame);
+				frame.putVisited(visited);
+				return 0;
+			};
+			decode = () -> frame.getVarInt() + frame.getNode().getID() + Batch.read(frame, false).size()
+					+ frame.getVisited(into).size();
+			break;
+		default:
+			encode = () -> {
+				Reply.writeBatch(frame, 1, pairs, 322, visited);
+				return 0;
+			};
+			decode = () -> Reply.readBatch(frame).getPairs().size();
+			break;
+		}
+
+		return () -> {
+			encode.run();
+			wire.reset();
+			frame.writeTo(wire);
+			if (!frame.readFrom(wire.input()))
+				throw new IOException("Frame did not come back");
+			return decode.run();
+		};
+	}
+
+}
@@ -0,0 +1,31 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Codec Benchmarks. Writing a frame of a command, reading it back through a stream
+ * in memory and decoding it, one frame per call.
+ */
+@State(Scope.Thread)
+public class CodecBenchmarks {
+
+	@Param({ "LOOKUP", "INSERT", "MGET", "BATCH_REPLY" })
+	public String opcode;
+
+	private Target roundTrip;
+
+	@Setup
+	public void setup() throws Exception {
+		roundTrip = Target.of("codec/" + opcode, null, 0);
+	}
+
+	@Benchmark
+	public long roundTrip() throws Exception {
+		return roundTrip.run();
+	}
+
+}
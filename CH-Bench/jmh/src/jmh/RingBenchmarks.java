@@ -0,0 +1,45 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Ring Benchmarks. Hashing keys, inRange over ranges of which half wrap past the end
+ * of the ring, and owns on a server's token ranges, BATCH of each per call.
+ */
+@State(Scope.Thread)
+public class RingBenchmarks {
+
+	private Target hash;
+	private Target inRange;
+	private Target owns;
+
+	@Setup
+	public void setup() throws Exception {
+		hash = Target.of("ring/hash", null, 0);
+		inRange = Target.of("ring/inRange", null, 0);
+		owns = Target.of("ring/owns", null, 0);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Target.BATCH)
+	public long hash() throws Exception {
+		return hash.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Target.BATCH)
+	public long inRange() throws Exception {
+		return inRange.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Target.BATCH)
+	public long owns() throws Exception {
+		return owns.run();
+	}
+
+}
@@ -0,0 +1,44 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Store Benchmarks. Gets and overwrites of keys already stored, picked at random, on
+ * every store type at every size, BATCH of them per call.
+ */
+@State(Scope.Thread)
+public class StoreBenchmarks {
+
+	@Param({ "chunked", "skiplist" })
+	public String store;
+
+	@Param({ "1000", "100000", "1000000" })
+	public int size;
+
+	private Target get;
+	private Target put;
+
+	@Setup
+	public void setup() throws Exception {
+		get = Target.of("store/get", store, size);
+		put = Target.of("store/put", store, size);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Target.BATCH)
+	public long get() throws Exception {
+		return get.run();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Target.BATCH)
+	public long put() throws Exception {
+		return put.run();
+	}
+
+}
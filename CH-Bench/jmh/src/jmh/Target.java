@@ -0,0 +1,22 @@
+package jmh;
+
+/*
+ * Target. One piece of server code a JMH benchmark times. JMH only runs benchmarks
+ * that are in a package, and code in a package can't name the servers' classes,
+ * which are all in the default package, so the benchmarks get what they time from
+ * JmhTargets, looked up by name once before timing starts. The call through this
+ * interface is the same one Bench makes through Bench.Body.
+ */
+public interface Target {
+
+	int BATCH = 1024; // Operations of a cheap benchmark run by one call, as in RingBench
+
+	long run() throws Exception;
+
+	// Builds the target of the given name on a store of the given type and size
+	static Target of(String name, String store, int size) throws Exception {
+		return (Target) Class.forName("JmhTargets").getMethod("of", String.class, String.class, int.class)
+				.invoke(null, name, store, size);
+	}
+
+}
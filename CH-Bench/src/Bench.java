@@ -0,0 +1,181 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/*
+ * Bench. Times small pieces of server code the way a micro-benchmark harness does,
+ * with nothing but the JDK. Every benchmark runs for WARMUP milliseconds so the JIT
+ * has compiled it, then for ITERATIONS rounds of TIME milliseconds each, and reports
+ * the mean time per operation and its spread across rounds. A benchmark returns a
+ * value that is folded into a volatile sink, so the work it does can't be optimized
+ * away. Options are system properties:
+ *
+ *   -Dwarmup=MS -Dtime=MS -Diterations=N   how long to run
+ *   -Dout=FILE        writes "name ns/op" for every result
+ *   -Dbaseline=FILE   compares against a file written by -Dout, marking every
+ *                     benchmark more than -Dtolerance=PERCENT (10) slower
+ *
+ * Run the JVM with the same flags for runs that are compared, one benchmark's
+ * compiled code can change how the next one is compiled, so a filtered run is only
+ * comparable to a run with the same filter.
+ */
+public class Bench {
+
+	public static final long WARMUP = Long.getLong("warmup", 1000); // Milliseconds every benchmark runs before it is timed
+	public static final long TIME = Long.getLong("time", 1000); // Milliseconds of one timed round
+	public static final int ITERATIONS = Integer.getInteger("iterations", 5); // Timed rounds of every benchmark
+	public static final double TOLERANCE = Double.parseDouble(System.getProperty("tolerance", "10")); // Percent slower than the baseline that is a regression
+
+	// Runs a batch of operations and returns something computed from them
+	public interface Body {
+		long run() throws Exception;
+	}
+
+	// Builds the state one run of a benchmark changes, outside the timing
+	public interface Setup<T> {
+		T make() throws Exception;
+	}
+
+	public interface Step<T> {
+		long run(T state) throws Exception;
+	}
+
+	private static volatile long sink;
+
+	private Pattern filter;
+	private Map<String, Double> baseline;
+	private List<String> results;
+	private int regressions;
+
+	// Runs the benchmarks whose name matches the regex, every benchmark if it is null
+	public Bench(String filter) throws IOException {
+		this.filter = filter == null ? null : Pattern.compile(filter);
+		this.baseline = new HashMap<String, Double>();
+		this.results = new ArrayList<String>();
+
+		String file = System.getProperty("baseline");
+		if (file != null) {
+			try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] parts = line.split(" ");
+					if (parts.length == 2)
+						baseline.put(parts[0], Double.parseDouble(parts[1]));
+				}
+			}
+		}
+	}
+
+	public boolean selected(String name) {
+		return filter == null || filter.matcher(name).find();
+	}
+
+	/*
+	 * Times a body that runs ops operations per call, calling it until a round is over.
+	 * The body should take at least a few microseconds so reading the clock after
+	 * every call costs next to nothing
+	 */
+	public void measure(String name, int ops, Body body) throws Exception {
+		if (!selected(name))
+			return;
+
+		long stop = System.nanoTime() + WARMUP * 1000000;
+		while (System.nanoTime() < stop)
+			sink += body.run();
+
+		double[] rounds = new double[ITERATIONS];
+		for (int i = 0; i < ITERATIONS; i++) {
+			long calls = 0;
+			long start = System.nanoTime();
+			long now;
+			do {
+				sink += body.run();
+				calls++;
+				now = System.nanoTime();
+			} while (now - start < TIME * 1000000);
+			rounds[i] = (double) (now - start) / (calls * ops);
+		}
+		report(name, rounds);
+	}
+
+	/*
+	 * Times a step that changes its state, such as handing over part of a store, on
+	 * fresh state every call. Only the step is timed, a round lasts TIME including the
+	 * setups and has at least one call
+	 */
+	public <T> void measure(String name, int ops, Setup<T> setup, Step<T> step) throws Exception {
+		if (!selected(name))
+			return;
+
+		long stop = System.nanoTime() + WARMUP * 1000000;
+		while (System.nanoTime() < stop)
+			sink += step.run(setup.make());
+
+		double[] rounds = new double[ITERATIONS];
+		for (int i = 0; i < ITERATIONS; i++) {
+			long calls = 0;
+			long timed = 0;
+			long end = System.nanoTime() + TIME * 1000000;
+			do {
+				T state = setup.make();
+				long start = System.nanoTime();
+				sink += step.run(state);
+				timed += System.nanoTime() - start;
+				calls++;
+			} while (System.nanoTime() < end);
+			rounds[i] = (double) timed / (calls * ops);
+		}
+		report(name, rounds);
+	}
+
+	/*
+	 * Writes the results to -Dout if it was given. Returns false if any benchmark was
+	 * slower than its baseline by more than the tolerance
+	 */
+	public boolean finish() throws IOException {
+		String file = System.getProperty("out");
+		if (file != null) {
+			try (PrintWriter out = new PrintWriter(new FileWriter(new File(file)))) {
+				for (String result : results)
+					out.println(result);
+			}
+		}
+		if (regressions > 0)
+			System.out.println(regressions + " benchmarks slower than the baseline");
+		return regressions == 0;
+	}
+
+	private void report(String name, double[] rounds) {
+		double mean = 0;
+		for (double round : rounds)
+			mean += round;
+		mean /= rounds.length;
+
+		double variance = 0;
+		for (double round : rounds)
+			variance += (round - mean) * (round - mean);
+		double error = Math.sqrt(variance / rounds.length);
+
+		String line = String.format("%-44s %14.1f ns/op  +- %.1f", name, mean, error);
+		Double before = baseline.get(name);
+		if (before != null) {
+			double change = (mean - before) / before * 100;
+			line += String.format("  %+.1f%%", change);
+			if (change > TOLERANCE) {
+				line += "  SLOWER";
+				regressions++;
+			}
+		}
+		System.out.println(line);
+		results.add(name + " " + mean);
+	}
+
+}
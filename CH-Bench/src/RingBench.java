@@ -0,0 +1,379 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/*
+ * Ring Bench. Benchmarks of the paths every command or membership change goes
+ * through, run with Bench:
+ *
+ *   ring/...        hashing keys, inRange with and without wrapping, owns on a
+ *                   server's token ranges
+ *   enter/...       a server handing an entering one the parts of its ranges before
+ *                   the new tokens, copying them out of the store and trimming them
+ *   exit/...        a server taking in an exiting one's sorted pairs with putAll
+ *   codec/OPCODE    writing, reading and decoding a frame of every command a server
+ *                   receives, laid out as the servers write them
+ *   store/...       get and put on every store type at every size
+ *
+ * Usage: java RingBench [regex of benchmarks to run]. Stores and sizes are set with
+ * "-Dstores=chunked,skiplist" and "-Dsizes=1000,100000,1000000". Exits with 1 if a
+ * benchmark is slower than the baseline (see Bench).
+ */
+public class RingBench {
+
+	private static final String[] STORES = System.getProperty("stores", "chunked,skiplist").split(",");
+	private static final String[] SIZES = System.getProperty("sizes", "1000,100000,1000000").split(",");
+
+	private static final int BATCH = 1024; // Operations run by one call of a cheap benchmark
+	private static final int PAIRS = 64; // Pairs in batch, replicate and reply frames
+	private static final int[] MEMBERS = { 0, 322, 527 }; // Ring before a server enters, as in the example configs
+	private static final int ENTERING = 769;
+	private static final int TRAILER = 13; // End, last flag and checksum after a chunk's pairs, as in RangeTransfer
+
+	public static void main(String[] args) throws Exception {
+		Bench bench = new Bench(args.length > 0 ? args[0] : null);
+		ring(bench);
+		enterAndExit(bench);
+		codec(bench);
+		stores(bench);
+		if (!bench.finish())
+			System.exit(1);
+	}
+
+	// Hashing and range checks run for every key a server sees
+	private static void ring(Bench bench) throws Exception {
+		Random random = new Random(1);
+		String[] names = new String[BATCH];
+		for (int i = 0; i < BATCH; i++)
+			names[i] = "key" + random.nextInt();
+		bench.measure("ring/hash", BATCH, () -> {
+			long h = 0;
+			for (String name : names)
+				h ^= Ring.hash(name);
+			return h;
+		});
+
+		// Half of the ranges wrap past the end of the ring
+		long[] values = new long[BATCH];
+		long[] starts = new long[BATCH];
+		long[] ends = new long[BATCH];
+		for (int i = 0; i < BATCH; i++) {
+			values[i] = random.nextLong();
+			long a = random.nextLong();
+			long b = random.nextLong();
+			starts[i] = i % 2 == 0 ? Math.min(a, b) : Math.max(a, b);
+			ends[i] = i % 2 == 0 ? Math.max(a, b) : Math.min(a, b);
+		}
+		bench.measure("ring/inRange/mixed", BATCH, () -> {
+			long hits = 0;
+			for (int i = 0; i < BATCH; i++) {
+				if (Ring.inRange(values[i], starts[i], ends[i]))
+					hits++;
+			}
+			return hits;
+		});
+		bench.measure("ring/inRange/wrapping", BATCH, () -> {
+			long hits = 0;
+			for (int i = 1; i < BATCH; i += 2) {
+				if (Ring.inRange(values[i], starts[i], ends[i]))
+					hits++;
+			}
+			return hits;
+		});
+
+		TokenRanges ranges = ranges(MEMBERS, 0);
+		bench.measure("ring/owns", BATCH, () -> {
+			long hits = 0;
+			for (long value : values) {
+				if (ranges.owns(value))
+					hits++;
+			}
+			return hits;
+		});
+	}
+
+	/*
+	 * Membership changes at every size. Entering moves what server 0 cedes to a new
+	 * store, as the receiver builds it, and removes it from server 0's. Exiting merges
+	 * the sorted pairs of a server about a third the size into the store of the one
+	 * taking them over
+	 */
+	private static void enterAndExit(Bench bench) throws Exception {
+		long[] entering = Ring.tokens(ENTERING);
+
+		for (String type : STORES) {
+			for (String size : SIZES) {
+				int n = Integer.parseInt(size);
+
+				bench.measure("enter/cede/" + type + "/" + n, 1, () -> new Member(ranges(MEMBERS, 0), filled(type, n, 0)),
+						member -> {
+							KeyStore taken = KeyStore.create(type);
+							for (TokenRanges.Range range : member.ranges.cede(entering)) {
+								member.store.forEach(range.getStart(), range.getEnd(), taken::putBytes);
+								member.store.removeRange(range.getStart(), range.getEnd());
+							}
+							return taken.size();
+						});
+
+				KeyStore exiting = filled("chunked", n / 3, n);
+				bench.measure("exit/putAll/" + type + "/" + n, 1, () -> filled(type, n, 0), store -> {
+					store.putAll(exiting);
+					return store.size();
+				});
+			}
+		}
+	}
+
+	/*
+	 * Every frame a server's recvCommand handles, from the writer's first put to the
+	 * reader's last get, through a stream in memory so the header is written and parsed
+	 * as it is on a socket
+	 */
+	private static void codec(Bench bench) throws Exception {
+		InetAddress ip = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+		RingNode node = new RingNode(322, 8322, ip);
+		VisitedNodes visited = new VisitedNodes();
+		for (int id : MEMBERS)
+			visited.add(id);
+
+		FingerTable fingers = new FingerTable(new RingNode(0, 8000, ip));
+		for (int id : MEMBERS)
+			fingers.add(new RingNode(id, 8000 + id, ip));
+		List<TokenRanges.Range> ranges = fingers.rangesOf(0);
+
+		Random random = new Random(2);
+		TreeMap<Long, String> pairs = new TreeMap<Long, String>();
+		Batch keys = new Batch(false);
+		Batch puts = new Batch(true);
+		for (int i = 0; i < PAIRS; i++) {
+			long key = random.nextLong();
+			pairs.put(key, "value" + i);
+			keys.add(key, null);
+			puts.add(key, "value" + i);
+		}
+		KeyStore chunk = filled("chunked", RangeTransfer.CHUNK_PAIRS, 0);
+
+		Frame frame = new Frame();
+		Loopback wire = new Loopback();
+		VisitedNodes into = new VisitedNodes();
+
+		codec(bench, Opcode.ENTER, frame, wire, () -> frame.begin(Opcode.ENTER).putNode(node), () -> frame.getNode().getID());
+		codec(bench, Opcode.ENTER_REPLY, frame, wire, () -> {
+			frame.begin(Opcode.ENTER_REPLY).putNode(node);
+			fingers.writeMembers(frame);
+			putRanges(frame, ranges);
+		}, () -> {
+			frame.getNode();
+			new FingerTable(node).readMembers(frame);
+			return getRanges(frame);
+		});
+		codec(bench, Opcode.LOOKUP, frame, wire,
+				() -> frame.begin(Opcode.LOOKUP).putVarInt(1).putNode(node).putLong(42).putVisited(visited),
+				() -> frame.getVarInt() + frame.getNode().getID() + frame.getLong() + frame.getVisited(into).size());
+		codec(bench, Opcode.INSERT, frame, wire,
+				() -> frame.begin(Opcode.INSERT).putVarInt(1).putNode(node).putLong(42).putString("value")
+						.putVisited(visited),
+				() -> frame.getVarInt() + frame.getNode().getID() + frame.getLong() + frame.getString().length()
+						+ frame.getVisited(into).size());
+		codec(bench, Opcode.DELETE, frame, wire,
+				() -> frame.begin(Opcode.DELETE).putVarInt(1).putNode(node).putLong(42).putVisited(visited),
+				() -> frame.getVarInt() + frame.getNode().getID() + frame.getLong() + frame.getVisited(into).size());
+		for (byte opcode : new byte[] { Opcode.MGET, Opcode.MPUT, Opcode.MDELETE }) {
+			Batch batch = opcode == Opcode.MPUT ? puts : keys;
+			codec(bench, opcode, frame, wire, () -> {
+				frame.begin(opcode).putVarInt(1).putNode(node);
+				batch.write(frame);
+				frame.putVisited(visited);
+			}, () -> frame.getVarInt() + frame.getNode().getID() + Batch.read(frame, opcode == Opcode.MPUT).size()
+					+ frame.getVisited(into).size());
+		}
+		codec(bench, Opcode.REPLICATE, frame, wire, () -> {
+			frame.begin(Opcode.REPLICATE).putVarInt(1).putNode(node).putBoolean(true).putVarInt(pairs.size());
+			for (Map.Entry<Long, String> pair : pairs.entrySet())
+				frame.putLong(pair.getKey()).putString(pair.getValue());
+		}, () -> {
+			long read = frame.getVarInt() + frame.getNode().getID() + (frame.getBoolean() ? 1 : 0);
+			int count = frame.getVarInt();
+			for (int i = 0; i < count; i++)
+				read += frame.getLong() + frame.getString().length();
+			return read;
+		});
+		codec(bench, Opcode.REPLY, frame, wire, () -> Reply.write(frame, 1, true, "value", 322, visited),
+				() -> Reply.read(frame).getServer());
+		codec(bench, Opcode.BATCH_REPLY, frame, wire, () -> Reply.writeBatch(frame, 1, pairs, 322, visited),
+				() -> Reply.readBatch(frame).getPairs().size());
+		codec(bench, Opcode.PRINT, frame, wire, () -> frame.begin(Opcode.PRINT).putVisited(visited),
+				() -> frame.getVisited(into).size());
+		for (byte opcode : new byte[] { Opcode.EXIT, Opcode.IMPORT }) {
+			codec(bench, opcode, frame, wire, () -> putRanges(frame.begin(opcode).putNode(node), ranges),
+					() -> frame.getNode().getID() + getRanges(frame));
+		}
+		codec(bench, Opcode.RANGE_CHUNK, frame, wire, () -> {
+			frame.begin(Opcode.RANGE_CHUNK).putVarInt(1).putLong(Long.MIN_VALUE);
+			chunk.forEach(Long.MIN_VALUE, Long.MAX_VALUE, (key, utf8, offset, length) -> {
+				frame.putLong(key);
+				frame.putBytes(utf8, offset, length);
+			});
+			frame.putLong(Long.MAX_VALUE).putBoolean(true);
+			frame.putFixedInt(frame.checksum());
+		}, () -> {
+			// Checks the trailer, then stores the pairs, as RangeTransfer.receive does
+			long read = frame.getVarInt() + frame.getLong();
+			int pairsStart = frame.position();
+			int trailer = frame.position() + frame.remaining() - TRAILER;
+			frame.position(trailer);
+			read += frame.getLong() + (frame.getBoolean() ? 1 : 0);
+			int expected = frame.checksum();
+			if (frame.getFixedInt() != expected)
+				throw new IOException("Checksum mismatch");
+			KeyStore received = new ChunkedKeyStore();
+			frame.position(pairsStart);
+			while (frame.position() < trailer)
+				frame.getPairInto(received);
+			return read + received.size();
+		});
+		codec(bench, Opcode.RANGE_ACK, frame, wire,
+				() -> frame.begin(Opcode.RANGE_ACK).putVarInt(1).putVarInt(0).putLong(42),
+				() -> frame.getVarInt() + frame.getVarInt() + frame.getLong());
+		for (byte opcode : new byte[] { Opcode.JOIN, Opcode.LEAVE, Opcode.HEARTBEAT }) {
+			codec(bench, opcode, frame, wire, () -> frame.begin(opcode).putNode(node), () -> frame.getNode().getID());
+		}
+	}
+
+	private interface Encoder {
+		void encode() throws Exception;
+	}
+
+	private static void codec(Bench bench, byte opcode, Frame frame, Loopback wire, Encoder encoder, Bench.Body decoder)
+			throws Exception {
+		bench.measure("codec/" + Opcode.name(opcode), 1, () -> {
+			encoder.encode();
+			wire.reset();
+			frame.writeTo(wire);
+			if (!frame.readFrom(wire.input()) || frame.getOpcode() != opcode)
+				throw new IOException("Frame did not come back");
+			return decoder.run();
+		});
+	}
+
+	// Range list as sendRanges writes it after a header
+	private static Frame putRanges(Frame frame, List<TokenRanges.Range> ranges) {
+		frame.putVarInt(ranges.size());
+		for (int i = 0; i < ranges.size(); i++)
+			frame.putVarInt(i).putLong(ranges.get(i).getStart()).putLong(ranges.get(i).getEnd());
+		return frame;
+	}
+
+	private static long getRanges(Frame frame) throws IOException {
+		long read = 0;
+		int count = frame.getVarInt();
+		for (int i = 0; i < count; i++)
+			read += frame.getVarInt() + frame.getLong() + frame.getLong();
+		return read;
+	}
+
+	// Gets and overwrites of keys already stored, picked at random
+	private static void stores(Bench bench) throws Exception {
+		for (String type : STORES) {
+			for (String size : SIZES) {
+				int n = Integer.parseInt(size);
+				String name = type + "/" + n;
+				if (!bench.selected("store/get/" + name) && !bench.selected("store/put/" + name))
+					continue;
+
+				KeyStore store = filled(type, n, 0);
+				long[] keys = new long[BATCH];
+				Random random = new Random(3);
+				for (int i = 0; i < BATCH; i++)
+					keys[i] = key(random.nextInt(n));
+
+				bench.measure("store/get/" + name, BATCH, () -> {
+					long found = 0;
+					for (long key : keys)
+						found += store.get(key).length();
+					return found;
+				});
+				bench.measure("store/put/" + name, BATCH, () -> {
+					for (long key : keys)
+						store.put(key, "value");
+					return store.size();
+				});
+			}
+		}
+	}
+
+	// Store of the given type holding pairs first to first + n - 1
+	static KeyStore filled(String type, int n, int first) {
+		KeyStore store = KeyStore.create(type);
+		for (int i = first; i < first + n; i++)
+			store.put(key(i), "value" + i);
+		return store;
+	}
+
+	static long key(int i) {
+		return Ring.hash("key" + i);
+	}
+
+	// Ranges a server owns on a ring of the given members, as it holds them after entering
+	static TokenRanges ranges(int[] members, int id) throws IOException {
+		InetAddress ip = InetAddress.getLoopbackAddress();
+		FingerTable fingers = new FingerTable(new RingNode(id, 0, ip));
+		for (int member : members)
+			fingers.add(new RingNode(member, 0, ip));
+
+		TokenRanges ranges = new TokenRanges(Ring.tokens(id));
+		for (TokenRanges.Range range : fingers.rangesOf(id))
+			ranges.claim(range.getStart(), range.getEnd());
+		return ranges;
+	}
+
+	// Ranges and store of the server a new one enters next to
+	private static class Member {
+
+		private TokenRanges ranges;
+		private KeyStore store;
+
+		Member(TokenRanges ranges, KeyStore store) {
+			this.ranges = ranges;
+			this.store = store;
+		}
+
+	}
+
+	/*
+	 * Loopback. An output stream whose bytes are read back from the start, standing in
+	 * for a socket.
+	 */
+	static class Loopback extends OutputStream {
+
+		private byte[] buf = new byte[256];
+		private int count;
+
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int offset, int length) {
+			if (count + length > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+			System.arraycopy(b, offset, buf, count, length);
+			count += length;
+		}
+
+		void reset() {
+			count = 0;
+		}
+
+		ByteArrayInputStream input() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+
+	}
+
+}
@@ -0,0 +1,609 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Ring Load. Starts a bootstrap and NODES name servers as separate JVMs on loopback
+ * ports of this machine, enters every name server, fills the ring with KEYS keys,
+ * and then sends a mix of commands at a steady RATE per second for DURATION
+ * seconds, after WARMUP seconds that are not counted. Commands go straight to a
+ * random server on the ring the way a client would send them, over the servers'
+ * own protocol, and replies come back to a port this harness listens on. The mix
+ * can also hold enter and exit, which send a random name server in or out of the
+ * ring and time how long the move takes, one at a time.
+ *
+ * Commands are sent when they are due whether or not earlier ones were answered,
+ * and latency counts from when a command was due, so a stall shows up in the
+ * latency of every command held up by it. Reports throughput, latency percentiles
+ * of every command and how many servers each command passed through. Options:
+ *
+ *   -Dnodes=3 -Drate=1000 -Dduration=30 -Dwarmup=5 -Dkeys=10000
+ *   -Dmix=lookup=80,insert=15,delete=5,enter=0.01,exit=0.01
+ *   -Dport=7600       first port, the bootstrap gets it and name servers the ones after
+ *   -DserverArgs=...  JVM options for the servers, e.g. "-Dreplicas=2 -Xmx512m"
+ *   -Dpipelined=true  every command goes to the bootstrap on one connection and is
+ *                     answered on it, instead of going to a random server
+ *
+ * Servers run from this JVM's class path, so it needs bnserver and nmserver on it.
+ * Their configs and output go to a new directory under the temporary directory.
+ */
+public class RingLoad {
+
+	private static final int NODES = Integer.getInteger("nodes", 3);
+	private static final int RATE = Integer.getInteger("rate", 1000); // Commands sent per second
+	private static final long DURATION = Long.getLong("duration", 30); // Seconds of load that are measured
+	private static final long WARMUP = Long.getLong("warmup", 5); // Seconds of load before measuring
+	private static final int KEYS = Integer.getInteger("keys", 10000); // Keys commands pick from, all inserted first
+	private static final String MIX = System.getProperty("mix", "lookup=80,insert=15,delete=5");
+	private static final int PORT = Integer.getInteger("port", 7600);
+	private static final String SERVER_ARGS = System.getProperty("serverArgs", "");
+	private static final boolean PIPELINED = Boolean.getBoolean("pipelined");
+
+	private static final String[] COMMANDS = { "lookup", "insert", "delete", "enter", "exit" };
+	private static final int LOOKUP = 0;
+	private static final int INSERT = 1;
+	private static final int DELETE = 2;
+	private static final int ENTER = 3;
+	private static final int EXIT = 4;
+
+	private static final int CLIENT_ID = 99999; // Origin of the harness's commands, never on the ring
+	private static final long TIMEOUT = 5000; // Milliseconds a command may take before it counts as failed
+	private static final long MOVE_TIMEOUT = 60000; // Milliseconds an enter or exit may take
+	private static final int PRELOAD_WINDOW = 256; // Inserts in flight while filling the ring
+
+	public static void main(String[] args) throws Exception {
+		double[] mix = parseMix(MIX);
+		File dir = Files.createTempDirectory("ringload").toFile();
+
+		Cluster cluster = new Cluster(dir);
+		Runtime.getRuntime().addShutdownHook(new Thread(cluster::stop));
+		try {
+			System.out.println("Starting a bootstrap and " + NODES + " name servers in " + dir);
+			cluster.start();
+
+			Client client = new Client();
+			long start = System.nanoTime();
+			preload(client, cluster);
+			System.out.println("Inserted " + KEYS + " keys in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+			Driver driver = new Driver(client, cluster, mix);
+			if (WARMUP > 0)
+				driver.run(WARMUP, new Recorder());
+
+			Recorder recorder = new Recorder();
+			driver.run(DURATION, recorder);
+			recorder.report();
+		} finally {
+			cluster.stop();
+		}
+		System.exit(0);
+	}
+
+	// Weights of the commands from "name=weight,...", commands left out are never sent
+	private static double[] parseMix(String mix) {
+		double[] weights = new double[COMMANDS.length];
+		for (String part : mix.split(",")) {
+			String[] pair = part.split("=");
+			int command = Arrays.asList(COMMANDS).indexOf(pair[0].trim());
+			if (command < 0 || pair.length != 2)
+				throw new IllegalArgumentException("Unknown command in mix: " + part);
+			weights[command] = Double.parseDouble(pair[1]);
+		}
+		return weights;
+	}
+
+	// Inserts every key once, a window of them at a time
+	private static void preload(Client client, Cluster cluster) throws InterruptedException {
+		Semaphore window = new Semaphore(PRELOAD_WINDOW);
+		AtomicInteger failed = new AtomicInteger();
+		Random random = new Random();
+		for (int k = 0; k < KEYS; k++) {
+			window.acquire();
+			client.send(Opcode.INSERT, key(k), "value" + k, cluster.pick(random)).whenComplete((reply, e) -> {
+				if (e != null)
+					failed.incrementAndGet();
+				window.release();
+			});
+		}
+		window.acquire(PRELOAD_WINDOW);
+		if (failed.get() > 0)
+			System.out.println(failed.get() + " keys were not inserted");
+	}
+
+	private static long key(int k) {
+		return Ring.hash("key" + k);
+	}
+
+	/*
+	 * Driver. Sends commands at RATE per second on one thread, each when it is due.
+	 * Enters and exits run on a thread of their own, a due one is skipped while
+	 * another is still running.
+	 */
+	private static class Driver {
+
+		private Client client;
+		private Cluster cluster;
+		private double[] cumulative; // Running total of the mix weights, to pick commands by
+		private Random random;
+		private AtomicBoolean moving; // An enter or exit is running
+		private AtomicInteger inFlight;
+
+		Driver(Client client, Cluster cluster, double[] mix) {
+			this.client = client;
+			this.cluster = cluster;
+			this.cumulative = new double[mix.length];
+			double total = 0;
+			for (int i = 0; i < mix.length; i++)
+				cumulative[i] = total += mix[i];
+			this.random = new Random();
+			this.moving = new AtomicBoolean();
+			this.inFlight = new AtomicInteger();
+		}
+
+		// Sends commands for the given seconds, then waits for the ones still unanswered
+		void run(long seconds, Recorder recorder) throws InterruptedException {
+			long interval = 1000000000L / RATE;
+			long start = System.nanoTime();
+			long end = start + seconds * 1000000000L;
+			recorder.start(start);
+
+			for (long due = start; due < end; due += interval) {
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+					LockSupport.parkNanos(wait);
+
+				int command = pick();
+				if (command == ENTER || command == EXIT)
+					move(command, recorder);
+				else
+					send(command, due, recorder);
+			}
+
+			long stop = System.currentTimeMillis() + TIMEOUT + 1000;
+			while (inFlight.get() > 0 && System.currentTimeMillis() < stop)
+				Thread.sleep(10);
+			stop = System.currentTimeMillis() + MOVE_TIMEOUT;
+			while (moving.get() && System.currentTimeMillis() < stop)
+				Thread.sleep(10);
+			recorder.stop(end);
+		}
+
+		private int pick() {
+			double at = random.nextDouble() * cumulative[cumulative.length - 1];
+			for (int i = 0; i < cumulative.length; i++) {
+				if (at < cumulative[i])
+					return i;
+			}
+			return LOOKUP;
+		}
+
+		private void send(int command, long due, Recorder recorder) {
+			int k = random.nextInt(KEYS);
+			byte opcode = command == LOOKUP ? Opcode.LOOKUP : command == INSERT ? Opcode.INSERT : Opcode.DELETE;
+			String value = command == INSERT ? "value" + k : null;
+
+			inFlight.incrementAndGet();
+			client.send(opcode, key(k), value, cluster.pick(random)).whenComplete((reply, e) -> {
+				recorder.record(command, due, System.nanoTime(), e == null ? reply.getVisited().size() : -1);
+				inFlight.decrementAndGet();
+			});
+		}
+
+		// Enters a name server that is out of the ring, or exits one that is in it
+		private void move(int command, Recorder recorder) {
+			if (!moving.compareAndSet(false, true)) {
+				recorder.skip(command);
+				return;
+			}
+
+			Thread mover = new Thread(() -> {
+				long start = System.nanoTime();
+				boolean moved = command == ENTER ? cluster.enterAny(random) : cluster.exitAny(random);
+				if (moved)
+					recorder.record(command, start, System.nanoTime(), 0);
+				else
+					recorder.skip(command);
+				moving.set(false);
+			}, "mover");
+			mover.setDaemon(true);
+			mover.start();
+		}
+
+	}
+
+	/*
+	 * Client. Sends commands to servers as a node that is not on the ring, and takes
+	 * the replies the owners send back to it on a port of its own. Pipelined, it sends
+	 * them all to the bootstrap on one connection instead.
+	 */
+	private static class Client {
+
+		private static final VisitedNodes NONE = new VisitedNodes();
+
+		private RingNode self;
+		private ConnectionPool pool;
+		private PendingRequests pending;
+		private Pipeline pipeline; // Null unless pipelined
+
+		Client() throws IOException {
+			ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.self = new RingNode(CLIENT_ID, server.getLocalPort(), InetAddress.getLoopbackAddress());
+			this.pool = new ConnectionPool();
+			this.pending = new PendingRequests(TIMEOUT);
+			if (PIPELINED)
+				this.pipeline = new Pipeline(InetAddress.getLoopbackAddress(), PORT, CLIENT_ID, TIMEOUT);
+
+			daemon(() -> {
+				while (true) {
+					try {
+						Socket socket = server.accept();
+						daemon(() -> receive(socket), "replies-" + socket.getPort());
+					} catch (IOException e) {
+						e.printStackTrace();
+						return;
+					}
+				}
+			}, "client-accept");
+		}
+
+		// Sends a lookup, insert or delete to a server, the future completes with the owner's reply
+		CompletableFuture<Reply> send(byte opcode, long key, String value, RingNode server) {
+			if (pipeline != null) {
+				return pipeline.send(opcode, frame -> {
+					frame.putLong(key);
+					if (value != null)
+						frame.putString(value);
+					frame.putVisited(NONE);
+				});
+			}
+
+			int requestID = pending.nextID();
+			CompletableFuture<Reply> reply = pending.open(requestID);
+			try {
+				pool.send(server.getIP(), server.getPort(), frame -> {
+					frame.begin(opcode).putVarInt(requestID).putNode(self).putLong(key);
+					if (value != null)
+						frame.putString(value);
+					frame.putVisited(NONE);
+				});
+			} catch (IOException e) {
+				pending.fail(requestID, e);
+			}
+			return reply;
+		}
+
+		private void receive(Socket socket) {
+			Frame frame = new Frame();
+			try (Socket connection = socket) {
+				InputStream in = new BufferedInputStream(connection.getInputStream());
+				while (frame.readFrom(in)) {
+					if (frame.getOpcode() == Opcode.REPLY)
+						pending.complete(Reply.read(frame));
+				}
+			} catch (IOException e) {
+				// Server closed the connection, it reconnects to send the next reply
+			}
+		}
+
+	}
+
+	/*
+	 * Cluster. The server processes, and which name servers are on the ring. Commands
+	 * only go to servers on it.
+	 */
+	private static class Cluster {
+
+		private File dir;
+		private Server bootstrap;
+		private List<Server> names; // Every name server, in or out of the ring
+		private CopyOnWriteArrayList<Server> ring; // Servers commands can be sent to
+
+		Cluster(File dir) {
+			this.dir = dir;
+			this.names = new ArrayList<Server>();
+			this.ring = new CopyOnWriteArrayList<Server>();
+		}
+
+		// Starts every server and enters the name servers one after another
+		void start() throws IOException, InterruptedException {
+			write("bnconfig.txt", "0\n" + PORT + "\n");
+			bootstrap = new Server(dir, 0, PORT, "bnserver", "bnconfig.txt");
+			for (int i = 1; i <= NODES; i++) {
+				int id = i * 100;
+				String config = "nsconfig" + i + ".txt";
+				write(config, id + "\n" + (PORT + i) + "\n127.0.0.1 " + PORT + "\n");
+				names.add(new Server(dir, id, PORT + i, "nmserver", config));
+			}
+
+			bootstrap.awaitListening();
+			ring.add(bootstrap);
+			for (Server name : names) {
+				name.awaitListening();
+				if (!name.enter())
+					throw new IOException("Name server " + name.id + " did not enter the ring");
+				ring.add(name);
+			}
+		}
+
+		// Random server on the ring
+		RingNode pick(Random random) {
+			return ring.get(random.nextInt(ring.size())).node;
+		}
+
+		// Enters a random name server that is out of the ring. Returns false if there is none
+		boolean enterAny(Random random) {
+			List<Server> out = new ArrayList<Server>(names);
+			out.removeAll(ring);
+			if (out.isEmpty())
+				return false;
+
+			Server name = out.get(random.nextInt(out.size()));
+			if (!name.enter())
+				return false;
+			ring.add(name);
+			return true;
+		}
+
+		// Exits a random name server on the ring, taking it out of use first. Returns false if there is none
+		boolean exitAny(Random random) {
+			List<Server> in = new ArrayList<Server>(ring);
+			in.remove(bootstrap);
+			if (in.isEmpty())
+				return false;
+
+			Server name = in.get(random.nextInt(in.size()));
+			ring.remove(name);
+			return name.exit();
+		}
+
+		void stop() {
+			if (bootstrap != null)
+				bootstrap.stop();
+			for (Server name : names)
+				name.stop();
+		}
+
+		private void write(String name, String contents) throws IOException {
+			try (PrintWriter out = new PrintWriter(new FileWriter(new File(dir, name)))) {
+				out.print(contents);
+			}
+		}
+
+	}
+
+	/*
+	 * Server. One server process. Commands are typed into its input, and its output is
+	 * copied to ID.log while lines that end an enter or exit are handed to whoever waits
+	 * for them.
+	 */
+	private static class Server {
+
+		private int id;
+		private RingNode node;
+		private Process process;
+		private PrintWriter input;
+		private BlockingQueue<String> results;
+
+		Server(File dir, int id, int port, String main, String config) throws IOException {
+			this.id = id;
+			this.node = new RingNode(id, port, InetAddress.getLoopbackAddress());
+			this.results = new LinkedBlockingQueue<String>();
+
+			List<String> command = new ArrayList<String>();
+			command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			for (String arg : SERVER_ARGS.trim().split("\\s+")) {
+				if (!arg.isEmpty())
+					command.add(arg);
+			}
+			command.add(main);
+			command.add(config);
+
+			process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true).start();
+			input = new PrintWriter(process.getOutputStream(), true);
+
+			File log = new File(dir, id + ".log");
+			daemon(() -> {
+				try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+						PrintWriter copy = new PrintWriter(new FileWriter(log), true)) {
+					String line;
+					while ((line = out.readLine()) != null) {
+						copy.println(line);
+						if (line.contains("Successful entry") || line.contains("Entry failed")
+								|| line.contains("Successful exit"))
+							results.add(line);
+					}
+				} catch (IOException e) {
+					// Process was stopped
+				}
+			}, "output-" + id);
+		}
+
+		// Waits until the server accepts connections
+		void awaitListening() throws IOException, InterruptedException {
+			long stop = System.currentTimeMillis() + 10000;
+			while (true) {
+				try {
+					ConnectionPool.connect(node.getIP(), node.getPort()).close();
+					return;
+				} catch (IOException e) {
+					if (System.currentTimeMillis() > stop || !process.isAlive())
+						throw new IOException("Server " + id + " did not start", e);
+					Thread.sleep(50);
+				}
+			}
+		}
+
+		boolean enter() {
+			return type("enter", "Successful entry");
+		}
+
+		boolean exit() {
+			return type("exit", "Successful exit");
+		}
+
+		void stop() {
+			process.destroy();
+			try {
+				if (!process.waitFor(5, TimeUnit.SECONDS))
+					process.destroyForcibly();
+			} catch (InterruptedException e) {
+				process.destroyForcibly();
+			}
+		}
+
+		// Types a command and waits for the line that says how it ended
+		private boolean type(String command, String success) {
+			results.clear();
+			input.println(command);
+			try {
+				String result = results.poll(MOVE_TIMEOUT, TimeUnit.MILLISECONDS);
+				return result != null && result.contains(success);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+	}
+
+	/*
+	 * Recorder. Latencies of every command that was answered, in nanoseconds, the
+	 * number of failed and skipped commands, and how many servers each answered
+	 * command passed through.
+	 */
+	private static class Recorder {
+
+		private long[][] latencies;
+		private int[] counts;
+		private int[] failed;
+		private int[] skipped;
+		private TreeMap<Integer, Integer> visited;
+		private long start;
+		private long end;
+
+		Recorder() {
+			latencies = new long[COMMANDS.length][1024];
+			counts = new int[COMMANDS.length];
+			failed = new int[COMMANDS.length];
+			skipped = new int[COMMANDS.length];
+			visited = new TreeMap<Integer, Integer>();
+		}
+
+		void start(long start) {
+			this.start = start;
+		}
+
+		void stop(long end) {
+			this.end = end;
+		}
+
+		// Records a command that was due at the given time, servers is -1 if it failed
+		synchronized void record(int command, long due, long done, int servers) {
+			if (servers < 0) {
+				failed[command]++;
+				return;
+			}
+			if (counts[command] == latencies[command].length)
+				latencies[command] = Arrays.copyOf(latencies[command], counts[command] * 2);
+			latencies[command][counts[command]++] = done - due;
+			if (command != ENTER && command != EXIT)
+				visited.merge(servers, 1, Integer::sum);
+		}
+
+		synchronized void skip(int command) {
+			skipped[command]++;
+		}
+
+		synchronized void report() {
+			double seconds = (end - start) / 1e9;
+			System.out.println();
+			System.out.println("Ring of a bootstrap and " + NODES + " name servers, " + RATE + " commands/s for "
+					+ DURATION + " s, mix " + MIX);
+			System.out.println(String.format("%-8s %9s %7s %8s %10s %10s %10s %10s %10s", "command", "answered",
+					"failed", "skipped", "per sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+			long[] all = new long[0];
+			for (int c = 0; c < COMMANDS.length; c++) {
+				if (counts[c] + failed[c] + skipped[c] == 0)
+					continue;
+				long[] sorted = Arrays.copyOf(latencies[c], counts[c]);
+				Arrays.sort(sorted);
+				System.out.println(row(COMMANDS[c], sorted, failed[c], skipped[c], seconds));
+
+				if (c != ENTER && c != EXIT) {
+					int from = all.length;
+					all = Arrays.copyOf(all, from + sorted.length);
+					System.arraycopy(sorted, 0, all, from, sorted.length);
+				}
+			}
+			Arrays.sort(all);
+			System.out.println(row("all", all, failed[LOOKUP] + failed[INSERT] + failed[DELETE], 0, seconds));
+
+			// Counts up to 8 on their own, longer routes in ranges that double, 9-16, 17-32 and so on
+			TreeMap<Integer, Integer> buckets = new TreeMap<Integer, Integer>();
+			for (Map.Entry<Integer, Integer> count : visited.entrySet()) {
+				int servers = count.getKey();
+				int bucket = servers <= 8 ? servers : Integer.highestOneBit(servers - 1) + 1;
+				buckets.merge(bucket, count.getValue(), Integer::sum);
+			}
+
+			System.out.println();
+			System.out.println("Servers visited per command:");
+			for (Map.Entry<Integer, Integer> count : buckets.entrySet()) {
+				int low = count.getKey();
+				String label = low <= 8 ? String.valueOf(low) : low + "-" + (2 * low - 2);
+				double share = 100.0 * count.getValue() / all.length;
+				char[] bar = new char[(int) Math.round(share / 2)];
+				Arrays.fill(bar, '#');
+				System.out.println(String.format("%9s %6.2f%% %9d %s", label, share, count.getValue(), new String(bar)));
+			}
+		}
+
+		private static String row(String name, long[] sorted, int failed, int skipped, double seconds) {
+			return String.format("%-8s %9d %7d %8d %10.1f %10.3f %10.3f %10.3f %10.3f", name, sorted.length, failed,
+					skipped, sorted.length / seconds, percentile(sorted, 0.5), percentile(sorted, 0.99),
+					percentile(sorted, 0.999), percentile(sorted, 1));
+		}
+
+		// Latency in milliseconds that the given share of the sorted latencies are at or below
+		private static double percentile(long[] sorted, double share) {
+			if (sorted.length == 0)
+				return 0;
+			int index = (int) Math.ceil(share * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+		}
+
+	}
+
+	private static void daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+}
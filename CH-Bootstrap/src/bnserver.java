@@ -1,37 +1,53 @@
 import java.net.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Scanner;
-import java.util.TreeMap;
-import java.util.NavigableMap;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class bnserver {
 
+	private static final int DEFAULT_WORKERS = 16; // Commands handled at once unless set on the command line
+	private static final long REQUEST_TIMEOUT = 5000; // Milliseconds to wait for the owner of a key to reply
+	private static final int CACHE_SIZE = Integer.getInteger("cache", 10000); // Keys of other owners cached for lookups, none if 0
+
 	private int port;
 	private int serverID;
+	private RingNode self;
 
-	private int successorID;
-	private int successorPort;
-	private InetAddress successorIP;
-
-	private int predecessorID;
-	private int predecessorPort;
-	private InetAddress predecessorIP;
+	private FrameServer server; // Reads commands from every incoming connection and hands them to workers
+	private ExecutorService handlers; // Threads for range handovers and imports, which block on their connections, and commands held up by one
 
-	private ServerSocket server = null;
+	private FingerTable fingers; // Known ring members, used to route forwarded commands
+	private ConnectionPool pool; // Open connections to other servers
+	private PendingRequests pending; // Lookups, inserts and deletes sent out and waiting for a reply
+	private RangeTransfer transfers; // Key ranges being received from exiting nodes
 
-	private Vector<Integer> visitedNodes;
+	private KeyStore keyRange; // Stores current key range pairs of this node
+	private TokenRanges ranges; // Part of the ring owned by each of this node's tokens
+	private KeyStore copies; // Replicas of pairs owned by the nodes before this one
+	private Replication replication; // Copies writes to the replicas of their keys
+	private FailureDetector detector; // Sends heartbeats and notices nodes that stopped sending theirs
+	private HotKeyCache cache; // Values other owners answered lookups with, null if caching is off
 
-	private TreeMap<Integer, String> keyRange; // Stores current key range pairs of this node
-	private int start; // beginning of range
-	private int end; // end of range
+	// Held for reading while a key is checked against the range and applied, and for
+	// writing while the range moves on enter or exit, so no write lands in a range
+	// that is being handed over
+	private ReentrantReadWriteLock rangeLock;
+	private Handovers handovers; // Ranges ceded to an entering node that it doesn't have yet
 
 	/*
 	 * Constructor for Bootstrap Config is the configuration file of [ID, port,
 	 * Initial keys] required to run the server
 	 */
-	public bnserver(File config) {
+	public bnserver(File config, int workers) {
 
 		// Scan the file for the server ID, port number, and Initial key value pairs
 		try {
@@ -39,31 +55,80 @@ public class bnserver {
 			serverID = Integer.parseInt(sc.nextLine());
 			port = Integer.parseInt(sc.nextLine());
 
-			keyRange = new TreeMap<Integer, String>();
-			while (sc.hasNextLine()) {
+			keyRange = KeyStore.create(System.getProperty("store", "chunked"));
+			copies = KeyStore.create(System.getProperty("store", "chunked"));
+
+			// With a data directory the pairs outlive a restart, and replace the initial ones once there are any
+			boolean recovered = false;
+			String data = System.getProperty("data");
+			if (data != null) {
+				DurableKeyStore durable = DurableKeyStore.open(keyRange, new File(data, "node-" + serverID));
+				keyRange = durable;
+				recovered = durable.isRecovered();
+				if (recovered)
+					System.out.println("Recovered " + keyRange.size() + " keys from " + data);
+			}
+
+			while (!recovered && sc.hasNextLine()) {
 				String[] line = sc.nextLine().split(" ");
-				keyRange.put(Integer.parseInt(line[0]), line[1]);
+				keyRange.put(Ring.hash(line[0]), line[1]);
 			}
 			sc.close();
 
 		} catch (FileNotFoundException e) {
 			System.out.println("Incorrect file format.");
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 
-		this.successorID = serverID;
-		this.predecessorID = serverID;
-		this.start = 1;
-		this.end = serverID;
+		this.rangeLock = new ReentrantReadWriteLock();
+		this.handovers = new Handovers();
 
 		try {
-			// Create server on designated port from config
-			server = new ServerSocket(port);
-			server.setReuseAddress(true);
+			self = new RingNode(serverID, port, InetAddress.getLocalHost());
+
+			// Alone on the ring, so the tokens share the whole of it
+			long[] tokens = self.getTokens();
+			ranges = new TokenRanges(tokens);
+			ranges.claim(tokens[0] + 1, tokens[0]);
+
+			fingers = new FingerTable(self);
+			pool = new ConnectionPool();
+			pending = new PendingRequests(REQUEST_TIMEOUT);
+			transfers = new RangeTransfer();
+			replication = new Replication(self, fingers, pool, pending);
+			detector = new FailureDetector(self, fingers, pool, this::leave);
+			if (CACHE_SIZE > 0)
+				cache = new HotKeyCache(CACHE_SIZE);
+
+			// Create server on designated port from config. A node entering the ring
+			// acknowledges its ranges on the connection it asked on, so that one is streamed
+			server = new FrameServer(port, workers, this::recvCommand, Opcode.ENTER);
+
+			handlers = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "handler-" + port);
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			// Sizes read whenever the metrics are
+			Metrics.gauge("keys.owned", () -> keyRange.size());
+			Metrics.gauge("keys.copies", () -> copies.size());
+			Metrics.gauge("connections.out", pool::size);
+			Metrics.gauge("requests.pending", pending::size);
+			if (cache != null) {
+				Metrics.gauge("cache.size", cache::size);
+				Metrics.gauge("cache.hits", cache::hits);
+				Metrics.gauge("cache.misses", cache::misses);
+			}
+			Metrics.start(serverID);
+
+			detector.start(); // Heartbeats only go out once this node has successors on the ring
 
 			InputThread userInput = new InputThread();
 			userInput.start();
 
-			connect();
+			server.start();
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -71,249 +136,789 @@ public class bnserver {
 
 	}
 
-	// Handle incoming connections
-	public void connect() {
+	// Handles incoming commands that are not user input
+	public void recvCommand(Frame frame, VisitedNodes visitedNodes, InputStream in, OutputStream out) {
+		byte opcode = frame.getOpcode();
+		long start = System.nanoTime();
+		boolean failed = false;
+		try {
+			switch (opcode) {
+			// Current name server sends enter command
+			case Opcode.ENTER:
+				enter(frame.getNode(), in, out);
+				break;
+			// Current name server sends exit command
+			case Opcode.EXIT:
+				exit(frame);
+				break;
+			// Writes the owner of some keys applied, keep a copy
+			case Opcode.REPLICATE:
+				replication.apply(frame, copies);
+				break;
+			// Part of the key range of an exiting node, acknowledged on the same connection
+			case Opcode.RANGE_CHUNK:
+				transfers.receive(frame, out);
+				break;
+			// A node entered the ring, add it to the finger table and pass the message on. Nodes
+			// it took keys from know it already, so the message goes around until it is back
+			case Opcode.JOIN: {
+				RingNode node = frame.getNode();
+				join(node);
+				if (fingers.next().getID() != node.getID())
+					announce(Opcode.JOIN, node);
+				break;
+			}
+			// A node exited the ring or was taken for dead, remove it from the finger table and pass the message on
+			case Opcode.LEAVE:
+				leave(frame.getNode());
+				break;
+			// Node that would hand its ranges to this one on failure is still alive
+			case Opcode.HEARTBEAT:
+				detector.heartbeat(frame.getNode());
+				break;
+			// Command from a client, or forwarded here by a node that took this one for the
+			// closest to the key. Run it as if it was typed here and answer whoever started it
+			case Opcode.LOOKUP:
+			case Opcode.INSERT:
+			case Opcode.DELETE:
+				relay(frame, visitedNodes, out);
+				break;
+			// Batch from a client, or one that reached this node on its way to the owners
+			case Opcode.MGET:
+			case Opcode.MPUT:
+			case Opcode.MDELETE: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				Batch batch = Batch.read(frame, opcode == Opcode.MPUT);
+				batchAsync(opcode, batch).thenAccept(pairs -> {
+					try {
+						pool.answer(origin, out, reply -> Reply.writeBatch(reply, requestID, pairs, serverID, visitedSelf()));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+				break;
+			}
+			// Client wants the ring members to route its commands by
+			case Opcode.RING:
+				fingers.writeRing(frame);
+				frame.writeTo(out);
+				break;
+			// Owner changed keys this node may cache, drop them and acknowledge so the write can be answered
+			case Opcode.INVALIDATE: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				int count = frame.getVarInt();
+				for (int i = 0; i < count; i++) {
+					long key = frame.getLong();
+					if (cache != null)
+						cache.invalidate(key);
+				}
+				pool.send(origin.getIP(), origin.getPort(),
+						reply -> Reply.write(reply, requestID, true, null, serverID, visitedSelf()));
+				break;
+			}
+			// Page of a range scan, read from this node's part of the range
+			case Opcode.SCAN:
+				scan(frame, out);
+				break;
+			// Another entry node wants to know how full the ring is, answer with this node's part
+			case Opcode.STATS: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				RingStats stats = stats();
+				pool.answer(origin, out, reply -> Reply.writeStats(reply, requestID, stats));
+				break;
+			}
+			// Node turned away a page of a scan, its part of the range is split again
+			case Opcode.NOT_OWNER:
+				pending.fail(frame.getVarInt(), new IOException("Range moved while it was scanned"));
+				break;
+			// Print command went around the ring and is back at the bootstrap, nothing left to print
+			case Opcode.PRINT:
+				break;
+			// Owner of a key answered a request, hand the result to whoever is waiting for it
+			case Opcode.REPLY:
+				pending.complete(Reply.read(frame));
+				break;
+			// Last owner of a batch answered, hand the pairs to whoever is waiting for them
+			case Opcode.BATCH_REPLY:
+				pending.complete(Reply.readBatch(frame));
+				break;
+			// Member answered a stats command, add its part to the total
+			case Opcode.STATS_REPLY:
+				pending.complete(Reply.readStats(frame));
+				break;
+			default:
+				System.out.println("Unknown command: " + Opcode.name(opcode));
+			}
+		} catch (IOException e) {
+			failed = true;
+			e.printStackTrace();
+		} finally {
+			Metrics.received(opcode, System.nanoTime() - start, failed);
+		}
+	}
 
-		while (true) {
-			ObjectInputStream in = null;
-			ObjectOutputStream out = null;
-			Socket user = null;
-			try {
-				user = server.accept();
-				in = new ObjectInputStream(user.getInputStream());
-				out = new ObjectOutputStream(user.getOutputStream());
+	/*
+	 * Hands a node entering the ring the part of every range of this node that now
+	 * comes before one of its tokens, along with the ring members known here. The
+	 * ranges follow the reply in chunks on the same connection. The range lock is only
+	 * held for writing while the ranges are ceded and for each chunk dropped, commands
+	 * for keys that are not moving go on meanwhile
+	 */
+	public void enter(RingNode node, InputStream in, OutputStream out) {
+		List<TokenRanges.Range> ceded;
+		Handovers.Handover handover;
+		Frame reply;
 
-				String cmd = in.readUTF();
-				recvCommand(cmd, in, out);
-			} catch (IOException e) {
-				e.printStackTrace();
-			} finally {
+		rangeLock.writeLock().lock();
+		try {
+			Map<Long, List<RingNode>> replicas = replication.replicaSets();
+			fingers.add(node);
+			dropCache(); // Keys the new node takes have an owner that doesn't know they are cached
+			ceded = ranges.cede(node.getTokens());
+			handover = handovers.begin(ceded); // Commands for these keys wait until the new node has them
+
+			// This node stays a replica of what it hands over, as the node after the new one
+			if (Replication.FACTOR > 1) {
+				for (TokenRanges.Range range : ceded)
+					keyRange.forEach(range.getStart(), range.getEnd(), copies::putBytes);
+			}
+			replication.repair(replicas, ranges, keyRange); // New node may now keep copies of what is left
+
+			reply = new Frame().begin(Opcode.ENTER_REPLY).putNode(self); // Entering node learns this node's ID
+			fingers.writeMembers(reply); // Send known ring members so the new node can build its finger table
+		} finally {
+			rangeLock.writeLock().unlock();
+		}
+
+		try {
+			// Stream the pairs, dropping each chunk once the new node has it
+			RangeTransfer.sendRanges(keyRange, rangeLock, ceded, reply, in, out, node.getIP(), node.getPort());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			handovers.end(handover);
+		}
+	}
+
+	// Takes over the ranges an exiting node had before this node's tokens
+	public void exit(Frame frame) {
+		try {
+			RingNode node = frame.getNode();
+
+			// Exiting node's pairs arrive in chunks, grow each range once its pairs all have
+			transfers.expectRanges(frame, keyRange, range -> {
+				rangeLock.writeLock().lock();
 				try {
-					if (in != null)
-						in.close();
-					if (out != null)
-						out.close();
-					if (user != null)
-						user.close();
-				} catch (IOException e) {
+					ranges.extend(range.getStart(), range.getEnd());
+					copies.removeRange(range.getStart(), range.getEnd()); // Owned now, no longer a copy
+					replication.copyTakenOver(keyRange, range.getStart(), range.getEnd(), node.getID());
+				} finally {
+					rangeLock.writeLock().unlock();
 				}
+			}).whenComplete((count, e) -> {
+				if (e != null)
+					System.out.println("Key range of exiting node " + node.getID() + " was not received");
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+	}
+
+	/*
+	 * Drops a node that exited or failed from the finger table and tells the rest of
+	 * the ring, once, so the message stops where the node is already gone
+	 */
+	private void leave(RingNode node) {
+		if (takeOver(node)) {
+			announce(Opcode.LEAVE, node);
+			pool.close(node.getIP(), node.getPort());
+		}
+	}
+
+	/*
+	 * Takes over the ranges of a node that is gone which come just before this node's
+	 * tokens, then removes it from the finger table. An exiting node has handed those
+	 * ranges over already, and extend leaves them alone. For a failed node the keys come
+	 * from the copies this node kept as its replica. Either way every node that became a
+	 * replica of this node's ranges gets copies of them. Returns false if the node was
+	 * not known
+	 */
+	private boolean takeOver(RingNode node) {
+		rangeLock.writeLock().lock();
+		try {
+			Map<Long, List<RingNode>> replicas = replication.replicaSets();
+			List<TokenRanges.Range> taken = new ArrayList<TokenRanges.Range>();
+			int owned = keyRange.size();
+
+			for (TokenRanges.Range range : fingers.rangesOf(node.getID())) {
+				if (fingers.ownerAfter(range.getEnd() + 1, node.getID()).getID() != serverID
+						|| !ranges.extend(range.getStart(), range.getEnd()))
+					continue;
+
+				// Pairs already handed over by an exiting node are newer than the copies
+				copies.forEach(range.getStart(), range.getEnd(), (key, utf8, offset, length) -> {
+					if (keyRange.get(key) == null)
+						keyRange.putBytes(key, utf8, offset, length);
+				});
+				copies.removeRange(range.getStart(), range.getEnd());
+				taken.add(range);
 			}
+
+			detector.forget(node.getID());
+			if (!fingers.remove(node.getID()))
+				return false;
+			dropCache(); // Keys of the node that is gone have new owners
+
+			replication.repair(replicas, ranges, keyRange);
+			for (TokenRanges.Range range : taken)
+				replication.copyTakenOver(keyRange, range.getStart(), range.getEnd(), node.getID());
+
+			if (keyRange.size() > owned)
+				System.out.println("Took over " + (keyRange.size() - owned) + " keys from node " + node.getID());
+			return true;
+		} finally {
+			rangeLock.writeLock().unlock();
 		}
+	}
 
+	// Adds a node that entered the ring, copying this node's pairs to it where it became a replica
+	private void join(RingNode node) {
+		rangeLock.writeLock().lock();
+		try {
+			Map<Long, List<RingNode>> replicas = replication.replicaSets();
+			if (fingers.add(node)) {
+				dropCache();
+				replication.repair(replicas, ranges, keyRange);
+			}
+		} finally {
+			rangeLock.writeLock().unlock();
+		}
 	}
 
-	// Handles incoming commands that are not user input
-	@SuppressWarnings("unchecked")
-	public void recvCommand(String cmd, ObjectInputStream in, ObjectOutputStream out) {
+	// Checks to see if a key is in range of one of this node's tokens
+	public boolean inRange(long key) {
+		return ranges.owns(key);
+	}
+
+	/*
+	 * Empties the cache once keys change owner. Only the owner that answered a lookup
+	 * knows to invalidate the key, the one taking it over would not
+	 */
+	private void dropCache() {
+		if (cache != null)
+			cache.clear();
+	}
+
+	// Passes a join or leave message on to the node with the next ID so every finger table is refreshed
+	public void announce(byte opcode, RingNode node) {
+		RingNode next = fingers.next();
+
+		// No other node left to tell
+		if (next.getID() == serverID)
+			return;
+
 		try {
-			// Current name server sends enter command
-			if (cmd.equalsIgnoreCase("enter")) {
-				int nameID = in.readInt();
-				int port = in.readInt();
-				InetAddress ip = (InetAddress) in.readObject();
+			pool.send(next.getIP(), next.getPort(), frame -> frame.begin(opcode).putNode(node));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-				enter(nameID, port, ip, out);
+	/*
+	 * Sends a command toward the owner of a key. Uses the closest finger preceding the
+	 * key, falling back to the key's owner if there is none or it can't be reached
+	 */
+	private void forwardToward(long key, ConnectionPool.Message message) throws IOException {
+		RingNode finger = fingers.closestPreceding(key);
+		if (finger != null) {
+			try {
+				pool.send(finger.getIP(), finger.getPort(), message);
+				return;
+			} catch (IOException e) {
+				leave(finger); // Finger is gone, take over from it and stop routing through it
 			}
-			// Current name server sends exit command
-			else if (cmd.equalsIgnoreCase("exit")) {
-				exit(in);
-			} else if (cmd.equalsIgnoreCase("successor")) {
-				successorID = in.readInt();
-				successorPort = in.readInt();
-				successorIP = (InetAddress) in.readObject();
-			}
-			// Handle information received from lookup command
-			else if (cmd.equalsIgnoreCase("lookup-msg")) {
-				boolean exists = in.readBoolean();
-				if (exists) {
-					String value = in.readUTF();
-					int finalServer = in.readInt();
-					Vector<Integer> lookups = (Vector<Integer>) in.readObject();
-
-					System.out.println("Value: " + value);
-					System.out.println("Servers visited: " + lookups.toString());
-					System.out.println("Final server: " + finalServer);
-				} else {
-					System.out.println("Key not found");
-				}
+		}
+		RingNode next = fingers.ownerAfter(key, serverID);
+		pool.send(next.getIP(), next.getPort(), message);
+	}
+
+	/*
+	 * Looks up a key at one of its replicas, a different one each time, the future
+	 * completes once it replies. A replica without the key passes the lookup on to
+	 * the owner
+	 */
+	public CompletableFuture<Reply> lookupAsync(long key) {
+		return lookupAsync(key, replication.pick(key));
+	}
+
+	// Looks up a key here if this node has it, and otherwise at the given replica
+	private CompletableFuture<Reply> lookupAsync(long key, RingNode replica) {
+		rangeLock.readLock().lock();
+		try {
+			// Key is being handed over, look it up again once the new node has it
+			boolean owned = inRange(key);
+			CompletableFuture<Void> moving = owned ? null : handovers.of(key);
+			if (moving != null)
+				return moving.thenComposeAsync(done -> lookupAsync(key, replica), handlers);
+
+			// Key can exist in this server's range, or this server keeps a copy of it
+			String value = null;
+			if (owned)
+				value = keyRange.get(key);
+			else if (replica.getID() == serverID)
+				value = copies.get(key);
+
+			if (owned || value != null)
+				return CompletableFuture.completedFuture(new Reply(0, value != null, value, serverID, visitedSelf()));
+		} finally {
+			rangeLock.readLock().unlock();
+		}
+
+		if (cache != null)
+			return lookupCached(key);
+
+		// Key isn't here, ask the replica picked or, if that is this server, the owner
+		return request(Opcode.LOOKUP, key, null, replica.getID() == serverID ? null : replica);
+	}
+
+	/*
+	 * Answers a lookup of another owner's key from the cache, or asks the owner and
+	 * caches what it found. Only the owner's answer is cached, a replica's copy could
+	 * lag behind and the replica would not invalidate it
+	 */
+	private CompletableFuture<Reply> lookupCached(long key) {
+		String cached = cache.get(key);
+		if (cached != null)
+			return CompletableFuture.completedFuture(new Reply(0, true, cached, serverID, visitedSelf()));
+
+		long version = cache.version(key);
+		RingNode owner = fingers.ownerOf(key);
+		return request(Opcode.LOOKUP, key, null, owner.getID() == serverID ? null : owner).thenApply(reply -> {
+			if (reply.isFound() && reply.getServer() == owner.getID())
+				cache.put(key, reply.getValue(), version);
+			return reply;
+		});
+	}
+
+	// Inserts a key, the future completes once a quorum of its replicas has stored it
+	public CompletableFuture<Reply> insertAsync(long key, String value) {
+		long held = replication.lock(key);
+		rangeLock.readLock().lock();
+		try {
+			if (inRange(key)) {
+				keyRange.put(key, value);
+
+				VisitedNodes lookups = visitedSelf();
+				return replication.replicate(true, Collections.singletonMap(key, value))
+						.thenApply(done -> new Reply(0, true, null, serverID, lookups));
 			}
-			// Handle message received from insert command
-			else if (cmd.equalsIgnoreCase("insert-msg")) {
-				System.out.println(in.readUTF());
-				System.out.println(in.readUTF());
+
+			// Key is being handed over, insert it again once the new node has it
+			CompletableFuture<Void> moving = handovers.of(key);
+			if (moving != null)
+				return moving.thenComposeAsync(done -> insertAsync(key, value), handlers);
+		} finally {
+			rangeLock.readLock().unlock();
+			replication.unlock(held);
+		}
+
+		if (cache != null)
+			cache.invalidate(key);
+		return request(Opcode.INSERT, key, value, null);
+	}
+
+	// Deletes a key, the future completes once a quorum of its replicas has removed it
+	public CompletableFuture<Reply> deleteAsync(long key) {
+		long held = replication.lock(key);
+		rangeLock.readLock().lock();
+		try {
+			if (inRange(key)) {
+				boolean removed = keyRange.remove(key) != null;
+
+				VisitedNodes lookups = visitedSelf();
+				return replication.replicate(false, Collections.singletonMap(key, null))
+						.thenApply(done -> new Reply(0, removed, null, serverID, lookups));
 			}
-			// Handle message received from delete command
-			else if (cmd.equalsIgnoreCase("delete-msg")) {
-				if (in.readBoolean()) {
-					System.out.println(in.readUTF());
-					System.out.println(in.readUTF());
-				} else {
-					System.out.println(in.readUTF());
+
+			// Key is being handed over, delete it again once the new node has it
+			CompletableFuture<Void> moving = handovers.of(key);
+			if (moving != null)
+				return moving.thenComposeAsync(done -> deleteAsync(key), handlers);
+		} finally {
+			rangeLock.readLock().unlock();
+			replication.unlock(held);
+		}
+
+		if (cache != null)
+			cache.invalidate(key);
+		return request(Opcode.DELETE, key, null, null);
+	}
+
+	/*
+	 * Registers a request and sends it to the given node, or forwards it toward the
+	 * owner of the key if there is none or it can't be reached, along with this node
+	 * so the answer comes straight back here. Value is only sent for an insert
+	 */
+	private CompletableFuture<Reply> request(byte opcode, long key, String value, RingNode target) {
+		int requestID = pending.nextID();
+		CompletableFuture<Reply> reply = pending.open(requestID);
+		VisitedNodes lookups = visitedSelf();
+
+		ConnectionPool.Message message = frame -> {
+			frame.begin(opcode).putVarInt(requestID).putNode(self).putLong(key);
+			if (value != null)
+				frame.putString(value);
+			frame.putVisited(lookups);
+		};
+
+		try {
+			if (target != null) {
+				try {
+					pool.send(target.getIP(), target.getPort(), message);
+					return reply;
+				} catch (IOException e) {
+					// Replica is gone, route the request like any other command
+					leave(target);
 				}
+			}
+			forwardToward(key, message);
+		} catch (IOException e) {
+			pending.fail(requestID, e);
+		}
+		return reply;
+	}
+
+	/*
+	 * A client that routes by its own copy of the ring sends commands straight to the
+	 * key's owner, with the epoch of its copy after the visited nodes. If the key is not
+	 * this node's and the copy is out of date, the client is told the current epoch
+	 * instead of the command being forwarded, so it fetches the ring again. Returns true
+	 * if the command was answered that way
+	 */
+	private boolean redirect(Frame frame, int requestID, RingNode origin, long key, OutputStream out) throws IOException {
+		if (frame.remaining() < 8)
+			return false;
+		long epoch = frame.getLong();
+		long current = fingers.epoch();
+		if (epoch == current || inRange(key))
+			return false;
+		pool.answer(origin, out, reply -> Reply.writeNotOwner(reply, requestID, current));
+		return true;
+	}
 
+	/*
+	 * Runs a lookup, insert or delete that reached this node from another one and
+	 * answers the node that started it once the owner has replied. The nodes the
+	 * command passed through on its way here come first in the answer
+	 */
+	private void relay(Frame frame, VisitedNodes visitedNodes, OutputStream out) throws IOException {
+		byte opcode = frame.getOpcode();
+		int requestID = frame.getVarInt();
+		RingNode origin = frame.getNode();
+		long key = frame.getLong();
+		String value = opcode == Opcode.INSERT ? frame.getString() : null;
+		VisitedNodes visited = frame.getVisited(visitedNodes).copy(); // List is reused before the owner answers
+		if (redirect(frame, requestID, origin, key, out))
+			return;
+
+		CompletableFuture<Reply> reply;
+		if (opcode == Opcode.LOOKUP)
+			reply = lookupAsync(key, self); // Straight toward the owner, another replica could send it back here
+		else if (opcode == Opcode.INSERT)
+			reply = insertAsync(key, value);
+		else
+			reply = deleteAsync(key);
+
+		// Without an answer nothing is sent and the request times out where it started
+		reply.thenAccept(answer -> {
+			for (int i = 0; i < answer.getVisited().size(); i++)
+				visited.add(answer.getVisited().get(i));
+			if (answer.getServer() == serverID)
+				Metrics.visited(visited.size());
+			try {
+				pool.answer(origin, out, message -> Reply.write(message, requestID, answer.isFound(), answer.getValue(),
+						answer.getServer(), visited));
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
+		});
+	}
+
+	/*
+	 * Applies a batch of keys. Keys in this server's range are applied in one pass, the
+	 * rest are grouped by the owner the finger table knows for them and each group is
+	 * sent as one request. The future completes with every pair found, inserted or
+	 * deleted once all owners have replied and the writes made here reached a quorum
+	 */
+	public CompletableFuture<Map<Long, String>> batchAsync(byte opcode, Batch batch) {
+		Batch rest;
+		CompletableFuture<Void> replicated = CompletableFuture.completedFuture(null);
+
+		long held = replication.lock(batch);
+		rangeLock.readLock().lock();
+		try {
+			// A key is being handed over, apply the batch again once the new node has it
+			CompletableFuture<Void> moving = handovers.of(batch);
+			if (moving != null)
+				return moving.thenComposeAsync(done -> batchAsync(opcode, batch), handlers);
+
+			rest = batch.apply(opcode, keyRange, this::inRange);
+			if (opcode != Opcode.MGET)
+				replicated = replication.replicate(opcode == Opcode.MPUT, rest.getAppliedHere());
+		} finally {
+			rangeLock.readLock().unlock();
+			replication.unlock(held);
+		}
+
+		// Group the remaining keys by owner, a key this server no longer owns goes to the next owner
+		Map<Integer, RingNode> owners = new TreeMap<Integer, RingNode>();
+		Map<Integer, Batch> groups = new TreeMap<Integer, Batch>();
+		for (int i = 0; i < rest.size(); i++) {
+			RingNode owner = fingers.ownerAfter(rest.getKey(i), serverID);
+			if (opcode != Opcode.MGET && cache != null)
+				cache.invalidate(rest.getKey(i));
+
+			owners.putIfAbsent(owner.getID(), owner);
+			groups.computeIfAbsent(owner.getID(), id -> new Batch(opcode == Opcode.MPUT)).add(rest.getKey(i),
+					rest.getValue(i));
 		}
+
+		List<CompletableFuture<?>> waiting = new ArrayList<CompletableFuture<?>>();
+		List<CompletableFuture<Reply>> replies = new ArrayList<CompletableFuture<Reply>>();
+		for (Map.Entry<Integer, Batch> group : groups.entrySet())
+			replies.add(batchRequest(opcode, owners.get(group.getKey()), group.getValue()));
+		waiting.addAll(replies);
+		waiting.add(replicated);
+
+		// Merge the pairs applied here with those every owner replied with
+		Map<Long, String> merged = new TreeMap<Long, String>(rest.getApplied());
+		return CompletableFuture.allOf(waiting.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			for (CompletableFuture<Reply> reply : replies)
+				merged.putAll(reply.join().getPairs());
+			return merged;
+		});
 	}
 
-	public void enter(int nameID, int port, InetAddress ip, ObjectOutputStream out) {
+	// Registers a batch request and sends it straight to the owner of its keys
+	private CompletableFuture<Reply> batchRequest(byte opcode, RingNode owner, Batch batch) {
+		int requestID = pending.nextID();
+		CompletableFuture<Reply> reply = pending.open(requestID);
+		VisitedNodes lookups = visitedSelf();
+
+		ConnectionPool.Message message = frame -> {
+			frame.begin(opcode).putVarInt(requestID).putNode(self);
+			batch.write(frame);
+			frame.putVisited(lookups);
+		};
+
 		try {
-			// First entry of name server
-			if (successorID == serverID) {
-				out.writeBoolean(true); // Tells new node that it is going to enter from this node
-				out.flush();
-				out.writeBoolean(true); // Tells new node that it is the first new node
-				out.flush();
-
-				successorID = nameID;
-				predecessorID = nameID;
-
-				successorPort = port;
-				predecessorPort = port;
-
-				successorIP = ip;
-				predecessorIP = ip;
-
-				// Copy key-value pairs that are in the range of the node entering
-				NavigableMap<Integer, String> nameRange = keyRange.subMap(start, false, nameID, true);
-				out.writeObject(nameRange);
-				out.flush();
-
-				start = nameID + 1;
-
-				// Set new key range
-				TreeMap<Integer, String> temp = new TreeMap<Integer, String>();
-				nameRange = keyRange.subMap(start, true, 1024, true);
-				if (keyRange.containsKey(serverID))
-					temp.put(serverID, keyRange.get(serverID));
-				temp.putAll(nameRange);
-				keyRange.clear();
-				keyRange = temp;
-				temp = null;
-				nameRange = null;
-			}
-			// New server is in range of bootstrap server
-			else if (inRange(nameID)) {
-				out.writeBoolean(true);
-				out.flush();
-				out.writeBoolean(false);
-				out.flush();
-
-				// Update predecessor for new node
-				out.writeInt(predecessorID);
-				out.writeInt(predecessorPort);
-				out.writeObject(predecessorIP);
-
-				predecessorID = nameID;
-				predecessorPort = port;
-				predecessorIP = ip;
-
-				// Copy key-value pairs that are in the range of the node entering
-				NavigableMap<Integer, String> nameRange = keyRange.subMap(start, false, nameID, true);
-				out.writeObject(nameRange);
-				nameRange = null;
-
-				start = nameID + 1;
-
-				// Set new key range
-                                TreeMap<Integer, String> temp = new TreeMap<Integer, String>();
-                                nameRange = keyRange.subMap(start, true, 1024, true);
-                                if (keyRange.containsKey(serverID))
-                                        temp.put(serverID, keyRange.get(serverID));
-                                temp.putAll(nameRange);
-                                keyRange.clear();
-                                keyRange = temp;
-                                temp = null;
-                                nameRange = null;
-
-				out.flush();
-			}
-			// New node not in range, send request to next node
-			else {
-				out.writeBoolean(false);
-				out.flush();
-
-				Socket forward = null;
-				ObjectOutputStream output = null;
-				ObjectInputStream input = null;
+			try {
+				pool.send(owner.getIP(), owner.getPort(), message);
+			} catch (IOException e) {
+				// Owner is gone, route the batch like any other command
+				leave(owner);
+				forwardToward(batch.getKey(0), message);
+			}
+		} catch (IOException e) {
+			pending.fail(requestID, e);
+		}
+		return reply;
+	}
 
-				try {
-					forward = new Socket(successorIP, successorPort);
-					output = new ObjectOutputStream(forward.getOutputStream());
-					input = new ObjectInputStream(forward.getInputStream());
-
-					output.writeUTF("enter");
-					output.writeInt(nameID);
-					output.writeInt(port);
-					output.writeObject(ip);
-					output.flush();
-
-					visitedNodes = new Vector<Integer>();
-					visitedNodes.add(serverID); // Adds node to list of visited nodes
-					output.writeObject(visitedNodes); // Sends list of visited nodes to successor
-
-					visitedNodes = null;
-					output.flush();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} finally {
+	/*
+	 * Scans [from, to] of the ring for at most limit pairs. The owners are read a page
+	 * at a time as the returned cursor is read
+	 */
+	public RangeScan scanRange(long from, long to, int limit) throws IOException {
+		return new RangeScan(new RangeScan.Source() {
+
+			public List<RangeScan.Part> split(long from, long to, RingNode refused) {
+				return fingers.split(from, to); // Finger table is as current as this node knows
+			}
+
+			public CompletableFuture<Reply> page(RingNode owner, long from, long to, int limit) {
+				if (owner.getID() == serverID) {
+					rangeLock.readLock().lock();
 					try {
-						if (output != null)
-							output.close();
-						if (input != null)
-							input.close();
-						if (forward != null)
-							forward.close();
-					} catch (IOException e) {
+						if (ranges.ownsAll(from, to))
+							return CompletableFuture.completedFuture(
+									new Reply(0, RangeScan.read(keyRange, from, to, limit), serverID, visitedSelf()));
+
+						// Part is being handed over, read it again once the new node has it
+						CompletableFuture<Void> moving = handovers.overlapping(from, to);
+						if (moving != null)
+							return moving.thenComposeAsync(done -> page(owner, from, to, limit), handlers);
+					} finally {
+						rangeLock.readLock().unlock();
 					}
+					return CompletableFuture.failedFuture(new IOException("Range moved while it was scanned"));
 				}
+				return scanRequest(owner, from, to, limit);
 			}
+
+		}, from, to, limit);
+	}
+
+	// Registers a page of a scan and sends it straight to the owner of the part
+	private CompletableFuture<Reply> scanRequest(RingNode owner, long from, long to, int limit) {
+		int requestID = pending.nextID();
+		CompletableFuture<Reply> reply = pending.open(requestID);
+
+		try {
+			pool.send(owner.getIP(), owner.getPort(), frame -> frame.begin(Opcode.SCAN).putVarInt(requestID).putNode(self)
+					.putLong(from).putLong(to).putVarInt(limit));
 		} catch (IOException e) {
-			e.printStackTrace();
+			leave(owner); // Owner is gone, the part is split again once it is out of the finger table
+			pending.fail(requestID, e);
 		}
+		return reply;
 	}
 
-	// Handles exit of a node, updating that node's predecessor and successor
-	@SuppressWarnings("unchecked")
-	public void exit(ObjectInputStream in) {
+	/*
+	 * Answers a scan with at most limit pairs of [from, to] in key order. The part must
+	 * lie in one of this node's ranges, otherwise the node that asked is told this one
+	 * is not its owner, so it splits the range again
+	 */
+	private void scan(Frame frame, OutputStream out) throws IOException {
+		scan(frame.getVarInt(), frame.getNode(), frame.getLong(), frame.getLong(), frame.getVarInt(), out);
+	}
+
+	private void scan(int requestID, RingNode origin, long from, long to, int limit, OutputStream out)
+			throws IOException {
+		Map<Long, String> pairs = null;
+		CompletableFuture<Void> moving = null;
+		rangeLock.readLock().lock();
 		try {
-			// Handles exit if there is only one other node in system
-			if (successorID == predecessorID) {
-				successorID = predecessorID = 0;
-				start = 1;
-				end = 0;
-
-				keyRange.putAll((NavigableMap<Integer, String>) in.readObject());
-			} else {
-				// Updates info for successor
-				if (in.readBoolean()) {
-					predecessorID = in.readInt();
-					predecessorPort = in.readInt();
-					predecessorIP = (InetAddress) in.readObject();
-
-					keyRange.putAll((NavigableMap<Integer, String>) in.readObject());
-					start = predecessorID + 1;
-				}
-				// Updates infor for predecessor
-				else {
-					successorID = in.readInt();
-					successorPort = in.readInt();
-					successorIP = (InetAddress) in.readObject();
+			if (ranges.ownsAll(from, to))
+				pairs = RangeScan.read(keyRange, from, to, limit);
+			else
+				moving = handovers.overlapping(from, to);
+		} finally {
+			rangeLock.readLock().unlock();
+		}
+
+		// Part is being handed over, scan it again once the new node has it
+		if (moving != null) {
+			moving.thenRunAsync(() -> {
+				try {
+					scan(requestID, origin, from, to, limit, out);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
+			}, handlers);
+			return;
+		}
+
+		Map<Long, String> found = pairs;
+		long epoch = fingers.epoch();
+		VisitedNodes visited = visitedSelf();
+		pool.answer(origin, out, reply -> {
+			if (found == null)
+				Reply.writeNotOwner(reply, requestID, epoch);
+			else
+				Reply.writeBatch(reply, requestID, found, serverID, visited);
+		});
+	}
+
+	/*
+	 * Asks every ring member for its keys, value bytes and share of the ring at once,
+	 * this node included. The future completes with their total once every member
+	 * answered or timed out, answered gets the stats of each member that did
+	 */
+	public CompletableFuture<RingStats> ringStats(Map<Integer, RingStats> answered) {
+		return RingStats.gather(fingers.members(), node -> {
+			if (node.getID() == serverID)
+				return CompletableFuture.completedFuture(new Reply(0, stats()));
+
+			int requestID = pending.nextID();
+			CompletableFuture<Reply> reply = pending.open(requestID);
+			try {
+				pool.send(node.getIP(), node.getPort(), frame -> frame.begin(Opcode.STATS).putVarInt(requestID).putNode(self));
+			} catch (IOException e) {
+				pending.fail(requestID, e);
 			}
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
+			return reply;
+		}, answered);
+	}
+
+	// Keys, value bytes and share of the ring of this node, read while no range moves
+	private RingStats stats() {
+		rangeLock.readLock().lock();
+		try {
+			return RingStats.of(serverID, keyRange, copies, ranges.merged());
+		} finally {
+			rangeLock.readLock().unlock();
 		}
+	}
 
+	/*
+	 * Reads a key file in parallel and splits its pairs by the node owning them. This
+	 * node's part is built into its store in one pass, every other owner is streamed
+	 * its part in key order, all owners at the same time, and each owner copies its
+	 * part on to its replicas. Returns the number of pairs each node got
+	 */
+	public Map<Integer, Integer> bulkImport(File file) throws IOException {
+		KeyStore pairs = BulkImport.read(file);
+		Map<Integer, Integer> imported = new TreeMap<Integer, Integer>();
+		dropCache(); // Imported pairs replace values without their owners invalidating them
+
+		// Take this node's part out first, what is left goes to the other owners
+		List<TokenRanges.Range> own = fingers.rangesOf(serverID);
+		KeyStore part = new ChunkedKeyStore();
+		for (TokenRanges.Range range : own) {
+			pairs.forEach(range.getStart(), range.getEnd(), part::putBytes);
+			pairs.removeRange(range.getStart(), range.getEnd());
+		}
+
+		rangeLock.writeLock().lock();
+		try {
+			keyRange.putAll(part);
+			for (TokenRanges.Range range : own)
+				replication.copyToReplicas(part, range.getStart(), range.getEnd());
+		} finally {
+			rangeLock.writeLock().unlock();
+		}
+		imported.put(serverID, part.size());
+
+		Map<Integer, CompletableFuture<Integer>> pushes = new TreeMap<Integer, CompletableFuture<Integer>>();
+		for (RingNode owner : fingers.members()) {
+			if (owner.getID() == serverID)
+				continue;
+
+			List<TokenRanges.Range> ranges = fingers.rangesOf(owner.getID());
+			pushes.put(owner.getID(), CompletableFuture.supplyAsync(() -> {
+				try (Socket socket = ConnectionPool.connect(owner.getIP(), owner.getPort())) {
+					InputStream in = new BufferedInputStream(socket.getInputStream());
+					OutputStream out = socket.getOutputStream();
+
+					Frame header = new Frame().begin(Opcode.IMPORT).putNode(self);
+					return RangeTransfer.sendRanges(pairs, null, ranges, header, in, out, owner.getIP(), owner.getPort());
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, handlers));
+		}
+
+		for (Map.Entry<Integer, CompletableFuture<Integer>> push : pushes.entrySet()) {
+			try {
+				imported.put(push.getKey(), push.getValue().join());
+			} catch (CompletionException e) {
+				System.out.println("Pairs for node " + push.getKey() + " were not imported");
+			}
+		}
+		dropCache(); // Lookups while the pairs were on their way may have cached older values
+		return imported;
 	}
 
-	// Checks to see if an entering node is in range of the current node
-	public boolean inRange(int nameID) {
-		if (start <= end)
-			return nameID >= start && nameID <= end;
-		else
-			return nameID >= start || nameID <= end;
+	// Visited node list holding only this node, where every request starts
+	private VisitedNodes visitedSelf() {
+		VisitedNodes lookups = new VisitedNodes();
+		lookups.add(serverID);
+		return lookups;
 	}
 
 	/*
@@ -322,9 +927,8 @@ public class bnserver {
 	 */
 	class InputThread extends Thread {
 
-		private String listenIP;
-
 		private BufferedReader input;
+		private boolean failed; // Command being run did not finish
 
 		public InputThread() {
 			input = new BufferedReader(new InputStreamReader(System.in));
@@ -335,24 +939,43 @@ public class bnserver {
 				// Handles client commands until they quit
 				while (true) {
 					System.out.print("> ");
-					String[] command = input.readLine().split(" ");
+					String line = input.readLine();
+					if (line == null)
+						break; // Input closed, taken as quit
+					String[] command = line.split(" ");
+					long start = System.nanoTime();
+					failed = false;
 
 					if (command[0].equalsIgnoreCase("lookup")) {
-						int key = Integer.parseInt(command[1]);
-						lookup(key);
+						lookup(command[1]);
 					} else if (command[0].equalsIgnoreCase("insert")) {
-						int key = Integer.parseInt(command[1]);
+						String key = command[1];
 						String value = command[2];
 						insert(key, value);
 					} else if (command[0].equalsIgnoreCase("delete")) {
-						int key = Integer.parseInt(command[1]);
-						delete(key);
+						delete(command[1]);
+					} else if (command[0].equalsIgnoreCase("mget")) {
+						mget(command);
+					} else if (command[0].equalsIgnoreCase("mput")) {
+						mput(command);
+					} else if (command[0].equalsIgnoreCase("mdelete")) {
+						mdelete(command);
+					} else if (command[0].equalsIgnoreCase("scan")) {
+						scan(command);
+					} else if (command[0].equalsIgnoreCase("stats")) {
+						printStats();
+					} else if (command[0].equalsIgnoreCase("import")) {
+						importFile(command[1]);
 					} else if (command[0].equalsIgnoreCase("print")) {
 						printValues();
 					} else if (command[0].equalsIgnoreCase("quit")) {
 						break;
 					}
 
+					byte opcode = Opcode.of(command[0].toLowerCase());
+					if (opcode > 0)
+						Metrics.typed(opcode, System.nanoTime() - start, failed);
+
 					sleep(20);
 				}
 				input.close();
@@ -361,134 +984,207 @@ public class bnserver {
 			}
 		}
 
-		// Checks if key being looked-up is in this server's key range and prints
-		// message. If not, forward command to successor
-		public void lookup(int key) {
-			// Key can exist in this server's range
-			if (inRange(key)) {
-				// Checks if key is actually in range
-				if (keyRange.containsKey(key)) {
-					System.out.println("Value: " + keyRange.get(key));
-					System.out.println("Servers visited: [" + serverID + "]");
-					System.out.println("Final server: " + serverID);
+		// Looks up a key and prints the value once the owner replies
+		public void lookup(String key) {
+			Reply reply = awaitReply(lookupAsync(Ring.hash(key)));
+			if (reply == null)
+				return;
+
+			synchronized (System.out) {
+				if (reply.isFound()) {
+					System.out.println("Value: " + reply.getValue());
+					System.out.println("Servers visited: " + reply.getVisited().toString());
+					System.out.println("Final server: " + reply.getServer());
 				} else {
 					System.out.println("Key not found");
 				}
 			}
-			// Key can't exist in this server's range, forward command to successor
-			else {
-				Socket successor = null;
-				ObjectOutputStream out = null;
-				ObjectInputStream in = null;
+		}
 
-				try {
-					successor = new Socket(successorIP, successorPort);
-					out = new ObjectOutputStream(successor.getOutputStream());
-					in = new ObjectInputStream(successor.getInputStream());
+		// Inserts a key and prints where it was stored once the owner replies
+		public void insert(String key, String value) {
+			Reply reply = awaitReply(insertAsync(Ring.hash(key), value));
+			if (reply == null)
+				return;
 
-					Vector<Integer> lookups = new Vector<Integer>();
-					lookups.add(serverID);
+			synchronized (System.out) {
+				System.out.println("Key-Value pair inserted into server: (" + key + ", " + value + ")");
+				System.out.println("Servers visited: " + reply.getVisited().toString());
+			}
+		}
 
-					out.writeUTF("lookup");
-					out.writeInt(key);
-					out.writeObject(lookups);
-				} catch (IOException e) {
-					e.printStackTrace();
+		// Deletes a key and prints whether it existed once the owner replies
+		public void delete(String key) {
+			Reply reply = awaitReply(deleteAsync(Ring.hash(key)));
+			if (reply == null)
+				return;
+
+			synchronized (System.out) {
+				if (reply.isFound()) {
+					System.out.println("Successful deletion");
+					System.out.println("Servers visited: " + reply.getVisited().toString());
+				} else {
+					System.out.println("Key not found");
 				}
 			}
+		}
+
+		// Looks up every key given (mget key...) and prints the pairs found once all owners reply
+		public void mget(String[] command) {
+			Batch batch = new Batch(false);
+			Map<Long, String> names = new HashMap<Long, String>(); // Key each hash was given as, for printing
+			for (int i = 1; i < command.length; i++) {
+				long key = Ring.hash(command[i]);
+				names.put(key, command[i]);
+				batch.add(key, null);
+			}
+
+			Map<Long, String> found = await(batchAsync(Opcode.MGET, batch));
+			if (found == null)
+				return;
+
+			synchronized (System.out) {
+				found.forEach((key, value) -> System.out.println(names.get(key) + ", " + value));
+				System.out.println("Keys found: " + found.size() + " of " + batch.size());
+			}
+		}
+
+		// Inserts every pair given (mput key value...) and prints how many were stored
+		public void mput(String[] command) {
+			Batch batch = new Batch(true);
+			for (int i = 1; i + 1 < command.length; i += 2)
+				batch.add(Ring.hash(command[i]), command[i + 1]);
 
+			Map<Long, String> inserted = await(batchAsync(Opcode.MPUT, batch));
+			if (inserted == null)
+				return;
+
+			System.out.println("Key-Value pairs inserted: " + inserted.size());
 		}
 
-		// Checks if key being looked-up is in this server's key range, inserts key if
-		// in range, and prints message. If not, forward command to successor
-		public void insert(int key, String value) {
-			if (inRange(key)) {
-				keyRange.put(key, value);
-				System.out.println("Key-Value pair inserted into server: (" + key + ", " + value + ")");
-				System.out.println("Servers visited: [" + serverID + "]");
+		// Deletes every key given (mdelete key...) and prints how many existed
+		public void mdelete(String[] command) {
+			Batch batch = new Batch(false);
+			for (int i = 1; i < command.length; i++)
+				batch.add(Ring.hash(command[i]), null);
 
-			} else {
-				Socket successor = null;
-				ObjectOutputStream out = null;
-				ObjectInputStream in = null;
+			Map<Long, String> deleted = await(batchAsync(Opcode.MDELETE, batch));
+			if (deleted == null)
+				return;
 
-				try {
-					successor = new Socket(successorIP, successorPort);
-					out = new ObjectOutputStream(successor.getOutputStream());
-					in = new ObjectInputStream(successor.getInputStream());
+			System.out.println("Successful deletions: " + deleted.size() + " of " + batch.size());
+		}
 
-					Vector<Integer> lookups = new Vector<Integer>();
+		/*
+		 * Prints the pairs in [from, to] in key order, positions given in hex as print
+		 * shows them, at most limit of them if a limit is given
+		 */
+		public void scan(String[] command) {
+			long from = Long.parseUnsignedLong(command[1], 16);
+			long to = Long.parseUnsignedLong(command[2], 16);
+			int limit = command.length > 3 ? Integer.parseInt(command[3]) : Integer.MAX_VALUE;
 
-					out.writeUTF("insert");
-					out.writeInt(key);
-					out.writeUTF(value);
-					lookups.add(serverID);
-					out.writeObject(lookups);
-				} catch (IOException e1) {
-					e1.printStackTrace();
+			int count = 0;
+			try {
+				RangeScan pairs = scanRange(from, to, limit);
+				while (pairs.hasNext()) {
+					Map.Entry<Long, String> pair = pairs.next();
+					System.out.println(Ring.format(pair.getKey()) + ", " + pair.getValue());
+					count++;
 				}
-
+				System.out.println("Pairs scanned: " + count);
+				if (count == limit)
+					System.out.println("Next from: " + Ring.format(pairs.cursor()));
+			} catch (IOException | UncheckedIOException e) {
+				failed = true;
+				System.out.println("Scan failed after " + count + " pairs: " + e.getMessage());
 			}
 		}
 
-		// Checks if key being looked-up is in this server's key range, deletes key if
-		// in range, and prints message. If not, forward command to successor
-		public void delete(int key) {
-
-			if (inRange(key)) {
-				if (keyRange.containsKey(key)) {
-					keyRange.remove(key);
-					System.out.println("Successful deletion");
-					System.out.println("Servers visited: [" + serverID + "]");
-				} else {
-					System.out.println("Key not found");
+		/*
+		 * Prints how full every ring member is and the ring as a whole, the keys counted
+		 * by the hex digit their positions start with
+		 */
+		public void printStats() {
+			Map<Integer, RingStats> answered = new ConcurrentSkipListMap<Integer, RingStats>();
+			List<RingNode> members = fingers.members();
+			RingStats total = await(ringStats(answered));
+			if (total == null)
+				return;
+
+			synchronized (System.out) {
+				answered.forEach((id, node) -> System.out.println("Node " + id + ": " + node));
+				System.out.println("Ring: " + total + ", " + total.getNodes() + " of " + members.size() + " nodes answered");
+
+				StringBuilder spread = new StringBuilder("Keys by first hex digit:");
+				long[] buckets = total.getBuckets();
+				for (int i = 0; i < RingStats.BUCKETS; i++)
+					spread.append(' ').append(Integer.toHexString(i)).append('=').append(buckets[i]);
+				System.out.println(spread);
+
+				for (RingNode node : members) {
+					if (!answered.containsKey(node.getID())) {
+						failed = true;
+						System.out.println("No answer from: " + node.getID());
+					}
 				}
-			} else {
-				Socket successor = null;
-				ObjectOutputStream out = null;
-				ObjectInputStream in = null;
+			}
+		}
 
-				try {
-					successor = new Socket(successorIP, successorPort);
-					out = new ObjectOutputStream(successor.getOutputStream());
-					in = new ObjectInputStream(successor.getInputStream());
+		// Imports every pair of a key file (import file) and prints how many went to each node
+		public void importFile(String path) {
+			try {
+				Map<Integer, Integer> imported = bulkImport(new File(path));
 
-					Vector<Integer> lookups = new Vector<Integer>();
+				int total = 0;
+				for (int count : imported.values())
+					total += count;
+				System.out.println("Keys imported: " + total + " to " + imported);
+			} catch (IOException e) {
+				failed = true;
+				System.out.println("Import failed: " + e.getMessage());
+			}
+		}
 
-					out.writeUTF("delete");
-					out.writeInt(key);
-					lookups.add(serverID);
-					out.writeObject(lookups);
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
+		// Waits for the reply to a lookup, insert or delete, counting the servers it visited if this one answered
+		private Reply awaitReply(CompletableFuture<Reply> future) {
+			Reply reply = await(future);
+			if (reply != null && reply.getServer() == serverID)
+				Metrics.visited(reply.getVisited().size());
+			return reply;
+		}
+
+		// Waits for the reply to a request. Returns null if it failed or timed out
+		private <T> T await(CompletableFuture<T> future) {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				failed = true;
+				if (e.getCause() instanceof TimeoutException)
+					System.out.println("Request timed out");
+				else
+					System.out.println("Request failed: " + e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				failed = true;
+				Thread.currentThread().interrupt();
 			}
+			return null;
 		}
 
 		// Prints out all values, primarily for bug-testing purposes
 		public void printValues() {
-			// Convert Tree Map to Map type to iterate
-			Set<Map.Entry<Integer, String>> entries = keyRange.entrySet();
-			// For loop and lambda iterates through the tree map values
-			entries.forEach(entry -> {
-				System.out.println(serverID + " " + entry.getKey() + ", " + entry.getValue());
+			// Iterate through the stored pairs in hash order, keys are printed as their hash
+			keyRange.forEach(Long.MIN_VALUE, Long.MAX_VALUE, (key, utf8, offset, length) -> {
+				System.out.println(serverID + " " + Ring.format(key) + ", " + new String(utf8, offset, length, StandardCharsets.UTF_8));
 			});
 
 			// Pass on command to next ID if it exists
-			if (successorID != serverID) {
-				Socket successor = null;
-				ObjectOutputStream out = null;
-				ObjectInputStream in = null;
-
+			RingNode next = fingers.next();
+			if (next.getID() != serverID) {
 				try {
-					successor = new Socket(successorIP, successorPort);
-					out = new ObjectOutputStream(successor.getOutputStream());
-					in = new ObjectInputStream(successor.getInputStream());
-					Vector<Integer> lookups = new Vector<Integer>();
-
-					out.writeUTF("print");
-					lookups.add(serverID);
-					out.writeObject(lookups);
+					VisitedNodes lookups = visitedSelf();
+
+					pool.send(next.getIP(), next.getPort(), frame -> frame.begin(Opcode.PRINT).putVisited(lookups));
 				} catch (IOException e1) {
 					e1.printStackTrace();
 				}
@@ -500,8 +1196,9 @@ public class bnserver {
 	// Main
 	public static void main(String[] args) {
 		File config = new File(System.getProperty("user.dir") + "/" + args[0]);
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WORKERS;
 
-		bnserver boostrap = new bnserver(config);
+		bnserver boostrap = new bnserver(config, workers);
 	}
 
 }
@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Chash Client. A client library for applications that keep their pairs in the ring,
+ * where RingClient is a console. Every call returns straight away with a future, and
+ * any number of calls can be waiting at once from as many threads as the application
+ * runs, virtual ones included. No call blocks its thread: once CONNECTIONS x
+ * Pipeline.WINDOW commands are in flight, further ones wait in the pipelines' queues.
+ * A try that finds its pipeline's queue full fails at once and is sent again like
+ * one that timed out.
+ *
+ * Commands go to the bootstrap on CONNECTIONS pipelined connections, taken in turn,
+ * and the bootstrap relays them to the owners of their keys and answers on the same
+ * connection, so the application needs no port of its own. A broken connection is
+ * opened again on a thread of its own the next time it is used, and the commands
+ * taking it wait for the connect instead of their callers. A command that fails or
+ * is not answered in TIMEOUT is sent again on the next connection, up to ATTEMPTS
+ * tries, after waiting BACKOFF and then twice as long before each further try. A
+ * retried put writes the same value again, but a delete retried after its first try
+ * went through reports the key as missing.
+ *
+ * Batches are split into commands of at most BATCH keys that are in flight together.
+ *
+ *   try (ChashClient ring = new ChashClient(InetAddress.getByName(host), 3768)) {
+ *       ring.put("apple", "red").join();
+ *       String value = ring.get("apple").join();
+ *   }
+ */
+public class ChashClient implements AutoCloseable {
+
+	public static final int CONNECTIONS = Integer.getInteger("clientConnections", 2); // Pipelines to the bootstrap
+	public static final long TIMEOUT = Long.getLong("clientTimeout", 5000); // Milliseconds to wait for one try
+	public static final int ATTEMPTS = Integer.getInteger("clientAttempts", 3); // Tries before a command fails
+	public static final long BACKOFF = 50; // Milliseconds before the second try, doubled for every one after
+	public static final int BATCH = Integer.getInteger("clientBatch", 512); // Keys sent in one batch command
+
+	private static final VisitedNodes NONE = new VisitedNodes();
+
+	private InetAddress ip;
+	private int port;
+	private AtomicReferenceArray<Pipeline> pipelines;
+	private AtomicInteger next; // Pipeline the next command goes on
+	private AtomicReferenceArray<CompletableFuture<Pipeline>> reopening; // Connect under way for each broken slot, null if none
+	private ReentrantLock opening; // Held while an opened pipeline is put in its slot or the client closes
+	private volatile boolean closed;
+
+	// Connects to the bootstrap at ip:port, failing if it can't be reached
+	public ChashClient(InetAddress ip, int port) throws IOException {
+		this.ip = ip;
+		this.port = port;
+		this.pipelines = new AtomicReferenceArray<Pipeline>(CONNECTIONS);
+		this.next = new AtomicInteger();
+		this.reopening = new AtomicReferenceArray<CompletableFuture<Pipeline>>(CONNECTIONS);
+		this.opening = new ReentrantLock();
+		for (int i = 0; i < CONNECTIONS; i++)
+			pipelines.set(i, new Pipeline(ip, port, RingClient.CLIENT_ID, TIMEOUT));
+	}
+
+	// Value of a key, null if the ring does not have it
+	public CompletableFuture<String> get(String key) {
+		long hash = Ring.hash(key);
+		return send(Opcode.LOOKUP, frame -> frame.putLong(hash).putVisited(NONE), 1)
+				.thenApply(reply -> reply.isFound() ? reply.getValue() : null);
+	}
+
+	public CompletableFuture<Void> put(String key, String value) {
+		long hash = Ring.hash(key);
+		return send(Opcode.INSERT, frame -> frame.putLong(hash).putString(value).putVisited(NONE), 1)
+				.thenApply(reply -> null);
+	}
+
+	// Deletes a key, the future completes with whether the ring had it
+	public CompletableFuture<Boolean> delete(String key) {
+		long hash = Ring.hash(key);
+		return send(Opcode.DELETE, frame -> frame.putLong(hash).putVisited(NONE), 1).thenApply(Reply::isFound);
+	}
+
+	// Values of the keys the ring has, keys it does not have are left out
+	public CompletableFuture<Map<String, String>> getAll(Collection<String> keys) {
+		Map<Long, String> names = new HashMap<Long, String>(); // Key each hash was given as
+		Map<Long, String> hashes = new HashMap<Long, String>();
+		for (String key : keys) {
+			long hash = Ring.hash(key);
+			names.put(hash, key);
+			hashes.put(hash, null);
+		}
+
+		return batch(Opcode.MGET, hashes).thenApply(found -> {
+			Map<String, String> values = new HashMap<String, String>();
+			found.forEach((hash, value) -> values.put(names.get(hash), value));
+			return values;
+		});
+	}
+
+	public CompletableFuture<Void> putAll(Map<String, String> pairs) {
+		Map<Long, String> hashes = new HashMap<Long, String>();
+		pairs.forEach((key, value) -> hashes.put(Ring.hash(key), value));
+		return batch(Opcode.MPUT, hashes).thenApply(inserted -> null);
+	}
+
+	// Deletes the keys, the future completes with how many of them the ring had
+	public CompletableFuture<Integer> deleteAll(Collection<String> keys) {
+		Map<Long, String> hashes = new HashMap<Long, String>();
+		for (String key : keys)
+			hashes.put(Ring.hash(key), null);
+		return batch(Opcode.MDELETE, hashes).thenApply(Map::size);
+	}
+
+	// Closes every connection, commands still waiting fail
+	public void close() {
+		closed = true;
+		opening.lock();
+		try {
+			for (int i = 0; i < CONNECTIONS; i++) {
+				Pipeline pipeline = pipelines.get(i);
+				if (pipeline != null)
+					pipeline.close();
+			}
+		} finally {
+			opening.unlock();
+		}
+	}
+
+	/*
+	 * Sends the pairs, values only set for an mput, in commands of at most BATCH keys.
+	 * The future completes with the pairs every command found, inserted or deleted
+	 */
+	private CompletableFuture<Map<Long, String>> batch(byte opcode, Map<Long, String> pairs) {
+		List<CompletableFuture<Reply>> parts = new ArrayList<CompletableFuture<Reply>>();
+		Batch batch = new Batch(opcode == Opcode.MPUT);
+		for (Map.Entry<Long, String> pair : pairs.entrySet()) {
+			batch.add(pair.getKey(), pair.getValue());
+			if (batch.size() == BATCH) {
+				parts.add(send(opcode, batch));
+				batch = new Batch(opcode == Opcode.MPUT);
+			}
+		}
+		if (batch.size() > 0)
+			parts.add(send(opcode, batch));
+
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			Map<Long, String> applied = new HashMap<Long, String>();
+			for (CompletableFuture<Reply> part : parts)
+				applied.putAll(part.join().getPairs());
+			return applied;
+		});
+	}
+
+	private CompletableFuture<Reply> send(byte opcode, Batch batch) {
+		return send(opcode, frame -> {
+			batch.write(frame);
+			frame.putVisited(NONE);
+		}, 1);
+	}
+
+	/*
+	 * Sends a command, body writing what follows the request ID and origin, on the next
+	 * pipeline. A failed try is sent again after a wait, up to ATTEMPTS tries
+	 */
+	private CompletableFuture<Reply> send(byte opcode, ConnectionPool.Message body, int attempt) {
+		int slot = Math.floorMod(next.getAndIncrement(), CONNECTIONS);
+		Pipeline pipeline = pipelines.get(slot);
+		CompletableFuture<Reply> reply;
+		if (pipeline.isOpen())
+			reply = pipeline.send(opcode, body);
+		else
+			reply = reopen(slot).thenCompose(opened -> opened.send(opcode, body));
+		if (attempt == ATTEMPTS)
+			return reply;
+
+		// Wait off the caller's thread
+		return reply.exceptionallyComposeAsync(e -> {
+			if (closed)
+				return CompletableFuture.failedFuture(e);
+			return send(opcode, body, attempt + 1);
+		}, CompletableFuture.delayedExecutor(BACKOFF << (attempt - 1), TimeUnit.MILLISECONDS));
+	}
+
+	/*
+	 * Opens the pipeline of a slot whose connection broke again, on a thread of its own.
+	 * Every command finding the slot broken meanwhile waits for the same connect. The
+	 * future fails if the bootstrap can't be reached, and the next use tries again
+	 */
+	private CompletableFuture<Pipeline> reopen(int slot) {
+		while (true) {
+			if (closed)
+				return CompletableFuture.failedFuture(new IOException("Client is closed"));
+			CompletableFuture<Pipeline> connecting = reopening.get(slot);
+			if (connecting != null)
+				return connecting;
+			Pipeline pipeline = pipelines.get(slot);
+			if (pipeline.isOpen())
+				return CompletableFuture.completedFuture(pipeline); // Opened since the caller looked
+
+			CompletableFuture<Pipeline> opened = new CompletableFuture<Pipeline>();
+			if (!reopening.compareAndSet(slot, null, opened))
+				continue;
+
+			Thread connect = new Thread(() -> {
+				try {
+					Pipeline reopened = new Pipeline(ip, port, RingClient.CLIENT_ID, TIMEOUT);
+					opening.lock();
+					try {
+						if (closed) {
+							reopened.close();
+							throw new IOException("Client is closed");
+						}
+						pipelines.set(slot, reopened);
+					} finally {
+						opening.unlock();
+					}
+					opened.complete(reopened);
+				} catch (IOException e) {
+					opened.completeExceptionally(e);
+				} finally {
+					reopening.set(slot, null);
+				}
+			}, "pipeline-open-" + port);
+			connect.setDaemon(true);
+			connect.start();
+			return opened;
+		}
+	}
+
+}
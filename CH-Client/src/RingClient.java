@@ -0,0 +1,385 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Ring Client. Sends lookups, inserts and deletes straight to the node that owns the
+ * key, so most commands cost one round trip instead of a walk along the fingers. The
+ * client fetches the ring members from a node and keeps them with the node's epoch.
+ * Every command carries that epoch. A node that does not own the key and knows a
+ * different ring answers with its own epoch instead of forwarding the command, and
+ * the client fetches the ring again and resends the command. The ring comes from the
+ * node the client started with, the bootstrap in a normal setup, which every enter
+ * and exit goes through, or from another member if that one can't be reached. Turned
+ * away ATTEMPTS times, the command goes without an epoch and is forwarded to the
+ * owner like a command typed at a server. Answers come back to the client's own
+ * port, the way they come back to servers.
+ *
+ * Usage: java RingClient HOST PORT, then type lookup KEY, insert KEY VALUE,
+ * delete KEY, scan FROM TO [LIMIT], stats, ring or quit.
+ */
+public class RingClient {
+
+	public static final int CLIENT_ID = 99999; // Origin of the client's commands, never on the ring
+	public static final long TIMEOUT = 5000; // Milliseconds to wait for the owner of a key to reply
+	public static final int ATTEMPTS = 2; // Tries with the client's ring before a command is forwarded like any other
+
+	private static final VisitedNodes NONE = new VisitedNodes();
+
+	private InetAddress seedIP; // Node the client started with, asked for the ring first
+	private int seedPort;
+	private RingNode self;
+	private ConnectionPool pool;
+	private PendingRequests pending;
+	private volatile View view;
+
+	// Fetches the ring from the node at ip:port and starts taking replies
+	public RingClient(InetAddress ip, int port) throws IOException {
+		this.seedIP = ip;
+		this.seedPort = port;
+		this.pool = new ConnectionPool();
+		this.pending = new PendingRequests(TIMEOUT);
+		InetAddress local = refresh(ip, port); // Address the ring reaches this client at
+
+		ServerSocket server = new ServerSocket(0);
+		this.self = new RingNode(CLIENT_ID, server.getLocalPort(), local);
+
+		Thread accept = new Thread(() -> {
+			while (true) {
+				try {
+					Socket socket = server.accept();
+					Thread replies = new Thread(() -> receive(socket), "replies-" + socket.getPort());
+					replies.setDaemon(true);
+					replies.start();
+				} catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+			}
+		}, "client-accept");
+		accept.setDaemon(true);
+		accept.start();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("Usage: java RingClient HOST PORT");
+			return;
+		}
+		RingClient client = new RingClient(InetAddress.getByName(args[0]), Integer.parseInt(args[1]));
+		System.out.println("Ring has " + client.members().size() + " members, epoch " + Long.toHexString(client.epoch()));
+
+		BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = input.readLine()) != null) {
+			String[] command = line.trim().split(" ");
+			if (command[0].equals("lookup") && command.length == 2) {
+				Reply reply = await(client.lookup(command[1]));
+				if (reply != null && reply.isFound()) {
+					System.out.println("Value: " + reply.getValue());
+					System.out.println("Servers visited: " + reply.getVisited().toString());
+					System.out.println("Final server: " + reply.getServer());
+				} else if (reply != null) {
+					System.out.println("Key not found");
+				}
+			} else if (command[0].equals("insert") && command.length == 3) {
+				Reply reply = await(client.insert(command[1], command[2]));
+				if (reply != null) {
+					System.out.println("Key-Value pair inserted into server: (" + command[1] + ", " + command[2] + ")");
+					System.out.println("Servers visited: " + reply.getVisited().toString());
+				}
+			} else if (command[0].equals("delete") && command.length == 2) {
+				Reply reply = await(client.delete(command[1]));
+				if (reply != null && reply.isFound()) {
+					System.out.println("Successful deletion");
+					System.out.println("Servers visited: " + reply.getVisited().toString());
+				} else if (reply != null) {
+					System.out.println("Key not found");
+				}
+			} else if (command[0].equals("scan") && command.length >= 3) {
+				long from = Long.parseUnsignedLong(command[1], 16);
+				long to = Long.parseUnsignedLong(command[2], 16);
+				int limit = command.length > 3 ? Integer.parseInt(command[3]) : Integer.MAX_VALUE;
+				int count = 0;
+				try {
+					RangeScan pairs = client.scan(from, to, limit);
+					while (pairs.hasNext()) {
+						Map.Entry<Long, String> pair = pairs.next();
+						System.out.println(Ring.format(pair.getKey()) + ", " + pair.getValue());
+						count++;
+					}
+					System.out.println("Pairs scanned: " + count);
+					if (count == limit)
+						System.out.println("Next from: " + Ring.format(pairs.cursor()));
+				} catch (IOException | UncheckedIOException e) {
+					System.out.println("Scan failed after " + count + " pairs: " + e.getMessage());
+				}
+			} else if (command[0].equals("stats")) {
+				Map<Integer, RingStats> answered = new ConcurrentSkipListMap<Integer, RingStats>();
+				RingStats total = client.stats(answered).join();
+				answered.forEach((id, node) -> System.out.println("Node " + id + ": " + node));
+				System.out.println("Ring: " + total + ", " + total.getNodes() + " of " + client.members().size() + " nodes answered");
+			} else if (command[0].equals("ring")) {
+				System.out.println("Epoch: " + Long.toHexString(client.epoch()));
+				for (RingNode node : client.members())
+					System.out.println(node.getID() + " " + node.getIP().getHostAddress() + ":" + node.getPort());
+			} else if (command[0].equals("quit")) {
+				break;
+			} else {
+				System.out.println("Invalid command");
+			}
+		}
+		client.close();
+	}
+
+	public CompletableFuture<Reply> lookup(String key) {
+		return send(Opcode.LOOKUP, Ring.hash(key), null, 0);
+	}
+
+	public CompletableFuture<Reply> insert(String key, String value) {
+		return send(Opcode.INSERT, Ring.hash(key), value, 0);
+	}
+
+	public CompletableFuture<Reply> delete(String key) {
+		return send(Opcode.DELETE, Ring.hash(key), null, 0);
+	}
+
+	/*
+	 * Scans [from, to] of the ring for at most limit pairs, in key order. The owners
+	 * are read a page at a time as the returned cursor is read
+	 */
+	public RangeScan scan(long from, long to, int limit) throws IOException {
+		return new RangeScan(new RangeScan.Source() {
+
+			public List<RangeScan.Part> split(long from, long to, RingNode refused) throws IOException {
+				if (refused != null)
+					refresh(refused);
+				return RangeScan.split(view.tokens, from, to);
+			}
+
+			public CompletableFuture<Reply> page(RingNode owner, long from, long to, int limit) {
+				int requestID = pending.nextID();
+				CompletableFuture<Reply> reply = pending.open(requestID);
+				try {
+					pool.send(owner.getIP(), owner.getPort(), frame -> frame.begin(Opcode.SCAN).putVarInt(requestID)
+							.putNode(self).putLong(from).putLong(to).putVarInt(limit));
+				} catch (IOException e) {
+					pending.fail(requestID, e);
+				}
+				return reply;
+			}
+
+		}, from, to, limit);
+	}
+
+	/*
+	 * Asks every member of the client's ring for its keys, value bytes and share of the
+	 * ring at once. The future completes with their total once every member answered
+	 * or timed out, answered gets the stats of each member that did
+	 */
+	public CompletableFuture<RingStats> stats(Map<Integer, RingStats> answered) {
+		return RingStats.gather(view.members, node -> {
+			int requestID = pending.nextID();
+			CompletableFuture<Reply> reply = pending.open(requestID);
+			try {
+				pool.send(node.getIP(), node.getPort(), frame -> frame.begin(Opcode.STATS).putVarInt(requestID).putNode(self));
+			} catch (IOException e) {
+				pending.fail(requestID, e);
+			}
+			return reply;
+		}, answered);
+	}
+
+	// Epoch of the ring the client routes by
+	public long epoch() {
+		return view.epoch;
+	}
+
+	public List<RingNode> members() {
+		return view.members;
+	}
+
+	public void close() {
+		pool.closeAll();
+	}
+
+	/*
+	 * Sends a command to the owner of the key in the client's ring, with the ring's
+	 * epoch for the first ATTEMPTS tries. If the owner turns it away or can't be
+	 * reached, fetches the ring again and tries once more
+	 */
+	private CompletableFuture<Reply> send(byte opcode, long key, String value, int attempt) {
+		View ring = view;
+		RingNode owner = ring.ownerOf(key);
+		int requestID = pending.nextID();
+		CompletableFuture<Reply> reply = pending.open(requestID);
+		try {
+			pool.send(owner.getIP(), owner.getPort(), frame -> {
+				frame.begin(opcode).putVarInt(requestID).putNode(self).putLong(key);
+				if (opcode == Opcode.INSERT)
+					frame.putString(value);
+				frame.putVisited(NONE);
+				if (attempt < ATTEMPTS)
+					frame.putLong(ring.epoch);
+			});
+		} catch (IOException e) {
+			pending.fail(requestID, e);
+		}
+
+		// Retry off the thread that reads replies, fetching the ring blocks
+		return reply.exceptionallyComposeAsync(e -> {
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+			if (attempt == ATTEMPTS || cause instanceof TimeoutException)
+				return CompletableFuture.failedFuture(cause);
+
+			try {
+				// Another command may have fetched a newer ring already
+				if (!(cause instanceof NotOwnerException) || ((NotOwnerException) cause).epoch != view.epoch)
+					refresh(owner);
+			} catch (IOException failure) {
+				// Keep the old ring, the next try goes without an epoch if this one is turned away again
+			}
+			return send(opcode, key, value, attempt + 1);
+		});
+	}
+
+	/*
+	 * Fetches the ring from the node the client started with, or if it can't be reached
+	 * from a member other than the one that turned a command away
+	 */
+	private void refresh(RingNode gone) throws IOException {
+		try {
+			refresh(seedIP, seedPort);
+			return;
+		} catch (IOException e) {
+			// Ask a member instead
+		}
+
+		List<RingNode> others = new ArrayList<RingNode>(view.members);
+		others.removeIf(node -> node.getID() == gone.getID());
+		if (others.isEmpty())
+			throw new IOException("No other ring member to ask");
+		RingNode node = others.get(ThreadLocalRandom.current().nextInt(others.size()));
+		refresh(node.getIP(), node.getPort());
+	}
+
+	// Fetches the ring from the node at ip:port. Returns the local address of the connection
+	private InetAddress refresh(InetAddress ip, int port) throws IOException {
+		try (Socket socket = ConnectionPool.connect(ip, port)) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+
+			Frame frame = new Frame();
+			frame.begin(Opcode.RING);
+			frame.writeTo(socket.getOutputStream());
+
+			if (!frame.readFrom(in) || frame.getOpcode() != Opcode.RING_REPLY)
+				throw new EOFException();
+			long epoch = frame.getLong();
+			int count = frame.getVarInt();
+			List<RingNode> members = new ArrayList<RingNode>();
+			for (int i = 0; i < count; i++)
+				members.add(frame.getNode());
+			view = new View(epoch, members);
+			return socket.getLocalAddress();
+		}
+	}
+
+	private void receive(Socket socket) {
+		Frame frame = new Frame();
+		try (Socket connection = socket) {
+			InputStream in = new BufferedInputStream(connection.getInputStream());
+			while (frame.readFrom(in)) {
+				if (frame.getOpcode() == Opcode.REPLY) {
+					pending.complete(Reply.read(frame));
+				} else if (frame.getOpcode() == Opcode.BATCH_REPLY) {
+					pending.complete(Reply.readBatch(frame));
+				} else if (frame.getOpcode() == Opcode.STATS_REPLY) {
+					pending.complete(Reply.readStats(frame));
+				} else if (frame.getOpcode() == Opcode.NOT_OWNER) {
+					int requestID = frame.getVarInt();
+					pending.fail(requestID, new NotOwnerException(frame.getLong()));
+				}
+			}
+		} catch (IOException e) {
+			// Server closed the connection, it reconnects to send the next reply
+		}
+	}
+
+	// Waits for the reply to a command. Returns null if it failed or timed out
+	private static Reply await(CompletableFuture<Reply> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException)
+				System.out.println("Request timed out");
+			else
+				System.out.println("Request failed: " + e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/*
+	 * View. The ring as a node described it: its epoch, the members, and the node at
+	 * every member's tokens. Replaced whole when the ring is fetched again, so a
+	 * command always routes by one consistent ring.
+	 */
+	private static class View {
+
+		private long epoch;
+		private List<RingNode> members;
+		private TreeMap<Long, RingNode> tokens;
+
+		View(long epoch, List<RingNode> members) {
+			this.epoch = epoch;
+			this.members = members;
+			this.tokens = new TreeMap<Long, RingNode>();
+			for (RingNode node : members) {
+				for (long token : node.getTokens())
+					tokens.put(token, node);
+			}
+		}
+
+		// Node that owns a key, the one at the first token at or after it
+		RingNode ownerOf(long key) {
+			Map.Entry<Long, RingNode> entry = tokens.ceilingEntry(key);
+			if (entry == null)
+				entry = tokens.firstEntry();
+			return entry.getValue();
+		}
+
+	}
+
+	// A node turned a command away, the client's ring is not the one it knows
+	private static class NotOwnerException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private long epoch;
+
+		NotOwnerException(long epoch) {
+			super("Key is not the receiver's, its ring is at epoch " + Long.toHexString(epoch));
+			this.epoch = epoch;
+		}
+
+	}
+
+}
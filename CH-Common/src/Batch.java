@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongPredicate;
+
+/*
+ * Batch. The keys of an mget, mput or mdelete that still have to reach their owner,
+ * and the pairs already found, inserted or deleted by the owners the batch passed
+ * through. Each owner applies the keys in its range in one pass and passes the rest
+ * on, so a batch split by a stale view of the ring still ends in a single reply.
+ */
+public class Batch {
+
+	private long[] keys;
+	private String[] values; // Only set for mput
+	private int count;
+	private TreeMap<Long, String> applied;
+	private TreeMap<Long, String> appliedHere; // Pairs the apply that returned this batch found, inserted or deleted
+
+	public Batch(boolean withValues) {
+		this(withValues, new TreeMap<Long, String>());
+	}
+
+	private Batch(boolean withValues, TreeMap<Long, String> applied) {
+		this.keys = new long[16];
+		this.values = withValues ? new String[16] : null;
+		this.applied = applied;
+	}
+
+	public void add(long key, String value) {
+		if (count == keys.length) {
+			keys = Arrays.copyOf(keys, count * 2);
+			if (values != null)
+				values = Arrays.copyOf(values, count * 2);
+		}
+		keys[count] = key;
+		if (values != null)
+			values[count] = value;
+		count++;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public long getKey(int index) {
+		return keys[index];
+	}
+
+	public String getValue(int index) {
+		return values == null ? null : values[index];
+	}
+
+	public Map<Long, String> getApplied() {
+		return applied;
+	}
+
+	public Map<Long, String> getAppliedHere() {
+		return appliedHere;
+	}
+
+	/*
+	 * Applies every key the node owns to its store and returns the keys it does not
+	 * own, sharing this batch's applied pairs. Found, inserted and deleted pairs are
+	 * added to the applied pairs. The caller holds the range lock
+	 */
+	public Batch apply(byte opcode, KeyStore store, LongPredicate owns) {
+		Batch rest = new Batch(values != null, applied);
+		rest.appliedHere = new TreeMap<Long, String>();
+
+		for (int i = 0; i < count; i++) {
+			long key = keys[i];
+			if (!owns.test(key)) {
+				rest.add(key, getValue(i));
+				continue;
+			}
+
+			String value;
+			switch (opcode) {
+			case Opcode.MGET:
+				value = store.get(key);
+				break;
+			case Opcode.MPUT:
+				value = values[i];
+				store.put(key, value);
+				break;
+			default:
+				value = store.remove(key);
+			}
+			if (value != null) {
+				applied.put(key, value);
+				rest.appliedHere.put(key, value);
+			}
+		}
+		return rest;
+	}
+
+	// Writes the remaining keys, and values for mput, followed by the applied pairs
+	public void write(Frame frame) {
+		frame.putVarInt(count);
+		for (int i = 0; i < count; i++) {
+			frame.putLong(keys[i]);
+			if (values != null)
+				frame.putString(values[i]);
+		}
+		frame.putPairs(applied);
+	}
+
+	public static Batch read(Frame frame, boolean withValues) throws IOException {
+		Batch batch = new Batch(withValues);
+		int count = frame.getVarInt();
+		for (int i = 0; i < count; i++) {
+			long key = frame.getLong();
+			batch.add(key, withValues ? frame.getString() : null);
+		}
+		frame.getPairs(batch.applied);
+		return batch;
+	}
+
+}
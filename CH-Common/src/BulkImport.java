@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+ * Bulk Import. Reads a key file of "key value" lines, the same as the pairs of a
+ * bnconfig file, in parallel. The file is cut into pieces of about PIECE bytes at
+ * line ends, and each piece is mapped and parsed into a sorted run of its own on a
+ * separate thread. Runs are then merged two at a time, also in parallel, with the
+ * later run's value kept for a key given twice, so the last line for a key wins as it
+ * does when the lines are read one by one. Lines without a space, like the ID and
+ * port at the top of a bnconfig file, are skipped.
+ *
+ * Run on its own (java BulkImport keys.txt DIR [ID...]) it splits the pairs by owner
+ * on a ring of the given servers, found from their tokens, and writes every server's
+ * part as a sorted segment in DIR, in parallel. A server started with "-Ddata=DIR"
+ * then serves its part without a single put. On a running bootstrap the import
+ * command splits them by owner and streams every owner its part.
+ */
+public class BulkImport {
+
+	private static final long PIECE = 8 << 20; // Bytes of the file parsed by one thread at a time
+	private static final int SEGMENT_CHUNK = 4096; // Pairs read at a time while writing a segment
+
+	// Reads every pair of a key file into a store, keys hashed onto the ring
+	public static KeyStore read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = channel.size();
+
+			// Move every cut forward to the start of the next line
+			List<Long> cuts = new ArrayList<Long>();
+			cuts.add(0L);
+			for (long cut = PIECE; cut < length; cut += PIECE) {
+				long start = lineStart(channel, cut, length);
+				if (start > cuts.get(cuts.size() - 1) && start < length)
+					cuts.add(start);
+			}
+			cuts.add(length);
+
+			List<KeyStore> runs;
+			try {
+				runs = IntStream.range(0, cuts.size() - 1).parallel()
+						.mapToObj(i -> parse(channel, cuts.get(i), cuts.get(i + 1))).collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			// Merge neighbours until one run is left, the later of two winning on equal keys
+			while (runs.size() > 1) {
+				List<KeyStore> pairs = runs;
+				runs = IntStream.range(0, (pairs.size() + 1) / 2).parallel().mapToObj(i -> {
+					KeyStore left = pairs.get(2 * i);
+					if (2 * i + 1 < pairs.size())
+						left.putAll(pairs.get(2 * i + 1));
+					return left;
+				}).collect(Collectors.toList());
+			}
+			return runs.isEmpty() ? new ChunkedKeyStore() : runs.get(0);
+		}
+	}
+
+	// Parses the lines of [from, to) into a run of their own
+	private static KeyStore parse(FileChannel channel, long from, long to) {
+		try {
+			KeyStore run = new ChunkedKeyStore();
+			MappedByteBuffer piece = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+			byte[] line = new byte[256];
+
+			int length = 0;
+			while (piece.hasRemaining()) {
+				byte b = piece.get();
+				if (b != '\n') {
+					if (length == line.length)
+						line = Arrays.copyOf(line, length * 2);
+					line[length++] = b;
+					if (piece.hasRemaining())
+						continue;
+				}
+				add(run, line, length);
+				length = 0;
+			}
+			return run;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Stores a "key value" line, the value ending at the next space like a bnconfig line split on spaces
+	private static void add(KeyStore run, byte[] line, int length) {
+		if (length > 0 && line[length - 1] == '\r')
+			length--;
+
+		int space = 0;
+		while (space < length && line[space] != ' ')
+			space++;
+		if (space == 0 || space == length)
+			return;
+
+		int end = space + 1;
+		while (end < length && line[end] != ' ')
+			end++;
+
+		long key = Ring.hash(new String(line, 0, space, StandardCharsets.UTF_8));
+		run.putBytes(key, line, space + 1, end - space - 1);
+	}
+
+	// First position at or after the given one that starts a line
+	private static long lineStart(FileChannel channel, long position, long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long at = position - 1; // A cut right after a line end is already a line start
+		while (at < length) {
+			buffer.clear();
+			int read = channel.read(buffer, at);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n')
+					return at + i + 1;
+			}
+			at += read;
+		}
+		return length;
+	}
+
+	// Each server's part of the pairs on a ring of the given servers, every part sorted
+	public static Map<Integer, KeyStore> split(KeyStore pairs, List<Integer> ids) {
+		InetAddress nowhere = InetAddress.getLoopbackAddress(); // Only the IDs place a server on the ring
+		FingerTable ring = new FingerTable(new RingNode(ids.get(0), 0, nowhere));
+		for (int id : ids)
+			ring.add(new RingNode(id, 0, nowhere));
+
+		return ids.parallelStream().distinct().collect(Collectors.toMap(id -> id, id -> {
+			KeyStore part = new ChunkedKeyStore();
+			for (TokenRanges.Range range : ring.rangesOf(id))
+				pairs.forEach(range.getStart(), range.getEnd(), part::putBytes);
+			return part;
+		}, (a, b) -> a, TreeMap::new));
+	}
+
+	/*
+	 * Offline import: java BulkImport <key file> <data directory> [server IDs]. Writes
+	 * every server's part as its first snapshot, node-ID/snapshot-0.seg. Give the IDs of
+	 * every server the ring will start with, the bootstrap (ID 0) alone unless given
+	 */
+	public static void main(String[] args) throws IOException {
+		File keys = new File(args[0]);
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 2; i < args.length; i++)
+			ids.add(Integer.parseInt(args[i]));
+		if (ids.isEmpty())
+			ids.add(0);
+
+		for (int id : ids) {
+			String[] existing = nodeDir(args[1], id).list();
+			if (existing != null && existing.length > 0) {
+				System.out.println(nodeDir(args[1], id) + " already holds data, not importing");
+				return;
+			}
+		}
+
+		long start = System.nanoTime();
+		KeyStore pairs = read(keys);
+		long parsed = System.nanoTime();
+
+		Map<Integer, KeyStore> parts = split(pairs, ids);
+		try {
+			parts.entrySet().parallelStream().forEach(part -> {
+				try {
+					writeSnapshot(nodeDir(args[1], part.getKey()), part.getValue());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		Map<Integer, Integer> imported = new TreeMap<Integer, Integer>();
+		parts.forEach((id, part) -> imported.put(id, part.size()));
+
+		System.out.println("Keys imported: " + pairs.size() + " to " + imported + " in " + args[1]);
+		System.out.println("Read in " + (parsed - start) / 1000000 + " ms, split and written in "
+				+ (System.nanoTime() - parsed) / 1000000 + " ms");
+	}
+
+	private static File nodeDir(String data, int id) {
+		return new File(data, "node-" + id);
+	}
+
+	// Writes the pairs as the first snapshot in dir, moved into place once it is whole
+	private static void writeSnapshot(File dir, KeyStore pairs) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir);
+
+		File temp = new File(dir, "snapshot-0.tmp");
+		Segment.write(temp, pairs, SEGMENT_CHUNK);
+		Files.move(temp.toPath(), new File(dir, "snapshot-0.seg").toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
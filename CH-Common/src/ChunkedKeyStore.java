@@ -0,0 +1,486 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Chunked Key Store. Keeps pairs sorted in chunks of at most CHUNK_SIZE keys. A chunk
+ * holds its 64-bit keys in a long array and its values as UTF-8 in one byte arena, with the
+ * offset and length of each value in two more int arrays, so a chunk of 256 pairs is
+ * five objects instead of the thousand or so a TreeMap<Long, String> would need.
+ * Chunks are found by binary search on their first key and split in half when full.
+ * The value bytes and keys of each bucket are counted as pairs change. Reads share a
+ * lock, writes take it alone.
+ */
+public class ChunkedKeyStore implements KeyStore {
+
+	private static final int CHUNK_SIZE = 256; // Most pairs kept in one chunk before it is split
+	private static final int MIN_ARENA = 512; // Bytes a chunk's arena starts with and never shrinks below
+
+	private Chunk[] chunks; // Sorted by key, chunks never overlap and none is empty
+	private int chunkCount;
+	private int size;
+	private long valueBytes;
+	private long[] buckets; // Keys in each part of the ring
+	private ReentrantReadWriteLock lock;
+
+	public ChunkedKeyStore() {
+		chunks = new Chunk[16];
+		buckets = new long[BUCKETS];
+		lock = new ReentrantReadWriteLock();
+	}
+
+	public String get(long key) {
+		lock.readLock().lock();
+		try {
+			if (chunkCount == 0)
+				return null;
+
+			Chunk chunk = chunks[chunkFor(key)];
+			int i = chunk.indexOf(key);
+			return i < 0 ? null : chunk.value(i);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void put(long key, String value) {
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		putBytes(key, utf8, 0, utf8.length);
+	}
+
+	public void putBytes(long key, byte[] utf8, int offset, int length) {
+		lock.writeLock().lock();
+		try {
+			if (chunkCount == 0)
+				insertChunk(0, new Chunk());
+
+			int c = chunkFor(key);
+			Chunk chunk = chunks[c];
+			int i = chunk.indexOf(key);
+
+			// Key already stored, replace its value
+			if (i >= 0) {
+				valueBytes += length - chunk.lengths[i];
+				chunk.set(i, utf8, offset, length);
+				return;
+			}
+
+			// Chunk is full, split it and insert into whichever half the key falls in
+			if (chunk.count == CHUNK_SIZE) {
+				Chunk upper = chunk.split();
+				insertChunk(c + 1, upper);
+				if (key > upper.keys[0])
+					chunk = upper;
+				i = chunk.indexOf(key);
+			}
+
+			chunk.insert(-(i + 1), key, utf8, offset, length);
+			size++;
+			valueBytes += length;
+			buckets[KeyStore.bucket(key)]++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public String remove(long key) {
+		lock.writeLock().lock();
+		try {
+			if (chunkCount == 0)
+				return null;
+
+			int c = chunkFor(key);
+			Chunk chunk = chunks[c];
+			int i = chunk.indexOf(key);
+			if (i < 0)
+				return null;
+
+			String value = chunk.value(i);
+			valueBytes -= chunk.lengths[i];
+			buckets[KeyStore.bucket(key)]--;
+			chunk.delete(i, i + 1);
+			size--;
+
+			if (chunk.count == 0)
+				dropEmptyChunks();
+			return value;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long valueBytes() {
+		lock.readLock().lock();
+		try {
+			return valueBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long[] buckets() {
+		lock.readLock().lock();
+		try {
+			return buckets.clone();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int count(long from, long to) {
+		lock.readLock().lock();
+		try {
+			if (from <= to)
+				return countLinear(from, to);
+			return countLinear(from, Long.MAX_VALUE) + countLinear(Long.MIN_VALUE, to);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int forEach(long from, long to, int limit, Visitor visitor) {
+		lock.readLock().lock();
+		try {
+			if (from <= to)
+				return forEachLinear(from, to, limit, visitor);
+
+			int visited = forEachLinear(from, Long.MAX_VALUE, limit, visitor);
+			return visited + forEachLinear(Long.MIN_VALUE, to, limit - visited, visitor);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int removeRange(long from, long to) {
+		lock.writeLock().lock();
+		try {
+			int removed;
+			if (from <= to)
+				removed = removeLinear(from, to);
+			else
+				removed = removeLinear(from, Long.MAX_VALUE) + removeLinear(Long.MIN_VALUE, to);
+
+			size -= removed;
+			dropEmptyChunks();
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			chunks = new Chunk[16];
+			chunkCount = 0;
+			size = 0;
+			valueBytes = 0;
+			buckets = new long[BUCKETS];
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Merges the pairs of another store into this one in a single pass over both,
+	 * filling new chunks from the two sorted sequences instead of inserting the pairs
+	 * one at a time. A key in both keeps the other store's value
+	 */
+	public void putAll(KeyStore sorted) {
+		lock.writeLock().lock();
+		try {
+			Merge merge = new Merge();
+			sorted.forEach(Long.MIN_VALUE, Long.MAX_VALUE, merge);
+			merge.ownUntil(Long.MAX_VALUE, true);
+
+			chunks = merge.built;
+			chunkCount = merge.builtCount;
+			size = merge.size;
+			valueBytes = merge.valueBytes;
+			buckets = merge.buckets;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Ranges that wrap are split in two by the callers, from is never after to here
+
+	private int countLinear(long from, long to) {
+		if (chunkCount == 0)
+			return 0;
+
+		int count = 0;
+		for (int c = chunkFor(from); c < chunkCount && chunks[c].keys[0] <= to; c++)
+			count += chunks[c].upperBound(to) - chunks[c].lowerBound(from);
+		return count;
+	}
+
+	private int forEachLinear(long from, long to, int limit, Visitor visitor) {
+		if (chunkCount == 0)
+			return 0;
+
+		int visited = 0;
+		for (int c = chunkFor(from); c < chunkCount && chunks[c].keys[0] <= to; c++) {
+			Chunk chunk = chunks[c];
+			int hi = chunk.upperBound(to);
+			for (int i = chunk.lowerBound(from); i < hi; i++) {
+				if (visited == limit)
+					return visited;
+				visitor.visit(chunk.keys[i], chunk.data, chunk.offsets[i], chunk.lengths[i]);
+				visited++;
+			}
+		}
+		return visited;
+	}
+
+	// Deletes from the chunks but leaves size and empty chunks to the caller
+	private int removeLinear(long from, long to) {
+		if (chunkCount == 0)
+			return 0;
+
+		int removed = 0;
+		for (int c = chunkFor(from); c < chunkCount && chunks[c].keys[0] <= to; c++) {
+			Chunk chunk = chunks[c];
+			int lo = chunk.lowerBound(from);
+			int hi = chunk.upperBound(to);
+			if (lo < hi) {
+				for (int i = lo; i < hi; i++) {
+					valueBytes -= chunk.lengths[i];
+					buckets[KeyStore.bucket(chunk.keys[i])]--;
+				}
+				chunk.delete(lo, hi);
+				removed += hi - lo;
+			}
+		}
+		return removed;
+	}
+
+	// Index of the last chunk whose first key is at or before the key, 0 if there is none
+	private int chunkFor(long key) {
+		int lo = 0;
+		int hi = chunkCount - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (chunks[mid].keys[0] <= key)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	private void insertChunk(int index, Chunk chunk) {
+		if (chunkCount == chunks.length)
+			chunks = Arrays.copyOf(chunks, chunkCount * 2);
+		System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+		chunks[index] = chunk;
+		chunkCount++;
+	}
+
+	private void dropEmptyChunks() {
+		int kept = 0;
+		for (int c = 0; c < chunkCount; c++) {
+			if (chunks[c].count > 0)
+				chunks[kept++] = chunks[c];
+		}
+		Arrays.fill(chunks, kept, chunkCount, null);
+		chunkCount = kept;
+	}
+
+	/*
+	 * Merge. Builds full chunks from this store's pairs and the pairs of another store
+	 * visited in key order, copying this store's pairs that come before each visited one.
+	 */
+	private class Merge implements Visitor {
+
+		private Chunk[] built = new Chunk[16];
+		private int builtCount;
+		private int size;
+		private long valueBytes;
+		private long[] buckets = new long[BUCKETS];
+		private int c; // Chunk of this store holding the next pair to copy
+		private int i; // Index of that pair in the chunk
+
+		public void visit(long key, byte[] utf8, int offset, int length) {
+			ownUntil(key, false);
+			if (c < chunkCount && chunks[c].keys[i] == key)
+				next(); // Replaced by the other store's value
+			add(key, utf8, offset, length);
+		}
+
+		// Copies this store's pairs before the key, or up to and including it if inclusive
+		void ownUntil(long key, boolean inclusive) {
+			while (c < chunkCount && (chunks[c].keys[i] < key || inclusive && chunks[c].keys[i] == key)) {
+				Chunk chunk = chunks[c];
+				add(chunk.keys[i], chunk.data, chunk.offsets[i], chunk.lengths[i]);
+				next();
+			}
+		}
+
+		private void next() {
+			if (++i == chunks[c].count) {
+				c++;
+				i = 0;
+			}
+		}
+
+		private void add(long key, byte[] utf8, int offset, int length) {
+			if (builtCount == 0 || built[builtCount - 1].count == CHUNK_SIZE) {
+				if (builtCount == built.length)
+					built = Arrays.copyOf(built, builtCount * 2);
+				built[builtCount++] = new Chunk();
+			}
+			Chunk chunk = built[builtCount - 1];
+			chunk.insert(chunk.count, key, utf8, offset, length);
+			size++;
+			valueBytes += length;
+			buckets[KeyStore.bucket(key)]++;
+		}
+
+	}
+
+	/*
+	 * Chunk. Up to CHUNK_SIZE sorted keys and their values. Values are appended to the
+	 * arena, replaced or removed values leave garbage behind that is dropped when the
+	 * arena is compacted, either because it is full or mostly garbage.
+	 */
+	private static class Chunk {
+
+		private long[] keys;
+		private int[] offsets; // Start of each value in data
+		private int[] lengths; // Length of each value in data
+		private int count;
+
+		private byte[] data;
+		private int used; // Bytes of data written, live or not
+		private int live; // Bytes of data still belonging to a value
+
+		Chunk() {
+			keys = new long[CHUNK_SIZE];
+			offsets = new int[CHUNK_SIZE];
+			lengths = new int[CHUNK_SIZE];
+			data = new byte[MIN_ARENA];
+		}
+
+		int indexOf(long key) {
+			return Arrays.binarySearch(keys, 0, count, key);
+		}
+
+		// First index with a key at or after the key
+		int lowerBound(long key) {
+			int i = indexOf(key);
+			return i >= 0 ? i : -(i + 1);
+		}
+
+		// First index with a key after the key
+		int upperBound(long key) {
+			int i = indexOf(key);
+			return i >= 0 ? i + 1 : -(i + 1);
+		}
+
+		String value(int i) {
+			return new String(data, offsets[i], lengths[i], StandardCharsets.UTF_8);
+		}
+
+		void set(int i, byte[] utf8, int offset, int length) {
+			live -= lengths[i];
+
+			// New value fits where the old one was, otherwise append it
+			if (length <= lengths[i]) {
+				System.arraycopy(utf8, offset, data, offsets[i], length);
+			} else {
+				lengths[i] = 0; // Old value is garbage now, compacting must not copy it
+				offsets[i] = append(utf8, offset, length);
+			}
+			lengths[i] = length;
+			live += length;
+		}
+
+		void insert(int i, long key, byte[] utf8, int offset, int length) {
+			// Append first, compacting only moves the values already in the chunk
+			int at = append(utf8, offset, length);
+
+			System.arraycopy(keys, i, keys, i + 1, count - i);
+			System.arraycopy(offsets, i, offsets, i + 1, count - i);
+			System.arraycopy(lengths, i, lengths, i + 1, count - i);
+			keys[i] = key;
+			offsets[i] = at;
+			lengths[i] = length;
+			count++;
+			live += length;
+		}
+
+		// Removes the pairs at [lo, hi)
+		void delete(int lo, int hi) {
+			for (int i = lo; i < hi; i++)
+				live -= lengths[i];
+
+			System.arraycopy(keys, hi, keys, lo, count - hi);
+			System.arraycopy(offsets, hi, offsets, lo, count - hi);
+			System.arraycopy(lengths, hi, lengths, lo, count - hi);
+			count -= hi - lo;
+
+			if (count == 0)
+				used = 0;
+			else if (live < used / 4 && data.length > MIN_ARENA)
+				compact(0);
+		}
+
+		// Moves the upper half of the pairs into a new chunk
+		Chunk split() {
+			Chunk upper = new Chunk();
+			int half = count / 2;
+			for (int i = half; i < count; i++)
+				upper.insert(upper.count, keys[i], data, offsets[i], lengths[i]);
+
+			delete(half, count);
+			return upper;
+		}
+
+		// Copies a value to the end of the arena and returns where it starts
+		private int append(byte[] utf8, int offset, int length) {
+			if (used + length > data.length)
+				compact(length);
+
+			int at = used;
+			System.arraycopy(utf8, offset, data, at, length);
+			used += length;
+			return at;
+		}
+
+		/*
+		 * Copies the live values to the front of a new arena with room for extra more
+		 * bytes. The arena doubles if live values fill more than half of it and halves
+		 * if they fill less than a quarter
+		 */
+		private void compact(int extra) {
+			int needed = live + extra;
+			int capacity = data.length;
+			if (needed > capacity / 2)
+				capacity = Math.max(capacity * 2, needed);
+			else if (needed < capacity / 4)
+				capacity = Math.max(MIN_ARENA, capacity / 2);
+
+			byte[] packed = new byte[capacity];
+			int p = 0;
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(data, offsets[i], packed, p, lengths[i]);
+				offsets[i] = p;
+				p += lengths[i];
+			}
+			data = packed;
+			used = p;
+		}
+
+	}
+
+}
@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Connection Pool. Keeps one long-lived connection open to every server this node
+ * sends commands to (the next node, bootstrap and fingers), so a forwarded
+ * command costs one write on an open socket instead of a new connection. Threads
+ * share a connection, each frame is written whole before the next one starts. A
+ * connection found closed is reopened and the message sent on the new one, but a
+ * message whose write failed is never sent again: part of it may have reached the
+ * server, and an insert or delete sent twice could be applied twice. Connecting gives
+ * up after CONNECT_TIMEOUT, so a crashed server costs a bounded wait instead of a
+ * hang, and only for the threads sending to that server.
+ */
+public class ConnectionPool {
+
+	public static final int CONNECT_TIMEOUT = 1000; // Milliseconds to wait for another server to accept a connection
+
+	// Writes one command and its arguments into the connection's frame
+	public interface Message {
+		void write(Frame frame) throws IOException;
+	}
+
+	private ConcurrentHashMap<InetSocketAddress, Connection> connections;
+	private ConcurrentHashMap<InetSocketAddress, CompletableFuture<Connection>> connecting; // One connect at a time to each address
+
+	public ConnectionPool() {
+		connections = new ConcurrentHashMap<InetSocketAddress, Connection>();
+		connecting = new ConcurrentHashMap<InetSocketAddress, CompletableFuture<Connection>>();
+	}
+
+	/*
+	 * Sends a message to the server at ip:port, reconnecting once if the connection
+	 * closed before anything was written to it
+	 */
+	public void send(InetAddress ip, int port, Message message) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(ip, port);
+
+		for (int attempt = 0; attempt < 2; attempt++) {
+			Connection connection = get(address);
+			try {
+				if (connection.send(message))
+					return;
+			} catch (IOException e) {
+				connection.close(); // Server may have part of the message, so it is not sent again
+				throw e;
+			}
+		}
+		throw new IOException("Connection to " + address + " closed before the message was sent");
+	}
+
+	/*
+	 * Sends an answer to the node that started a command. An origin with port
+	 * RingNode.PIPELINED is answered on out, the connection the command came on
+	 */
+	public void answer(RingNode origin, OutputStream out, Message message) throws IOException {
+		if (origin.getPort() != RingNode.PIPELINED) {
+			send(origin.getIP(), origin.getPort(), message);
+			return;
+		}
+		Frame frame = new Frame();
+		message.write(frame);
+		frame.writeTo(out);
+	}
+
+	// Closes the connection to a server that left the ring
+	public void close(InetAddress ip, int port) {
+		Connection connection = connections.get(new InetSocketAddress(ip, port));
+		if (connection != null)
+			connection.close();
+	}
+
+	// Closes every connection, used once this node leaves the ring
+	public void closeAll() {
+		for (Connection connection : connections.values())
+			connection.close();
+	}
+
+	// Number of open connections
+	public int size() {
+		return connections.size();
+	}
+
+	// Opens a new connection to the server at ip:port, giving up after CONNECT_TIMEOUT
+	public static Socket connect(InetAddress ip, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/*
+	 * Returns the open connection to an address, connecting first if there is none.
+	 * Threads after the same address wait for the one connecting, no other address
+	 * waits on it
+	 */
+	private Connection get(InetSocketAddress address) throws IOException {
+		Connection connection = connections.get(address);
+		if (connection != null && connection.isOpen())
+			return connection;
+
+		CompletableFuture<Connection> opening = new CompletableFuture<Connection>();
+		CompletableFuture<Connection> other = connecting.putIfAbsent(address, opening);
+		if (other != null) {
+			try {
+				return other.join();
+			} catch (CompletionException e) {
+				throw new IOException("Cannot connect to " + address, e.getCause());
+			}
+		}
+
+		try {
+			connection = connections.get(address);
+			if (connection == null || !connection.isOpen()) {
+				connection = new Connection(address);
+				connections.put(address, connection);
+				connection.start();
+			}
+			opening.complete(connection);
+			return connection;
+		} catch (IOException e) {
+			opening.completeExceptionally(e);
+			throw e;
+		} finally {
+			connecting.remove(address, opening);
+		}
+	}
+
+	/*
+	 * Connection. One open socket to another server. The thread only waits for the
+	 * other side to close, so a dead connection is dropped from the pool before the
+	 * next message is written to it instead of after.
+	 */
+	private class Connection extends Thread {
+
+		private InetSocketAddress address;
+		private Socket socket;
+		private OutputStream out;
+		private Frame frame; // Reused for every message sent on this connection
+		private volatile boolean open;
+
+		public Connection(InetSocketAddress address) throws IOException {
+			super("connection-" + address.getPort());
+			setDaemon(true);
+
+			this.address = address;
+			this.socket = connect(address.getAddress(), address.getPort());
+			this.out = socket.getOutputStream();
+			this.frame = new Frame();
+			this.open = true;
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		// Writes a message, returning false without writing anything if the connection is closed
+		public synchronized boolean send(Message message) throws IOException {
+			if (!open)
+				return false;
+
+			message.write(frame);
+			frame.writeTo(out);
+			return true;
+		}
+
+		public void run() {
+			try {
+				InputStream in = socket.getInputStream();
+				byte[] buffer = new byte[64];
+				while (in.read(buffer) != -1) {
+				}
+			} catch (IOException e) {
+			}
+			close();
+		}
+
+		public void close() {
+			open = false;
+			connections.remove(address, this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,301 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Durable Key Store. Wraps a store so every change is appended to a write-ahead log
+ * (see WriteAheadLog) before it is applied, and every SNAPSHOT_INTERVAL writes the
+ * whole store to a snapshot in the background, a segment file snapshot-N.seg (see
+ * Segment). Taking a snapshot only stops writes while the log moves on to segment N.
+ * The pairs are then read a chunk at a time while writes carry on, so the snapshot
+ * may already hold some changes made after that point. Those are in segment N as
+ * well and are applied again on top of it, which leaves the same pairs. Once the
+ * snapshot is on disk, older snapshots and segments are deleted. Opening a store maps
+ * the latest snapshot instead of reading it, keeps later changes in the given store
+ * on top of it (see SegmentKeyStore), and replays the log after it, so opening takes
+ * as long as the log is, not as long as the store is. A putAll is logged as a few
+ * batch records and merged into the store in one pass. Changes to the same key are
+ * logged and applied under one of STRIPES locks, so they reach the store in the
+ * order they are in the log, and a change to many keys holds all of them.
+ */
+public class DurableKeyStore implements KeyStore {
+
+	public static final long SNAPSHOT_INTERVAL = Long.getLong("snapshot", 60000); // Milliseconds between snapshots
+
+	private static final int SNAPSHOT_CHUNK = 4096; // Pairs read from the store at a time while writing a snapshot
+	private static final int STRIPES = 64; // Locks keys are spread over
+
+	private KeyStore store;
+	private File dir;
+	private WriteAheadLog log;
+	private boolean recovered; // Pairs were loaded from an earlier run
+	private boolean closed; // Guarded by this, which is held while a snapshot is taken
+
+	// Held for reading while a change is logged and applied, and for writing while the
+	// log moves to a new segment, so no change is logged in one segment and applied
+	// after the snapshot for the next one has read past it
+	private ReentrantReadWriteLock rotation;
+	private ReentrantLock[] stripes; // Held while a change to their keys is logged and applied
+
+	private DurableKeyStore(KeyStore store, File dir, WriteAheadLog log, boolean recovered) {
+		this.store = store;
+		this.dir = dir;
+		this.log = log;
+		this.recovered = recovered;
+		this.rotation = new ReentrantReadWriteLock();
+		this.stripes = new ReentrantLock[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new ReentrantLock();
+	}
+
+	/*
+	 * Opens the store kept in dir, mapping the latest snapshot and replaying the log
+	 * after it with the given empty store holding the changes, and starts taking
+	 * snapshots
+	 */
+	public static DurableKeyStore open(KeyStore store, File dir) throws IOException {
+		WriteAheadLog.checkPolicy(WriteAheadLog.FSYNC);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir);
+
+		// A snapshot that was still being written when the node stopped is incomplete
+		int snapshot = -1;
+		for (String name : dir.list()) {
+			if (name.contains(".tmp"))
+				new File(dir, name).delete();
+			else if (name.startsWith("snapshot-") && name.endsWith(".seg"))
+				snapshot = Math.max(snapshot, Integer.parseInt(name.substring(9, name.length() - 4)));
+		}
+
+		boolean recovered = false;
+		if (snapshot >= 0) {
+			store = new SegmentKeyStore(Segment.open(snapshotFile(dir, snapshot)), store);
+			recovered = true;
+		}
+		if (WriteAheadLog.replay(dir, snapshot, store) > 0)
+			recovered = true;
+
+		int last = snapshot;
+		for (int segment : WriteAheadLog.segments(dir))
+			last = Math.max(last, segment);
+
+		DurableKeyStore durable = new DurableKeyStore(store, dir, new WriteAheadLog(dir, last), recovered);
+		durable.start();
+		return durable;
+	}
+
+	// Checks if an earlier run left pairs behind, in which case they replace the initial ones
+	public boolean isRecovered() {
+		return recovered;
+	}
+
+	public String get(long key) {
+		return store.get(key);
+	}
+
+	public void put(long key, String value) {
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		putBytes(key, utf8, 0, utf8.length);
+	}
+
+	public void putBytes(long key, byte[] utf8, int offset, int length) {
+		long sequence;
+		ReentrantLock stripe = stripes[stripe(key)];
+		rotation.readLock().lock();
+		stripe.lock();
+		try {
+			sequence = log.put(key, utf8, offset, length);
+			store.putBytes(key, utf8, offset, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			stripe.unlock();
+			rotation.readLock().unlock();
+		}
+		sync(sequence);
+	}
+
+	public String remove(long key) {
+		long sequence;
+		String value;
+		ReentrantLock stripe = stripes[stripe(key)];
+		rotation.readLock().lock();
+		stripe.lock();
+		try {
+			sequence = log.remove(key);
+			value = store.remove(key);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			stripe.unlock();
+			rotation.readLock().unlock();
+		}
+		sync(sequence);
+		return value;
+	}
+
+	public int size() {
+		return store.size();
+	}
+
+	public int count(long from, long to) {
+		return store.count(from, to);
+	}
+
+	public long valueBytes() {
+		return store.valueBytes();
+	}
+
+	public long[] buckets() {
+		return store.buckets();
+	}
+
+	public int forEach(long from, long to, int limit, Visitor visitor) {
+		return store.forEach(from, to, limit, visitor);
+	}
+
+	public int removeRange(long from, long to) {
+		long sequence;
+		int removed;
+		rotation.readLock().lock();
+		lockAll();
+		try {
+			sequence = log.removeRange(from, to);
+			removed = store.removeRange(from, to);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			unlockAll();
+			rotation.readLock().unlock();
+		}
+		sync(sequence);
+		return removed;
+	}
+
+	public void putAll(KeyStore sorted) {
+		long sequence;
+		rotation.readLock().lock();
+		lockAll();
+		try {
+			sequence = log.putAll(sorted);
+			store.putAll(sorted);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			unlockAll();
+			rotation.readLock().unlock();
+		}
+		sync(sequence);
+	}
+
+	public void clear() {
+		long sequence;
+		rotation.readLock().lock();
+		lockAll();
+		try {
+			sequence = log.clear();
+			store.clear();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			unlockAll();
+			rotation.readLock().unlock();
+		}
+		sync(sequence);
+	}
+
+	// Writes a snapshot of the store, replacing the log up to now
+	public synchronized void snapshot() throws IOException {
+		if (closed)
+			throw new IOException("Store is closed");
+		int segment;
+		rotation.writeLock().lock();
+		try {
+			segment = log.rotate();
+		} finally {
+			rotation.writeLock().unlock();
+		}
+
+		File temp = new File(dir, "snapshot-" + segment + ".tmp");
+		Segment.write(temp, store, SNAPSHOT_CHUNK);
+		Files.move(temp.toPath(), snapshotFile(dir, segment).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		// Snapshot holds everything before its segment now. One still mapped stays readable until it is unmapped
+		for (String name : dir.list()) {
+			if (name.startsWith("snapshot-") && name.endsWith(".seg")
+					&& Integer.parseInt(name.substring(9, name.length() - 4)) < segment)
+				new File(dir, name).delete();
+		}
+		log.deleteBefore(segment);
+	}
+
+	// Waits for a snapshot being taken, stops taking them and closes the log. Changes after this fail
+	public synchronized void close() throws IOException {
+		closed = true;
+		log.close();
+	}
+
+	// Takes a snapshot every SNAPSHOT_INTERVAL if anything changed, and flushes the log on shutdown
+	private void start() {
+		Thread snapshots = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(SNAPSHOT_INTERVAL);
+					synchronized (this) {
+						if (closed)
+							return;
+						if (log.written() > 0)
+							snapshot();
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "snapshot-" + dir.getName());
+		snapshots.setDaemon(true);
+		snapshots.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				log.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}));
+	}
+
+	private void sync(long sequence) {
+		try {
+			log.sync(sequence);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Locks every stripe in order, for a change that may touch any key
+	private void lockAll() {
+		for (ReentrantLock stripe : stripes)
+			stripe.lock();
+	}
+
+	private void unlockAll() {
+		for (ReentrantLock stripe : stripes)
+			stripe.unlock();
+	}
+
+	private static int stripe(long key) {
+		return (int) (key >>> 58); // Keys are hashes, so their top bits are spread evenly
+	}
+
+	private static File snapshotFile(File dir, int segment) {
+		return new File(dir, "snapshot-" + segment + ".seg");
+	}
+
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/*
+ * Failure Detector. Every INTERVAL a node sends a HEARTBEAT to its successors, the
+ * SUCCESSORS nodes after each of its tokens that would take its ranges over:
+ *
+ *   HEARTBEAT [node]
+ *
+ * and watches the nodes it is a successor of in turn. Suspicion of a watched node
+ * grows with the time since its last heartbeat, measured against the gaps seen
+ * between its heartbeats so far (phi accrual): phi = elapsed / mean gap * log10(e),
+ * so the chance that the node is alive and its heartbeat only late is 10^-phi. Once
+ * phi passes THRESHOLD the node is handed to the suspect callback, which splices the
+ * ring around it. Heartbeats from a node this one is no longer a successor of are
+ * dropped, so a node that stops sending them because the ring changed is not taken
+ * for dead.
+ */
+public class FailureDetector {
+
+	public static final long INTERVAL = Long.getLong("heartbeat", 200); // Milliseconds between heartbeats
+	public static final double THRESHOLD = 8; // Phi at which a node is taken for dead, about 18 mean gaps of silence
+	public static final int SUCCESSORS = 2; // Nodes after each token that a node sends heartbeats to
+
+	private static final int WINDOW = 100; // Gaps between heartbeats averaged for each watched node
+
+	private RingNode self;
+	private FingerTable fingers;
+	private ConnectionPool pool;
+	private Consumer<RingNode> suspect; // Called once for each node taken for dead
+	private ConcurrentHashMap<Integer, Arrivals> watched; // Heartbeats received from each node, by ID
+
+	public FailureDetector(RingNode self, FingerTable fingers, ConnectionPool pool, Consumer<RingNode> suspect) {
+		this.self = self;
+		this.fingers = fingers;
+		this.pool = pool;
+		this.suspect = suspect;
+		this.watched = new ConcurrentHashMap<Integer, Arrivals>();
+	}
+
+	// Starts sending heartbeats and checking the watched nodes every INTERVAL
+	public void start() {
+		Thread thread = new Thread(() -> {
+			while (true) {
+				beat();
+				check();
+				try {
+					Thread.sleep(INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "heartbeat-" + self.getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Records a heartbeat from a node
+	public void heartbeat(RingNode node) {
+		watched.computeIfAbsent(node.getID(), id -> new Arrivals(node)).arrived(now());
+	}
+
+	// Stops watching a node that left the ring or was taken for dead
+	public void forget(int id) {
+		watched.remove(id);
+	}
+
+	// Current suspicion of a node, 0 if it is not watched
+	public double phi(int id) {
+		Arrivals arrivals = watched.get(id);
+		return arrivals == null ? 0 : arrivals.phi(now());
+	}
+
+	private void beat() {
+		for (RingNode successor : fingers.successors(self.getID(), SUCCESSORS)) {
+			try {
+				pool.send(successor.getIP(), successor.getPort(), frame -> frame.begin(Opcode.HEARTBEAT).putNode(self));
+			} catch (IOException e) {
+				// Successor is unreachable, the nodes watching it take it over
+			}
+		}
+	}
+
+	private void check() {
+		for (Arrivals arrivals : watched.values()) {
+			int id = arrivals.node.getID();
+
+			List<RingNode> successors = fingers.successors(id, SUCCESSORS);
+			if (!successors.stream().anyMatch(node -> node.getID() == self.getID())) {
+				forget(id); // Ring changed, no longer this node's to watch
+			} else if (arrivals.phi(now()) > THRESHOLD) {
+				forget(id);
+				System.out.println("Node " + id + " stopped sending heartbeats, taking over from it");
+				suspect.accept(arrivals.node);
+			}
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/*
+	 * Arrivals. When heartbeats from one node came in, kept as the time of the last one
+	 * and the gaps between the last WINDOW of them.
+	 */
+	private static class Arrivals {
+
+		private RingNode node;
+		private long last;
+		private long[] gaps;
+		private int count; // Gaps recorded, at most WINDOW
+		private int next; // Slot the next gap goes in
+		private long total; // Sum of the recorded gaps
+
+		Arrivals(RingNode node) {
+			this.node = node;
+			this.last = -1;
+			this.gaps = new long[WINDOW];
+		}
+
+		synchronized void arrived(long time) {
+			if (last >= 0) {
+				long gap = time - last;
+				total += gap - gaps[next];
+				gaps[next] = gap;
+				next = (next + 1) % WINDOW;
+				count = Math.min(count + 1, WINDOW);
+			}
+			last = time;
+		}
+
+		synchronized double phi(long time) {
+			double mean = count == 0 ? INTERVAL : Math.max((double) total / count, 1);
+			return (time - last) / mean * Math.log10(Math.E);
+		}
+
+	}
+
+}
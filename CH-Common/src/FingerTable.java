@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Finger Table. Keeps every node currently known to be on the ring and the tokens
+ * each one sits at. For each of this node's tokens and each i, keeps the first token
+ * at or after (token + 2^i). Forwarding a command to the closest finger that precedes
+ * the key at least halves the remaining distance, so a command reaches the key's
+ * owner in O(log N) hops instead of walking every token.
+ *
+ * The epoch names the set of members. It is built from the member IDs alone, so two
+ * nodes that know the same members have the same epoch however they learned them,
+ * and a client holding a copy of the ring can tell from one number whether its copy
+ * is still current.
+ */
+public class FingerTable {
+
+	private RingNode self;
+	private TreeMap<Integer, RingNode> nodes; // Every known node by ID, including this one
+	private TreeMap<Long, RingNode> tokens; // Node at every known token
+	private long[][] fingerTokens; // fingerTokens[t][i] is the first token at or after token t + 2^i
+	private RingNode[][] fingers; // fingers[t][i] is the node at fingerTokens[t][i]
+	private long epoch; // Hashes of the member IDs XORed together
+
+	public FingerTable(RingNode self) {
+		this.self = self;
+		this.nodes = new TreeMap<Integer, RingNode>();
+		this.tokens = new TreeMap<Long, RingNode>();
+		this.fingerTokens = new long[Ring.TOKENS][Ring.BITS];
+		this.fingers = new RingNode[Ring.TOKENS][Ring.BITS];
+
+		put(self);
+		rebuild();
+	}
+
+	// Adds a node that entered the ring. Returns false if it was already known
+	public synchronized boolean add(RingNode node) {
+		if (nodes.containsKey(node.getID()))
+			return false;
+
+		put(node);
+		rebuild();
+		return true;
+	}
+
+	// Removes a node that exited the ring. Returns false if it was not known
+	public synchronized boolean remove(int id) {
+		if (id == self.getID() || nodes.remove(id) == null)
+			return false;
+
+		epoch ^= Ring.hash(Integer.toString(id));
+		for (long token : Ring.tokens(id))
+			tokens.remove(token);
+		rebuild();
+		return true;
+	}
+
+	// Forgets every other node, used once this node has left the ring
+	public synchronized void clear() {
+		nodes.clear();
+		tokens.clear();
+		epoch = 0;
+		put(self);
+		rebuild();
+	}
+
+	public synchronized long epoch() {
+		return epoch;
+	}
+
+	public synchronized List<RingNode> members() {
+		return new ArrayList<RingNode>(nodes.values());
+	}
+
+	// Node with the next higher ID, wrapping around to the lowest. This node if it is alone
+	public synchronized RingNode next() {
+		Map.Entry<Integer, RingNode> entry = nodes.higherEntry(self.getID());
+		if (entry == null)
+			entry = nodes.firstEntry();
+		return entry.getValue();
+	}
+
+	/*
+	 * Returns the finger closest to, but strictly before, the key, starting from this
+	 * node's token closest before the key. Null means no finger lies between that
+	 * token and the key, so the key belongs to the node at the next token
+	 */
+	public synchronized RingNode closestPreceding(long key) {
+		long[] own = self.getTokens();
+		int t = own.length - 1;
+		while (t > 0 && own[t] >= key)
+			t--;
+		if (own[t] >= key)
+			t = own.length - 1; // No token before the key, the closest one wraps around
+
+		for (int i = Ring.BITS - 1; i >= 0; i--) {
+			RingNode finger = fingers[t][i];
+			if (finger != self && Ring.between(fingerTokens[t][i], own[t], key))
+				return finger;
+		}
+		return null;
+	}
+
+	// Parts of [from, to] that each have one owner, in ring order, for a scan
+	public synchronized List<RangeScan.Part> split(long from, long to) {
+		return RangeScan.split(tokens, from, to);
+	}
+
+	// Node that owns a key, the one at the first known token at or after it
+	public synchronized RingNode ownerOf(long key) {
+		return successorOf(key).getValue();
+	}
+
+	/*
+	 * Node at the first token at or after the key that is not the given node's, so the
+	 * node that takes over a key once the given node is gone
+	 */
+	public synchronized RingNode ownerAfter(long key, int skipID) {
+		for (Map.Entry<Long, RingNode> entry : tokens.tailMap(key, true).entrySet()) {
+			if (entry.getValue().getID() != skipID)
+				return entry.getValue();
+		}
+		for (Map.Entry<Long, RingNode> entry : tokens.headMap(key, false).entrySet()) {
+			if (entry.getValue().getID() != skipID)
+				return entry.getValue();
+		}
+		return self;
+	}
+
+	/*
+	 * Nodes keeping a key, at most count of them: its owner followed by the next nodes
+	 * at the tokens after it, skipping nodes already counted
+	 */
+	public synchronized List<RingNode> replicasOf(long key, int count) {
+		List<RingNode> replicas = new ArrayList<RingNode>();
+		for (Map<Long, RingNode> part : List.of(tokens.tailMap(key, true), tokens.headMap(key, false))) {
+			for (RingNode node : part.values()) {
+				if (replicas.size() == count)
+					return replicas;
+				if (!replicas.contains(node))
+					replicas.add(node);
+			}
+		}
+		return replicas;
+	}
+
+	/*
+	 * Nodes that take over from the given node once it is gone, at most count of them
+	 * for each of its tokens: the next nodes at the tokens after it, skipping itself
+	 */
+	public synchronized List<RingNode> successors(int id, int count) {
+		List<RingNode> successors = new ArrayList<RingNode>();
+		if (!nodes.containsKey(id))
+			return successors;
+
+		for (long token : Ring.tokens(id)) {
+			List<RingNode> after = new ArrayList<RingNode>();
+			for (Map<Long, RingNode> part : List.of(tokens.tailMap(token, false), tokens.headMap(token, true))) {
+				for (RingNode node : part.values()) {
+					if (after.size() < count && node.getID() != id && !after.contains(node))
+						after.add(node);
+				}
+			}
+			for (RingNode node : after) {
+				if (!successors.contains(node))
+					successors.add(node);
+			}
+		}
+		return successors;
+	}
+
+	/*
+	 * Ranges the given node owns according to the tokens known here, with ranges of its
+	 * tokens that sit next to each other joined. Empty if the node is not known
+	 */
+	public synchronized List<TokenRanges.Range> rangesOf(int id) {
+		RingNode node = nodes.get(id);
+		if (node == null)
+			return new ArrayList<TokenRanges.Range>();
+
+		TokenRanges owned = new TokenRanges(node.getTokens());
+		for (long token : node.getTokens()) {
+			Long previous = tokens.lowerKey(token);
+			if (previous == null)
+				previous = tokens.lastKey();
+			owned.claim(previous + 1, token);
+		}
+		return owned.merged();
+	}
+
+	private void put(RingNode node) {
+		nodes.put(node.getID(), node);
+		epoch ^= Ring.hash(Integer.toString(node.getID()));
+		for (long token : node.getTokens())
+			tokens.put(token, node);
+	}
+
+	// Recomputes every finger from the current token list
+	private void rebuild() {
+		long[] own = self.getTokens();
+		for (int t = 0; t < own.length; t++) {
+			for (int i = 0; i < Ring.BITS; i++) {
+				Map.Entry<Long, RingNode> entry = successorOf(own[t] + (1L << i));
+				fingerTokens[t][i] = entry.getKey();
+				fingers[t][i] = entry.getValue();
+			}
+		}
+	}
+
+	// First token at or after the position, wrapping around the ring
+	private Map.Entry<Long, RingNode> successorOf(long position) {
+		Map.Entry<Long, RingNode> entry = tokens.ceilingEntry(position);
+		if (entry == null)
+			entry = tokens.firstEntry();
+		return entry;
+	}
+
+	// Sends every known node, used to hand the member list to a node entering the ring
+	public void writeMembers(Frame frame) {
+		List<RingNode> nodes = members();
+		frame.putVarInt(nodes.size());
+		for (RingNode node : nodes)
+			frame.putNode(node);
+	}
+
+	// Answers a client asking for the ring, the epoch followed by the members it names
+	public synchronized void writeRing(Frame frame) {
+		frame.begin(Opcode.RING_REPLY).putLong(epoch);
+		writeMembers(frame);
+	}
+
+	// Reads a member list sent by writeMembers and adds every node in it
+	public void readMembers(Frame frame) throws IOException {
+		int count = frame.getVarInt();
+		for (int i = 0; i < count; i++)
+			add(frame.getNode());
+	}
+
+}
@@ -0,0 +1,436 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/*
+ * Frame. One message of the binary protocol spoken between servers:
+ *
+ *   [version: 1 byte][opcode: 1 byte][payload length: varint][payload]
+ *
+ * IDs and ports are unsigned varints, keys are ring positions in 8 fixed bytes since
+ * hashes use every bit, strings are a varint byte count followed by raw UTF-8 (an
+ * unpaired surrogate written as '?', as String.getBytes does), addresses are a length
+ * byte (4 or 16) followed by the raw address and visited nodes are a varint count
+ * followed by varint IDs. A frame keeps and reuses its buffer, so encoding and
+ * decoding commands allocates nothing once the buffer has grown to the largest frame
+ * seen. A payload is at most MAX_PAYLOAD bytes, so a peer can't make a reader
+ * allocate more than that with a made-up length.
+ */
+public class Frame {
+
+	public static final int VERSION = 1;
+	public static final int MAX_PAYLOAD = Integer.getInteger("maxFrame", 64 << 20); // Largest payload written or read
+
+	private static final int HEADER = 7; // Room for version, opcode and the longest varint length
+
+	private byte[] buf;
+	private int pos; // Next byte to read or write
+	private int limit; // End of the payload when reading
+	private int payloadStart; // Where the payload starts in buf, HEADER when writing and 0 when reading
+	private byte opcode;
+
+	public Frame() {
+		buf = new byte[256];
+	}
+
+	public byte getOpcode() {
+		return opcode;
+	}
+
+	// Starts a new frame to write, discarding anything written before
+	public Frame begin(byte opcode) {
+		this.opcode = opcode;
+		this.pos = HEADER;
+		this.payloadStart = HEADER;
+		return this;
+	}
+
+	// Bytes the frame can hold before its buffer grows
+	public int capacity() {
+		return buf.length;
+	}
+
+	// Offset into the payload of the next byte to read or write
+	public int position() {
+		return pos - payloadStart;
+	}
+
+	// Moves back or forward to an offset into the payload that is being read
+	public void position(int position) {
+		pos = payloadStart + position;
+	}
+
+	// Bytes of payload left to read
+	public int remaining() {
+		return limit - pos;
+	}
+
+	// CRC32 of the payload from its start up to the current position
+	public int checksum() {
+		CRC32 crc = new CRC32();
+		crc.update(buf, payloadStart, pos - payloadStart);
+		return (int) crc.getValue();
+	}
+
+	// Writes the header and payload in a single write
+	public void writeTo(OutputStream out) throws IOException {
+		int length = checkLength(pos - HEADER);
+		int lengthBytes = varIntSize(length);
+		int headerStart = HEADER - 2 - lengthBytes;
+
+		buf[headerStart] = (byte) VERSION;
+		buf[headerStart + 1] = opcode;
+		int p = headerStart + 2;
+		for (int value = length; ; value >>>= 7) {
+			if ((value & ~0x7F) == 0) {
+				buf[p] = (byte) value;
+				break;
+			}
+			buf[p++] = (byte) ((value & 0x7F) | 0x80);
+		}
+
+		out.write(buf, headerStart, pos - headerStart);
+		out.flush();
+	}
+
+	/*
+	 * Reads the next frame from the stream into this frame. Returns false if the
+	 * stream ended cleanly before a new frame started
+	 */
+	public boolean readFrom(InputStream in) throws IOException {
+		int version = in.read();
+		if (version == -1)
+			return false;
+		if (version != VERSION)
+			throw new IOException("Unsupported protocol version " + version);
+
+		int op = in.read();
+		if (op == -1)
+			throw new EOFException();
+		opcode = (byte) op;
+
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+			if (b == -1)
+				throw new EOFException();
+			if (shift > 28)
+				throw new IOException("Malformed frame length");
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		checkLength(length);
+
+		pos = 0;
+		payloadStart = 0;
+		ensure(length);
+		int read = 0;
+		while (read < length) {
+			int n = in.read(buf, read, length - read);
+			if (n == -1)
+				throw new EOFException();
+			read += n;
+		}
+
+		limit = length;
+		return true;
+	}
+
+	/*
+	 * Bytes the frame starting at the buffer's position takes up, header included, or
+	 * -1 if the buffer does not hold all of its header yet. The position is left alone
+	 */
+	public static int sizeOf(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		if (buffer.limit() - start < 3)
+			return -1;
+		int version = buffer.get(start) & 0xFF;
+		if (version != VERSION)
+			throw new IOException("Unsupported protocol version " + version);
+
+		int length = 0;
+		for (int shift = 0, p = start + 2; ; shift += 7, p++) {
+			if (p == buffer.limit())
+				return -1;
+			if (shift > 28)
+				throw new IOException("Malformed frame length");
+			int b = buffer.get(p) & 0xFF;
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return p + 1 - start + checkLength(length);
+		}
+	}
+
+	// Reads a whole frame, as sized by sizeOf, from the buffer's position into this frame
+	public void readFrom(ByteBuffer buffer) throws IOException {
+		int size = sizeOf(buffer);
+		if (size < 0 || size > buffer.remaining())
+			throw new EOFException();
+		int start = buffer.position();
+		buffer.get(); // Version, checked by sizeOf
+		opcode = buffer.get();
+		while ((buffer.get() & 0x80) != 0)
+			; // Length, known from sizeOf
+		int length = size - (buffer.position() - start);
+
+		pos = 0;
+		payloadStart = 0;
+		ensure(length);
+		buffer.get(buf, 0, length);
+		limit = length;
+	}
+
+	// Writing
+
+	public Frame putBoolean(boolean value) {
+		ensure(1);
+		buf[pos++] = (byte) (value ? 1 : 0);
+		return this;
+	}
+
+	// Writes a non-negative int in 1 to 5 bytes, 7 bits per byte
+	public Frame putVarInt(int value) {
+		ensure(5);
+		while ((value & ~0x7F) != 0) {
+			buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return this;
+	}
+
+	// Writes a string as its UTF-8 byte count and bytes, encoding straight into the buffer
+	public Frame putString(String value) {
+		int chars = value.length();
+		int bytes = utf8Length(value);
+		putVarInt(bytes);
+		ensure(bytes);
+
+		for (int i = 0; i < chars; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf[pos++] = (byte) (0xF0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return this;
+	}
+
+	// Writes an int in exactly 4 bytes, for fields written after the bytes they describe
+	public Frame putFixedInt(int value) {
+		ensure(4);
+		buf[pos++] = (byte) (value >>> 24);
+		buf[pos++] = (byte) (value >>> 16);
+		buf[pos++] = (byte) (value >>> 8);
+		buf[pos++] = (byte) value;
+		return this;
+	}
+
+	// Writes a long in exactly 8 bytes, used for keys and ring positions
+	public Frame putLong(long value) {
+		ensure(8);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			buf[pos++] = (byte) (value >>> shift);
+		return this;
+	}
+
+	// Writes raw bytes as their count followed by the bytes
+	public Frame putBytes(byte[] src, int offset, int length) {
+		putVarInt(length);
+		ensure(length);
+		System.arraycopy(src, offset, buf, pos, length);
+		pos += length;
+		return this;
+	}
+
+	public Frame putAddress(InetAddress address) {
+		byte[] raw = address.getAddress();
+		ensure(1 + raw.length);
+		buf[pos++] = (byte) raw.length;
+		System.arraycopy(raw, 0, buf, pos, raw.length);
+		pos += raw.length;
+		return this;
+	}
+
+	public Frame putNode(RingNode node) {
+		putVarInt(node.getID());
+		putVarInt(node.getPort());
+		return putAddress(node.getIP());
+	}
+
+	public Frame putVisited(VisitedNodes visited) {
+		putVarInt(visited.size());
+		for (int i = 0; i < visited.size(); i++)
+			putVarInt(visited.get(i));
+		return this;
+	}
+
+	// Writes a key range as a count followed by key/value pairs in key order
+	public Frame putPairs(Map<Long, String> pairs) {
+		putVarInt(pairs.size());
+		for (Map.Entry<Long, String> entry : pairs.entrySet()) {
+			putLong(entry.getKey());
+			putString(entry.getValue());
+		}
+		return this;
+	}
+
+	// Reading
+
+	public boolean getBoolean() throws IOException {
+		require(1);
+		return buf[pos++] != 0;
+	}
+
+	public int getVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			require(1);
+			int b = buf[pos++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	public int getFixedInt() throws IOException {
+		require(4);
+		int value = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8)
+				| (buf[pos + 3] & 0xFF);
+		pos += 4;
+		return value;
+	}
+
+	public long getLong() throws IOException {
+		require(8);
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = (value << 8) | (buf[pos++] & 0xFF);
+		return value;
+	}
+
+	public String getString() throws IOException {
+		int length = getVarInt();
+		require(length);
+		String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+		pos += length;
+		return value;
+	}
+
+	public InetAddress getAddress() throws IOException {
+		require(1);
+		int length = buf[pos++];
+		require(length);
+		InetAddress address = InetAddress.getByAddress(Arrays.copyOfRange(buf, pos, pos + length));
+		pos += length;
+		return address;
+	}
+
+	public RingNode getNode() throws IOException {
+		int id = getVarInt();
+		int port = getVarInt();
+		return new RingNode(id, port, getAddress());
+	}
+
+	// Reads visited nodes into the given list, replacing what it held
+	public VisitedNodes getVisited(VisitedNodes into) throws IOException {
+		into.clear();
+		int count = getVarInt();
+		for (int i = 0; i < count; i++)
+			into.add(getVarInt());
+		return into;
+	}
+
+	// Reads a key range written by putPairs into the given map
+	public void getPairs(Map<Long, String> into) throws IOException {
+		int count = getVarInt();
+		for (int i = 0; i < count; i++) {
+			long key = getLong();
+			into.put(key, getString());
+		}
+	}
+
+	// Reads a key followed by bytes written by putBytes into a store, without decoding the value
+	public void getPairInto(KeyStore into) throws IOException {
+		long key = getLong();
+		int length = getVarInt();
+		require(length);
+		into.putBytes(key, buf, pos, length);
+		pos += length;
+	}
+
+	// Grows the buffer so n more bytes fit after pos
+	private void ensure(int n) {
+		if (pos + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+	}
+
+	// Returns a payload length read from a header, or written, if a frame may have it
+	private static int checkLength(int length) throws IOException {
+		if (length < 0)
+			throw new IOException("Malformed frame length");
+		if (length > MAX_PAYLOAD)
+			throw new IOException("Frame of " + length + " bytes is over the limit of " + MAX_PAYLOAD);
+		return length;
+	}
+
+	// Checks that n more bytes of payload are left to read
+	private void require(int n) throws IOException {
+		if (n < 0 || pos + n > limit)
+			throw new IOException("Truncated " + Opcode.name(opcode) + " frame");
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	// Bytes a string takes as UTF-8, without encoding it
+	static int utf8Length(String value) {
+		int bytes = 0;
+		int chars = value.length();
+		for (int i = 0; i < chars; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80)
+				bytes++;
+			else if (c < 0x800)
+				bytes += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			} else if (Character.isSurrogate(c))
+				bytes++;
+			else
+				bytes += 3;
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,526 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Frame Server. Takes the connections other servers and clients open to this one and
+ * reads their frames without a thread for each connection. IO_THREADS selector
+ * threads each watch a share of the connections and read whatever arrived into one
+ * direct buffer, decoding each whole frame in it straight into a Frame the connection
+ * reuses once the frame is handled. The tail of a frame still on its way waits in a
+ * buffer of its connection's own that grows as the tail arrives, so a length a peer
+ * made up costs nothing until it sends the bytes, and Frame refuses any longer than
+ * Frame.MAX_PAYLOAD. Whole frames go to a fixed pool of workers that run the handler,
+ * so reading the network never waits on the stores. Frames whose opcode is ordered
+ * (see Opcode.isOrdered) are handled one at a time in the order they arrived, every
+ * other frame as soon as a worker is free, so the one connection a node keeps to each
+ * peer doesn't hold lookups and writes up behind each other. Answers a handler
+ * writes back on the connection go out straight away if the socket takes them, and
+ * are written by the selector thread as the socket drains otherwise.
+ *
+ * A connection is not read while QUEUED of its frames wait for a worker or OUTPUT
+ * bytes of its answers wait to be written, so a client sending faster than the node
+ * answers is held back by TCP instead of filling the heap. A selector thread that
+ * keeps failing waits longer after each failure, up to MAX_BACKOFF, instead of
+ * spinning.
+ *
+ * Exchanges that go on reading the connection in the middle of a command, like a
+ * node entering the ring that acknowledges the ranges streamed to it, are handled
+ * with blocking streams instead. When a frame with one of the streamed opcodes
+ * arrives the connection leaves its selector and is read on a thread of its own
+ * from that frame on.
+ */
+public class FrameServer {
+
+	public static final int IO_THREADS = Integer.getInteger("ioThreads", 2); // Selector threads reading connections
+	private static final int READ_BUFFER = 64 * 1024; // Direct buffer each selector thread reads into
+	private static final int QUEUED = 64; // Frames of one connection waiting for a worker before it is not read
+	private static final int OUTPUT = 1 << 20; // Bytes of answers waiting to be written before a connection is not read
+	private static final int TURN = 32; // Ordered frames a worker handles for one connection before others get a turn
+	private static final long MAX_BACKOFF = 1000; // Most milliseconds a failing selector thread waits before it tries again
+
+	// Handles one frame. In is only readable for a streamed opcode, answers written to out go back on the connection
+	public interface Handler {
+		void handle(Frame frame, VisitedNodes visited, InputStream in, OutputStream out);
+	}
+
+	private static final InputStream NOT_STREAMED = new InputStream() {
+		public int read() throws IOException {
+			throw new IOException("Connection is read by its selector");
+		}
+	};
+
+	private int port;
+	private Handler handler;
+	private byte[] streamed; // Opcodes whose frames take the connection over
+	private ServerSocketChannel acceptor;
+	private Loop[] loops;
+	private ExecutorService workers;
+	private int next; // Loop the next accepted connection goes to
+
+	public FrameServer(int port, int workers, Handler handler, byte... streamed) throws IOException {
+		this.port = port;
+		this.handler = handler;
+		this.streamed = streamed;
+
+		acceptor = ServerSocketChannel.open();
+		acceptor.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		acceptor.bind(new InetSocketAddress(port), 1024);
+		acceptor.configureBlocking(false);
+
+		this.workers = Executors.newFixedThreadPool(workers, runnable -> {
+			Thread thread = new Thread(runnable, "worker-" + port);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		loops = new Loop[IO_THREADS];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new Loop(i);
+		acceptor.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+	}
+
+	// Starts the selector threads, which keep the JVM running like the old accept loop did
+	public void start() {
+		for (Loop loop : loops)
+			loop.start();
+	}
+
+	private boolean isStreamed(byte opcode) {
+		for (byte op : streamed) {
+			if (op == opcode)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Loop. One selector thread, reading and writing the connections registered with
+	 * it. The first one also accepts new connections and deals them out in turn.
+	 */
+	private class Loop extends Thread {
+
+		private Selector selector;
+		private ByteBuffer buffer; // Direct, every connection of this loop is read into it
+		private ConcurrentLinkedQueue<SocketChannel> accepted; // Dealt to this loop, not registered yet
+		private List<Connection> handoffs; // Connections streamed from a frame read in this round
+
+		Loop(int index) throws IOException {
+			super("io-" + port + "-" + index);
+			this.selector = Selector.open();
+			this.buffer = ByteBuffer.allocateDirect(READ_BUFFER);
+			this.accepted = new ConcurrentLinkedQueue<SocketChannel>();
+			this.handoffs = new ArrayList<Connection>();
+		}
+
+		public void run() {
+			int failures = 0; // In a row, reset by a round that went through
+			while (true) {
+				try {
+					selector.select();
+					register();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isWritable())
+								connection.flush();
+							if (key.isValid() && key.isReadable())
+								connection.read(buffer);
+						} catch (IOException e) {
+							connection.close(); // Other side reset the connection or sent garbage
+						}
+					}
+
+					// A cancelled key only leaves the selector on its next select, after
+					// which the channel can be switched to blocking
+					if (!handoffs.isEmpty()) {
+						selector.selectNow();
+						for (Connection connection : handoffs)
+							connection.handOff();
+						handoffs.clear();
+					}
+					failures = 0;
+				} catch (IOException e) {
+					// Like running out of file descriptors on accept, trying again at once only fails again
+					if (failures++ == 0)
+						e.printStackTrace();
+					backOff(failures);
+				}
+			}
+		}
+
+		// Waits 10 ms after the first failure in a row, twice as long after each one after it
+		private void backOff(int failures) {
+			try {
+				Thread.sleep(Math.min(MAX_BACKOFF, 10L << Math.min(failures - 1, 16)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = acceptor.accept()) != null) {
+				Loop loop = loops[next++ % loops.length];
+				loop.accepted.add(channel);
+				loop.selector.wakeup();
+			}
+		}
+
+		private void register() {
+			SocketChannel channel;
+			while ((channel = accepted.poll()) != null) {
+				try {
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					Connection connection = new Connection(channel, this);
+					connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					Metrics.connected();
+				} catch (IOException e) {
+					try {
+						channel.close();
+					} catch (IOException e1) {
+					}
+				}
+			}
+		}
+
+	}
+
+	/*
+	 * Received. A frame read from a connection and the visited node list its handler
+	 * decodes into, both reused for a later frame of the connection once handled.
+	 */
+	private static class Received {
+		private Frame frame = new Frame();
+		private VisitedNodes visited = new VisitedNodes();
+	}
+
+	/*
+	 * Connection. The frames read from one connection that wait for a worker and the
+	 * answers that wait to be written to it.
+	 */
+	private class Connection implements Runnable {
+
+		private SocketChannel channel;
+		private Loop loop;
+		private SelectionKey key;
+		private ByteBuffer partial; // Start of a frame that has not all arrived, null if there is none
+		private ArrayDeque<Received> frames; // Ordered frames read and waiting for a worker, oldest first
+		private ArrayDeque<Received> spare; // Handled frames, reused for the next ones read
+		private ArrayDeque<ByteBuffer> output; // Answers the socket did not take yet, oldest first
+		private int outputBytes;
+		private int running; // Frames that are not ordered, handed to workers and not handled yet
+		private boolean scheduled; // A worker is handling the ordered frames, or will be
+		private boolean ended; // Other side closed the connection, close once every frame is answered
+		private boolean streaming; // Read with blocking streams from the frame in handoff on
+		private boolean closed;
+		private Received handoff;
+		private byte[] rest; // Bytes read after the streamed frame
+		private OutputStream out;
+
+		Connection(SocketChannel channel, Loop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.frames = new ArrayDeque<Received>();
+			this.spare = new ArrayDeque<Received>();
+			this.output = new ArrayDeque<ByteBuffer>();
+			this.out = new OutputStream() {
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int offset, int length) throws IOException {
+					send(ByteBuffer.wrap(b, offset, length));
+				}
+			};
+		}
+
+		// Reads what arrived on the selector thread and queues every whole frame in it
+		void read(ByteBuffer direct) throws IOException {
+			int read;
+			if (partial == null) {
+				direct.clear();
+				read = channel.read(direct);
+				direct.flip();
+				cut(direct);
+			} else {
+				read = channel.read(partial);
+				partial.flip();
+				ByteBuffer bytes = partial;
+				partial = null;
+				cut(bytes);
+			}
+			if (read < 0 && !streaming)
+				end();
+		}
+
+		// Decodes bytes into frames, keeping the start of a frame that has not all arrived
+		private void cut(ByteBuffer bytes) throws IOException {
+			int size;
+			while ((size = Frame.sizeOf(bytes)) >= 0 && size <= bytes.remaining()) {
+				Received received = take();
+				received.frame.readFrom(bytes);
+				if (isStreamed(received.frame.getOpcode())) {
+					stream(received, bytes);
+					return;
+				}
+				queue(received);
+			}
+
+			if (bytes.hasRemaining()) {
+				// Room for the longest header until the size is known, then for what arrived and as much again
+				int room = size < 0 ? 16 : Math.min(size, Math.max(READ_BUFFER, bytes.remaining() * 2));
+				if (!bytes.isDirect() && bytes.capacity() >= room) {
+					bytes.compact();
+					partial = bytes;
+				} else {
+					partial = ByteBuffer.allocate(room);
+					partial.put(bytes);
+				}
+			}
+		}
+
+		private synchronized Received take() {
+			Received received = spare.poll();
+			return received != null ? received : new Received();
+		}
+
+		// Keeps a handled frame for the next one read, unless enough are kept or it grew large
+		private synchronized void recycle(Received received) {
+			if (spare.size() < QUEUED && received.frame.capacity() <= READ_BUFFER)
+				spare.add(received);
+		}
+
+		private synchronized void queue(Received received) {
+			if (Opcode.isOrdered(received.frame.getOpcode())) {
+				order(received);
+			} else {
+				running++;
+				workers.execute(() -> handleAlone(received));
+			}
+			interest();
+		}
+
+		// Queues a frame behind the ordered frames before it
+		private void order(Received received) {
+			frames.add(received);
+			if (!scheduled) {
+				scheduled = true;
+				workers.execute(this);
+			}
+		}
+
+		// Takes the connection off its selector, the frame is handled once the key is gone
+		private void stream(Received received, ByteBuffer bytes) {
+			synchronized (this) {
+				streaming = true;
+				handoff = received;
+				rest = new byte[bytes.remaining()];
+				bytes.get(rest);
+				key.cancel();
+			}
+			loop.handoffs.add(this);
+		}
+
+		// Queues the streamed frame behind the ordered frames before it, which a worker handles first
+		synchronized void handOff() {
+			order(handoff);
+		}
+
+		// Handles queued ordered frames on a worker thread, a turn at a time
+		public void run() {
+			for (int handled = 0; ; handled++) {
+				Received next;
+				synchronized (this) {
+					if (handled == TURN) {
+						workers.execute(this); // Still scheduled, carries on after other connections had a turn
+						return;
+					}
+					next = frames.poll();
+					if (next == null) {
+						scheduled = false;
+						interest();
+						closeIfDone();
+						return;
+					}
+					interest();
+				}
+
+				if (streaming && next == handoff) {
+					Thread thread = new Thread(this::readStreamed, "stream-" + port);
+					thread.setDaemon(true);
+					thread.start();
+					return;
+				}
+
+				if (!handle(next))
+					return;
+			}
+		}
+
+		// Handles a frame that is not ordered on a worker thread of its own
+		private void handleAlone(Received received) {
+			handle(received);
+			synchronized (this) {
+				running--;
+				interest();
+				closeIfDone();
+			}
+		}
+
+		// Runs the handler on a frame. Closes the connection and returns false if the handler failed
+		private boolean handle(Received received) {
+			try {
+				handler.handle(received.frame, received.visited, NOT_STREAMED, out);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				close();
+				return false;
+			}
+			recycle(received);
+			return true;
+		}
+
+		/*
+		 * Reads the connection with blocking streams from the streamed frame on, until
+		 * the other side closes it. Answers still waiting are written first
+		 */
+		private void readStreamed() {
+			try {
+				synchronized (this) {
+					channel.configureBlocking(true);
+					for (ByteBuffer answer : output) {
+						while (answer.hasRemaining())
+							channel.write(answer);
+					}
+					output.clear();
+					outputBytes = 0;
+				}
+
+				Socket socket = channel.socket();
+				InputStream in = new BufferedInputStream(
+						new SequenceInputStream(new ByteArrayInputStream(rest), socket.getInputStream()));
+				OutputStream out = socket.getOutputStream();
+
+				Frame frame = handoff.frame;
+				do {
+					handler.handle(frame, handoff.visited, in, out);
+				} while (frame.readFrom(in));
+			} catch (EOFException e) {
+				// Other side closed the connection mid-frame
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				close();
+			}
+		}
+
+		// Writes an answer, queueing what the socket does not take for the selector thread
+		private synchronized void send(ByteBuffer answer) throws IOException {
+			if (closed)
+				throw new ClosedChannelException();
+			if (streaming && channel.isBlocking()) {
+				while (answer.hasRemaining())
+					channel.write(answer);
+				return;
+			}
+
+			if (output.isEmpty())
+				channel.write(answer);
+			if (answer.hasRemaining()) {
+				ByteBuffer copy = ByteBuffer.allocate(answer.remaining()); // Frame reuses its buffer
+				copy.put(answer).flip();
+				output.add(copy);
+				outputBytes += copy.remaining();
+				interest();
+			}
+		}
+
+		// Writes waiting answers once the socket takes more, on the selector thread
+		synchronized void flush() throws IOException {
+			while (!output.isEmpty()) {
+				ByteBuffer answer = output.peek();
+				outputBytes -= channel.write(answer);
+				if (answer.hasRemaining())
+					break;
+				output.poll();
+			}
+			interest();
+			closeIfDone();
+		}
+
+		private synchronized void end() {
+			ended = true;
+			interest();
+			closeIfDone();
+		}
+
+		/*
+		 * Reads while the connection is not backed up, and writes while answers wait.
+		 * A thread other than the selector's wakes it so the change is seen
+		 */
+		private void interest() {
+			if (key == null || !key.isValid())
+				return;
+			boolean reading = !ended && !streaming && frames.size() + running < QUEUED && outputBytes < OUTPUT;
+			int ops = (reading ? SelectionKey.OP_READ : 0) | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+			if (key.interestOps() == ops)
+				return;
+			key.interestOps(ops);
+			if (Thread.currentThread() != loop)
+				loop.selector.wakeup();
+		}
+
+		private void closeIfDone() {
+			if (ended && !scheduled && running == 0 && frames.isEmpty() && output.isEmpty())
+				close();
+		}
+
+		synchronized void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (key != null)
+				key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			Metrics.disconnected();
+		}
+
+	}
+
+}
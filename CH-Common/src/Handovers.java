@@ -0,0 +1,83 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Handovers. Ranges a node has ceded to an entering node and is still streaming to
+ * it. The node no longer owns them and the new node does not yet, so a command for a
+ * key in one of them is neither answered nor forwarded, it runs again once the
+ * handover has ended. Ranges are marked under the range lock for writing and looked
+ * up under it for reading, so a command finds its key either owned or marked.
+ */
+public class Handovers {
+
+	private CopyOnWriteArrayList<Handover> moving;
+
+	public Handovers() {
+		moving = new CopyOnWriteArrayList<Handover>();
+	}
+
+	// Marks ranges as being handed over until end is called with the returned handover
+	public Handover begin(List<TokenRanges.Range> ranges) {
+		Handover handover = new Handover(ranges);
+		moving.add(handover);
+		return handover;
+	}
+
+	// Unmarks the ranges of a handover that finished or failed, running the commands that waited for it
+	public void end(Handover handover) {
+		moving.remove(handover);
+		handover.done.complete(null);
+	}
+
+	// Completes once the range holding the key has been handed over, null if it is not moving
+	public CompletableFuture<Void> of(long key) {
+		for (Handover handover : moving) {
+			for (TokenRanges.Range range : handover.ranges) {
+				if (Ring.inRange(key, range.getStart(), range.getEnd()))
+					return handover.done;
+			}
+		}
+		return null;
+	}
+
+	// Completes once a key of the batch is no longer moving, null if none is
+	public CompletableFuture<Void> of(Batch batch) {
+		if (moving.isEmpty())
+			return null;
+		for (int i = 0; i < batch.size(); i++) {
+			CompletableFuture<Void> done = of(batch.getKey(i));
+			if (done != null)
+				return done;
+		}
+		return null;
+	}
+
+	// Completes once no range overlapping [from, to] is moving any more, null if none is
+	public CompletableFuture<Void> overlapping(long from, long to) {
+		for (Handover handover : moving) {
+			for (TokenRanges.Range range : handover.ranges) {
+				if (Ring.inRange(from, range.getStart(), range.getEnd()) || Ring.inRange(range.getStart(), from, to))
+					return handover.done;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Handover. The ranges ceded to one entering node, and a future that completes
+	 * once they have been streamed to it or the transfer failed.
+	 */
+	public static class Handover {
+
+		private List<TokenRanges.Range> ranges;
+		private CompletableFuture<Void> done;
+
+		private Handover(List<TokenRanges.Range> ranges) {
+			this.ranges = ranges;
+			this.done = new CompletableFuture<Void>();
+		}
+
+	}
+
+}
@@ -0,0 +1,157 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Hot Key Cache. Values of keys other nodes own, kept where commands enter the ring
+ * so repeated lookups of a popular key are answered without leaving that node. Holds
+ * at most capacity keys and evicts them the W-TinyLFU way: a new key goes into a
+ * window of about 1% of the capacity, and a key pushed out of the window only takes
+ * the place of the main area's least recently used key if it is read more often. A
+ * burst of keys read once can't flush the keys that are read all the time.
+ *
+ * How often a key is read comes from a sketch of four rows of counters that stop at
+ * 15. Every 10 x capacity reads the counters are halved, so the sketch follows the
+ * keys that are hot now rather than the ones that were hot once.
+ *
+ * Every key has a version, shared with the keys in the same one of VERSIONS stripes,
+ * that invalidating the key bumps. A lookup reads the version before it asks the
+ * owner and the answer only fills the cache if the version is unchanged, so a value
+ * read before a write can't be cached after the write invalidated it.
+ */
+public class HotKeyCache {
+
+	private static final int VERSIONS = 1024; // Stripes of key versions, a power of two
+	private static final int ROWS = 4;
+	private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+			0xD6E8FEB86659FD93L };
+
+	private int windowSize;
+	private int mainSize;
+	private LinkedHashMap<Long, String> window; // Keys cached most recently, least recently used first
+	private LinkedHashMap<Long, String> main; // Keys admitted from the window, least recently used first
+	private byte[] sketch; // ROWS rows of counters
+	private int rowBits;
+	private int reads; // Reads counted since the sketch was last halved
+	private int resetAt;
+	private long[] versions;
+	private long hits;
+	private long misses;
+
+	public HotKeyCache(int capacity) {
+		this.windowSize = Math.max(1, capacity / 100);
+		this.mainSize = Math.max(1, capacity - windowSize);
+		this.window = new LinkedHashMap<Long, String>(16, 0.75f, true);
+		this.main = new LinkedHashMap<Long, String>(16, 0.75f, true);
+		this.rowBits = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 16) - 1);
+		this.sketch = new byte[ROWS << rowBits];
+		this.resetAt = 10 * Math.max(capacity, 16);
+		this.versions = new long[VERSIONS];
+	}
+
+	// Value of a cached key, null if it is not cached. Counts as a read of the key either way
+	public synchronized String get(long key) {
+		count(key);
+		String value = window.get(key);
+		if (value == null)
+			value = main.get(key);
+		if (value == null)
+			misses++;
+		else
+			hits++;
+		return value;
+	}
+
+	// Version of a key, read before asking its owner and handed back to put
+	public synchronized long version(long key) {
+		return versions[stripe(key)];
+	}
+
+	// Caches a value the owner returned, unless the key was invalidated since version was read
+	public synchronized void put(long key, String value, long version) {
+		if (versions[stripe(key)] != version)
+			return;
+		if (main.containsKey(key)) {
+			main.put(key, value);
+			return;
+		}
+
+		window.put(key, value);
+		if (window.size() <= windowSize)
+			return;
+
+		// Window is full, its oldest key competes with the main area's oldest for a place there
+		Iterator<Map.Entry<Long, String>> oldest = window.entrySet().iterator();
+		Map.Entry<Long, String> candidate = oldest.next();
+		oldest.remove();
+		if (main.size() < mainSize) {
+			main.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+
+		Iterator<Map.Entry<Long, String>> victims = main.entrySet().iterator();
+		long victim = victims.next().getKey();
+		if (frequency(candidate.getKey()) > frequency(victim)) {
+			victims.remove();
+			main.put(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	// Drops a key a write changed
+	public synchronized void invalidate(long key) {
+		versions[stripe(key)]++;
+		window.remove(key);
+		main.remove(key);
+	}
+
+	// Drops every key, used when ranges move between nodes and owners change
+	public synchronized void clear() {
+		for (int i = 0; i < VERSIONS; i++)
+			versions[i]++;
+		window.clear();
+		main.clear();
+	}
+
+	public synchronized int size() {
+		return window.size() + main.size();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	private void count(long key) {
+		for (int row = 0; row < ROWS; row++) {
+			int slot = slot(key, row);
+			if (sketch[slot] < 15)
+				sketch[slot]++;
+		}
+
+		if (++reads == resetAt) {
+			for (int i = 0; i < sketch.length; i++)
+				sketch[i] >>= 1;
+			reads /= 2;
+		}
+	}
+
+	// Times a key was read, as far as the sketch knows, the smallest of its counters
+	private int frequency(long key) {
+		int min = 15;
+		for (int row = 0; row < ROWS; row++)
+			min = Math.min(min, sketch[slot(key, row)]);
+		return min;
+	}
+
+	private int slot(long key, int row) {
+		return (row << rowBits) | (int) ((key * SEEDS[row]) >>> (64 - rowBits));
+	}
+
+	private static int stripe(long key) {
+		return (int) (key ^ (key >>> 32)) & (VERSIONS - 1);
+	}
+
+}
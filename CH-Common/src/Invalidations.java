@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Invalidations. Keys this node owns that the bootstrap may have in its HotKeyCache.
+ * The bootstrap only caches what an owner answered it, so the owner remembers every
+ * key it answered the bootstrap for and, when a write changes one of them, tells the
+ * bootstrap to drop it before the write is answered:
+ *
+ *   INVALIDATE [request ID][origin][count][key]...
+ *
+ * The bootstrap acknowledges with a REPLY, so a lookup after a write never gets the
+ * value from before it. A key stays remembered until the bootstrap has acknowledged
+ * dropping it. Unacknowledged keys are sent again, up to ATTEMPTS tries, after
+ * waiting BACKOFF and then twice as long before each further try. After that the
+ * write fails instead of being answered, and the keys stay remembered, so the next
+ * write to them tells the bootstrap again. At most LIMIT keys are remembered. The one
+ * answered longest ago is invalidated without waiting, to make room for another, and
+ * set aside until the bootstrap acknowledges dropping it, so a write meanwhile still
+ * tells the bootstrap about it.
+ *
+ * The bootstrap is known by the ID it answers this node's enter with (see
+ * setBootstrap). Its own config holds that ID, so it is not assumed to be 0.
+ */
+public class Invalidations {
+
+	public static final int LIMIT = Integer.getInteger("watched", 65536); // Keys remembered as cached by the bootstrap
+	public static final int ATTEMPTS = 3; // Tries before a write that changed watched keys fails
+	public static final long BACKOFF = 100; // Milliseconds before the second try, doubled for every one after
+
+	private RingNode self;
+	private volatile RingNode bootstrap; // Null until this node has entered the ring
+	private ConnectionPool pool;
+	private PendingRequests pending;
+	private LinkedHashMap<Long, Long> watched; // Stamp of the lookup that last watched each key, least recently answered first
+	private HashMap<Long, Long> evicted; // Keys pushed out of watched that the bootstrap has not acknowledged dropping
+	private long stamps;
+
+	public Invalidations(RingNode self, ConnectionPool pool, PendingRequests pending) {
+		this.self = self;
+		this.pool = pool;
+		this.pending = pending;
+		this.watched = new LinkedHashMap<Long, Long>(16, 0.75f, true);
+		this.evicted = new HashMap<Long, Long>();
+	}
+
+	// Sets the bootstrap invalidations go to, its address and the ID it answered an enter with
+	public void setBootstrap(RingNode bootstrap) {
+		this.bootstrap = bootstrap;
+	}
+
+	// Checks if a command came from the bootstrap, which caches what it is answered
+	public boolean isBootstrap(RingNode origin) {
+		RingNode known = bootstrap;
+		return known != null && origin.getID() == known.getID();
+	}
+
+	/*
+	 * Remembers a key a lookup from the bootstrap is about to be answered for. Called
+	 * before the value is read, so a write either comes before the read or sees the key
+	 */
+	public void watch(long key) {
+		Map<Long, Long> dropped = new HashMap<Long, Long>();
+		synchronized (this) {
+			watched.put(key, ++stamps);
+			evicted.remove(key); // Watched again, writes find it there
+			if (watched.size() <= LIMIT)
+				return;
+			Iterator<Map.Entry<Long, Long>> oldest = watched.entrySet().iterator();
+			Map.Entry<Long, Long> entry = oldest.next();
+			dropped.put(entry.getKey(), entry.getValue());
+			evicted.put(entry.getKey(), entry.getValue());
+			oldest.remove();
+		}
+		invalidate(dropped, 1).exceptionally(e -> {
+			System.out.println("Bootstrap did not drop a key that was no longer watched");
+			return null;
+		});
+	}
+
+	/*
+	 * Tells the bootstrap that writes changed keys, once they are applied. The future
+	 * completes when it has dropped the ones it may cache, straight away if it caches
+	 * none of them. It fails if the bootstrap did not acknowledge any of ATTEMPTS tries
+	 */
+	public CompletableFuture<Void> changed(Collection<Long> keys) {
+		Map<Long, Long> cached = new HashMap<Long, Long>();
+		synchronized (this) {
+			for (Long key : keys) {
+				Long stamp = watched.get(key);
+				if (stamp == null)
+					stamp = evicted.get(key);
+				if (stamp != null)
+					cached.put(key, stamp);
+			}
+		}
+		if (cached.isEmpty())
+			return CompletableFuture.completedFuture(null);
+		return invalidate(cached, 1);
+	}
+
+	public synchronized void clear() {
+		watched.clear();
+		evicted.clear();
+	}
+
+	/*
+	 * Sends keys with the stamps they were watched with until the bootstrap acknowledges,
+	 * then stops watching the ones no lookup watched again in the meantime
+	 */
+	private CompletableFuture<Void> invalidate(Map<Long, Long> keys, int attempt) {
+		CompletableFuture<Void> acknowledged = send(new ArrayList<Long>(keys.keySet())).thenAccept(reply -> {
+			synchronized (this) {
+				keys.forEach(watched::remove);
+				keys.forEach(evicted::remove);
+			}
+		});
+		if (attempt == ATTEMPTS)
+			return acknowledged;
+
+		return acknowledged.exceptionallyComposeAsync(e -> invalidate(keys, attempt + 1),
+				CompletableFuture.delayedExecutor(BACKOFF << (attempt - 1), TimeUnit.MILLISECONDS));
+	}
+
+	private CompletableFuture<Reply> send(List<Long> keys) {
+		int requestID = pending.nextID();
+		CompletableFuture<Reply> reply = pending.open(requestID);
+
+		RingNode bootstrap = this.bootstrap;
+		try {
+			pool.send(bootstrap.getIP(), bootstrap.getPort(), frame -> {
+				frame.begin(Opcode.INVALIDATE).putVarInt(requestID).putNode(self);
+				frame.putVarInt(keys.size());
+				for (long key : keys)
+					frame.putLong(key);
+			});
+		} catch (IOException e) {
+			pending.fail(requestID, e);
+		}
+		return reply;
+	}
+
+}
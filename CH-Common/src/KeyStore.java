@@ -0,0 +1,75 @@
+/*
+ * Key Store. The key-value pairs a server holds for its range, kept sorted by key.
+ * Values go in as strings but a store may keep them as UTF-8 bytes, which is how
+ * they are handed to visitors so a range can be written to a frame without
+ * decoding. Keys are positions on the ring (see Ring). A range [from, to] runs
+ * clockwise, so when from is after to it wraps past Long.MAX_VALUE to
+ * Long.MIN_VALUE and is visited in that order. Every method is safe to call from
+ * several threads at once.
+ */
+public interface KeyStore {
+
+	int BUCKETS = 16; // Parts of the ring keys are counted in, one per leading hex digit
+
+	// Receives one pair of a range, the value is length bytes of UTF-8 starting at offset
+	interface Visitor {
+		void visit(long key, byte[] utf8, int offset, int length);
+	}
+
+	String get(long key);
+
+	void put(long key, String value);
+
+	// Stores a value that is already UTF-8, copying the bytes
+	void putBytes(long key, byte[] utf8, int offset, int length);
+
+	// Removes a key and returns its value, null if it was not stored
+	String remove(long key);
+
+	int size();
+
+	// Number of keys in [from, to]
+	int count(long from, long to);
+
+	// UTF-8 bytes of every value, kept up to date as pairs change so it is read at once
+	long valueBytes();
+
+	// Keys in each of the BUCKETS parts of the ring, kept up to date as pairs change
+	long[] buckets();
+
+	// Visits the keys in [from, to] in ring order
+	default void forEach(long from, long to, Visitor visitor) {
+		forEach(from, to, Integer.MAX_VALUE, visitor);
+	}
+
+	// Visits at most limit keys in [from, to] in ring order and returns how many it visited
+	int forEach(long from, long to, int limit, Visitor visitor);
+
+	// Removes the keys in [from, to] in place and returns how many there were
+	int removeRange(long from, long to);
+
+	void clear();
+
+	// Stores every pair of another store. A store may build itself from the sorted pairs in one pass
+	default void putAll(KeyStore sorted) {
+		sorted.forEach(Long.MIN_VALUE, Long.MAX_VALUE, this::putBytes);
+	}
+
+	// Part of the ring a key is counted in
+	static int bucket(long key) {
+		return (int) (key >>> 60);
+	}
+
+	/*
+	 * Creates the store named by type: "chunked" for sorted primitive arrays with
+	 * values in byte arenas, or "skiplist" for a ConcurrentSkipListMap of boxed keys
+	 */
+	static KeyStore create(String type) {
+		if (type.equalsIgnoreCase("skiplist"))
+			return new SkipListKeyStore();
+		if (type.equalsIgnoreCase("chunked"))
+			return new ChunkedKeyStore();
+		throw new IllegalArgumentException("Unknown key store " + type);
+	}
+
+}
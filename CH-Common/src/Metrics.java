@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Metrics. Counts and times what the server in this JVM does:
+ *
+ *   received.COMMAND.*   frames handled by recvCommand, by opcode
+ *   typed.COMMAND.*      commands typed into the server, timed until they finished
+ *   visited.N            commands answered here that passed through N servers
+ *   connections.in       connections other servers and clients have open to this one
+ *   migrated.*_bytes     key range chunks sent and received on enter, exit and import
+ *
+ * Every command has a count, an error count, and a latency histogram reported as
+ * microseconds at p50, p99, p99.9 and max. Gauges such as the number of keys stored
+ * are read when the metrics are. Recording only updates slots of fixed atomic
+ * arrays, so it never locks or allocates. Latencies go in log-linear buckets, eight
+ * to every power of two, so a percentile is within an eighth of the true value.
+ *
+ * The metrics are an MBean, chash:type=Metrics,server=ID, for jconsole and other JMX
+ * clients, and with "-Dmetrics=PORT" are also served as "name value" lines at
+ * http://127.0.0.1:PORT/metrics.
+ */
+public final class Metrics {
+
+	public static final int HTTP_PORT = Integer.getInteger("metrics", 0); // Port of the HTTP endpoint, none if 0
+
+	private static final int OPCODES = 32; // Opcodes fit below this
+	private static final int RECEIVED = 0;
+	private static final int TYPED = OPCODES;
+	private static final int SUB_BUCKETS = 8; // Buckets for every power of two, a power of two itself
+	private static final int SUB_BITS = 3;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS; // Enough for any positive long
+	private static final int MAX_VISITED = 64; // Longer routes are counted with this many
+
+	private static final AtomicLongArray counts = new AtomicLongArray(2 * OPCODES);
+	private static final AtomicLongArray errors = new AtomicLongArray(2 * OPCODES);
+	private static final AtomicLongArray totals = new AtomicLongArray(2 * OPCODES); // Nanoseconds, for the mean
+	private static final AtomicLongArray maxima = new AtomicLongArray(2 * OPCODES);
+	private static final AtomicLongArray latencies = new AtomicLongArray(2 * OPCODES * BUCKETS);
+	private static final AtomicLongArray visited = new AtomicLongArray(MAX_VISITED + 1);
+	private static final AtomicLong connections = new AtomicLong();
+	private static final AtomicLong sentBytes = new AtomicLong();
+	private static final AtomicLong receivedBytes = new AtomicLong();
+	private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+	private Metrics() {
+	}
+
+	// Registers the MBean and starts the HTTP endpoint if a port was given
+	public static void start(int serverID) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+					new ObjectName("chash:type=Metrics,server=" + serverID));
+		} catch (JMException e) {
+			System.out.println("Metrics are not available over JMX: " + e.getMessage());
+		}
+
+		if (HTTP_PORT == 0)
+			return;
+		try {
+			HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT), 0);
+			http.createContext("/metrics", exchange -> {
+				StringBuilder body = new StringBuilder();
+				for (Map.Entry<String, Long> metric : snapshot().entrySet())
+					body.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+				byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+			});
+			http.start();
+		} catch (IOException e) {
+			System.out.println("Metrics are not served over HTTP: " + e.getMessage());
+		}
+	}
+
+	// A frame with the given opcode was handled in the given nanoseconds
+	public static void received(byte opcode, long nanos, boolean failed) {
+		record(RECEIVED + (opcode & (OPCODES - 1)), nanos, failed);
+	}
+
+	// A typed command, named like the opcode it sends, finished in the given nanoseconds
+	public static void typed(byte opcode, long nanos, boolean failed) {
+		record(TYPED + (opcode & (OPCODES - 1)), nanos, failed);
+	}
+
+	// A command answered here passed through the given number of servers, this one included
+	public static void visited(int servers) {
+		visited.incrementAndGet(Math.max(0, Math.min(servers, MAX_VISITED)));
+	}
+
+	public static void connected() {
+		connections.incrementAndGet();
+	}
+
+	public static void disconnected() {
+		connections.decrementAndGet();
+	}
+
+	// Payload bytes of a key range chunk sent to or received from another server
+	public static void migrated(boolean sent, int bytes) {
+		(sent ? sentBytes : receivedBytes).addAndGet(bytes);
+	}
+
+	// Adds a value read whenever the metrics are, such as the number of keys stored
+	public static void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	// Every metric by name, in name order
+	public static TreeMap<String, Long> snapshot() {
+		TreeMap<String, Long> metrics = new TreeMap<String, Long>();
+		for (int slot = 0; slot < 2 * OPCODES; slot++) {
+			long count = counts.get(slot);
+			if (count == 0 && errors.get(slot) == 0)
+				continue;
+
+			String prefix = (slot < TYPED ? "received." : "typed.") + Opcode.name((byte) (slot % OPCODES)) + ".";
+			metrics.put(prefix + "count", count);
+			metrics.put(prefix + "errors", errors.get(slot));
+			metrics.put(prefix + "mean_us", count == 0 ? 0 : totals.get(slot) / count / 1000);
+			metrics.put(prefix + "p50_us", percentile(slot, count, 0.5) / 1000);
+			metrics.put(prefix + "p99_us", percentile(slot, count, 0.99) / 1000);
+			metrics.put(prefix + "p999_us", percentile(slot, count, 0.999) / 1000);
+			metrics.put(prefix + "max_us", maxima.get(slot) / 1000);
+		}
+
+		for (int servers = 0; servers <= MAX_VISITED; servers++) {
+			long count = visited.get(servers);
+			if (count > 0)
+				metrics.put(String.format("visited.%02d", servers), count);
+		}
+
+		metrics.put("connections.in", connections.get());
+		metrics.put("migrated.sent_bytes", sentBytes.get());
+		metrics.put("migrated.received_bytes", receivedBytes.get());
+		for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+			metrics.put(gauge.getKey(), gauge.getValue().getAsLong());
+		return metrics;
+	}
+
+	private static void record(int slot, long nanos, boolean failed) {
+		if (failed) {
+			errors.incrementAndGet(slot);
+			return;
+		}
+		counts.incrementAndGet(slot);
+		totals.addAndGet(slot, nanos);
+		latencies.incrementAndGet(slot * BUCKETS + bucket(nanos));
+
+		long max;
+		while ((max = maxima.get(slot)) < nanos && !maxima.compareAndSet(slot, max, nanos)) {
+		}
+	}
+
+	// Bucket of a latency, values below SUB_BUCKETS get one each and every power of two above is split in SUB_BUCKETS
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) Math.max(nanos, 0);
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// Middle of the bucket holding the latency that the given share of a command's latencies are at or below
+	private static long percentile(int slot, long count, double share) {
+		long rank = (long) Math.ceil(share * count);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += latencies.get(slot * BUCKETS + b);
+			if (seen >= Math.max(rank, 1)) {
+				if (b < SUB_BUCKETS)
+					return b;
+				int exponent = b / SUB_BUCKETS + SUB_BITS - 1;
+				long low = (long) (SUB_BUCKETS + b % SUB_BUCKETS) << (exponent - SUB_BITS);
+				return low + (1L << (exponent - SUB_BITS)) / 2;
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * Bean. The metrics as read-only MBean attributes, one for every name in the
+	 * snapshot. Commands that were never seen have no attributes yet.
+	 */
+	private static class Bean implements DynamicMBean {
+
+		public Object getAttribute(String name) throws AttributeNotFoundException {
+			Long value = snapshot().get(name);
+			if (value == null)
+				throw new AttributeNotFoundException(name);
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] names) {
+			TreeMap<String, Long> metrics = snapshot();
+			AttributeList list = new AttributeList();
+			for (String name : names) {
+				if (metrics.containsKey(name))
+					list.add(new Attribute(name, metrics.get(name)));
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String action, Object[] params, String[] signature) {
+			return null;
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			TreeMap<String, Long> metrics = snapshot();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+			int i = 0;
+			for (String name : metrics.keySet())
+				attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+			return new MBeanInfo(Metrics.class.getName(), "Counts and latencies of this server", attributes, null,
+					null, null);
+		}
+
+	}
+
+}
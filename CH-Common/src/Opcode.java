@@ -0,0 +1,125 @@
+/*
+ * Opcode. The one byte command at the start of every frame sent between servers.
+ */
+public final class Opcode {
+
+	public static final byte ENTER = 1; // Node wants to enter, sent to bootstrap and then to every other owner of its tokens
+	public static final byte ENTER_REPLY = 2; // Answering node, ring members and the ranges handed to the entering node
+	public static final byte EXIT = 5; // Node is leaving, hands the ranges before the receiver's tokens over
+	public static final byte JOIN = 6; // Node entered the ring, passed around so finger tables are refreshed
+	public static final byte LEAVE = 7; // Node exited the ring, passed around so finger tables are refreshed
+	public static final byte LOOKUP = 8; // Carries a request ID and the node to reply to
+	public static final byte INSERT = 9; // Carries a request ID and the node to reply to
+	public static final byte DELETE = 10; // Carries a request ID and the node to reply to
+	public static final byte PRINT = 11;
+	public static final byte REPLY = 12; // Result of a lookup, insert or delete, sent back to the node that asked
+	public static final byte MGET = 13; // Batch of keys to look up, passed on until every key has reached its owner
+	public static final byte MPUT = 14; // Batch of pairs to insert, passed on until every key has reached its owner
+	public static final byte MDELETE = 15; // Batch of keys to delete, passed on until every key has reached its owner
+	public static final byte BATCH_REPLY = 16; // Pairs a batch found, inserted or deleted, sent back to the node that asked
+	public static final byte RANGE_CHUNK = 17; // Part of a key range being handed to another node on enter or exit
+	public static final byte RANGE_ACK = 18; // How far into a key range the receiving node has stored
+	public static final byte REPLICATE = 19; // Writes an owner applied, copied to the other nodes keeping the keys
+	public static final byte HEARTBEAT = 20; // Node is alive, sent every interval to the nodes that would take over from it
+	public static final byte IMPORT = 21; // Bulk imported pairs for the receiver's ranges, streamed in chunks after it
+	public static final byte RING = 22; // Client asks for the ring members, answered on the same connection
+	public static final byte RING_REPLY = 23; // Epoch of the sender's member list and the members
+	public static final byte NOT_OWNER = 24; // Command a client sent with an old ring is not the receiver's, carries the current epoch
+	public static final byte INVALIDATE = 25; // Writes changed keys the bootstrap may cache, acknowledged with a reply
+	public static final byte SCAN = 26; // Asks an owner for a page of the pairs in part of a range, answered with a batch reply
+	public static final byte STATS = 27; // Asks a node how many keys and bytes it holds, answered with its stats
+	public static final byte STATS_REPLY = 28; // Key count, value bytes, share of the ring and key spread of the sender
+
+	private Opcode() {
+	}
+
+	public static String name(byte opcode) {
+		switch (opcode) {
+		case ENTER:
+			return "enter";
+		case ENTER_REPLY:
+			return "enter-reply";
+		case EXIT:
+			return "exit";
+		case JOIN:
+			return "join";
+		case LEAVE:
+			return "leave";
+		case LOOKUP:
+			return "lookup";
+		case INSERT:
+			return "insert";
+		case DELETE:
+			return "delete";
+		case PRINT:
+			return "print";
+		case REPLY:
+			return "reply";
+		case MGET:
+			return "mget";
+		case MPUT:
+			return "mput";
+		case MDELETE:
+			return "mdelete";
+		case BATCH_REPLY:
+			return "batch-reply";
+		case RANGE_CHUNK:
+			return "range-chunk";
+		case RANGE_ACK:
+			return "range-ack";
+		case REPLICATE:
+			return "replicate";
+		case HEARTBEAT:
+			return "heartbeat";
+		case IMPORT:
+			return "import";
+		case RING:
+			return "ring";
+		case RING_REPLY:
+			return "ring-reply";
+		case NOT_OWNER:
+			return "not-owner";
+		case INVALIDATE:
+			return "invalidate";
+		case SCAN:
+			return "scan";
+		case STATS:
+			return "stats";
+		case STATS_REPLY:
+			return "stats-reply";
+		default:
+			return "unknown-" + opcode;
+		}
+	}
+
+	/*
+	 * Checks if frames with the opcode must be handled in the order they were sent on a
+	 * connection: changes to the ring and the replicas, and range handovers with their
+	 * chunks. Commands and replies carry request IDs and may be handled in any order
+	 */
+	public static boolean isOrdered(byte opcode) {
+		switch (opcode) {
+		case ENTER:
+		case EXIT:
+		case JOIN:
+		case LEAVE:
+		case REPLICATE:
+		case IMPORT:
+		case RANGE_CHUNK:
+		case RANGE_ACK:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// Opcode a name belongs to, -1 if no opcode has it
+	public static byte of(String name) {
+		for (byte opcode = 1; opcode < 32; opcode++) {
+			if (name(opcode).equals(name))
+				return opcode;
+		}
+		return -1;
+	}
+
+}
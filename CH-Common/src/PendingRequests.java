@@ -0,0 +1,61 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Pending Requests. Requests this node started that have not been answered yet, by
+ * request ID. Each one has a future that completes when its reply arrives, or fails
+ * once the timeout passes, so any number of requests can be in flight at once and
+ * every reply goes to the caller that is waiting for it.
+ */
+public class PendingRequests {
+
+	private AtomicInteger nextID;
+	private ConcurrentHashMap<Integer, CompletableFuture<Reply>> pending;
+	private long timeoutMillis;
+
+	public PendingRequests(long timeoutMillis) {
+		this.nextID = new AtomicInteger();
+		this.pending = new ConcurrentHashMap<Integer, CompletableFuture<Reply>>();
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public int nextID() {
+		return nextID.incrementAndGet();
+	}
+
+	// Registers a request, the returned future completes with its reply or times out
+	public CompletableFuture<Reply> open(int requestID) {
+		CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+		pending.put(requestID, future);
+
+		// Drop the request from the table however it ends
+		future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((reply, e) -> pending.remove(requestID, future));
+		return future;
+	}
+
+	// Hands a reply to the request waiting for it. Returns false if it already timed out
+	public boolean complete(Reply reply) {
+		CompletableFuture<Reply> future = pending.remove(reply.getRequestID());
+		return future != null && future.complete(reply);
+	}
+
+	// Fails a request that could not be sent
+	public void fail(int requestID, Throwable cause) {
+		CompletableFuture<Reply> future = pending.remove(requestID);
+		if (future != null)
+			future.completeExceptionally(cause);
+	}
+
+	// Fails every request still waiting, used when the connection their replies come on is gone
+	public void failAll(Throwable cause) {
+		for (Integer requestID : pending.keySet())
+			fail(requestID, cause);
+	}
+
+	public int size() {
+		return pending.size();
+	}
+
+}
@@ -0,0 +1,209 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Pipeline. One long-lived connection to a node that any number of commands are in
+ * flight on at once. A command's request ID is its stream ID, and its origin has
+ * port RingNode.PIPELINED, which tells the node to answer on this connection instead
+ * of at a port of the sender's. The node answers each command once its owner has, so
+ * answers come back in the order the owners reply rather than the order the commands
+ * went out, and are matched to their commands by ID. At most WINDOW commands are in
+ * flight. Commands sent while the window is full wait in a queue, and a thread of
+ * the pipeline's own writes them as answers free the window, so send never blocks
+ * its caller. Once QUEUE commands wait, send fails straight away instead.
+ *
+ * A broken connection fails every command in flight on it or waiting, and the
+ * pipeline is closed. Commands that get no answer time out like any other request,
+ * counting the time they waited, and one that times out while waiting is not sent.
+ */
+public class Pipeline {
+
+	public static final int WINDOW = Integer.getInteger("pipelineWindow", 1024); // Commands in flight on one connection
+	public static final int QUEUE = Integer.getInteger("pipelineQueue", 16384); // Commands waiting for the window
+
+	private Socket socket;
+	private OutputStream out;
+	private Frame frame; // Written under the lock, one command at a time
+	private ReentrantLock lock; // Not a monitor, so a virtual thread writing a command does not pin its carrier
+	private RingNode origin;
+	private PendingRequests pending;
+	private ReentrantLock windowLock; // Guards free and waiting, never held while writing
+	private Condition opened; // Signalled when the window has room and commands wait
+	private int free; // Commands that can still be sent before the window is full
+	private ArrayDeque<Command> waiting; // Sent while the window was full, oldest first
+	private volatile boolean closed;
+
+	// Command that was sent, with the request ID its answer will carry
+	private static class Command {
+		private byte opcode;
+		private ConnectionPool.Message body;
+		private int requestID;
+		private CompletableFuture<Reply> reply;
+
+		Command(byte opcode, ConnectionPool.Message body, int requestID, CompletableFuture<Reply> reply) {
+			this.opcode = opcode;
+			this.body = body;
+			this.requestID = requestID;
+			this.reply = reply;
+		}
+	}
+
+	public Pipeline(InetAddress ip, int port, int clientID, long timeoutMillis) throws IOException {
+		this.socket = ConnectionPool.connect(ip, port);
+		this.out = socket.getOutputStream();
+		this.frame = new Frame();
+		this.lock = new ReentrantLock();
+		this.origin = new RingNode(clientID, RingNode.PIPELINED, socket.getLocalAddress());
+		this.pending = new PendingRequests(timeoutMillis);
+		this.windowLock = new ReentrantLock();
+		this.opened = windowLock.newCondition();
+		this.free = WINDOW;
+		this.waiting = new ArrayDeque<Command>();
+
+		Thread reader = new Thread(this::receive, "pipeline-" + port);
+		reader.setDaemon(true);
+		reader.start();
+		Thread sender = new Thread(this::sendWaiting, "pipeline-send-" + port);
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/*
+	 * Sends a command, body writing what follows the request ID and origin, or queues
+	 * it if the window is full. The future completes with the answer, or fails if the
+	 * connection breaks first or QUEUE commands are waiting already
+	 */
+	public CompletableFuture<Reply> send(byte opcode, ConnectionPool.Message body) {
+		int requestID = pending.nextID();
+		CompletableFuture<Reply> reply = pending.open(requestID);
+		Command command = new Command(opcode, body, requestID, reply);
+
+		windowLock.lock();
+		try {
+			if (!closed && (free == 0 || !waiting.isEmpty())) {
+				if (waiting.size() < QUEUE)
+					waiting.add(command);
+				else
+					pending.fail(requestID, new IOException(
+							"Pipeline to " + socket.getRemoteSocketAddress() + " has " + QUEUE + " commands waiting"));
+				return reply;
+			}
+			free--; // Closed pipeline fails the command as it is written, which gives this back
+		} finally {
+			windowLock.unlock();
+		}
+		write(command);
+		return reply;
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	// Commands not answered yet, sent or waiting for the window
+	public int inFlight() {
+		return pending.size();
+	}
+
+	// Writes a command that has a place in the window, which it gives up once answered
+	private void write(Command command) {
+		command.reply.whenComplete((answer, e) -> release());
+		if (command.reply.isDone())
+			return; // Timed out while waiting
+
+		lock.lock();
+		try {
+			if (closed)
+				throw new IOException("Pipeline to " + socket.getRemoteSocketAddress() + " is closed");
+			frame.begin(command.opcode).putVarInt(command.requestID).putNode(origin);
+			command.body.write(frame);
+			frame.writeTo(out);
+		} catch (IOException e) {
+			pending.fail(command.requestID, e);
+			close(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Gives back the place of an answered command, waking the sender if commands wait for it
+	private void release() {
+		windowLock.lock();
+		try {
+			free++;
+			if (!waiting.isEmpty())
+				opened.signal();
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	// Writes waiting commands as the window frees, until the pipeline is closed
+	private void sendWaiting() {
+		while (true) {
+			Command command;
+			windowLock.lock();
+			try {
+				while (!closed && (free == 0 || waiting.isEmpty()))
+					opened.awaitUninterruptibly();
+				if (closed)
+					return;
+				command = waiting.poll();
+				free--;
+			} finally {
+				windowLock.unlock();
+			}
+			write(command);
+		}
+	}
+
+	public void close() {
+		close(new IOException("Pipeline closed"));
+	}
+
+	private void close(IOException cause) {
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		windowLock.lock();
+		try {
+			waiting.clear();
+			opened.signal();
+		} finally {
+			windowLock.unlock();
+		}
+		pending.failAll(cause);
+	}
+
+	// Hands every answer to the command waiting for it, in whatever order they come
+	private void receive() {
+		Frame answer = new Frame();
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			while (answer.readFrom(in)) {
+				if (answer.getOpcode() == Opcode.REPLY)
+					pending.complete(Reply.read(answer));
+				else if (answer.getOpcode() == Opcode.BATCH_REPLY)
+					pending.complete(Reply.readBatch(answer));
+				else if (answer.getOpcode() == Opcode.STATS_REPLY)
+					pending.complete(Reply.readStats(answer));
+				else if (answer.getOpcode() == Opcode.NOT_OWNER)
+					pending.fail(answer.getVarInt(), new IOException("Command was turned away by its owner"));
+			}
+			close(new IOException("Connection closed by " + socket.getRemoteSocketAddress()));
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/*
+ * Range Scan. A cursor over the pairs in [from, to] going clockwise around the ring,
+ * at most limit of them, read from the nodes that own them. The range is split at
+ * every token into parts that each have one owner, and each part is read in pages
+ * of at most PAGE pairs with a SCAN frame answered by a batch reply:
+ *
+ *   SCAN [request ID][origin][from][to][limit]
+ *
+ * Up to PARALLEL pages are in flight at once, to different owners or further into
+ * the same part, and the next ones are only asked for as the caller takes pairs, so
+ * a slow reader holds back the scan instead of the nodes filling memory with pages
+ * nobody reads. Pairs come out in ring order, which is key order for a range that
+ * does not wrap. An owner that no longer owns a part answers NOT_OWNER, and the part
+ * is split again by the ring as it is now. After REFRESHES of those the scan fails.
+ *
+ * cursor() is the position the scan got to, so a scan stopped at its limit can be
+ * picked up later by scanning from there.
+ */
+public class RangeScan implements Iterator<Map.Entry<Long, String>> {
+
+	public static final int PAGE = Integer.getInteger("scanPage", 1000); // Pairs an owner sends for one SCAN
+	public static final int PARALLEL = Integer.getInteger("scanParallel", 4); // Pages asked for ahead of the reader
+	private static final int REFRESHES = 3; // Times parts may be split again after an owner turned one away
+
+	// Where the pairs of a scan come from
+	public interface Source {
+
+		/*
+		 * Owners of [from, to] in ring order. After the first split, refused is the owner
+		 * that turned the range away or couldn't be reached, and the ring should be
+		 * brought up to date first
+		 */
+		List<Part> split(long from, long to, RingNode refused) throws IOException;
+
+		// Asks the owner for at most limit pairs of [from, to], answered with a batch reply
+		CompletableFuture<Reply> page(RingNode owner, long from, long to, int limit);
+
+	}
+
+	private Source source;
+	private long to;
+	private int left; // Pairs the caller may still take
+	private long cursor; // Position after the last pair taken
+	private boolean done;
+	private ArrayDeque<Part> parts; // Parts not asked for yet, in ring order
+	private ArrayDeque<Page> pages; // Pages asked for, in ring order
+	private Iterator<Map.Entry<Long, String>> current; // Pairs of the page being read
+	private int refreshes;
+
+	public RangeScan(Source source, long from, long to, int limit) throws IOException {
+		this.source = source;
+		this.to = to;
+		this.left = limit;
+		this.cursor = from;
+		this.parts = new ArrayDeque<Part>(source.split(from, to, null));
+		this.pages = new ArrayDeque<Page>();
+		this.current = new ArrayList<Map.Entry<Long, String>>().iterator();
+	}
+
+	/*
+	 * Splits [from, to] at the tokens of a ring, each part going to the node at the
+	 * token it ends at. A part that would wrap past the end of the ring is split
+	 * there too, so the pairs of every part are in key order
+	 */
+	public static List<Part> split(NavigableMap<Long, RingNode> tokens, long from, long to) {
+		List<Part> parts = new ArrayList<Part>();
+		long start = from;
+		while (true) {
+			Map.Entry<Long, RingNode> owner = tokens.ceilingEntry(start);
+			if (owner == null)
+				owner = tokens.firstEntry();
+
+			long end = Ring.inRange(to, start, owner.getKey()) ? to : owner.getKey();
+			if (start > end) {
+				parts.add(new Part(start, Long.MAX_VALUE, owner.getValue()));
+				parts.add(new Part(Long.MIN_VALUE, end, owner.getValue()));
+			} else {
+				parts.add(new Part(start, end, owner.getValue()));
+			}
+			if (end == to)
+				return parts;
+			start = end + 1;
+		}
+	}
+
+	// Reads at most limit pairs of [from, to] from a store, for the owner answering a SCAN
+	public static TreeMap<Long, String> read(KeyStore store, long from, long to, int limit) {
+		TreeMap<Long, String> pairs = new TreeMap<Long, String>();
+		store.forEach(from, to, limit, (key, utf8, offset, length) -> pairs.put(key,
+				new String(utf8, offset, length, StandardCharsets.UTF_8)));
+		return pairs;
+	}
+
+	public boolean hasNext() {
+		if (left == 0)
+			return false;
+		while (!current.hasNext()) {
+			if (done)
+				return false;
+			if (!advance()) {
+				done = true;
+				cursor = to + 1;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public Map.Entry<Long, String> next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Map.Entry<Long, String> pair = current.next();
+		left--;
+		cursor = pair.getKey() + 1;
+		return pair;
+	}
+
+	// Position the scan continues from, past the end of the range once it has read all of it
+	public long cursor() {
+		return cursor;
+	}
+
+	/*
+	 * Moves on to the next page, waiting for it if it hasn't arrived. Returns false
+	 * once every part has been read
+	 */
+	private boolean advance() {
+		fill();
+		Page page = pages.pollFirst();
+		if (page == null)
+			return false;
+
+		Reply reply;
+		try {
+			reply = page.reply.join();
+		} catch (CompletionException e) {
+			// Owner turned the part away or is gone, split what is left of it by the ring as it is now
+			if (++refreshes > REFRESHES)
+				throw new UncheckedIOException(new IOException("Scan failed at " + Ring.format(page.from), e.getCause()));
+			List<Part> again;
+			try {
+				again = new ArrayList<Part>(source.split(page.from, page.to, page.owner));
+			} catch (IOException e1) {
+				throw new UncheckedIOException(e1);
+			}
+			for (Page later : pages)
+				again.add(later.asPart()); // Asked for again once the parts before them are
+			pages.clear();
+			for (int i = again.size() - 1; i >= 0; i--)
+				parts.addFirst(again.get(i));
+			return true;
+		}
+
+		Map<Long, String> pairs = reply.getPairs();
+		if (pairs.size() == page.limit) {
+			// Page is full, the rest of the part comes next
+			long last = page.from;
+			for (long key : pairs.keySet())
+				last = key;
+			if (last != page.to)
+				pages.addFirst(request(new Part(last + 1, page.to, page.owner)));
+		}
+		current = pairs.entrySet().iterator();
+		return true;
+	}
+
+	// Asks for pages of the next parts until PARALLEL are in flight
+	private void fill() {
+		while (pages.size() < PARALLEL && !parts.isEmpty())
+			pages.addLast(request(parts.pollFirst()));
+	}
+
+	private Page request(Part part) {
+		int limit = Math.min(PAGE, left);
+		return new Page(part, limit, source.page(part.owner, part.from, part.to, limit));
+	}
+
+	/*
+	 * Part. Keys [from, to] that one node owns.
+	 */
+	public static class Part {
+
+		private long from;
+		private long to;
+		private RingNode owner;
+
+		public Part(long from, long to, RingNode owner) {
+			this.from = from;
+			this.to = to;
+			this.owner = owner;
+		}
+
+		public String toString() {
+			return "[" + Ring.format(from) + "," + Ring.format(to) + "] at " + owner.getID();
+		}
+
+	}
+
+	/*
+	 * Page. A SCAN sent for a part, waiting for its pairs.
+	 */
+	private static class Page {
+
+		private long from;
+		private long to;
+		private RingNode owner;
+		private int limit;
+		private CompletableFuture<Reply> reply;
+
+		Page(Part part, int limit, CompletableFuture<Reply> reply) {
+			this.from = part.from;
+			this.to = part.to;
+			this.owner = part.owner;
+			this.limit = limit;
+			this.reply = reply;
+		}
+
+		Part asPart() {
+			return new Part(from, to, owner);
+		}
+
+	}
+
+}
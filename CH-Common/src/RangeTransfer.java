@@ -0,0 +1,376 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+ * Range Transfer. Streams a key range to another node when a node enters or exits,
+ * in chunks of at most CHUNK_PAIRS pairs:
+ *
+ *   RANGE_CHUNK [transfer ID][cursor][key, value]...[end: 8 bytes][last][CRC32: 4 bytes]
+ *   RANGE_ACK   [transfer ID][status][cursor]
+ *
+ * The header that starts a transfer carries its ID and first key, and a chunk holds
+ * every pair in [cursor, end]. The range runs clockwise and may wrap, so keys are
+ * ordered by their distance from the first key rather than by value. The receiver
+ * stores a chunk only if its checksum matches and it starts at or before the
+ * receiver's cursor, then answers with the cursor it has reached. A chunk's cursor
+ * is its place in the stream, so the pairs of a resent chunk before the receiver's
+ * cursor are known to be duplicates: they are stored again, the sender's value being
+ * at least as new, but not counted twice. The sender keeps at most WINDOW chunks
+ * unanswered, trims every acknowledged chunk from its store in place, and goes back
+ * to the last acknowledged cursor after a rejected chunk or, on a new connection,
+ * after a broken one. Neither side ever holds more than a window of the range in
+ * memory. A store that is in use meanwhile is read under its lock for reading, and
+ * only locked for writing to trim a chunk.
+ */
+public class RangeTransfer {
+
+	public static final int CHUNK_PAIRS = 512; // Most pairs sent in one chunk
+	public static final int WINDOW = 4; // Most chunks sent before waiting for an acknowledgement
+
+	private static final int RETRIES = 3; // New connections tried after the stream breaks
+	private static final int TRAILER = 13; // End, last flag and checksum after a chunk's pairs
+	private static final long TIMEOUT = 30000; // Milliseconds a receiver waits for a transfer to finish
+
+	// Status of a RANGE_ACK
+	private static final int RECEIVING = 0; // Cursor is the first key the receiver still needs
+	private static final int FINISHED = 1; // Receiver has the whole range
+	private static final int UNKNOWN = 2; // Receiver is not expecting the transfer, the sender gives up
+
+	private ConcurrentHashMap<Integer, Incoming> incoming; // Transfers this node is receiving, by ID
+
+	public RangeTransfer() {
+		incoming = new ConcurrentHashMap<Integer, Incoming>();
+	}
+
+	public static int newID() {
+		return ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE;
+	}
+
+	/*
+	 * Streams the pairs of the store in [from, to] over a connection the transfer's
+	 * header has already been written to, trimming them from the store as they are
+	 * acknowledged. If the connection breaks, reconnects to the receiver at ip:port and
+	 * resumes from the last acknowledged key. Lock guards the store, null if nothing
+	 * else uses it during the transfer. Returns the number of pairs moved
+	 */
+	public static int send(KeyStore store, ReadWriteLock lock, long from, long to, int transferID, InputStream in,
+			OutputStream out, InetAddress ip, int port) throws IOException {
+		Sender sender = new Sender(store, lock, from, to, transferID);
+
+		for (int attempt = 0;; attempt++) {
+			Socket retry = null;
+			try {
+				if (attempt > 0) {
+					retry = ConnectionPool.connect(ip, port);
+					in = retry.getInputStream();
+					out = retry.getOutputStream();
+				}
+				sender.stream(in, out);
+				return sender.moved;
+			} catch (IOException e) {
+				if (attempt == RETRIES)
+					throw e;
+			} finally {
+				if (retry != null)
+					retry.close();
+			}
+		}
+	}
+
+	/*
+	 * Writes a header frame followed by the ID, first and last key of every range, then
+	 * streams the ranges one after another over the same connection. Returns the number
+	 * of pairs moved
+	 */
+	public static int sendRanges(KeyStore store, ReadWriteLock lock, List<TokenRanges.Range> ranges, Frame header,
+			InputStream in, OutputStream out, InetAddress ip, int port) throws IOException {
+		int[] transferIDs = new int[ranges.size()];
+
+		header.putVarInt(ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			transferIDs[i] = newID();
+			header.putVarInt(transferIDs[i]).putLong(ranges.get(i).getStart()).putLong(ranges.get(i).getEnd());
+		}
+		header.writeTo(out);
+
+		int moved = 0;
+		for (int i = 0; i < ranges.size(); i++) {
+			TokenRanges.Range range = ranges.get(i);
+			moved += send(store, lock, range.getStart(), range.getEnd(), transferIDs[i], in, out, ip, port);
+		}
+		return moved;
+	}
+
+	/*
+	 * Reads the ranges listed by sendRanges and starts receiving each into the store.
+	 * Taken runs with each range once all of its pairs have arrived. The future
+	 * completes with the number of pairs received once every range has
+	 */
+	public CompletableFuture<Integer> expectRanges(Frame frame, KeyStore into, Consumer<TokenRanges.Range> taken)
+			throws IOException {
+		int count = frame.getVarInt();
+		List<CompletableFuture<Integer>> received = new ArrayList<CompletableFuture<Integer>>();
+
+		for (int i = 0; i < count; i++) {
+			int transferID = frame.getVarInt();
+			TokenRanges.Range range = new TokenRanges.Range(frame.getLong(), frame.getLong());
+			received.add(expect(transferID, range.getStart(), into).thenApply(pairs -> {
+				taken.accept(range);
+				return pairs;
+			}));
+		}
+
+		return CompletableFuture.allOf(received.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			int pairs = 0;
+			for (CompletableFuture<Integer> range : received)
+				pairs += range.join();
+			return pairs;
+		});
+	}
+
+	/*
+	 * Starts receiving a transfer of the range starting at from into the store. The
+	 * future completes with the number of pairs received. A finished transfer lets go
+	 * of its store, and only that it finished is kept for TIMEOUT, so a last chunk
+	 * resent after its acknowledgement was lost is still acknowledged
+	 */
+	public CompletableFuture<Integer> expect(int transferID, long from, KeyStore into) {
+		Incoming transfer = new Incoming(from, into);
+		incoming.put(transferID, transfer);
+
+		transfer.done.orTimeout(TIMEOUT, TimeUnit.MILLISECONDS).whenComplete((count, e) -> {
+			if (e != null) {
+				incoming.remove(transferID, transfer);
+				return;
+			}
+			Incoming finished = transfer.finished();
+			if (incoming.replace(transferID, transfer, finished))
+				CompletableFuture.delayedExecutor(TIMEOUT, TimeUnit.MILLISECONDS)
+						.execute(() -> incoming.remove(transferID, finished));
+		});
+		return transfer.done;
+	}
+
+	// Stores a RANGE_CHUNK frame if it is intact and in order, and acknowledges it on out
+	public void receive(Frame frame, OutputStream out) throws IOException {
+		Metrics.migrated(false, frame.remaining());
+		int transferID = frame.getVarInt();
+		long cursor = frame.getLong();
+		int pairsStart = frame.position();
+
+		// Check the trailer first so nothing from a damaged chunk is stored
+		int trailer = frame.position() + frame.remaining() - TRAILER;
+		frame.position(trailer);
+		long end = frame.getLong();
+		boolean last = frame.getBoolean();
+		int expected = frame.checksum();
+		boolean intact = frame.getFixedInt() == expected;
+
+		Incoming transfer = incoming.get(transferID);
+		if (transfer == null) {
+			ack(out, transferID, UNKNOWN, cursor); // Unknown or abandoned transfer
+			return;
+		}
+
+		boolean finished = false;
+		int status;
+		long reached;
+		synchronized (transfer) {
+			if (intact && !transfer.finished && transfer.compare(cursor, transfer.cursor) <= 0) {
+				// A resent chunk overlaps what was stored, its pairs before the cursor are counted once
+				frame.position(pairsStart);
+				while (frame.position() < trailer) {
+					int pair = frame.position();
+					boolean received = transfer.compare(frame.getLong(), transfer.cursor) < 0;
+					frame.position(pair);
+					frame.getPairInto(transfer.store);
+					if (!received)
+						transfer.count++;
+				}
+				if (transfer.compare(end + 1, transfer.cursor) > 0)
+					transfer.cursor = end + 1;
+				transfer.finished = finished = last;
+			}
+			status = transfer.finished ? FINISHED : RECEIVING;
+			reached = transfer.cursor;
+		}
+
+		ack(out, transferID, status, reached);
+
+		// Complete after acknowledging so the sender isn't kept waiting on whatever runs next
+		if (finished)
+			transfer.done.complete(transfer.count);
+	}
+
+	private static void ack(OutputStream out, int transferID, int status, long cursor) throws IOException {
+		Frame frame = new Frame();
+		frame.begin(Opcode.RANGE_ACK).putVarInt(transferID).putVarInt(status).putLong(cursor);
+		frame.writeTo(out);
+	}
+
+	/*
+	 * Sender. The sending side of one transfer. Acked is the first key the receiver
+	 * has not confirmed, everything before it is already gone from the store.
+	 */
+	private static class Sender {
+
+		private KeyStore store;
+		private ReadWriteLock lock; // Null if the store is the sender's alone
+		private long from;
+		private long to;
+		private int transferID;
+		private long acked;
+		private boolean done; // Receiver confirmed the whole range
+		private int moved;
+		private Frame frame;
+		private Frame ack;
+
+		Sender(KeyStore store, ReadWriteLock lock, long from, long to, int transferID) {
+			this.store = store;
+			this.lock = lock;
+			this.from = from;
+			this.to = to;
+			this.transferID = transferID;
+			this.acked = from;
+			this.frame = new Frame();
+			this.ack = new Frame();
+		}
+
+		// Sends chunks from acked on until the receiver has confirmed the whole range
+		void stream(InputStream in, OutputStream out) throws IOException {
+			long next = acked;
+			int inFlight = 0;
+			boolean lastSent = false;
+			boolean rewinding = false; // A chunk was rejected, wait for the rest of the window before resending
+
+			while (!done) {
+				while (!rewinding && !lastSent && inFlight < WINDOW) {
+					long end = writeChunk(next);
+					frame.writeTo(out);
+					inFlight++;
+					lastSent = end == to;
+					next = end + 1;
+				}
+
+				if (!ack.readFrom(in))
+					throw new EOFException();
+				if (ack.getOpcode() != Opcode.RANGE_ACK || ack.getVarInt() != transferID)
+					throw new IOException("Unexpected " + Opcode.name(ack.getOpcode()) + " during range transfer");
+
+				int status = ack.getVarInt();
+				long cursor = ack.getLong();
+				inFlight--;
+
+				if (status == UNKNOWN)
+					throw new IOException("Range transfer " + transferID + " rejected");
+
+				if (status == FINISHED) {
+					moved += trim(acked, to);
+					done = true;
+				} else if (Long.compareUnsigned(cursor - from, acked - from) > 0) {
+					moved += trim(acked, cursor - 1);
+					acked = cursor;
+				} else {
+					rewinding = true;
+				}
+
+				if (rewinding && inFlight == 0) {
+					next = acked;
+					lastSent = false;
+					rewinding = false;
+				}
+			}
+		}
+
+		// Writes the next chunk starting at cursor and returns the last key it covers
+		private long writeChunk(long cursor) {
+			long[] lastKey = { cursor };
+
+			frame.begin(Opcode.RANGE_CHUNK).putVarInt(transferID).putLong(cursor);
+			if (lock != null)
+				lock.readLock().lock();
+			int count;
+			try {
+				count = store.forEach(cursor, to, CHUNK_PAIRS, (key, utf8, offset, length) -> {
+					frame.putLong(key);
+					frame.putBytes(utf8, offset, length);
+					lastKey[0] = key;
+				});
+			} finally {
+				if (lock != null)
+					lock.readLock().unlock();
+			}
+
+			// A short chunk reaches the end of the range
+			long end = count < CHUNK_PAIRS ? to : lastKey[0];
+			frame.putLong(end);
+			frame.putBoolean(end == to);
+			frame.putFixedInt(frame.checksum());
+			Metrics.migrated(true, frame.position());
+			return end;
+		}
+
+		// Drops the acknowledged pairs in [from, to] from the store, returning how many there were
+		private int trim(long from, long to) {
+			if (lock == null)
+				return store.removeRange(from, to);
+			lock.writeLock().lock();
+			try {
+				return store.removeRange(from, to);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+	}
+
+	/*
+	 * Incoming. The receiving side of one transfer. Cursor is the first key not yet
+	 * received, chunks starting after it are rejected until the missing part is resent.
+	 */
+	private static class Incoming {
+
+		private KeyStore store;
+		private long from;
+		private long cursor;
+		private int count;
+		private boolean finished;
+		private CompletableFuture<Integer> done;
+
+		Incoming(long from, KeyStore store) {
+			this.from = from;
+			this.cursor = from;
+			this.store = store;
+			this.done = new CompletableFuture<Integer>();
+		}
+
+		// Same transfer without its store, only able to acknowledge chunks resent after it finished
+		synchronized Incoming finished() {
+			Incoming finished = new Incoming(from, null);
+			finished.cursor = cursor;
+			finished.count = count;
+			finished.finished = true;
+			finished.done = done;
+			return finished;
+		}
+
+		// Orders two keys of the range by how far clockwise of its first key they are
+		int compare(long a, long b) {
+			return Long.compareUnsigned(a - from, b - from);
+		}
+
+	}
+
+}
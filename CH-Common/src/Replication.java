@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Replication. Every key is kept by its owner and by the next FACTOR - 1 nodes after
+ * it on the ring, its replicas. The owner applies every write first and copies it to
+ * the replicas in a REPLICATE frame:
+ *
+ *   REPLICATE [request ID][owner][put][count][key, value if put]...
+ *
+ * A write is answered once WRITE_QUORUM nodes, the owner included, have it. Writes to
+ * a key are copied under that key's lock and arrive in order on the owner's pooled
+ * connection, so replicas apply them in the order the owner did. Replicas keep their
+ * copies apart from the keys they own, and can answer lookups from them. Whenever a
+ * node enters or leaves, owners copy their ranges to the nodes that became replicas
+ * of them, in REPLICATE frames of at most RangeTransfer.CHUNK_PAIRS pairs.
+ */
+public class Replication {
+
+	public static final int FACTOR = Integer.getInteger("replicas", 3); // Nodes keeping each key, owner included
+	public static final int WRITE_QUORUM = Integer.getInteger("writeQuorum", FACTOR / 2 + 1); // Nodes that must have a write before it is answered
+
+	private static final int STRIPES = 64; // Locks keys are spread over, at most 64 so a set of them fits in a long
+
+	private RingNode self;
+	private FingerTable fingers;
+	private ConnectionPool pool;
+	private PendingRequests pending; // Copies sent out and waiting for the replica to acknowledge them
+	private ReentrantLock[] stripes;
+	private AtomicInteger nextReplica; // Spreads lookups over the replicas of a key in turn
+
+	public Replication(RingNode self, FingerTable fingers, ConnectionPool pool, PendingRequests pending) {
+		this.self = self;
+		this.fingers = fingers;
+		this.pool = pool;
+		this.pending = pending;
+		this.stripes = new ReentrantLock[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new ReentrantLock();
+		this.nextReplica = new AtomicInteger();
+	}
+
+	// Checks if this node is one of the nodes keeping a key, according to its finger table
+	public boolean isReplica(long key) {
+		for (RingNode replica : fingers.replicasOf(key, FACTOR)) {
+			if (replica.getID() == self.getID())
+				return true;
+		}
+		return false;
+	}
+
+	// One of the nodes keeping a key, a different one each time
+	public RingNode pick(long key) {
+		List<RingNode> replicas = fingers.replicasOf(key, FACTOR);
+		return replicas.get((nextReplica.getAndIncrement() & Integer.MAX_VALUE) % replicas.size());
+	}
+
+	// Locks a key against other writes until unlock is called with the returned stripes
+	public long lock(long key) {
+		return lockStripes(1L << stripe(key));
+	}
+
+	// Locks every key of a batch, returning the stripes to unlock
+	public long lock(Batch batch) {
+		long held = 0;
+		for (int i = 0; i < batch.size(); i++)
+			held |= 1L << stripe(batch.getKey(i));
+		return lockStripes(held);
+	}
+
+	public void unlock(long held) {
+		for (int i = 0; i < STRIPES; i++) {
+			if ((held & (1L << i)) != 0)
+				stripes[i].unlock();
+		}
+	}
+
+	/*
+	 * Copies writes this node applied as owner to the other replicas of every key,
+	 * grouped into one frame for each replica. Put stores the pairs, otherwise their
+	 * keys are removed. The caller holds the keys' locks. The future completes once
+	 * every key has reached its quorum, and fails once one no longer can
+	 */
+	public CompletableFuture<Void> replicate(boolean put, Map<Long, String> pairs) {
+		Map<Integer, RingNode> replicas = new TreeMap<Integer, RingNode>();
+		Map<Integer, TreeMap<Long, String>> groups = new TreeMap<Integer, TreeMap<Long, String>>();
+		Map<Long, Quorum> quorums = new TreeMap<Long, Quorum>();
+
+		for (Map.Entry<Long, String> pair : pairs.entrySet()) {
+			List<RingNode> others = fingers.replicasOf(pair.getKey(), FACTOR);
+			others.removeIf(node -> node.getID() == self.getID());
+
+			int needed = Math.min(WRITE_QUORUM, others.size() + 1) - 1;
+			if (needed > 0)
+				quorums.put(pair.getKey(), new Quorum(needed, others.size()));
+
+			for (RingNode replica : others) {
+				replicas.putIfAbsent(replica.getID(), replica);
+				groups.computeIfAbsent(replica.getID(), id -> new TreeMap<Long, String>()).put(pair.getKey(),
+						pair.getValue());
+			}
+		}
+
+		Progress progress = new Progress(quorums.size());
+		if (quorums.isEmpty())
+			progress.done.complete(null);
+
+		for (Map.Entry<Integer, TreeMap<Long, String>> group : groups.entrySet()) {
+			TreeMap<Long, String> copies = group.getValue();
+			send(replicas.get(group.getKey()), put, copies).whenComplete((reply, e) -> {
+				for (Long key : copies.keySet()) {
+					Quorum quorum = quorums.get(key);
+					if (quorum != null)
+						progress.answered(quorum, e);
+				}
+			});
+		}
+		return progress.done;
+	}
+
+	// Applies a REPLICATE frame to this node's copies and acknowledges it to the owner
+	public void apply(Frame frame, KeyStore copies) throws IOException {
+		int requestID = frame.getVarInt();
+		RingNode owner = frame.getNode();
+		boolean put = frame.getBoolean();
+		int count = frame.getVarInt();
+
+		for (int i = 0; i < count; i++) {
+			long key = frame.getLong();
+			if (put)
+				copies.put(key, frame.getString());
+			else
+				copies.remove(key);
+		}
+
+		VisitedNodes visited = new VisitedNodes();
+		visited.add(self.getID());
+		pool.send(owner.getIP(), owner.getPort(),
+				reply -> Reply.write(reply, requestID, true, null, self.getID(), visited));
+	}
+
+	// Replicas of the range of each of this node's tokens, to compare with once the ring changes
+	public Map<Long, List<RingNode>> replicaSets() {
+		Map<Long, List<RingNode>> sets = new TreeMap<Long, List<RingNode>>();
+		for (long token : self.getTokens())
+			sets.put(token, fingers.replicasOf(token, FACTOR));
+		return sets;
+	}
+
+	/*
+	 * Copies the pairs of every range of this node to the nodes that became one of its
+	 * replicas since the sets were taken. The caller holds the range lock for writing,
+	 * so no write to those pairs can overtake the copies
+	 */
+	public void repair(Map<Long, List<RingNode>> before, TokenRanges ranges, KeyStore store) {
+		for (Map.Entry<Long, List<RingNode>> set : before.entrySet()) {
+			TokenRanges.Range range = ranges.get(set.getKey());
+			if (range == null)
+				continue;
+
+			List<RingNode> added = fingers.replicasOf(set.getKey(), FACTOR);
+			added.removeIf(node -> node.getID() == self.getID() || contains(set.getValue(), node));
+			if (!added.isEmpty())
+				copy(store, range.getStart(), range.getEnd(), added);
+		}
+	}
+
+	/*
+	 * Copies every pair of the store in [from, to], a range this node took over from a
+	 * node that is gone, to the other nodes keeping it now. The caller holds the range
+	 * lock for writing
+	 */
+	public void copyTakenOver(KeyStore store, long from, long to, int goneID) {
+		List<RingNode> replicas = fingers.replicasOf(to, FACTOR + 1);
+		replicas.removeIf(node -> node.getID() == goneID);
+		if (replicas.size() > FACTOR)
+			replicas = replicas.subList(0, FACTOR);
+		replicas.removeIf(node -> node.getID() == self.getID());
+		copy(store, from, to, replicas);
+	}
+
+	/*
+	 * Copies every pair of the store in [from, to], a range this node owns, to the
+	 * other nodes keeping it. The caller holds the range lock for writing
+	 */
+	public void copyToReplicas(KeyStore store, long from, long to) {
+		List<RingNode> replicas = fingers.replicasOf(to, FACTOR);
+		replicas.removeIf(node -> node.getID() == self.getID());
+		copy(store, from, to, replicas);
+	}
+
+	private void copy(KeyStore store, long from, long to, List<RingNode> replicas) {
+		List<TreeMap<Long, String>> chunks = new ArrayList<TreeMap<Long, String>>();
+		store.forEach(from, to, (key, utf8, offset, length) -> {
+			if (chunks.isEmpty() || chunks.get(chunks.size() - 1).size() == RangeTransfer.CHUNK_PAIRS)
+				chunks.add(new TreeMap<Long, String>());
+			chunks.get(chunks.size() - 1).put(key, new String(utf8, offset, length, StandardCharsets.UTF_8));
+		});
+
+		for (RingNode replica : replicas) {
+			for (TreeMap<Long, String> chunk : chunks) {
+				send(replica, true, chunk).whenComplete((reply, e) -> {
+					if (e != null)
+						System.out.println("Copies were not acknowledged by node " + replica.getID());
+				});
+			}
+		}
+	}
+
+	private static boolean contains(List<RingNode> nodes, RingNode node) {
+		for (RingNode other : nodes) {
+			if (other.getID() == node.getID())
+				return true;
+		}
+		return false;
+	}
+
+	private CompletableFuture<Reply> send(RingNode replica, boolean put, TreeMap<Long, String> copies) {
+		int requestID = pending.nextID();
+		CompletableFuture<Reply> reply = pending.open(requestID);
+
+		try {
+			pool.send(replica.getIP(), replica.getPort(), frame -> {
+				frame.begin(Opcode.REPLICATE).putVarInt(requestID).putNode(self).putBoolean(put);
+				frame.putVarInt(copies.size());
+				for (Map.Entry<Long, String> copy : copies.entrySet()) {
+					frame.putLong(copy.getKey());
+					if (put)
+						frame.putString(copy.getValue());
+				}
+			});
+		} catch (IOException e) {
+			pending.fail(requestID, e);
+		}
+		return reply;
+	}
+
+	private long lockStripes(long held) {
+		for (int i = 0; i < STRIPES; i++) {
+			if ((held & (1L << i)) != 0)
+				stripes[i].lock();
+		}
+		return held;
+	}
+
+	private static int stripe(long key) {
+		return (int) (key >>> 58); // Keys are hashes, so their top bits are spread evenly
+	}
+
+	/*
+	 * Quorum. Acknowledgements one key still needs from its replicas, and how many of
+	 * its replicas have not answered yet.
+	 */
+	private static class Quorum {
+
+		private int needed;
+		private int waiting;
+
+		Quorum(int needed, int waiting) {
+			this.needed = needed;
+			this.waiting = waiting;
+		}
+
+	}
+
+	/*
+	 * Progress. Keys of one replicate call that have not reached their quorum yet. Done
+	 * completes when the last one does, or fails when one can no longer reach it.
+	 */
+	private static class Progress {
+
+		private int unfinished;
+		private CompletableFuture<Void> done;
+
+		Progress(int unfinished) {
+			this.unfinished = unfinished;
+			this.done = new CompletableFuture<Void>();
+		}
+
+		synchronized void answered(Quorum quorum, Throwable failure) {
+			if (quorum.needed == 0)
+				return;
+
+			quorum.waiting--;
+			if (failure == null && --quorum.needed == 0) {
+				if (--unfinished == 0)
+					done.complete(null);
+			} else if (quorum.waiting < quorum.needed) {
+				done.completeExceptionally(failure);
+			}
+		}
+
+	}
+
+}
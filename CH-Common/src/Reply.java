@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Reply. The result of a lookup, insert or delete, sent by the key's owner back to
+ * the node that started the request. Found is whether the key existed (always true
+ * for an insert), value is only set for a lookup that found its key. A batch reply
+ * carries the pairs its keys found, inserted or deleted instead of a value, and a
+ * stats reply the stats of the node that answered.
+ */
+public class Reply {
+
+	private int requestID;
+	private boolean found;
+	private String value;
+	private int server; // Owner of the key that answered the request
+	private VisitedNodes visited;
+	private Map<Long, String> pairs; // Only set for a batch
+	private RingStats stats; // Only set for stats
+
+	public Reply(int requestID, boolean found, String value, int server, VisitedNodes visited) {
+		this.requestID = requestID;
+		this.found = found;
+		this.value = value;
+		this.server = server;
+		this.visited = visited;
+	}
+
+	public Reply(int requestID, Map<Long, String> pairs, int server, VisitedNodes visited) {
+		this(requestID, !pairs.isEmpty(), null, server, visited);
+		this.pairs = pairs;
+	}
+
+	public Reply(int requestID, RingStats stats) {
+		this(requestID, true, null, stats.getServer(), new VisitedNodes());
+		this.stats = stats;
+	}
+
+	public int getRequestID() {
+		return requestID;
+	}
+
+	public boolean isFound() {
+		return found;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public int getServer() {
+		return server;
+	}
+
+	public VisitedNodes getVisited() {
+		return visited;
+	}
+
+	public Map<Long, String> getPairs() {
+		return pairs;
+	}
+
+	public RingStats getStats() {
+		return stats;
+	}
+
+	// Writes a reply frame without building a Reply first
+	public static void write(Frame frame, int requestID, boolean found, String value, int server, VisitedNodes visited) {
+		frame.begin(Opcode.REPLY);
+		frame.putVarInt(requestID);
+		frame.putBoolean(found);
+		frame.putBoolean(value != null);
+		if (value != null)
+			frame.putString(value);
+		frame.putVarInt(server);
+		frame.putVisited(visited);
+	}
+
+	/*
+	 * Tells a client that sent a command by an out of date copy of the ring that the
+	 * key is not the receiver's, along with the receiver's epoch
+	 */
+	public static void writeNotOwner(Frame frame, int requestID, long epoch) {
+		frame.begin(Opcode.NOT_OWNER);
+		frame.putVarInt(requestID);
+		frame.putLong(epoch);
+	}
+
+	public static Reply read(Frame frame) throws IOException {
+		int requestID = frame.getVarInt();
+		boolean found = frame.getBoolean();
+		String value = frame.getBoolean() ? frame.getString() : null;
+		int server = frame.getVarInt();
+		VisitedNodes visited = frame.getVisited(new VisitedNodes());
+		return new Reply(requestID, found, value, server, visited);
+	}
+
+	// Writes a batch reply, server is the last owner the batch reached
+	public static void writeBatch(Frame frame, int requestID, Map<Long, String> pairs, int server, VisitedNodes visited) {
+		frame.begin(Opcode.BATCH_REPLY);
+		frame.putVarInt(requestID);
+		frame.putPairs(pairs);
+		frame.putVarInt(server);
+		frame.putVisited(visited);
+	}
+
+	public static Reply readBatch(Frame frame) throws IOException {
+		int requestID = frame.getVarInt();
+		Map<Long, String> pairs = new TreeMap<Long, String>();
+		frame.getPairs(pairs);
+		int server = frame.getVarInt();
+		VisitedNodes visited = frame.getVisited(new VisitedNodes());
+		return new Reply(requestID, pairs, server, visited);
+	}
+
+	public static void writeStats(Frame frame, int requestID, RingStats stats) {
+		frame.begin(Opcode.STATS_REPLY);
+		frame.putVarInt(requestID);
+		stats.write(frame);
+	}
+
+	public static Reply readStats(Frame frame) throws IOException {
+		int requestID = frame.getVarInt();
+		return new Reply(requestID, RingStats.read(frame));
+	}
+
+}
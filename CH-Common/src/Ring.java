@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/*
+ * Ring. Positions on the 64-bit ring that keys and servers are placed on. A key's
+ * position is a hash of its UTF-8 bytes. A server sits at TOKENS positions, hashes of
+ * its ID and the token's number, so keys spread evenly however many servers there
+ * are and a server's keys come from and go to many others when it enters or exits.
+ * Positions are compared as signed longs, so the ring runs from Long.MIN_VALUE up to
+ * Long.MAX_VALUE and wraps back around, and adding to a position wraps the same way.
+ */
+public final class Ring {
+
+	public static final int BITS = 64;
+	public static final int TOKENS = 16; // Positions every server sits at, must be the same on every server
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private Ring() {
+	}
+
+	/*
+	 * Hashes a key's UTF-8 bytes, encoding the string on the fly so nothing is
+	 * allocated. Gives the same position as hash(byte[]) on the encoded key, an
+	 * unpaired surrogate being encoded as '?' like String.getBytes does
+	 */
+	public static long hash(String key) {
+		long h = FNV_OFFSET;
+		int chars = key.length();
+		for (int i = 0; i < chars; i++) {
+			char c = key.charAt(i);
+			if (c < 0x80) {
+				h = step(h, c);
+			} else if (c < 0x800) {
+				h = step(h, 0xC0 | (c >> 6));
+				h = step(h, 0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(key.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, key.charAt(++i));
+				h = step(h, 0xF0 | (cp >> 18));
+				h = step(h, 0x80 | ((cp >> 12) & 0x3F));
+				h = step(h, 0x80 | ((cp >> 6) & 0x3F));
+				h = step(h, 0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				h = step(h, '?');
+			} else {
+				h = step(h, 0xE0 | (c >> 12));
+				h = step(h, 0x80 | ((c >> 6) & 0x3F));
+				h = step(h, 0x80 | (c & 0x3F));
+			}
+		}
+		return mix(h);
+	}
+
+	public static long hash(byte[] key, int offset, int length) {
+		long h = FNV_OFFSET;
+		for (int i = offset; i < offset + length; i++)
+			h = step(h, key[i]);
+		return mix(h);
+	}
+
+	// Positions of a server, the hash of "ID#i" for every token i, in ring order
+	public static long[] tokens(int serverID) {
+		long[] tokens = new long[TOKENS];
+		for (int i = 0; i < TOKENS; i++)
+			tokens[i] = hash(serverID + "#" + i);
+		Arrays.sort(tokens);
+		return tokens;
+	}
+
+	// Checks if value lies strictly between from and to going clockwise around the ring
+	public static boolean between(long value, long from, long to) {
+		if (from < to)
+			return value > from && value < to;
+		else
+			return value > from || value < to;
+	}
+
+	// Checks if value lies in [start, end] going clockwise around the ring
+	public static boolean inRange(long value, long start, long end) {
+		if (start <= end)
+			return value >= start && value <= end;
+		else
+			return value >= start || value <= end;
+	}
+
+	// Position as 16 hex digits, for printing ranges
+	public static String format(long position) {
+		return String.format("%016x", position);
+	}
+
+	// FNV-1a step over one byte
+	private static long step(long h, int b) {
+		return (h ^ (b & 0xFF)) * FNV_PRIME;
+	}
+
+	// Final avalanche from MurmurHash3, so keys that differ in one byte land far apart
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
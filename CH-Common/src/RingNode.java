@@ -0,0 +1,50 @@
+import java.net.InetAddress;
+
+/*
+ * Ring Node. The ID, port and IP of a single server on the ring, as sent between
+ * servers whenever a node enters or exits. The node's tokens on the ring are
+ * derived from its ID, so they are never sent, and only worked out once asked for:
+ * most nodes read from a frame are just an origin to answer.
+ */
+public class RingNode {
+
+	public static final int PIPELINED = 0; // Port of an origin answered on the connection its command came on
+
+	private int id;
+	private volatile long[] tokens; // Null until first asked for
+	private int port;
+	private InetAddress ip;
+
+	public RingNode(int id, int port, InetAddress ip) {
+		this.id = id;
+		this.port = port;
+		this.ip = ip;
+	}
+
+	public int getID() {
+		return id;
+	}
+
+	// Positions of the node on the ring in ring order, not to be modified
+	public long[] getTokens() {
+		long[] known = tokens;
+		if (known == null) {
+			known = Ring.tokens(id); // Threads racing here work out the same tokens
+			tokens = known;
+		}
+		return known;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public InetAddress getIP() {
+		return ip;
+	}
+
+	public String toString() {
+		return id + "@" + ip.getHostAddress() + ":" + port;
+	}
+
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/*
+ * Ring Stats. How full a node is: the keys it owns, the copies it keeps for other
+ * owners, the UTF-8 bytes of the values it owns, the share of the ring its ranges
+ * cover, and how its keys spread over the sixteen parts of the ring whose positions
+ * start with each hex digit. A node answers
+ *
+ *   STATS [request ID][origin]
+ *
+ * with STATS_REPLY [request ID][server][keys][copies][value bytes][share][16 counts].
+ * The node an operator asks sends STATS to every member at once and adds the answers
+ * up as they arrive, so the whole ring is read in about one round trip however many
+ * nodes it has, where print goes from node to node.
+ */
+public class RingStats {
+
+	public static final int BUCKETS = KeyStore.BUCKETS; // Parts of the ring keys are counted in, one per leading hex digit
+
+	private int server;
+	private int nodes; // Nodes added up, 1 for the stats of one node
+	private long keys;
+	private long copies;
+	private long valueBytes;
+	private double share; // Fraction of the ring the ranges cover
+	private long[] buckets;
+
+	public RingStats(int server) {
+		this.server = server;
+		this.buckets = new long[BUCKETS];
+	}
+
+	/*
+	 * Stats of one node from its stores and ranges. Reads the counts the stores keep,
+	 * so it takes the same time however many pairs the node has
+	 */
+	public static RingStats of(int server, KeyStore store, KeyStore copies, List<TokenRanges.Range> ranges) {
+		RingStats stats = new RingStats(server);
+		stats.nodes = 1;
+		stats.copies = copies.size();
+		stats.keys = store.size();
+		stats.valueBytes = store.valueBytes();
+		stats.buckets = store.buckets();
+
+		// Lengths of the ranges as unsigned numbers, a range over the whole ring is 2^64
+		for (TokenRanges.Range range : ranges) {
+			long span = range.getEnd() - range.getStart();
+			stats.share += ((span < 0 ? span + 0x1p64 : span) + 1) / 0x1p64;
+		}
+		return stats;
+	}
+
+	/*
+	 * Asks every member for its stats at once and adds them up as the answers arrive.
+	 * The future completes with the total once every member answered or failed, and
+	 * answered gets the stats of each member that did by its ID
+	 */
+	public static CompletableFuture<RingStats> gather(List<RingNode> members,
+			Function<RingNode, CompletableFuture<Reply>> ask, Map<Integer, RingStats> answered) {
+		RingStats total = new RingStats(-1);
+		CompletableFuture<?>[] replies = new CompletableFuture<?>[members.size()];
+		for (int i = 0; i < replies.length; i++) {
+			replies[i] = ask.apply(members.get(i)).thenAccept(reply -> {
+				answered.put(reply.getServer(), reply.getStats());
+				total.add(reply.getStats());
+			});
+		}
+		return CompletableFuture.allOf(replies).handle((done, e) -> total);
+	}
+
+	// Adds the stats of another node, or of several, to these
+	public synchronized void add(RingStats other) {
+		nodes += other.nodes;
+		keys += other.keys;
+		copies += other.copies;
+		valueBytes += other.valueBytes;
+		share += other.share;
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] += other.buckets[i];
+	}
+
+	public int getServer() {
+		return server;
+	}
+
+	public synchronized int getNodes() {
+		return nodes;
+	}
+
+	public synchronized long getKeys() {
+		return keys;
+	}
+
+	public synchronized long getCopies() {
+		return copies;
+	}
+
+	public synchronized long getValueBytes() {
+		return valueBytes;
+	}
+
+	public synchronized double getShare() {
+		return share;
+	}
+
+	// Keys whose position starts with each hex digit, 0 to f
+	public synchronized long[] getBuckets() {
+		return buckets.clone();
+	}
+
+	// One line about the keys, bytes and share of the ring, as the stats command prints it
+	public synchronized String toString() {
+		return keys + " keys, " + valueBytes + " value bytes, " + copies + " copies, "
+				+ String.format("%.1f%%", share * 100) + " of the ring";
+	}
+
+	public synchronized void write(Frame frame) {
+		frame.putVarInt(server);
+		frame.putLong(keys);
+		frame.putLong(copies);
+		frame.putLong(valueBytes);
+		frame.putLong(Double.doubleToLongBits(share));
+		for (long count : buckets)
+			frame.putLong(count);
+	}
+
+	public static RingStats read(Frame frame) throws IOException {
+		RingStats stats = new RingStats(frame.getVarInt());
+		stats.nodes = 1;
+		stats.keys = frame.getLong();
+		stats.copies = frame.getLong();
+		stats.valueBytes = frame.getLong();
+		stats.share = Double.longBitsToDouble(frame.getLong());
+		for (int i = 0; i < BUCKETS; i++)
+			stats.buckets[i] = frame.getLong();
+		return stats;
+	}
+
+}
@@ -0,0 +1,182 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Segment. A sorted, immutable file of pairs that is opened by mapping it into memory
+ * rather than reading it, so opening one takes the same time whatever its size, and a
+ * page of it is only read from disk once a key on it is used:
+ *
+ *   [values: UTF-8 of every value in key order]
+ *   [keys: 8 bytes each, ascending]
+ *   [ends: 8 bytes each, where each value stops in the values]
+ *   [keys offset: 8 bytes][count: 8 bytes][magic: 4 bytes]
+ *
+ * A value starts where the one before it ends. Each of the three parts is mapped on
+ * its own, so a segment holds at most 2 GB of values and 256 million keys.
+ */
+public class Segment {
+
+	private static final int MAGIC = 0x43485332; // "CHS2"
+	private static final int FOOTER = 20;
+	private static final long MAX_PART = Integer.MAX_VALUE; // Largest part one mapping can hold
+
+	private ByteBuffer values;
+	private LongBuffer keys;
+	private LongBuffer ends;
+	private int count;
+
+	private Segment(ByteBuffer values, LongBuffer keys, LongBuffer ends, int count) {
+		this.values = values;
+		this.keys = keys;
+		this.ends = ends;
+		this.count = count;
+	}
+
+	// Maps a segment written by write, reading nothing but its footer
+	public static Segment open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = channel.size();
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+			if (length < FOOTER || channel.read(footer, length - FOOTER) != FOOTER || footer.getInt(16) != MAGIC)
+				throw new IOException(file + " is not a segment");
+
+			long keysAt = footer.getLong(0);
+			long count = footer.getLong(8);
+			if (keysAt < 0 || count < 0 || keysAt + count * 16 != length - FOOTER)
+				throw new IOException(file + " is corrupt");
+			if (keysAt > MAX_PART || count * 8 > MAX_PART)
+				throw new IOException(file + " is too large to map");
+
+			// Mappings stay valid once the channel is closed
+			ByteBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, 0, keysAt);
+			LongBuffer keys = channel.map(FileChannel.MapMode.READ_ONLY, keysAt, count * 8).asLongBuffer();
+			LongBuffer ends = channel.map(FileChannel.MapMode.READ_ONLY, keysAt + count * 8, count * 8)
+					.asLongBuffer();
+			return new Segment(values, keys, ends, (int) count);
+		}
+	}
+
+	/*
+	 * Writes every pair of the store to a new segment, reading it chunk pairs at a time
+	 * so writes to the store are only held up for one chunk, and forces the file to
+	 * disk. Keys and ends go to files of their own beside it until the values are
+	 * written. Returns the number of pairs written
+	 */
+	public static long write(File file, KeyStore store, int chunk) throws IOException {
+		File keysFile = new File(file.getPath() + ".keys");
+		File endsFile = new File(file.getPath() + ".ends");
+
+		FileOutputStream target = new FileOutputStream(file);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(target))) {
+			long[] position = { 0 };
+			long count = 0;
+
+			// Keys and ends are closed, so their files are complete, before they are copied after the values
+			try (DataOutputStream keys = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keysFile)));
+					DataOutputStream ends = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(endsFile)))) {
+				long[] cursor = { Long.MIN_VALUE };
+				int visited;
+				do {
+					visited = store.forEach(cursor[0], Long.MAX_VALUE, chunk, (key, utf8, offset, length) -> {
+						try {
+							out.write(utf8, offset, length);
+							position[0] += length;
+							keys.writeLong(key);
+							ends.writeLong(position[0]);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						cursor[0] = key;
+					});
+					count += visited;
+				} while (visited == chunk && cursor[0]++ != Long.MAX_VALUE);
+			}
+			Files.copy(keysFile.toPath(), out);
+			Files.copy(endsFile.toPath(), out);
+
+			out.writeLong(position[0]);
+			out.writeLong(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			target.getFD().sync();
+			return count;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			keysFile.delete();
+			endsFile.delete();
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	// UTF-8 bytes of every value together, the length of the values part
+	public long valueBytes() {
+		return values.capacity();
+	}
+
+	public long key(int i) {
+		return keys.get(i);
+	}
+
+	// Index of a key, or -(index it would be at) - 1 if the segment does not hold it
+	public int indexOf(long key) {
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = keys.get(mid);
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -(lo + 1);
+	}
+
+	// Index of the first key at or after the given one
+	public int lowerBound(long key) {
+		int i = indexOf(key);
+		return i < 0 ? -(i + 1) : i;
+	}
+
+	// Index of the first key after the given one
+	public int upperBound(long key) {
+		int i = indexOf(key);
+		return i < 0 ? -(i + 1) : i + 1;
+	}
+
+	public String value(int i) {
+		byte[] utf8 = new byte[length(i)];
+		copyValue(i, utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	public int length(int i) {
+		return (int) (ends.get(i) - start(i));
+	}
+
+	// Copies the UTF-8 of a value to the start of the array, which holds at least its length
+	public void copyValue(int i, byte[] into) {
+		values.get((int) start(i), into, 0, length(i));
+	}
+
+	private long start(int i) {
+		return i == 0 ? 0 : ends.get(i - 1);
+	}
+
+}
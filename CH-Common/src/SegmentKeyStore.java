@@ -0,0 +1,269 @@
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Segment Key Store. Serves the pairs of a mapped segment (see Segment) together with
+ * every change made since it was written. New and changed pairs go to an overlay
+ * store, and a pair of the segment that was changed or removed is marked dead by its
+ * index, so a key is live in at most one of the two. Reads look in the overlay, then
+ * in the segment, and ranges are visited by merging the two in key order. Values read
+ * from the segment are copied out of the mapping as they are visited. The value
+ * bytes and bucket counts of the live segment pairs start from the segment's footer
+ * and a binary search per bucket, and drop as pairs are marked dead. Reads share a
+ * lock, writes take it alone.
+ */
+public class SegmentKeyStore implements KeyStore {
+
+	private Segment segment; // Null once the store is cleared
+	private BitSet dead; // Indexes of segment pairs that were changed or removed
+	private int deadCount;
+	private long liveBytes; // Value bytes of the live segment pairs
+	private long[] liveBuckets; // Live segment pairs in each part of the ring
+	private KeyStore overlay;
+	private ReentrantReadWriteLock lock;
+
+	public SegmentKeyStore(Segment segment, KeyStore overlay) {
+		this.segment = segment;
+		this.dead = new BitSet();
+		this.overlay = overlay;
+		this.lock = new ReentrantReadWriteLock();
+
+		liveBytes = segment.valueBytes();
+		liveBuckets = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			long first = (long) b << 60; // Each bucket is a run of keys in signed order as well
+			liveBuckets[b] = segment.upperBound(first | (-1L >>> 4)) - segment.lowerBound(first);
+		}
+	}
+
+	public String get(long key) {
+		lock.readLock().lock();
+		try {
+			String value = overlay.get(key);
+			if (value != null || segment == null)
+				return value;
+
+			int i = segment.indexOf(key);
+			return i < 0 || dead.get(i) ? null : segment.value(i);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void put(long key, String value) {
+		lock.writeLock().lock();
+		try {
+			overlay.put(key, value);
+			kill(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void putBytes(long key, byte[] utf8, int offset, int length) {
+		lock.writeLock().lock();
+		try {
+			overlay.putBytes(key, utf8, offset, length);
+			kill(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public String remove(long key) {
+		lock.writeLock().lock();
+		try {
+			String value = overlay.remove(key);
+			if (value != null || segment == null)
+				return value;
+
+			int i = segment.indexOf(key);
+			if (i < 0 || dead.get(i))
+				return null;
+			kill(i);
+			return segment.value(i);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return overlay.size() + (segment == null ? 0 : segment.size() - deadCount);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long valueBytes() {
+		lock.readLock().lock();
+		try {
+			return overlay.valueBytes() + liveBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long[] buckets() {
+		lock.readLock().lock();
+		try {
+			long[] counts = overlay.buckets();
+			for (int b = 0; b < BUCKETS; b++)
+				counts[b] += liveBuckets[b];
+			return counts;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int count(long from, long to) {
+		lock.readLock().lock();
+		try {
+			int count = overlay.count(from, to);
+			if (from <= to)
+				return count + liveLinear(from, to);
+			return count + liveLinear(from, Long.MAX_VALUE) + liveLinear(Long.MIN_VALUE, to);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int forEach(long from, long to, int limit, Visitor visitor) {
+		lock.readLock().lock();
+		try {
+			if (from <= to)
+				return new Merge(from, to, limit, visitor).run();
+
+			int visited = new Merge(from, Long.MAX_VALUE, limit, visitor).run();
+			return visited + new Merge(Long.MIN_VALUE, to, limit - visited, visitor).run();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int removeRange(long from, long to) {
+		lock.writeLock().lock();
+		try {
+			int removed = overlay.removeRange(from, to);
+			if (from <= to)
+				return removed + killLinear(from, to);
+			return removed + killLinear(from, Long.MAX_VALUE) + killLinear(Long.MIN_VALUE, to);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			overlay.clear();
+			segment = null;
+			dead = new BitSet();
+			deadCount = 0;
+			liveBytes = 0;
+			liveBuckets = new long[BUCKETS];
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Ranges that wrap are split in two by the callers, from is never after to here
+
+	private void kill(long key) {
+		if (segment != null) {
+			int i = segment.indexOf(key);
+			if (i >= 0 && !dead.get(i))
+				kill(i);
+		}
+	}
+
+	private void kill(int i) {
+		dead.set(i);
+		deadCount++;
+		liveBytes -= segment.length(i);
+		liveBuckets[KeyStore.bucket(segment.key(i))]--;
+	}
+
+	private int liveLinear(long from, long to) {
+		if (segment == null)
+			return 0;
+
+		int lo = segment.lowerBound(from);
+		int hi = segment.upperBound(to);
+		int live = hi - lo;
+		for (int i = dead.nextSetBit(lo); i >= 0 && i < hi; i = dead.nextSetBit(i + 1))
+			live--;
+		return live;
+	}
+
+	private int killLinear(long from, long to) {
+		if (segment == null)
+			return 0;
+
+		int killed = 0;
+		int hi = segment.upperBound(to);
+		for (int i = dead.nextClearBit(segment.lowerBound(from)); i < hi; i = dead.nextClearBit(i + 1)) {
+			kill(i);
+			killed++;
+		}
+		return killed;
+	}
+
+	/*
+	 * Merge. Visits the live pairs of [from, to] in key order, walking the segment
+	 * forward between the keys the overlay visits.
+	 */
+	private class Merge implements Visitor {
+
+		private Visitor visitor;
+		private long from;
+		private long to;
+		private int limit;
+		private int next; // Next segment index to visit
+		private int end; // Segment index after the last one in range
+		private byte[] scratch; // Segment values are copied here before they are visited
+		private int visited;
+
+		Merge(long from, long to, int limit, Visitor visitor) {
+			this.visitor = visitor;
+			this.from = from;
+			this.to = to;
+			this.limit = limit;
+			this.next = segment == null ? 0 : segment.lowerBound(from);
+			this.end = segment == null ? 0 : segment.upperBound(to);
+			this.scratch = new byte[64];
+		}
+
+		int run() {
+			overlay.forEach(from, to, limit, this);
+			segmentUntil(end);
+			return visited;
+		}
+
+		public void visit(long key, byte[] utf8, int offset, int length) {
+			segmentUntil(segment == null ? 0 : Math.min(segment.lowerBound(key), end));
+			if (visited < limit) {
+				visitor.visit(key, utf8, offset, length);
+				visited++;
+			}
+		}
+
+		// Visits the live segment pairs before the given index
+		private void segmentUntil(int stop) {
+			for (; next < stop && visited < limit; next++) {
+				if (dead.get(next))
+					continue;
+
+				int length = segment.length(next);
+				if (scratch.length < length)
+					scratch = new byte[Math.max(length, scratch.length * 2)];
+				segment.copyValue(next, scratch);
+				visitor.visit(segment.key(next), scratch, 0, length);
+				visited++;
+			}
+		}
+
+	}
+
+}
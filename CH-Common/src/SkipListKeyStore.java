@@ -0,0 +1,118 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Skip List Key Store. Keeps pairs in a ConcurrentSkipListMap of boxed keys and
+ * string values, the layout the servers used before ChunkedKeyStore. Simple, but
+ * every pair costs several objects. Every change counts the value it replaced or
+ * removed, so the value bytes and bucket counts stay right without a lock.
+ */
+public class SkipListKeyStore implements KeyStore {
+
+	private ConcurrentSkipListMap<Long, String> pairs;
+	private AtomicLong valueBytes;
+	private AtomicLongArray buckets; // Keys in each part of the ring
+
+	public SkipListKeyStore() {
+		pairs = new ConcurrentSkipListMap<Long, String>();
+		valueBytes = new AtomicLong();
+		buckets = new AtomicLongArray(BUCKETS);
+	}
+
+	public String get(long key) {
+		return pairs.get(key);
+	}
+
+	public void put(long key, String value) {
+		put(key, value, Frame.utf8Length(value));
+	}
+
+	public void putBytes(long key, byte[] utf8, int offset, int length) {
+		put(key, new String(utf8, offset, length, StandardCharsets.UTF_8), length);
+	}
+
+	public String remove(long key) {
+		String value = pairs.remove(key);
+		if (value != null)
+			removed(key, value);
+		return value;
+	}
+
+	public int size() {
+		return pairs.size();
+	}
+
+	public long valueBytes() {
+		return valueBytes.get();
+	}
+
+	public long[] buckets() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = buckets.get(i);
+		return counts;
+	}
+
+	public int count(long from, long to) {
+		if (from <= to)
+			return pairs.subMap(from, true, to, true).size();
+		return pairs.tailMap(from, true).size() + pairs.headMap(to, true).size();
+	}
+
+	public int forEach(long from, long to, int limit, Visitor visitor) {
+		if (from <= to)
+			return forEach(pairs.subMap(from, true, to, true), limit, visitor);
+
+		int visited = forEach(pairs.tailMap(from, true), limit, visitor);
+		return visited + forEach(pairs.headMap(to, true), limit - visited, visitor);
+	}
+
+	public int removeRange(long from, long to) {
+		if (from <= to)
+			return removeAll(pairs.subMap(from, true, to, true));
+		return removeAll(pairs.tailMap(from, true)) + removeAll(pairs.headMap(to, true));
+	}
+
+	public void clear() {
+		removeAll(pairs);
+	}
+
+	private void put(long key, String value, int length) {
+		String old = pairs.put(key, value);
+		valueBytes.addAndGet(length - (old == null ? 0 : Frame.utf8Length(old)));
+		if (old == null)
+			buckets.incrementAndGet(KeyStore.bucket(key));
+	}
+
+	private void removed(long key, String value) {
+		valueBytes.addAndGet(-Frame.utf8Length(value));
+		buckets.decrementAndGet(KeyStore.bucket(key));
+	}
+
+	private static int forEach(Map<Long, String> range, int limit, Visitor visitor) {
+		int visited = 0;
+		for (Map.Entry<Long, String> entry : range.entrySet()) {
+			if (visited == limit)
+				break;
+			byte[] utf8 = entry.getValue().getBytes(StandardCharsets.UTF_8);
+			visitor.visit(entry.getKey(), utf8, 0, utf8.length);
+			visited++;
+		}
+		return visited;
+	}
+
+	// Takes the pairs out one at a time, so each removed value is counted
+	private int removeAll(ConcurrentNavigableMap<Long, String> range) {
+		int removed = 0;
+		for (Map.Entry<Long, String> entry = range.pollFirstEntry(); entry != null; entry = range.pollFirstEntry()) {
+			removed(entry.getKey(), entry.getValue());
+			removed++;
+		}
+		return removed;
+	}
+
+}
@@ -0,0 +1,181 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Token Ranges. The parts of the ring a server owns, one range for each of its
+ * tokens. A token's range runs from just after the token before it on the ring,
+ * whichever server that token belongs to, up to the token itself. Ranges only change
+ * when keys are handed over on enter and exit. Callers hold the range lock.
+ */
+public class TokenRanges {
+
+	private long[] tokens; // This server's tokens in ring order
+	private TreeMap<Long, Long> starts; // First key of the range ending at each owned token
+
+	public TokenRanges(long[] tokens) {
+		this.tokens = tokens;
+		this.starts = new TreeMap<Long, Long>();
+	}
+
+	// Checks if a key falls in one of the ranges
+	public boolean owns(long key) {
+		if (starts.isEmpty())
+			return false;
+
+		// Only the range of the first owned token at or after the key can hold it
+		Map.Entry<Long, Long> range = starts.ceilingEntry(key);
+		if (range == null)
+			range = starts.firstEntry();
+		return Ring.inRange(key, range.getValue(), range.getKey());
+	}
+
+	// Checks if [from, to] lies inside one of the ranges
+	public boolean ownsAll(long from, long to) {
+		if (starts.isEmpty())
+			return false;
+
+		Map.Entry<Long, Long> range = starts.ceilingEntry(to);
+		if (range == null)
+			range = starts.firstEntry();
+		return Ring.inRange(to, range.getValue(), range.getKey()) && Ring.inRange(from, range.getValue(), to);
+	}
+
+	/*
+	 * Takes over [from, to], which ends at one of this server's tokens and may pass
+	 * several more. Each token gets the part of it up to the token
+	 */
+	public void claim(long from, long to) {
+		int first = 0;
+		while (first < tokens.length && tokens[first] < from)
+			first++;
+
+		long start = from;
+		for (int i = 0; i < tokens.length; i++) {
+			long token = tokens[(first + i) % tokens.length];
+			if (!Ring.inRange(token, from, to))
+				break;
+
+			starts.put(token, start);
+			if (token == to)
+				break;
+			start = token + 1;
+		}
+	}
+
+	/*
+	 * Gives up to a node entering with the given tokens every part of a range that now
+	 * comes before one of its tokens, and returns the parts given up. A range keeps
+	 * what lies after the last entering token inside it
+	 */
+	public List<Range> cede(long[] entering) {
+		List<Range> ceded = new ArrayList<Range>();
+
+		for (Map.Entry<Long, Long> range : starts.entrySet()) {
+			long start = range.getValue();
+			long end = range.getKey();
+
+			boolean cut = false;
+			long last = start;
+			for (long token : entering) {
+				if (token == end || !Ring.inRange(token, start, end))
+					continue;
+				if (!cut || Long.compareUnsigned(token - start, last - start) > 0)
+					last = token;
+				cut = true;
+			}
+
+			if (cut) {
+				ceded.add(new Range(start, last));
+				range.setValue(last + 1);
+			}
+		}
+		return ceded;
+	}
+
+	/*
+	 * Takes over [from, to] from an exiting node by growing the range that starts just
+	 * after it. Returns false if no range starts there
+	 */
+	public boolean extend(long from, long to) {
+		Map.Entry<Long, Long> range = starts.ceilingEntry(to + 1);
+		if (range == null)
+			range = starts.firstEntry();
+		if (range == null || range.getValue() != to + 1)
+			return false;
+
+		starts.put(range.getKey(), from);
+		return true;
+	}
+
+	/*
+	 * Every range, with ranges of tokens that sit next to each other on the ring joined
+	 * so they can be handed over as one
+	 */
+	public List<Range> merged() {
+		List<Range> merged = new ArrayList<Range>();
+		for (Map.Entry<Long, Long> range : starts.entrySet()) {
+			Range previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if (previous != null && previous.end + 1 == range.getValue())
+				previous.end = range.getKey();
+			else
+				merged.add(new Range(range.getValue(), range.getKey()));
+		}
+
+		// Last range may run on into the first one past the end of the ring
+		if (merged.size() > 1) {
+			Range first = merged.get(0);
+			Range last = merged.get(merged.size() - 1);
+			if (last.end + 1 == first.start) {
+				first.start = last.start;
+				merged.remove(merged.size() - 1);
+			}
+		}
+		return merged;
+	}
+
+	// Range ending at one of this server's tokens, null if the token owns none
+	public Range get(long token) {
+		Long start = starts.get(token);
+		return start == null ? null : new Range(start, token);
+	}
+
+	// Number of tokens that own a range
+	public int size() {
+		return starts.size();
+	}
+
+	public void clear() {
+		starts.clear();
+	}
+
+	/*
+	 * Range. Keys [start, end] going clockwise, wrapping past the end of the ring if
+	 * start is after end.
+	 */
+	public static class Range {
+
+		private long start;
+		private long end;
+
+		public Range(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getEnd() {
+			return end;
+		}
+
+		public String toString() {
+			return "[" + Ring.format(start) + "," + Ring.format(end) + "]";
+		}
+
+	}
+
+}
@@ -0,0 +1,53 @@
+import java.util.Arrays;
+
+/*
+ * Visited Nodes. The IDs of the servers a command has passed through, kept in a
+ * growable int array so it can be reused for every command read on a connection.
+ */
+public class VisitedNodes {
+
+	private int[] ids;
+	private int count;
+
+	public VisitedNodes() {
+		ids = new int[16];
+	}
+
+	public void add(int id) {
+		if (count == ids.length)
+			ids = Arrays.copyOf(ids, count * 2);
+		ids[count++] = id;
+	}
+
+	// Copy to keep once the list is reused for the next command
+	public VisitedNodes copy() {
+		VisitedNodes copy = new VisitedNodes();
+		for (int i = 0; i < count; i++)
+			copy.add(ids[i]);
+		return copy;
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int get(int index) {
+		return ids[index];
+	}
+
+	// Printed like a list, e.g. [0, 322, 527]
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(ids[i]);
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,389 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Write-Ahead Log. Every change to a store is appended to the log before it is
+ * applied, one record each:
+ *
+ *   [length: 4 bytes][CRC32 of payload: 4 bytes][op][key or from][to, or value bytes]
+ *
+ * except that the pairs of a putAll go in as few records as fit the buffer, each
+ * [op][count][key, value length, value bytes]... so a bulk merge is not logged a pair
+ * at a time.
+ *
+ * The log is a series of segment files wal-N.log. A new segment is started on open
+ * and whenever a snapshot is taken, so a snapshot and the segments from its number
+ * on hold the whole state. Records gather in a buffer and are written out together.
+ * When they reach the disk depends on the fsync policy ("-Dfsync="):
+ *
+ *   always    a change returns once its record is on disk. Changes waiting at the same
+ *             time share one fsync (group commit)
+ *   interval  records are forced to disk every SYNC_INTERVAL, a crash loses at most
+ *             that much (the default)
+ *   never     records are written every SYNC_INTERVAL and left to the OS
+ *
+ * An unknown policy fails before any segment is created. Replay stops at the first
+ * record that is cut short or fails its checksum, which is where a crash interrupted
+ * the last write.
+ */
+public class WriteAheadLog {
+
+	public static final String FSYNC = System.getProperty("fsync", "interval");
+	public static final long SYNC_INTERVAL = 50; // Milliseconds between background writes of the buffer
+
+	// Operations of a record
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte REMOVE_RANGE = 3;
+	private static final byte CLEAR = 4;
+	private static final byte PUT_ALL = 5;
+
+	private static final int HEADER = 8; // Length and checksum before a record's payload
+	private static final int BUFFER = 1 << 16; // Bytes gathered before they are written out
+
+	private File dir;
+	private String fsync;
+	private volatile boolean closed;
+	private int segment; // Number of the segment being appended to
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private CRC32 crc;
+	private long appended; // Records appended since the log was opened
+	private long written; // Records appended to the current segment, 0 right after a rotation
+
+	private Object syncLock; // Held while forcing the segment to disk, taken before this log's lock
+	private long synced; // Records known to be on disk
+	private int recordStart; // Where the record being appended starts in its buffer
+	private int batched; // Pairs in the PUT_ALL record being appended, 0 when none is open
+
+	/*
+	 * Opens a new segment after the given one in dir. Older segments are left for
+	 * replay until a snapshot makes them unneeded
+	 */
+	public WriteAheadLog(File dir, int lastSegment) throws IOException {
+		this(dir, lastSegment, FSYNC);
+	}
+
+	// Same with the given fsync policy instead of the one set by -Dfsync
+	public WriteAheadLog(File dir, int lastSegment, String fsync) throws IOException {
+		checkPolicy(fsync);
+		this.dir = dir;
+		this.fsync = fsync;
+		this.buffer = ByteBuffer.allocate(BUFFER);
+		this.crc = new CRC32();
+		this.syncLock = new Object();
+		open(lastSegment + 1);
+
+		Thread flusher = new Thread(() -> {
+			while (!closed) {
+				try {
+					Thread.sleep(SYNC_INTERVAL);
+					if (fsync.equals("never"))
+						flush();
+					else
+						commit(appended());
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "wal-" + dir.getName());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	// Fails on a policy other than always, interval or never
+	public static void checkPolicy(String fsync) {
+		if (!fsync.equals("always") && !fsync.equals("interval") && !fsync.equals("never"))
+			throw new IllegalArgumentException("Unknown fsync policy " + fsync);
+	}
+
+	// Appends a put and returns its sequence number, to pass to sync
+	public synchronized long put(long key, byte[] utf8, int offset, int length) throws IOException {
+		ByteBuffer record = begin(PUT, 8 + length);
+		record.putLong(key).put(utf8, offset, length);
+		return end(record);
+	}
+
+	public synchronized long remove(long key) throws IOException {
+		ByteBuffer record = begin(REMOVE, 8);
+		record.putLong(key);
+		return end(record);
+	}
+
+	public synchronized long removeRange(long from, long to) throws IOException {
+		ByteBuffer record = begin(REMOVE_RANGE, 16);
+		record.putLong(from).putLong(to);
+		return end(record);
+	}
+
+	public synchronized long clear() throws IOException {
+		return end(begin(CLEAR, 0));
+	}
+
+	// Appends every pair of a store and returns the sequence number of the last record
+	public synchronized long putAll(KeyStore sorted) throws IOException {
+		try {
+			sorted.forEach(Long.MIN_VALUE, Long.MAX_VALUE, (key, utf8, offset, length) -> {
+				try {
+					batch(key, utf8, offset, length);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (batched > 0)
+			endBatch();
+		return appended;
+	}
+
+	/*
+	 * Waits until the record with the given sequence number is on disk if the policy is
+	 * always. The first waiting thread forces everything appended so far, the rest find
+	 * their records already there
+	 */
+	public void sync(long sequence) throws IOException {
+		if (fsync.equals("always"))
+			commit(sequence);
+	}
+
+	// Records appended to the current segment, 0 if nothing changed since the last rotation
+	public synchronized long written() {
+		return written;
+	}
+
+	/*
+	 * Forces the current segment to disk and starts the next one. Returns the number of
+	 * the new segment, which holds every record appended from now on
+	 */
+	public int rotate() throws IOException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				writeBuffer();
+				channel.force(false);
+				channel.close();
+				synced = appended;
+				open(segment + 1);
+				return segment;
+			}
+		}
+	}
+
+	// Deletes the segments before the given one, once a snapshot holds what they did
+	public void deleteBefore(int first) {
+		for (int number : segments(dir)) {
+			if (number < first)
+				segmentFile(dir, number).delete();
+		}
+	}
+
+	// Writes the buffered records, forces them to disk and closes the segment
+	public void close() throws IOException {
+		closed = true;
+		commit(appended());
+		synchronized (this) {
+			channel.close();
+		}
+	}
+
+	/*
+	 * Applies the records of every segment from the given one on to the store, in
+	 * order. Returns the number of records applied
+	 */
+	public static long replay(File dir, int first, KeyStore store) throws IOException {
+		long replayed = 0;
+		for (int number : segments(dir)) {
+			if (number < first)
+				continue;
+
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(segmentFile(dir, number))))) {
+				CRC32 crc = new CRC32();
+				byte[] payload = new byte[256];
+				while (true) {
+					int length;
+					int checksum;
+					try {
+						length = in.readInt();
+						checksum = in.readInt();
+						if (length < 1)
+							break;
+						if (payload.length < length)
+							payload = new byte[Math.max(length, payload.length * 2)];
+						in.readFully(payload, 0, length);
+					} catch (EOFException e) {
+						break; // Last record was cut short
+					}
+
+					crc.reset();
+					crc.update(payload, 0, length);
+					if ((int) crc.getValue() != checksum)
+						break; // Torn write, nothing after it was acknowledged
+
+					apply(ByteBuffer.wrap(payload, 0, length), store);
+					replayed++;
+				}
+			}
+		}
+		return replayed;
+	}
+
+	// Numbers of the segments in dir, lowest first
+	public static List<Integer> segments(File dir) {
+		List<Integer> numbers = new ArrayList<Integer>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("wal-") && name.endsWith(".log"))
+					numbers.add(Integer.parseInt(name.substring(4, name.length() - 4)));
+			}
+		}
+		numbers.sort(null);
+		return numbers;
+	}
+
+	private static File segmentFile(File dir, int number) {
+		return new File(dir, "wal-" + number + ".log");
+	}
+
+	private static void apply(ByteBuffer record, KeyStore store) {
+		switch (record.get()) {
+		case PUT: {
+			long key = record.getLong();
+			store.putBytes(key, record.array(), record.position(), record.remaining());
+			break;
+		}
+		case REMOVE:
+			store.remove(record.getLong());
+			break;
+		case REMOVE_RANGE:
+			store.removeRange(record.getLong(), record.getLong());
+			break;
+		case CLEAR:
+			store.clear();
+			break;
+		case PUT_ALL:
+			for (int count = record.getInt(); count > 0; count--) {
+				long key = record.getLong();
+				int length = record.getInt();
+				store.putBytes(key, record.array(), record.position(), length);
+				record.position(record.position() + length);
+			}
+			break;
+		}
+	}
+
+	private void open(int number) throws IOException {
+		segment = number;
+		channel = FileChannel.open(segmentFile(dir, number).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		written = 0;
+	}
+
+	// Makes room for a record in the buffer, a record too big for it gets a buffer of its own
+	private ByteBuffer begin(byte op, int size) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+		int needed = HEADER + 1 + size;
+		if (buffer.remaining() < needed)
+			writeBuffer();
+
+		ByteBuffer record = needed <= buffer.capacity() ? buffer : ByteBuffer.allocate(needed);
+		recordStart = record.position();
+		record.position(recordStart + HEADER); // Length and checksum go in once the payload is written
+		record.put(op);
+		return record;
+	}
+
+	// Fills in the length and checksum of the record just written, returning its sequence number
+	private long end(ByteBuffer record) throws IOException {
+		int length = record.position() - recordStart - HEADER;
+		crc.reset();
+		crc.update(record.array(), recordStart + HEADER, length);
+		record.putInt(recordStart, length).putInt(recordStart + 4, (int) crc.getValue());
+
+		// Record too big for the buffer is written straight after what was buffered before it
+		if (record != buffer) {
+			record.flip();
+			while (record.hasRemaining())
+				channel.write(record);
+		}
+		written++;
+		return ++appended;
+	}
+
+	/*
+	 * Adds a pair to the PUT_ALL record being appended, ending it and starting another
+	 * when the buffer is full. A pair too big for the buffer is a put of its own
+	 */
+	private void batch(long key, byte[] utf8, int offset, int length) throws IOException {
+		int size = 12 + length;
+		if (batched > 0 && buffer.remaining() < size)
+			endBatch();
+		if (batched == 0) {
+			if (HEADER + 1 + 4 + size > buffer.capacity()) {
+				put(key, utf8, offset, length);
+				return;
+			}
+			begin(PUT_ALL, 4 + size).putInt(0); // Count goes in once the record is full
+		}
+		buffer.putLong(key).putInt(length).put(utf8, offset, length);
+		batched++;
+	}
+
+	private void endBatch() throws IOException {
+		buffer.putInt(recordStart + HEADER + 1, batched);
+		batched = 0;
+		end(buffer);
+	}
+
+	private synchronized long appended() {
+		return appended;
+	}
+
+	// Writes the buffered records to the segment without forcing them to disk
+	private synchronized void flush() throws IOException {
+		writeBuffer();
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	// Forces every record up to the sequence number to disk, sharing one fsync with every thread waiting
+	private void commit(long sequence) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= sequence)
+				return;
+
+			long upTo;
+			FileChannel current;
+			synchronized (this) {
+				writeBuffer();
+				upTo = appended;
+				current = channel;
+			}
+			current.force(false);
+			synced = upTo;
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Bulk Import Test. A key file read in pieces holds the last value of every key, and
+ * split gives every pair to the one server a ring of those servers routes it to.
+ */
+public class BulkImportTest {
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void lastLineForAKeyWins() throws IOException {
+		File keys = new File(dir, "keys.txt");
+		Files.writeString(keys.toPath(), "0\n3768\napple red\npear green\r\napple yellow\nlonely\n\nfig purple extra");
+		KeyStore pairs = BulkImport.read(keys);
+		assertEquals(3, pairs.size());
+		assertEquals("yellow", pairs.get(Ring.hash("apple")));
+		assertEquals("green", pairs.get(Ring.hash("pear")));
+		assertEquals("purple", pairs.get(Ring.hash("fig")));
+		assertNull(pairs.get(Ring.hash("lonely")));
+	}
+
+	@Test
+	public void everyPairGoesToItsOwner() {
+		KeyStore pairs = new ChunkedKeyStore();
+		for (int i = 0; i < 20000; i++)
+			pairs.put(Ring.hash("key" + i), "value" + i);
+		pairs.put(Long.MIN_VALUE, "first");
+		pairs.put(Long.MAX_VALUE, "last");
+
+		List<Integer> ids = List.of(0, 322, 527, 769);
+		Map<Integer, KeyStore> parts = BulkImport.split(pairs, ids);
+		assertEquals(ids, new ArrayList<Integer>(parts.keySet()));
+
+		InetAddress nowhere = InetAddress.getLoopbackAddress();
+		FingerTable ring = new FingerTable(new RingNode(0, 0, nowhere));
+		for (int id : ids)
+			ring.add(new RingNode(id, 0, nowhere));
+
+		int total = 0;
+		for (Map.Entry<Integer, KeyStore> part : parts.entrySet()) {
+			int id = part.getKey();
+			part.getValue().forEach(Long.MIN_VALUE, Long.MAX_VALUE, (key, utf8, offset, length) -> {
+				assertEquals(id, ring.ownerOf(key).getID(), Ring.format(key));
+				assertEquals(pairs.get(key), part.getValue().get(key));
+			});
+			total += part.getValue().size();
+		}
+		assertEquals(pairs.size(), total);
+	}
+
+	@Test
+	public void aloneTheBootstrapGetsEverything() {
+		KeyStore pairs = new ChunkedKeyStore();
+		for (int i = 0; i < 1000; i++)
+			pairs.put(Ring.hash("key" + i), "value" + i);
+		assertEquals(KeyStoreDiff.pairs(pairs, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE),
+				KeyStoreDiff.pairs(BulkImport.split(pairs, List.of(0)).get(0), Long.MIN_VALUE, Long.MAX_VALUE,
+						Integer.MAX_VALUE));
+	}
+
+}
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Chunked Key Store Test. The chunked store answers like the skip list store it
+ * replaced, for random operations and for ranges that end on either side of the
+ * places chunks were split.
+ */
+public class ChunkedKeyStoreTest {
+
+	@Test
+	public void randomOperationsMatchTheSkipList() {
+		for (long seed = 1; seed <= 8; seed++)
+			new KeyStoreDiff(new ChunkedKeyStore(), seed, 3000).run(20000, 1000);
+	}
+
+	@Test
+	public void fewKeysMatchTheSkipList() {
+		// Small pool, so chunks empty out and are dropped often
+		for (long seed = 1; seed <= 8; seed++)
+			new KeyStoreDiff(new ChunkedKeyStore(), seed, 40).run(5000, 100);
+	}
+
+	@Test
+	public void rangesAroundChunkSplits() {
+		for (boolean ascending : new boolean[] { true, false }) {
+			ChunkedKeyStore store = new ChunkedKeyStore();
+			KeyStoreDiff diff = new KeyStoreDiff(store, 1, 10);
+			int n = 2048; // Eight times the chunk size, split at many places
+			for (int i = 0; i < n; i++) {
+				long key = (ascending ? i : n - 1 - i) * 10L;
+				diff.expected().put(key, "v" + key);
+				store.put(key, "v" + key);
+			}
+			diff.check();
+
+			// Every range starting or ending on, just before or just after a key
+			for (int i = 0; i < n; i += 7) {
+				for (long from = i * 10L - 1; from <= i * 10L + 1; from++) {
+					for (int span : new int[] { 0, 9, 10, 11, 1280, 2560 }) {
+						diff.range(from, from + span, Integer.MAX_VALUE);
+						diff.range(from, from + span, 3);
+					}
+				}
+			}
+
+			// Removing across the splits leaves the rest in order
+			for (int i = 100; i < n; i += 300) {
+				assertEquals(diff.expected().removeRange(i * 10L - 5, i * 10L + 1300),
+						store.removeRange(i * 10L - 5, i * 10L + 1300));
+				diff.check();
+			}
+		}
+	}
+
+	@Test
+	public void wrappingRangesVisitTheEndThenTheStart() {
+		ChunkedKeyStore store = new ChunkedKeyStore();
+		long[] keys = { Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+		for (long key : keys)
+			store.put(key, Long.toString(key));
+
+		assertEquals(List.of(Long.MAX_VALUE - 1 + "=" + (Long.MAX_VALUE - 1), Long.MAX_VALUE + "=" + Long.MAX_VALUE,
+				Long.MIN_VALUE + "=" + Long.MIN_VALUE, Long.MIN_VALUE + 1 + "=" + (Long.MIN_VALUE + 1)),
+				KeyStoreDiff.pairs(store, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1, Integer.MAX_VALUE));
+		assertEquals(3, KeyStoreDiff.pairs(store, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1, 3).size());
+
+		// A range from just after a key back to it is the whole ring
+		assertEquals(keys.length, store.count(1, 0));
+		assertEquals(keys.length, KeyStoreDiff.pairs(store, 1, 0, Integer.MAX_VALUE).size());
+
+		assertEquals(4, store.removeRange(Long.MAX_VALUE - 1, Long.MIN_VALUE + 1));
+		assertEquals(3, store.size());
+		assertNull(store.get(Long.MAX_VALUE));
+		assertEquals("-1", store.get(-1));
+	}
+
+	@Test
+	public void overwrittenValuesOfEveryLength() {
+		// Values of one chunk grow and shrink, so its arena is compacted, grown and halved
+		ChunkedKeyStore store = new ChunkedKeyStore();
+		KeyStoreDiff diff = new KeyStoreDiff(store, 2, 10);
+		for (int round = 0; round < 200; round++) {
+			for (long key = 0; key < 100; key++) {
+				String value = "x".repeat((int) ((key * 37 + round * 11) % (round % 2 == 0 ? 700 : 5)));
+				diff.expected().put(key, value);
+				store.put(key, value);
+			}
+			if (round % 10 == 9) {
+				assertEquals(diff.expected().removeRange(20, 79), store.removeRange(20, 79));
+			}
+			diff.check();
+		}
+	}
+
+	@Test
+	public void putAllMergesAndReplaces() {
+		ChunkedKeyStore store = new ChunkedKeyStore();
+		KeyStoreDiff diff = new KeyStoreDiff(store, 3, 5000);
+		for (int round = 0; round < 20; round++) {
+			KeyStore other = new ChunkedKeyStore();
+			for (int i = 0; i < 1000; i++)
+				other.put(diff.key(), diff.value());
+			diff.expected().putAll(other);
+			store.putAll(other);
+			diff.check();
+
+			// Puts after a merge split the full chunks it built
+			for (int i = 0; i < 300; i++)
+				diff.step();
+			diff.check();
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Durable Key Store Test. A store reopened from its directory holds what it held
+ * when it was closed, from the log alone, from a snapshot and the log after it, and
+ * when snapshots were taken while changes carried on. It keeps its state across
+ * several reopens, a bulk merge goes into the log as a few records, and writes to
+ * the same keys from many threads are logged in the order they were applied.
+ */
+public class DurableKeyStoreTest {
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void reopensFromTheLog() throws IOException {
+		DurableKeyStore store = DurableKeyStore.open(new ChunkedKeyStore(), dir);
+		assertFalse(store.isRecovered());
+		KeyStoreDiff diff = new KeyStoreDiff(store, 1, 2000);
+		diff.run(10000, 1000);
+		store.close();
+
+		store = reopen(diff);
+		diff.run(5000, 1000);
+		store.close();
+		reopen(diff).close();
+	}
+
+	@Test
+	public void reopensFromASnapshotAndTheLogAfterIt() throws IOException {
+		DurableKeyStore store = DurableKeyStore.open(new ChunkedKeyStore(), dir);
+		KeyStoreDiff diff = new KeyStoreDiff(store, 2, 2000);
+		diff.run(10000, 1000);
+		store.snapshot();
+		diff.run(3000, 1000); // Log tail after the snapshot
+		store.close();
+		assertEquals(1, count("snapshot-"));
+
+		// Reopened store maps the snapshot, snapshots itself and reopens again
+		store = reopen(diff);
+		diff.run(3000, 1000);
+		store.snapshot();
+		diff.run(3000, 1000);
+		store.snapshot();
+		store.close();
+		assertEquals(1, count("snapshot-"));
+		assertEquals(1, count("wal-"), Arrays.toString(dir.list()));
+
+		store = reopen(diff);
+		diff.run(1000, 1000);
+		store.close();
+		reopen(diff).close();
+	}
+
+	@Test
+	public void snapshotsWhileChangesCarryOn() throws Exception {
+		for (long seed = 1; seed <= 4; seed++) {
+			File data = new File(dir, "seed-" + seed);
+			DurableKeyStore store = DurableKeyStore.open(new ChunkedKeyStore(), data);
+			KeyStoreDiff diff = new KeyStoreDiff(store, seed, 3000);
+			diff.run(5000, 5000);
+
+			// Changes go on from another thread while the log rotates and snapshots are written
+			AtomicBoolean done = new AtomicBoolean();
+			CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+				try {
+					for (int i = 0; i < 30000; i++)
+						diff.step();
+				} finally {
+					done.set(true);
+				}
+			});
+			int snapshots = 0;
+			while (!done.get()) {
+				store.snapshot();
+				snapshots++;
+			}
+			writer.get();
+			assertTrue(snapshots > 1, snapshots + " snapshots");
+			store.close();
+
+			DurableKeyStore reopened = DurableKeyStore.open(new ChunkedKeyStore(), data);
+			diff.reopened(reopened);
+			diff.check();
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void putAllIsLoggedInBatches() throws IOException {
+		DurableKeyStore store = DurableKeyStore.open(new ChunkedKeyStore(), dir);
+		KeyStoreDiff diff = new KeyStoreDiff(store, 3, 10);
+		KeyStore pairs = new ChunkedKeyStore();
+		for (int i = 0; i < 20000; i++)
+			pairs.put(i * 7919L, "value" + i);
+		diff.expected().putAll(pairs);
+		store.putAll(pairs);
+		diff.check();
+		store.close();
+
+		long records = WriteAheadLog.replay(dir, 0, new ChunkedKeyStore());
+		assertTrue(records < 20, records + " records");
+		reopen(diff).close();
+	}
+
+	@Test
+	public void sameKeysFromManyThreadsReplayAsApplied() throws Exception {
+		DurableKeyStore store = DurableKeyStore.open(new ChunkedKeyStore(), dir);
+		List<CompletableFuture<Void>> writers = new ArrayList<CompletableFuture<Void>>();
+		for (int t = 0; t < 8; t++) {
+			int thread = t;
+			writers.add(CompletableFuture.runAsync(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < 20000; i++) {
+					long key = random.nextInt(2) * 7919L;
+					if (random.nextInt(4) == 0)
+						store.remove(key);
+					else
+						store.put(key, "value" + thread + "-" + i);
+				}
+			}));
+		}
+		for (CompletableFuture<Void> writer : writers)
+			writer.get();
+		TreeMap<Long, String> applied = pairsOf(store);
+		store.close();
+
+		DurableKeyStore reopened = DurableKeyStore.open(new ChunkedKeyStore(), dir);
+		assertEquals(applied, pairsOf(reopened));
+		reopened.close();
+	}
+
+	private static TreeMap<Long, String> pairsOf(KeyStore store) {
+		TreeMap<Long, String> pairs = new TreeMap<Long, String>();
+		store.forEach(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE,
+				(key, utf8, offset, length) -> pairs.put(key, new String(utf8, offset, length, StandardCharsets.UTF_8)));
+		return pairs;
+	}
+
+	// Opens the store in dir again and checks it holds what the diff expects
+	private DurableKeyStore reopen(KeyStoreDiff diff) throws IOException {
+		DurableKeyStore store = DurableKeyStore.open(new ChunkedKeyStore(), dir);
+		assertTrue(store.isRecovered());
+		diff.reopened(store);
+		diff.check();
+		return store;
+	}
+
+	private int count(String prefix) {
+		int count = 0;
+		for (String name : dir.list()) {
+			if (name.startsWith(prefix))
+				count++;
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,152 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Frame Server Test. Ordered frames of a connection are handled in the order they
+ * were sent while other frames of it are handled at the same time, a frame that
+ * arrives a few bytes at a time is handled whole, and a connection announcing a
+ * frame over the limit is closed.
+ */
+public class FrameServerTest {
+
+	private int port;
+	private volatile FrameServer.Handler handler;
+
+	@BeforeEach
+	public void start() throws IOException {
+		try (ServerSocket free = new ServerSocket(0)) {
+			port = free.getLocalPort();
+		}
+		FrameServer server = new FrameServer(port, 8, (frame, visited, in, out) -> handler.handle(frame, visited, in, out),
+				Opcode.ENTER);
+		server.start();
+	}
+
+	@Test
+	public void orderedFramesKeepTheirOrder() throws Exception {
+		int count = 2000;
+		List<Integer> handled = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(count);
+		handler = (frame, visited, in, out) -> {
+			try {
+				handled.add(frame.getVarInt());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			done.countDown();
+		};
+
+		try (Socket socket = connect()) {
+			OutputStream out = socket.getOutputStream();
+			Frame frame = new Frame();
+			for (int i = 0; i < count; i++)
+				frame.begin(Opcode.REPLICATE).putVarInt(i).writeTo(out);
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+		for (int i = 0; i < count; i++)
+			assertEquals(i, handled.get(i));
+	}
+
+	@Test
+	public void otherFramesOfAConnectionRunAtOnce() throws Exception {
+		CountDownLatch second = new CountDownLatch(1);
+		CountDownLatch first = new CountDownLatch(1);
+		handler = (frame, visited, in, out) -> {
+			try {
+				if (frame.getVarInt() == 1) {
+					// Only returns once the frame sent after it was handled
+					if (second.await(10, TimeUnit.SECONDS))
+						first.countDown();
+				} else {
+					second.countDown();
+				}
+			} catch (IOException | InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		};
+
+		try (Socket socket = connect()) {
+			OutputStream out = socket.getOutputStream();
+			Frame frame = new Frame();
+			frame.begin(Opcode.LOOKUP).putVarInt(1).writeTo(out);
+			frame.begin(Opcode.LOOKUP).putVarInt(2).writeTo(out);
+			assertTrue(first.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void frameArrivingInPiecesIsHandledWhole() throws Exception {
+		StringBuilder built = new StringBuilder();
+		for (int i = 0; i < 300000; i++) // Several times the read buffer
+			built.append((char) ('a' + i % 26));
+		String value = built.toString();
+		String[] received = new String[1];
+		CountDownLatch done = new CountDownLatch(1);
+		handler = (frame, visited, in, out) -> {
+			try {
+				received[0] = frame.getString();
+				new Frame().begin(Opcode.REPLY).putVarInt(received[0].length()).writeTo(out);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			done.countDown();
+		};
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new Frame().begin(Opcode.INSERT).putString(value).writeTo(bytes);
+		byte[] whole = bytes.toByteArray();
+
+		try (Socket socket = connect()) {
+			OutputStream out = socket.getOutputStream();
+			for (int at = 0, piece = 1; at < whole.length; at += piece, piece = Math.min(piece * 3, 40000)) {
+				out.write(whole, at, Math.min(piece, whole.length - at));
+				out.flush();
+				Thread.sleep(2);
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+
+			Frame reply = new Frame();
+			assertTrue(reply.readFrom(socket.getInputStream()));
+			assertEquals(value.length(), reply.getVarInt());
+		}
+		assertEquals(value, received[0]);
+	}
+
+	@Test
+	public void frameOverTheLimitClosesTheConnection() throws Exception {
+		handler = (frame, visited, in, out) -> {
+		};
+		try (Socket socket = connect()) {
+			OutputStream out = socket.getOutputStream();
+			int length = Frame.MAX_PAYLOAD + 1;
+			out.write(new byte[] { Frame.VERSION, Opcode.INSERT, (byte) (length | 0x80), (byte) ((length >>> 7) | 0x80),
+					(byte) ((length >>> 14) | 0x80), (byte) (length >>> 21) });
+			out.flush();
+			InputStream in = socket.getInputStream();
+			assertEquals(-1, in.read());
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setSoTimeout(10000);
+		return socket;
+	}
+
+}
@@ -0,0 +1,225 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Frame Test. Every field type written to a frame comes back the same through a
+ * stream and through a buffer, and malformed headers are refused before anything is
+ * allocated for them.
+ */
+public class FrameTest {
+
+	private static final int[] VARINTS = { 0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456,
+			Integer.MAX_VALUE };
+	private static final String[] STRINGS = { "", "value", "café", "€100", "😀 smile",
+			"x".repeat(70000) };
+
+	@Test
+	public void fieldsRoundTripThroughAStream() throws IOException {
+		Frame frame = writeEveryField();
+		Frame read = new Frame();
+		assertTrue(read.readFrom(new ByteArrayInputStream(bytes(frame))));
+		checkEveryField(read);
+	}
+
+	@Test
+	public void fieldsRoundTripThroughABuffer() throws IOException {
+		byte[] one = bytes(writeEveryField());
+		ByteBuffer buffer = ByteBuffer.allocateDirect(one.length * 2);
+		buffer.put(one).put(one).flip();
+
+		Frame read = new Frame();
+		for (int i = 0; i < 2; i++) {
+			assertEquals(one.length, Frame.sizeOf(buffer));
+			read.readFrom(buffer);
+			checkEveryField(read);
+		}
+		assertEquals(0, buffer.remaining());
+	}
+
+	@Test
+	public void framesFollowEachOtherOnAStream() throws IOException {
+		Frame frame = new Frame();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < 3; i++)
+			frame.begin(Opcode.LOOKUP).putVarInt(i).putString("key" + i).writeTo(out);
+
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(frame.readFrom(in));
+			assertEquals(Opcode.LOOKUP, frame.getOpcode());
+			assertEquals(i, frame.getVarInt());
+			assertEquals("key" + i, frame.getString());
+			assertEquals(0, frame.remaining());
+		}
+		assertFalse(frame.readFrom(in));
+	}
+
+	@Test
+	public void partialHeaderHasNoSizeYet() throws IOException {
+		byte[] whole = bytes(new Frame().begin(Opcode.INSERT).putString("x".repeat(300)));
+		for (int cut = 0; cut < 4; cut++)
+			assertEquals(-1, Frame.sizeOf(ByteBuffer.wrap(whole, 0, cut)));
+		assertEquals(whole.length, Frame.sizeOf(ByteBuffer.wrap(whole, 0, 4)));
+	}
+
+	@Test
+	public void truncatedPayloadIsRefused() {
+		byte[] whole = bytes(new Frame().begin(Opcode.INSERT).putLong(42).putString("value"));
+		byte[] cut = Arrays.copyOf(whole, whole.length - 1);
+		assertThrows(EOFException.class, () -> new Frame().readFrom(new ByteArrayInputStream(cut)));
+		assertThrows(EOFException.class, () -> new Frame().readFrom(ByteBuffer.wrap(cut)));
+	}
+
+	@Test
+	public void readingPastThePayloadIsRefused() throws IOException {
+		Frame frame = new Frame();
+		frame.readFrom(new ByteArrayInputStream(bytes(new Frame().begin(Opcode.DELETE).putVarInt(5))));
+		assertEquals(5, frame.getVarInt());
+		assertThrows(IOException.class, frame::getLong);
+	}
+
+	@Test
+	public void unpairedSurrogatesAreWrittenLikeGetBytes() throws IOException {
+		for (String value : new String[] { "a\uD83Db", "a\uDE00b", "\uDE00\uD83D", "end\uD83D" }) {
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			assertEquals(utf8.length, Frame.utf8Length(value));
+			assertEquals(Ring.hash(utf8, 0, utf8.length), Ring.hash(value));
+
+			Frame read = new Frame();
+			read.readFrom(new ByteArrayInputStream(bytes(new Frame().begin(Opcode.INSERT).putString(value))));
+			assertEquals(new String(utf8, StandardCharsets.UTF_8), read.getString());
+		}
+	}
+
+	@Test
+	public void negativeLengthIsRefused() {
+		byte[] header = { Frame.VERSION, Opcode.LOOKUP, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F };
+		assertThrows(IOException.class, () -> new Frame().readFrom(new ByteArrayInputStream(header)));
+		assertThrows(IOException.class, () -> Frame.sizeOf(ByteBuffer.wrap(header)));
+	}
+
+	@Test
+	public void lengthOverTheLimitIsRefused() {
+		int length = Frame.MAX_PAYLOAD + 1;
+		byte[] header = { Frame.VERSION, Opcode.LOOKUP, (byte) (length | 0x80), (byte) ((length >>> 7) | 0x80),
+				(byte) ((length >>> 14) | 0x80), (byte) (length >>> 21) };
+		assertThrows(IOException.class, () -> new Frame().readFrom(new ByteArrayInputStream(header)));
+		assertThrows(IOException.class, () -> Frame.sizeOf(ByteBuffer.wrap(header)));
+	}
+
+	@Test
+	public void overlongLengthIsRefused() {
+		byte[] header = { Frame.VERSION, Opcode.LOOKUP, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+				(byte) 0x80, 0 };
+		assertThrows(IOException.class, () -> new Frame().readFrom(new ByteArrayInputStream(header)));
+		assertThrows(IOException.class, () -> Frame.sizeOf(ByteBuffer.wrap(header)));
+	}
+
+	@Test
+	public void otherVersionIsRefused() {
+		byte[] whole = bytes(new Frame().begin(Opcode.PRINT));
+		whole[0] = Frame.VERSION + 1;
+		assertThrows(IOException.class, () -> new Frame().readFrom(new ByteArrayInputStream(whole)));
+		assertThrows(IOException.class, () -> Frame.sizeOf(ByteBuffer.wrap(whole)));
+	}
+
+	@Test
+	public void checksumCoversThePayloadReadSoFar() throws IOException {
+		Frame frame = new Frame().begin(Opcode.RANGE_CHUNK).putVarInt(7).putLong(42);
+		int written = frame.checksum();
+		frame.putFixedInt(written);
+
+		Frame read = new Frame();
+		read.readFrom(new ByteArrayInputStream(bytes(frame)));
+		read.getVarInt();
+		read.getLong();
+		assertEquals(written, read.checksum());
+		assertEquals(written, read.getFixedInt());
+	}
+
+	private static Frame writeEveryField() throws IOException {
+		Frame frame = new Frame().begin(Opcode.MPUT);
+		for (int value : VARINTS)
+			frame.putVarInt(value);
+		for (String value : STRINGS)
+			frame.putString(value);
+		frame.putBoolean(true).putBoolean(false);
+		frame.putFixedInt(-1).putFixedInt(0x12345678);
+		frame.putLong(Long.MIN_VALUE).putLong(-1).putLong(Long.MAX_VALUE);
+		byte[] raw = "raw bytes".getBytes(StandardCharsets.UTF_8);
+		frame.putBytes(raw, 4, 5);
+		frame.putNode(new RingNode(527, 3768, InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 })));
+		frame.putAddress(InetAddress.getByName("::1"));
+
+		VisitedNodes visited = new VisitedNodes();
+		for (int id : new int[] { 0, 322, 527, 100000 })
+			visited.add(id);
+		frame.putVisited(visited);
+		frame.putPairs(pairs());
+		return frame;
+	}
+
+	private static void checkEveryField(Frame frame) throws IOException {
+		assertEquals(Opcode.MPUT, frame.getOpcode());
+		for (int value : VARINTS)
+			assertEquals(value, frame.getVarInt());
+		for (String value : STRINGS)
+			assertEquals(value, frame.getString());
+		assertTrue(frame.getBoolean());
+		assertFalse(frame.getBoolean());
+		assertEquals(-1, frame.getFixedInt());
+		assertEquals(0x12345678, frame.getFixedInt());
+		assertEquals(Long.MIN_VALUE, frame.getLong());
+		assertEquals(-1, frame.getLong());
+		assertEquals(Long.MAX_VALUE, frame.getLong());
+		assertEquals(5, frame.getVarInt());
+		frame.position(frame.position() + 5);
+
+		RingNode node = frame.getNode();
+		assertEquals(527, node.getID());
+		assertEquals(3768, node.getPort());
+		assertArrayEquals(new byte[] { 10, 0, 0, 1 }, node.getIP().getAddress());
+		assertArrayEquals(Ring.tokens(527), node.getTokens()); // Worked out from the ID when asked for
+		assertEquals(InetAddress.getByName("::1"), frame.getAddress());
+		assertEquals("[0, 322, 527, 100000]", frame.getVisited(new VisitedNodes()).toString());
+
+		TreeMap<Long, String> pairs = new TreeMap<Long, String>();
+		frame.getPairs(pairs);
+		assertEquals(pairs(), pairs);
+		assertEquals(0, frame.remaining());
+	}
+
+	private static TreeMap<Long, String> pairs() {
+		TreeMap<Long, String> pairs = new TreeMap<Long, String>();
+		pairs.put(Long.MIN_VALUE, "first");
+		pairs.put(0L, "");
+		pairs.put(Long.MAX_VALUE, "über");
+		return pairs;
+	}
+
+	private static byte[] bytes(Frame frame) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			frame.writeTo(out);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,187 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Invalidations Test. Only the bootstrap an owner entered through is watched, by the
+ * ID it answered with. A key stays watched until the bootstrap acknowledges dropping
+ * it, a write whose invalidation is never acknowledged fails after every try, a
+ * key watched again while it is being invalidated stays watched, and a key pushed
+ * out by newer ones is still invalidated by a write until the bootstrap acknowledges.
+ */
+public class InvalidationsTest {
+
+	private static final int BOOTSTRAP_ID = 5; // Not 0, the bootstrap's ID comes from its config
+
+	private ServerSocket server;
+	private BlockingQueue<Invalidation> received; // Invalidations the bootstrap got, the test answers them
+	private ConnectionPool pool;
+	private PendingRequests pending;
+	private Invalidations invalidations;
+	private RingNode bootstrap;
+
+	private static class Invalidation {
+		int requestID;
+		List<Long> keys = new ArrayList<Long>();
+	}
+
+	@BeforeEach
+	public void start() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		received = new LinkedBlockingQueue<Invalidation>();
+		Thread accepter = new Thread(() -> {
+			try {
+				while (true) {
+					Socket socket = server.accept();
+					Thread reader = new Thread(() -> serve(socket));
+					reader.setDaemon(true);
+					reader.start();
+				}
+			} catch (IOException e) {
+				// Server closed
+			}
+		});
+		accepter.setDaemon(true);
+		accepter.start();
+
+		pool = new ConnectionPool();
+		pending = new PendingRequests(200);
+		RingNode self = new RingNode(322, 7432, InetAddress.getLoopbackAddress());
+		invalidations = new Invalidations(self, pool, pending);
+		bootstrap = new RingNode(BOOTSTRAP_ID, server.getLocalPort(), InetAddress.getLoopbackAddress());
+	}
+
+	@AfterEach
+	public void stop() throws IOException {
+		pool.closeAll();
+		server.close();
+	}
+
+	@Test
+	public void bootstrapIsKnownByTheIDItAnswered() {
+		RingNode zero = new RingNode(0, bootstrap.getPort(), bootstrap.getIP());
+		assertFalse(invalidations.isBootstrap(bootstrap)); // Not entered yet
+		invalidations.setBootstrap(bootstrap);
+		assertTrue(invalidations.isBootstrap(new RingNode(BOOTSTRAP_ID, 0, bootstrap.getIP())));
+		assertFalse(invalidations.isBootstrap(zero));
+	}
+
+	@Test
+	public void acknowledgedKeysAreUnwatched() throws Exception {
+		invalidations.setBootstrap(bootstrap);
+		invalidations.watch(1);
+		invalidations.watch(2);
+
+		CompletableFuture<Void> changed = invalidations.changed(List.of(1L, 3L));
+		Invalidation invalidation = next();
+		assertEquals(List.of(1L), invalidation.keys);
+		assertFalse(changed.isDone());
+		acknowledge(invalidation);
+		changed.get(1, TimeUnit.SECONDS);
+
+		assertTrue(invalidations.changed(List.of(1L, 3L)).isDone());
+		assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void unacknowledgedKeysFailTheWriteAndStayWatched() throws Exception {
+		invalidations.setBootstrap(bootstrap);
+		invalidations.watch(1);
+
+		CompletableFuture<Void> changed = invalidations.changed(List.of(1L));
+		for (int i = 0; i < Invalidations.ATTEMPTS; i++)
+			assertEquals(List.of(1L), next().keys);
+		assertThrows(ExecutionException.class, () -> changed.get(5, TimeUnit.SECONDS));
+		assertNull(received.poll(500, TimeUnit.MILLISECONDS)); // No more tries
+
+		// Next write to the key tells the bootstrap again
+		CompletableFuture<Void> again = invalidations.changed(List.of(1L));
+		acknowledge(next());
+		again.get(1, TimeUnit.SECONDS);
+		assertTrue(invalidations.changed(List.of(1L)).isDone());
+	}
+
+	@Test
+	public void keyWatchedAgainMeanwhileStaysWatched() throws Exception {
+		invalidations.setBootstrap(bootstrap);
+		invalidations.watch(1);
+
+		CompletableFuture<Void> changed = invalidations.changed(List.of(1L));
+		Invalidation invalidation = next();
+		invalidations.watch(1); // Bootstrap read the new value before it acknowledged
+		acknowledge(invalidation);
+		changed.get(1, TimeUnit.SECONDS);
+
+		CompletableFuture<Void> again = invalidations.changed(List.of(1L));
+		assertEquals(List.of(1L), next().keys);
+		assertFalse(again.isDone());
+	}
+
+	@Test
+	public void evictedKeyIsInvalidatedUntilAcknowledged() throws Exception {
+		invalidations.setBootstrap(bootstrap);
+		for (long key = 0; key <= Invalidations.LIMIT; key++)
+			invalidations.watch(key);
+		assertEquals(List.of(0L), next().keys); // Oldest key made room, not acknowledged yet
+
+		CompletableFuture<Void> changed = invalidations.changed(List.of(0L));
+		Invalidation invalidation = next();
+		assertEquals(List.of(0L), invalidation.keys);
+		assertFalse(changed.isDone());
+		acknowledge(invalidation);
+		changed.get(1, TimeUnit.SECONDS);
+
+		assertTrue(invalidations.changed(List.of(0L)).isDone());
+	}
+
+	// Next invalidation the bootstrap got
+	private Invalidation next() throws InterruptedException {
+		Invalidation invalidation = received.poll(5, TimeUnit.SECONDS);
+		assertTrue(invalidation != null, "no invalidation arrived");
+		return invalidation;
+	}
+
+	private void acknowledge(Invalidation invalidation) {
+		assertTrue(pending.complete(new Reply(invalidation.requestID, true, null, BOOTSTRAP_ID, new VisitedNodes())));
+	}
+
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			Frame frame = new Frame();
+			while (frame.readFrom(in)) {
+				if (frame.getOpcode() != Opcode.INVALIDATE)
+					continue;
+				Invalidation invalidation = new Invalidation();
+				invalidation.requestID = frame.getVarInt();
+				frame.getNode();
+				for (int n = frame.getVarInt(); n > 0; n--)
+					invalidation.keys.add(frame.getLong());
+				received.add(invalidation);
+			}
+		} catch (IOException e) {
+			// Connection closed
+		}
+	}
+
+}
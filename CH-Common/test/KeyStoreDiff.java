@@ -0,0 +1,164 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Key Store Diff. Runs the same random operations on a store under test and on a
+ * SkipListKeyStore, a plain sorted map, and fails at the first answer that differs.
+ * Keys come from a pool that holds the ends of the ring and the keys either side of
+ * 0, so keys are replaced and removed about as often as they are added, and ranges
+ * often start or end on a stored key, its neighbours or the end of the ring, and
+ * wrap past it. Values are empty, short or a few hundred bytes, with characters of
+ * every UTF-8 length. A whole-store check also compares the value bytes and bucket
+ * counts both stores keep with those of the pairs they hold.
+ */
+public class KeyStoreDiff {
+
+	private static final String[] CHARS = { "a", "b", "z", "0", " ", "é", "ß", "€", "中", "😀" };
+
+	private KeyStore expected;
+	private KeyStore actual;
+	private Random random;
+	private long[] pool;
+	private int steps;
+
+	public KeyStoreDiff(KeyStore actual, long seed, int keys) {
+		this.expected = new SkipListKeyStore();
+		this.actual = actual;
+		this.random = new Random(seed);
+		this.pool = new long[keys];
+		long[] ends = { Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+		System.arraycopy(ends, 0, pool, 0, ends.length);
+		for (int i = ends.length; i < keys; i++)
+			pool[i] = random.nextLong();
+	}
+
+	public KeyStore expected() {
+		return expected;
+	}
+
+	public Random random() {
+		return random;
+	}
+
+	// Carries on with another store under test that should hold the same pairs, such as one reopened from disk
+	public void reopened(KeyStore actual) {
+		this.actual = actual;
+	}
+
+	// Runs random operations, comparing the whole stores every check operations
+	public void run(int operations, int check) {
+		for (int i = 1; i <= operations; i++) {
+			step();
+			if (i % check == 0)
+				check();
+		}
+		check();
+	}
+
+	// Runs one random operation on both stores and compares what they answer
+	public void step() {
+		steps++;
+		int op = random.nextInt(1000);
+		long key = key();
+		if (op < 350) {
+			String value = value();
+			expected.put(key, value);
+			actual.put(key, value);
+		} else if (op < 450) {
+			// Value in the middle of a larger array
+			byte[] utf8 = value().getBytes(StandardCharsets.UTF_8);
+			byte[] padded = new byte[utf8.length + 6];
+			Arrays.fill(padded, (byte) 'x');
+			System.arraycopy(utf8, 0, padded, 3, utf8.length);
+			expected.putBytes(key, padded, 3, utf8.length);
+			actual.putBytes(key, padded, 3, utf8.length);
+		} else if (op < 600) {
+			assertEquals(expected.remove(key), actual.remove(key), at("remove " + key));
+		} else if (op < 750) {
+			assertEquals(expected.get(key), actual.get(key), at("get " + key));
+		} else if (op < 830) {
+			long to = key();
+			assertEquals(expected.count(key, to), actual.count(key, to), at("count " + key + " " + to));
+		} else if (op < 920) {
+			range(key, key(), random.nextInt(4) == 0 ? random.nextInt(20) : Integer.MAX_VALUE);
+		} else if (op < 970) {
+			long to = random.nextInt(4) == 0 ? key : key();
+			assertEquals(expected.removeRange(key, to), actual.removeRange(key, to), at("removeRange " + key + " " + to));
+		} else if (op < 999) {
+			KeyStore other = new ChunkedKeyStore();
+			for (int i = random.nextInt(600); i > 0; i--)
+				other.put(key(), value());
+			expected.putAll(other);
+			actual.putAll(other);
+		} else {
+			expected.clear();
+			actual.clear();
+		}
+		assertEquals(expected.size(), actual.size(), at("size"));
+	}
+
+	// Compares every pair of the two stores, and the counts they keep with those of their pairs
+	public void check() {
+		assertEquals(expected.size(), actual.size(), at("size"));
+		range(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+		long[] valueBytes = { 0 };
+		long[] buckets = new long[KeyStore.BUCKETS];
+		expected.forEach(Long.MIN_VALUE, Long.MAX_VALUE, (key, utf8, offset, length) -> {
+			valueBytes[0] += length;
+			buckets[KeyStore.bucket(key)]++;
+		});
+		assertEquals(valueBytes[0], expected.valueBytes(), at("valueBytes of the plain map"));
+		assertEquals(valueBytes[0], actual.valueBytes(), at("valueBytes"));
+		assertArrayEquals(buckets, expected.buckets(), at("buckets of the plain map"));
+		assertArrayEquals(buckets, actual.buckets(), at("buckets"));
+	}
+
+	// Compares the count of a range and the pairs visited in it, at most limit of them
+	public void range(long from, long to, int limit) {
+		assertEquals(expected.count(from, to), actual.count(from, to), at("count " + from + " " + to));
+		List<String> visited = pairs(expected, from, to, limit);
+		assertEquals(visited, pairs(actual, from, to, limit), at("forEach " + from + " " + to + " " + limit));
+	}
+
+	// Key from the pool, or next to one of them
+	public long key() {
+		long key = pool[random.nextInt(pool.length)];
+		switch (random.nextInt(8)) {
+		case 0:
+			return key + 1;
+		case 1:
+			return key - 1;
+		default:
+			return key;
+		}
+	}
+
+	public String value() {
+		int length = random.nextInt(10) == 0 ? random.nextInt(400) : random.nextInt(12);
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			value.append(CHARS[random.nextInt(CHARS.length)]);
+		return value.toString();
+	}
+
+	// Pairs a store visits, as "key=value" in the order it visits them
+	public static List<String> pairs(KeyStore store, long from, long to, int limit) {
+		List<String> pairs = new ArrayList<String>();
+		int visited = store.forEach(from, to, limit, (key, utf8, offset, length) -> pairs
+				.add(key + "=" + new String(utf8, offset, length, StandardCharsets.UTF_8)));
+		assertEquals(pairs.size(), visited);
+		return pairs;
+	}
+
+	private String at(String operation) {
+		return "step " + steps + ": " + operation;
+	}
+
+}
@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Pipeline Test. Commands sent while the window is full return at once and wait in
+ * the queue, going out in the order they were sent as answers free the window. A
+ * full queue fails a command straight away, and closing the pipeline fails the
+ * commands in flight and waiting.
+ */
+public class PipelineTest {
+
+	private ServerSocket server;
+	private Socket accepted;
+	private BlockingQueue<Integer> received; // Request IDs of the commands the node got
+	private Pipeline pipeline;
+
+	@BeforeEach
+	public void start() throws Exception {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		received = new LinkedBlockingQueue<Integer>();
+		CompletableFuture<Socket> connection = CompletableFuture.supplyAsync(() -> {
+			try {
+				return server.accept();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		pipeline = new Pipeline(InetAddress.getLoopbackAddress(), server.getLocalPort(), 9, 10000);
+		accepted = connection.get(5, TimeUnit.SECONDS);
+
+		Thread reader = new Thread(() -> {
+			try {
+				InputStream in = new BufferedInputStream(accepted.getInputStream());
+				Frame frame = new Frame();
+				while (frame.readFrom(in))
+					received.add(frame.getVarInt());
+			} catch (IOException e) {
+				// Connection closed
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@AfterEach
+	public void stop() throws IOException {
+		pipeline.close();
+		server.close();
+	}
+
+	@Test
+	public void fullWindowQueuesInsteadOfBlocking() throws Exception {
+		List<CompletableFuture<Reply>> replies = new ArrayList<CompletableFuture<Reply>>();
+		for (int i = 0; i < Pipeline.WINDOW + 10; i++)
+			replies.add(pipeline.send(Opcode.LOOKUP, frame -> frame.putLong(42)));
+
+		List<Integer> sent = take(Pipeline.WINDOW);
+		assertNull(received.poll(200, TimeUnit.MILLISECONDS)); // Rest wait for the window
+		assertEquals(Pipeline.WINDOW + 10, pipeline.inFlight());
+
+		// Each answer lets the oldest waiting command out
+		answer(sent.subList(0, 4));
+		List<Integer> next = take(4);
+		assertEquals(sent.get(sent.size() - 1) + 1, next.get(0));
+		for (int i = 1; i < next.size(); i++)
+			assertEquals(next.get(i - 1) + 1, next.get(i));
+
+		answer(sent.subList(4, sent.size()));
+		answer(next);
+		answer(take(6));
+		for (CompletableFuture<Reply> reply : replies)
+			assertTrue(reply.get(5, TimeUnit.SECONDS).isFound());
+		assertEquals(0, pipeline.inFlight());
+	}
+
+	@Test
+	public void fullQueueFailsAtOnce() throws Exception {
+		for (int i = 0; i < Pipeline.WINDOW + Pipeline.QUEUE; i++)
+			pipeline.send(Opcode.LOOKUP, frame -> frame.putLong(42));
+		CompletableFuture<Reply> rejected = pipeline.send(Opcode.LOOKUP, frame -> frame.putLong(42));
+		assertTrue(rejected.isCompletedExceptionally());
+		assertTrue(pipeline.isOpen());
+	}
+
+	@Test
+	public void closingFailsWaitingCommands() throws Exception {
+		List<CompletableFuture<Reply>> replies = new ArrayList<CompletableFuture<Reply>>();
+		for (int i = 0; i < Pipeline.WINDOW + 10; i++)
+			replies.add(pipeline.send(Opcode.LOOKUP, frame -> frame.putLong(42)));
+		take(Pipeline.WINDOW);
+
+		pipeline.close();
+		assertFalse(pipeline.isOpen());
+		for (CompletableFuture<Reply> reply : replies) {
+			ExecutionException e = assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	// Request IDs of the next count commands the node got
+	private List<Integer> take(int count) throws InterruptedException {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++) {
+			Integer id = received.poll(5, TimeUnit.SECONDS);
+			assertTrue(id != null, "only " + i + " of " + count + " commands arrived");
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	private void answer(List<Integer> ids) throws IOException {
+		OutputStream out = accepted.getOutputStream();
+		Frame frame = new Frame();
+		for (int id : ids) {
+			Reply.write(frame, id, true, "value", 0, new VisitedNodes());
+			frame.writeTo(out);
+		}
+	}
+
+}
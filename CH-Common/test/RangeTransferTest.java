@@ -0,0 +1,245 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Range Transfer Test. A range streamed to a receiver over a socket arrives whole and
+ * is counted once, when the connection drops mid-transfer and the sender resumes on
+ * a new one, and when a chunk is damaged on the way and resent. Chunks handed to the
+ * receiver directly are stored only in order and resent ones aren't counted twice,
+ * and a finished transfer still acknowledges its last chunk without its store.
+ */
+public class RangeTransferTest {
+
+	private static final long FROM = Long.MAX_VALUE - (1L << 40); // Range wraps past the end of the ring
+	private static final long TO = Long.MIN_VALUE + (1L << 40);
+	private static final int PAIRS = 5000; // About ten chunks
+
+	private RangeTransfer receiver;
+	private KeyStore received;
+	private ServerSocket server;
+	private AtomicInteger connections;
+	private volatile int dropAfter; // Chunks the first connection takes before it breaks, 0 to never break it
+
+	@BeforeEach
+	public void start() throws IOException {
+		receiver = new RangeTransfer();
+		received = new ChunkedKeyStore();
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		connections = new AtomicInteger();
+		Thread accepter = new Thread(() -> {
+			try {
+				while (true) {
+					Socket socket = server.accept();
+					int connection = connections.incrementAndGet();
+					new Thread(() -> serve(socket, connection)).start();
+				}
+			} catch (IOException e) {
+				// Server closed
+			}
+		});
+		accepter.setDaemon(true);
+		accepter.start();
+	}
+
+	@AfterEach
+	public void stop() throws IOException {
+		server.close();
+	}
+
+	@Test
+	public void wrappingRangeArrivesWhole() throws Exception {
+		KeyStore store = filled();
+		KeyStore original = copy(store);
+		int transferID = RangeTransfer.newID();
+		CompletableFuture<Integer> done = receiver.expect(transferID, FROM, received);
+
+		assertEquals(PAIRS, send(store, transferID, null));
+		assertEquals(PAIRS, done.get(10, TimeUnit.SECONDS));
+		checkMoved(original, store);
+	}
+
+	@Test
+	public void droppedConnectionResumesOnANewOne() throws Exception {
+		KeyStore store = filled();
+		KeyStore original = copy(store);
+		int transferID = RangeTransfer.newID();
+		CompletableFuture<Integer> done = receiver.expect(transferID, FROM, received);
+
+		// Breaks after storing a chunk it never acknowledges, so the sender resends it
+		dropAfter = 3;
+		assertEquals(PAIRS, send(store, transferID, null));
+		assertEquals(PAIRS, done.get(10, TimeUnit.SECONDS));
+		assertEquals(2, connections.get());
+		checkMoved(original, store);
+	}
+
+	@Test
+	public void damagedChunkIsResent() throws Exception {
+		KeyStore store = filled();
+		KeyStore original = copy(store);
+		int transferID = RangeTransfer.newID();
+		CompletableFuture<Integer> done = receiver.expect(transferID, FROM, received);
+
+		assertEquals(PAIRS, send(store, transferID, 2));
+		assertEquals(PAIRS, done.get(10, TimeUnit.SECONDS));
+		checkMoved(original, store);
+	}
+
+	@Test
+	public void chunksAreStoredInOrderAndCountedOnce() throws Exception {
+		int transferID = RangeTransfer.newID();
+		CompletableFuture<Integer> done = receiver.expect(transferID, 0, received);
+
+		assertEquals(10, ack(chunk(transferID, 0, 0, 10, 9, false)));
+		assertEquals(10, ack(chunk(transferID, 0, 0, 10, 9, false))); // Resent
+		assertEquals(10, ack(chunk(transferID, 15, 15, 5, 19, false))); // Skips 10 to 14
+		assertNull(received.get(15));
+		assertEquals(15, ack(chunk(transferID, 5, 5, 10, 14, false))); // Overlaps what it has
+
+		Frame damaged = chunk(transferID, 15, 15, 5, 19, false);
+		damaged.position(new Frame().begin(Opcode.RANGE_CHUNK).putVarInt(transferID).putLong(15).position());
+		damaged.putLong(99); // First key, changed after the checksum was taken
+		assertEquals(15, ack(damaged));
+
+		assertEquals(20, ack(chunk(transferID, 15, 15, 5, 19, true)));
+		assertEquals(20, done.get(1, TimeUnit.SECONDS));
+		assertEquals(20, received.size());
+		assertTrue(done.isDone());
+
+		// Finished transfer let go of its store, a resent last chunk is only acknowledged
+		received.clear();
+		assertEquals(20, ack(chunk(transferID, 15, 15, 5, 19, true)));
+		assertEquals(0, received.size());
+	}
+
+	// Streams the whole range from the store, damaging the chunk of the given number
+	private int send(KeyStore store, int transferID, Integer damage) throws IOException {
+		try (Socket socket = ConnectionPool.connect(server.getInetAddress(), server.getLocalPort())) {
+			OutputStream out = socket.getOutputStream();
+			if (damage != null)
+				out = new Damaging(out, damage);
+			return RangeTransfer.send(store, null, FROM, TO, transferID, socket.getInputStream(), out,
+					server.getInetAddress(), server.getLocalPort());
+		}
+	}
+
+	// Hands every chunk on a connection to the receiver, as a server does
+	private void serve(Socket socket, int connection) {
+		try (socket) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			Frame frame = new Frame();
+			int chunks = 0;
+			while (frame.readFrom(in)) {
+				chunks++;
+				if (connection == 1 && chunks == dropAfter) {
+					receiver.receive(frame, new ByteArrayOutputStream());
+					return;
+				}
+				receiver.receive(frame, out);
+			}
+		} catch (IOException e) {
+			// Sender went away
+		}
+	}
+
+	// Cursor the receiver answers a chunk with
+	private long ack(Frame chunk) throws IOException {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		chunk.writeTo(wire);
+		Frame frame = new Frame();
+		frame.readFrom(new ByteArrayInputStream(wire.toByteArray()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		receiver.receive(frame, out);
+
+		Frame ack = new Frame();
+		ack.readFrom(new ByteArrayInputStream(out.toByteArray()));
+		ack.getVarInt();
+		ack.getVarInt();
+		return ack.getLong();
+	}
+
+	// Chunk of count pairs from first on, laid out as a sender writes it
+	private static Frame chunk(int transferID, long cursor, long first, int count, long end, boolean last) {
+		Frame frame = new Frame().begin(Opcode.RANGE_CHUNK).putVarInt(transferID).putLong(cursor);
+		for (long key = first; key < first + count; key++) {
+			byte[] value = ("v" + key).getBytes();
+			frame.putLong(key).putBytes(value, 0, value.length);
+		}
+		frame.putLong(end).putBoolean(last);
+		return frame.putFixedInt(frame.checksum());
+	}
+
+	// Store with PAIRS pairs in the range and some outside it
+	private static KeyStore filled() {
+		KeyStore store = new ChunkedKeyStore();
+		Random random = new Random(1);
+		for (int i = 0; i < PAIRS; i++)
+			store.put((random.nextBoolean() ? FROM : Long.MIN_VALUE) + (random.nextLong() & ((1L << 40) - 1)), "v" + i);
+		while (store.size() < PAIRS)
+			store.put(FROM + store.size(), "extra");
+		for (int i = 0; i < 100; i++)
+			store.put(i, "outside");
+		return store;
+	}
+
+	private static KeyStore copy(KeyStore store) {
+		KeyStore copy = new SkipListKeyStore();
+		copy.putAll(store);
+		return copy;
+	}
+
+	// The range left the sender and the receiver has exactly its pairs
+	private void checkMoved(KeyStore original, KeyStore sender) {
+		assertEquals(0, sender.count(FROM, TO));
+		assertEquals(100, sender.size());
+		assertEquals(KeyStoreDiff.pairs(original, FROM, TO, Integer.MAX_VALUE),
+				KeyStoreDiff.pairs(received, FROM, TO, Integer.MAX_VALUE));
+		assertEquals(PAIRS, received.size());
+	}
+
+	/*
+	 * Damaging. Flips a byte in the middle of one frame written through it, where the
+	 * pairs of a chunk are.
+	 */
+	private static class Damaging extends FilterOutputStream {
+
+		private int frames;
+		private int damage;
+
+		Damaging(OutputStream out, int damage) {
+			super(out);
+			this.damage = damage;
+		}
+
+		public void write(byte[] b, int offset, int length) throws IOException {
+			if (++frames == damage) {
+				b = b.clone();
+				b[offset + length / 2] ^= 0x55;
+			}
+			out.write(b, offset, length);
+		}
+
+	}
+
+}
@@ -0,0 +1,133 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Segment Key Store Test. A segment written from a store reads back the same pairs,
+ * whatever chunk it was read in, and a store serving a segment with an overlay on
+ * top answers like the skip list store as pairs of the segment are replaced, removed
+ * and cleared and ranges are merged from the two, wrapping past the end of the ring.
+ */
+public class SegmentKeyStoreTest {
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void segmentReadsBackItsPairs() throws IOException {
+		KeyStoreDiff diff = new KeyStoreDiff(new ChunkedKeyStore(), 1, 5000);
+		diff.run(20000, 20000);
+
+		byte[] written = null;
+		for (int chunk : new int[] { 1, 7, 4096 }) {
+			File file = new File(dir, "chunk-" + chunk + ".seg");
+			assertEquals(diff.expected().size(), Segment.write(file, diff.expected(), chunk));
+			if (written != null)
+				assertArrayEquals(written, Files.readAllBytes(file.toPath()), "chunk " + chunk);
+			written = Files.readAllBytes(file.toPath());
+
+			Segment segment = Segment.open(file);
+			assertEquals(diff.expected().size(), segment.size());
+			diff.reopened(new SegmentKeyStore(segment, new ChunkedKeyStore()));
+			diff.check();
+			for (int i = 0; i < segment.size(); i++) {
+				assertEquals(i, segment.indexOf(segment.key(i)));
+				assertEquals(diff.expected().get(segment.key(i)), segment.value(i));
+			}
+		}
+	}
+
+	@Test
+	public void emptySegment() throws IOException {
+		File file = new File(dir, "empty.seg");
+		assertEquals(0, Segment.write(file, new ChunkedKeyStore(), 16));
+		Segment segment = Segment.open(file);
+		assertEquals(0, segment.size());
+		assertEquals(-1, segment.indexOf(42));
+
+		SegmentKeyStore store = new SegmentKeyStore(segment, new ChunkedKeyStore());
+		assertNull(store.get(42));
+		assertEquals(0, store.count(Long.MIN_VALUE, Long.MAX_VALUE));
+		new KeyStoreDiff(store, 1, 100).run(2000, 100);
+	}
+
+	@Test
+	public void otherFilesAreRefused() throws IOException {
+		File file = new File(dir, "other.seg");
+		Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+		assertThrows(IOException.class, () -> Segment.open(file));
+
+		Segment.write(file, new ChunkedKeyStore(), 16);
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		bytes[7] = 1; // Keys offset past the end
+		Files.write(file.toPath(), bytes);
+		assertThrows(IOException.class, () -> Segment.open(file));
+	}
+
+	@Test
+	public void deadPairsAreSkipped() throws IOException {
+		KeyStore pairs = new ChunkedKeyStore();
+		for (long key = 0; key < 100; key++)
+			pairs.put(key, "segment" + key);
+		SegmentKeyStore store = open(pairs);
+
+		assertEquals("segment10", store.remove(10));
+		assertNull(store.remove(10));
+		store.put(20, "overlay20");
+		assertEquals(31, store.removeRange(30, 60)); // 30 to 60 in the segment
+		store.put(40, "overlay40");
+
+		assertEquals(69, store.size()); // 20 and 40 moved to the overlay
+		assertEquals(12, store.count(19, 41)); // 19 to 29, then 40
+		assertNull(store.get(10));
+		assertEquals("overlay20", store.get(20));
+		assertEquals("overlay40", store.get(40));
+		assertEquals("[8=segment8, 9=segment9, 11=segment11, 12=segment12]",
+				KeyStoreDiff.pairs(store, 8, 12, 10).toString());
+		assertEquals("[19=segment19, 20=overlay20, 21=segment21]", KeyStoreDiff.pairs(store, 19, 60, 3).toString());
+
+		// Wrapping range visits the end of the segment, then the overlay and the start
+		store.put(Long.MAX_VALUE, "max");
+		store.put(Long.MIN_VALUE, "min");
+		assertEquals("[99=segment99, " + Long.MAX_VALUE + "=max, " + Long.MIN_VALUE + "=min, 0=segment0]",
+				KeyStoreDiff.pairs(store, 99, 0, 10).toString());
+
+		store.clear();
+		assertEquals(0, store.size());
+		assertNull(store.get(0));
+		store.put(0, "again");
+		assertEquals(1, store.count(Long.MIN_VALUE, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void randomOperationsMatchTheSkipList() throws IOException {
+		for (long seed = 1; seed <= 6; seed++) {
+			// Segment of what random operations left, then more of them on top
+			KeyStore written = new ChunkedKeyStore();
+			KeyStoreDiff diff = new KeyStoreDiff(written, seed, seed % 2 == 0 ? 60 : 3000);
+			diff.run(10000, 10000);
+			KeyStore overlay = seed % 3 == 0 ? new SkipListKeyStore() : new ChunkedKeyStore();
+			diff.reopened(new SegmentKeyStore(Segment.open(write(written)), overlay));
+			diff.run(20000, 1000);
+		}
+	}
+
+	private SegmentKeyStore open(KeyStore pairs) throws IOException {
+		return new SegmentKeyStore(Segment.open(write(pairs)), new ChunkedKeyStore());
+	}
+
+	private File write(KeyStore pairs) throws IOException {
+		File file = File.createTempFile("segment", ".seg", dir);
+		Segment.write(file, pairs, 64);
+		return file;
+	}
+
+}
@@ -0,0 +1,185 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Write-Ahead Log Test. Replaying a log rebuilds the store it was written for, across
+ * rotations and batch records, and a crash cutting the last record short or a record
+ * failing its checksum ends the replay there with everything before it applied.
+ */
+public class WriteAheadLogTest {
+
+	private static final int HEADER = 8; // Length and checksum
+	private static final int RECORD = HEADER + 1 + 8 + 10; // A put of a 10 byte value
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void unknownPolicyTouchesNothing() {
+		assertThrows(IllegalArgumentException.class, () -> new WriteAheadLog(dir, -1, "sometimes"));
+		assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void replayRebuildsTheStore() throws IOException {
+		KeyStoreDiff diff = new KeyStoreDiff(new SkipListKeyStore(), 1, 500);
+		KeyStore expected = diff.expected();
+		Random random = diff.random();
+		WriteAheadLog log = new WriteAheadLog(dir, -1, "never");
+		for (int i = 0; i < 20000; i++) {
+			long key = diff.key();
+			int op = random.nextInt(100);
+			if (op < 60) {
+				byte[] utf8 = diff.value().getBytes(StandardCharsets.UTF_8);
+				log.put(key, utf8, 0, utf8.length);
+				expected.putBytes(key, utf8, 0, utf8.length);
+			} else if (op < 85) {
+				log.remove(key);
+				expected.remove(key);
+			} else if (op < 95) {
+				long to = diff.key();
+				log.removeRange(key, to);
+				expected.removeRange(key, to);
+			} else if (op < 99) {
+				KeyStore other = new ChunkedKeyStore();
+				for (int n = random.nextInt(3000); n > 0; n--)
+					other.put(diff.key(), diff.value());
+				log.putAll(other);
+				expected.putAll(other);
+			} else {
+				log.clear();
+				expected.clear();
+			}
+			if (i % 5000 == 0)
+				log.rotate();
+		}
+		log.close();
+
+		KeyStore replayed = new ChunkedKeyStore();
+		WriteAheadLog.replay(dir, 0, replayed);
+		diff.reopened(replayed);
+		diff.check();
+	}
+
+	@Test
+	public void replayStartsAtTheGivenSegment() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(dir, -1, "always");
+		put(log, 1);
+		int next = log.rotate();
+		put(log, 2);
+		log.close();
+
+		KeyStore store = new SkipListKeyStore();
+		assertEquals(1, WriteAheadLog.replay(dir, next, store));
+		assertEquals("value00002", store.get(2));
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void putAllIsLoggedInBatches() throws IOException {
+		KeyStore pairs = new ChunkedKeyStore();
+		for (int i = 0; i < 20000; i++)
+			pairs.put(i * 7919L, "value" + i);
+		char[] big = new char[100000]; // Bigger than the buffer, goes in a record of its own
+		Arrays.fill(big, 'b');
+		pairs.put(-5, new String(big));
+
+		WriteAheadLog log = new WriteAheadLog(dir, -1, "always");
+		log.sync(log.putAll(pairs));
+		log.close();
+
+		KeyStore replayed = new ChunkedKeyStore();
+		long records = WriteAheadLog.replay(dir, 0, replayed);
+		assertTrue(records < 20, records + " records");
+		assertEquals(KeyStoreDiff.pairs(pairs, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE),
+				KeyStoreDiff.pairs(replayed, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void tornLastRecordIsDropped() throws IOException {
+		byte[] whole = write(10);
+		assertEquals(10 * RECORD, whole.length);
+
+		// Last record cut inside its length, its checksum, after them, after its op, inside its key and its value
+		for (int kept : new int[] { 2, 6, HEADER, HEADER + 1, HEADER + 5, RECORD - 1 }) {
+			KeyStore store = replay(Arrays.copyOf(whole, whole.length - RECORD + kept));
+			assertEquals(9, store.size(), kept + " bytes kept");
+			assertEquals("value00008", store.get(8));
+		}
+	}
+
+	@Test
+	public void checksumMismatchEndsReplay() throws IOException {
+		byte[] whole = write(10);
+		for (int at : new int[] { HEADER, RECORD - 1 }) {
+			byte[] damaged = whole.clone();
+			damaged[4 * RECORD + at] ^= 0x20; // Op and last value byte of the fifth record
+			KeyStore store = replay(damaged);
+			assertEquals(4, store.size(), "byte " + at);
+			assertEquals("value00003", store.get(3));
+		}
+
+		// Checksum itself damaged
+		byte[] damaged = whole.clone();
+		damaged[6 * RECORD + 5] ^= 1;
+		assertEquals(6, replay(damaged).size());
+	}
+
+	@Test
+	public void zeroedTailEndsReplay() throws IOException {
+		// Space the file system allocated but the crash kept from being written
+		byte[] whole = write(3);
+		assertEquals(3, replay(Arrays.copyOf(whole, whole.length + 100)).size());
+	}
+
+	@Test
+	public void closedLogRefusesRecords() throws IOException {
+		WriteAheadLog log = new WriteAheadLog(dir, -1, "interval");
+		put(log, 1);
+		log.close();
+		assertThrows(IOException.class, () -> put(log, 2));
+
+		KeyStore store = new SkipListKeyStore();
+		WriteAheadLog.replay(dir, 0, store);
+		assertEquals("value00001", store.get(1));
+		assertEquals(1, store.size());
+	}
+
+	// Log of puts of keys 0 to count - 1, as its segment file holds it
+	private byte[] write(int count) throws IOException {
+		File written = new File(dir, "written");
+		written.mkdirs();
+		WriteAheadLog log = new WriteAheadLog(written, -1, "always");
+		for (int i = 0; i < count; i++)
+			put(log, i);
+		log.close();
+		return Files.readAllBytes(new File(written, "wal-0.log").toPath());
+	}
+
+	// Store replayed from a segment holding the given bytes
+	private KeyStore replay(byte[] segment) throws IOException {
+		File damaged = new File(dir, "damaged");
+		damaged.mkdirs();
+		Files.write(new File(damaged, "wal-0.log").toPath(), segment);
+		KeyStore store = new SkipListKeyStore();
+		WriteAheadLog.replay(damaged, 0, store);
+		return store;
+	}
+
+	private static void put(WriteAheadLog log, long key) throws IOException {
+		byte[] value = String.format("value%05d", key).getBytes(StandardCharsets.UTF_8);
+		log.sync(log.put(key, value, 0, value.length));
+	}
+
+}
@@ -1,52 +1,70 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
 import java.util.Scanner;
-import java.util.Set;
 import java.util.TreeMap;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class nmserver {
 
+	private static final int DEFAULT_WORKERS = 16; // Commands handled at once unless set on the command line
+	private static final long REQUEST_TIMEOUT = 5000; // Milliseconds to wait for a replica to acknowledge a write
+	private static final int UNKNOWN_ID = -1; // Stands for the bootstrap's ID until it answers an enter
+
 	private int port;
 	private int serverID;
 	private InetAddress serverIP;
 
 	private int bnPort;
 	private InetAddress bnIP;
-
-	private int successorID;
-	private int successorPort;
-	private InetAddress successorIP;
-
-	private int predecessorID;
-	private int predecessorPort;
-	private InetAddress predecessorIP;
-
-	private ServerSocket server;
-
-	private Vector<Integer> visitedNodes;
-
-	private TreeMap<Integer, String> keyRange; // Stores current key range pairs of this node
-	private int start; // beginning of range
-	private int end; // end of range
+	private RingNode bootstrap; // Bootstrap with the ID it answered this node's enter with
+
+	private FrameServer server; // Reads commands from every incoming connection and hands them to workers
+	private ExecutorService handlers; // Threads for range handovers, which block on their connections, and commands held up by one
+
+	private FingerTable fingers; // Known ring members, used to route forwarded commands
+	private ConnectionPool pool; // Open connections to other servers
+	private RangeTransfer transfers; // Key ranges being received from a node on enter or exit
+	private PendingRequests pending; // Writes copied to replicas and waiting for them to acknowledge
+
+	private KeyStore keyRange; // Stores current key range pairs of this node
+	private TokenRanges ranges; // Part of the ring owned by each of this node's tokens
+	private KeyStore copies; // Replicas of pairs owned by the nodes before this one
+	private File imported; // Part of an offline import this node starts with, until it has entered
+	private Replication replication; // Copies writes to the replicas of their keys
+	private FailureDetector detector; // Sends heartbeats and notices nodes that stopped sending theirs
+	private Invalidations invalidations; // Keys the bootstrap may cache, it is told when writes change them
+
+	// Held for reading while a key is checked against the range and applied, and for
+	// writing while the range moves on enter or exit, so no write lands in a range
+	// that is being handed over
+	private ReentrantReadWriteLock rangeLock;
+	private Handovers handovers; // Ranges ceded to an entering node that it doesn't have yet
 
 	/*
 	 * Constructor for Bootstrap Config is the configuration file of [ID, port,
 	 * Initial keys] required to run the server
 	 */
-	public nmserver(File config) {
+	public nmserver(File config, int workers) {
 
 		// Scan the file for the server ID, port number, and Initial key value pairs
 		try {
@@ -57,524 +75,808 @@ public class nmserver {
 			bnPort = Integer.parseInt(sc.next());
 			sc.close();
 
-			keyRange = new TreeMap<Integer, String>();
-			visitedNodes = new Vector<Integer>();
+			keyRange = KeyStore.create(System.getProperty("store", "chunked"));
+			copies = KeyStore.create(System.getProperty("store", "chunked"));
+			rangeLock = new ReentrantReadWriteLock();
+			handovers = new Handovers();
+
+			// Part of an offline import (see BulkImport) is served from its segment once this node enters
+			String data = System.getProperty("data");
+			File part = data == null ? null : new File(new File(data, "node-" + serverID), "snapshot-0.seg");
+			if (part != null && part.isFile()) {
+				keyRange = new SegmentKeyStore(Segment.open(part), keyRange);
+				imported = part;
+				System.out.println("Imported " + keyRange.size() + " keys from " + data);
+			}
 
 			this.serverIP = InetAddress.getLocalHost();
+			RingNode self = new RingNode(serverID, port, serverIP);
+			fingers = new FingerTable(self);
+			ranges = new TokenRanges(self.getTokens());
+			pool = new ConnectionPool();
+			transfers = new RangeTransfer();
+			pending = new PendingRequests(REQUEST_TIMEOUT);
+			replication = new Replication(self, fingers, pool, pending);
+			detector = new FailureDetector(self, fingers, pool, this::leave);
+			invalidations = new Invalidations(self, pool, pending);
 		} catch (FileNotFoundException | UnknownHostException e) {
 			System.out.println("Incorrect file format.");
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 
-		// Create server on designated port from config
+		// Create server on designated port from config. A node entering the ring
+		// acknowledges its ranges on the connection it asked on, so that one is streamed
 		try {
-			server = new ServerSocket(port);
-			server.setReuseAddress(true);
+			server = new FrameServer(port, workers, this::recvCommand, Opcode.ENTER);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		InputThread userInput = new InputThread();
-		userInput.start();
+		handlers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "handler-" + port);
+			thread.setDaemon(true);
+			return thread;
+		});
 
-		connect();
-	}
+		// Sizes read whenever the metrics are
+		Metrics.gauge("keys.owned", () -> keyRange.size());
+		Metrics.gauge("keys.copies", () -> copies.size());
+		Metrics.gauge("connections.out", pool::size);
+		Metrics.gauge("requests.pending", pending::size);
+		Metrics.start(serverID);
 
-	// Handle incoming connections
-	public void connect() {
-		while (true) {
-			ObjectInputStream in = null;
-			ObjectOutputStream out = null;
-			Socket user = null;
-			
-			try {
-				user = server.accept();
-				in = new ObjectInputStream(user.getInputStream());
-				out = new ObjectOutputStream(user.getOutputStream());
+		detector.start(); // Heartbeats only go out once this node has successors on the ring
 
-				String cmd = in.readUTF();
-				recvCommand(cmd, in);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			// Close all connections
-			finally {
-				try {
-					if (in != null)
-						in.close();
-					if (out != null)
-						out.close();
-					if (user != null)
-						user.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		InputThread userInput = new InputThread();
+		userInput.start();
 
+		server.start();
 	}
 
 	// Handles incoming commands that are not user input
-	@SuppressWarnings("unchecked")
-	public void recvCommand(String cmd, ObjectInputStream in) {
+	public void recvCommand(Frame frame, VisitedNodes visitedNodes, InputStream in, OutputStream out) {
+		byte opcode = frame.getOpcode();
+		long start = System.nanoTime();
+		boolean failed = false;
 		try {
-			// Command for enter forwarded by predecessor
-			if (cmd.equals("enter")) {
-				int nameID = in.readInt();
-				int port = in.readInt();
-				InetAddress ip = (InetAddress) in.readObject();
-
-				rcvEnter(nameID, port, ip, in);
-			}
-			// Node entering ring must enter as predecessor to this node
-			else if (cmd.equals("entrance")) {
-				nodeEntry(in);
-			}
-			// Update successor info for predecessor of an entering node. Handled along with
-			// updatePredecesor()
-			else if (cmd.equalsIgnoreCase("successor")) {
-				successorID = in.readInt();
-				successorPort = in.readInt();
-				successorIP = (InetAddress) in.readObject();
-			}
+			switch (opcode) {
+			// Node entering the ring has tokens in this node's ranges
+			case Opcode.ENTER:
+				rcvEnter(frame.getNode(), in, out);
+				break;
 			// Handles a forwarded lookup command, updating the visited nodes
-			else if (cmd.equalsIgnoreCase("lookup")) {
-				int key = in.readInt();
-				visitedNodes = (Vector<Integer>) in.readObject();
-				visitedNodes.add(serverID);
-				lookup(key);
+			case Opcode.LOOKUP: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				long key = frame.getLong();
+				frame.getVisited(visitedNodes).add(serverID);
+				if (!redirect(frame, requestID, origin, key, out))
+					lookup(requestID, origin, key, visitedNodes, out);
+				break;
 			}
 			// Handles a forwarded insert command, updating the visited nodes
-			else if (cmd.equalsIgnoreCase("insert")) {
-				int key = in.readInt();
-				String value = in.readUTF();
-				visitedNodes = (Vector<Integer>) in.readObject();
-				visitedNodes.add(serverID);
-				insert(key, value);
+			case Opcode.INSERT: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				long key = frame.getLong();
+				String value = frame.getString();
+				frame.getVisited(visitedNodes).add(serverID);
+				if (!redirect(frame, requestID, origin, key, out))
+					insert(requestID, origin, key, value, visitedNodes, out);
+				break;
 			}
 			// Handles a forwarded delete command, updating the visited nodes
-			else if (cmd.equalsIgnoreCase("delete")) {
-				int key = in.readInt();
-				visitedNodes = (Vector<Integer>) in.readObject();
-				visitedNodes.add(serverID);
-				delete(key);
-			} else if (cmd.equalsIgnoreCase("print")) {
-				visitedNodes = (Vector<Integer>) in.readObject();
-				visitedNodes.add(serverID);
-				printValues();
+			case Opcode.DELETE: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				long key = frame.getLong();
+				frame.getVisited(visitedNodes).add(serverID);
+				if (!redirect(frame, requestID, origin, key, out))
+					delete(requestID, origin, key, visitedNodes, out);
+				break;
+			}
+			// Client wants the ring members to route its commands by
+			case Opcode.RING:
+				fingers.writeRing(frame);
+				frame.writeTo(out);
+				break;
+			// Handles a forwarded batch, applying the keys in this server's range
+			case Opcode.MGET:
+			case Opcode.MPUT:
+			case Opcode.MDELETE: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				Batch batch = Batch.read(frame, opcode == Opcode.MPUT);
+				frame.getVisited(visitedNodes).add(serverID);
+				batch(opcode, requestID, origin, batch, visitedNodes, out);
+				break;
 			}
+			// Page of a range scan, read from this node's part of the range
+			case Opcode.SCAN:
+				scan(frame, out);
+				break;
+			// Operator wants to know how full the ring is, answer with this node's part
+			case Opcode.STATS: {
+				int requestID = frame.getVarInt();
+				RingNode origin = frame.getNode();
+				RingStats stats = stats();
+				pool.answer(origin, out, reply -> Reply.writeStats(reply, requestID, stats));
+				break;
+			}
+			// Writes the owner of some keys applied, keep a copy
+			case Opcode.REPLICATE:
+				replication.apply(frame, copies);
+				break;
+			// Replica acknowledged a write this node copied to it
+			case Opcode.REPLY:
+				pending.complete(Reply.read(frame));
+				break;
+			case Opcode.PRINT:
+				frame.getVisited(visitedNodes).add(serverID);
+				printValues();
+				break;
 			// Current name server sends exit command
-			else if (cmd.equals("exit")) {
-				rcvExit(in);
+			case Opcode.EXIT:
+				rcvExit(frame);
+				break;
+			// Bootstrap streams the pairs of a bulk import that fall in this node's ranges
+			case Opcode.IMPORT:
+				rcvImport(frame);
+				break;
+			// Part of a key range handed over by an entering or exiting node, acknowledged on the same connection
+			case Opcode.RANGE_CHUNK:
+				transfers.receive(frame, out);
+				break;
+			// A node entered the ring, add it to the finger table and pass the message on. Nodes
+			// it took keys from know it already, so the message goes around until it is back
+			case Opcode.JOIN: {
+				RingNode node = frame.getNode();
+				join(node);
+				if (fingers.next().getID() != node.getID())
+					announce(Opcode.JOIN, node);
+				break;
 			}
-		} catch (IOException | ClassNotFoundException e) {
+			// A node exited the ring or was taken for dead, remove it from the finger table and pass the message on
+			case Opcode.LEAVE:
+				leave(frame.getNode());
+				break;
+			// Node that would hand its ranges to this one on failure is still alive
+			case Opcode.HEARTBEAT:
+				detector.heartbeat(frame.getNode());
+				break;
+			default:
+				System.out.println("Unknown command: " + Opcode.name(opcode));
+			}
+		} catch (IOException e) {
+			failed = true;
 			e.printStackTrace();
+		} finally {
+			Metrics.received(opcode, System.nanoTime() - start, failed);
 		}
 	}
 
-	// Forwarded message received, handles enter command appropriately and connects
-	// to node trying to enter if it's in range
-	@SuppressWarnings("unchecked")
-	public void rcvEnter(int nameID, int port, InetAddress ip, ObjectInputStream in) {
+	/*
+	 * Hands a node entering the ring the part of every range of this node that now
+	 * comes before one of its tokens, along with the ring members known here. The
+	 * ranges follow the reply in chunks on the same connection. The range lock is only
+	 * held for writing while the ranges are ceded and for each chunk dropped, commands
+	 * for keys that are not moving go on meanwhile
+	 */
+	public void rcvEnter(RingNode node, InputStream in, OutputStream out) {
+		List<TokenRanges.Range> ceded;
+		Handovers.Handover handover;
+		Frame reply;
+
+		rangeLock.writeLock().lock();
 		try {
-			Vector<Integer> currentVisits = (Vector<Integer>) in.readObject();
-			currentVisits.add(serverID);
+			Map<Long, List<RingNode>> replicas = replication.replicaSets();
+			fingers.add(node);
+			ceded = ranges.cede(node.getTokens());
+			handover = handovers.begin(ceded); // Commands for these keys wait until the new node has them
+
+			// This node stays a replica of what it hands over, as the node after the new one
+			if (Replication.FACTOR > 1) {
+				for (TokenRanges.Range range : ceded)
+					keyRange.forEach(range.getStart(), range.getEnd(), copies::putBytes);
+			}
+			replication.repair(replicas, ranges, keyRange); // New node may now keep copies of what is left
+
+			reply = new Frame().begin(Opcode.ENTER_REPLY).putNode(new RingNode(serverID, port, serverIP));
+			fingers.writeMembers(reply); // Send known ring members so the new node can build its finger table
+		} finally {
+			rangeLock.writeLock().unlock();
+		}
+
+		try {
+			// Stream the pairs, dropping each chunk once the new node has it
+			RangeTransfer.sendRanges(keyRange, rangeLock, ceded, reply, in, out, node.getIP(), node.getPort());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			handovers.end(handover);
+		}
+	}
 
-			// New server is in range, contact node trying to enter
-			if (inRange(nameID)) {
-				Socket entryNode = null;
-				ObjectOutputStream output = null;
-				ObjectInputStream input = null;
+	// Takes over the ranges an exiting node had before this node's tokens
+	public void rcvExit(Frame frame) {
+		try {
+			RingNode node = frame.getNode();
 
+			// Exiting node's pairs arrive in chunks, grow each range once its pairs all have
+			transfers.expectRanges(frame, keyRange, range -> {
+				rangeLock.writeLock().lock();
 				try {
-					entryNode = new Socket(ip, port); // Contact node trying to enter
-					output = new ObjectOutputStream(entryNode.getOutputStream());
-					input = new ObjectInputStream(entryNode.getInputStream());
-					
-					// Entrance point found
-					output.writeUTF("entrance");
-
-					// Update predecessor info for new node
-					output.writeInt(predecessorID);
-					output.writeInt(predecessorPort);
-					output.writeObject(predecessorIP);
-
-					// Updates successor info for new node
-					output.writeInt(serverID);
-					output.writeInt(this.port);
-					output.writeObject(serverIP);
-
-					// Updates predecessor info for this node
-					predecessorID = nameID;
-					predecessorPort = port;
-					predecessorIP = ip;
-
-					// Send nodes visited
-					output.writeObject(currentVisits);
-
-					// Copy key-value pairs that are in the range of the node entering
-					NavigableMap<Integer, String> nameRange = keyRange.subMap(start, false, nameID, true);
-					output.writeObject(nameRange);
-
-					// Set new start of key range
-					start = nameID + 1;
-
-					// Set new key range
-					TreeMap<Integer, String> temp = new TreeMap<Integer, String>();
-					nameRange = keyRange.subMap(start, true, end, true);
-					temp.putAll(nameRange);
-					keyRange.clear();
-					keyRange = temp;
-					temp = null;
-					nameRange = null;
-				} catch (IOException e) {
-					e.printStackTrace();
+					ranges.extend(range.getStart(), range.getEnd());
+					copies.removeRange(range.getStart(), range.getEnd()); // Owned now, no longer a copy
+					replication.copyTakenOver(keyRange, range.getStart(), range.getEnd(), node.getID());
 				} finally {
-					try {
-						if (output != null)
-							output.close();
-						if (entryNode != null)
-							entryNode.close();
-					} catch (IOException e) {
-					}
+					rangeLock.writeLock().unlock();
 				}
+			}).whenComplete((count, e) -> {
+				if (e != null)
+					System.out.println("Key range of exiting node " + node.getID() + " was not received");
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			}
-			// New node not in range, send request to next node
-			else {
-				Socket forward = null;
-				ObjectOutputStream output = null;
-				ObjectInputStream input = null;
+	/*
+	 * Receives this node's part of a bulk import into a store of its own, then builds it
+	 * into this node's store in one pass once every range has arrived, and copies it on
+	 * to the replicas
+	 */
+	public void rcvImport(Frame frame) {
+		try {
+			RingNode sender = frame.getNode();
+			KeyStore part = new ChunkedKeyStore();
+			List<TokenRanges.Range> received = Collections.synchronizedList(new ArrayList<TokenRanges.Range>());
+
+			transfers.expectRanges(frame, part, received::add).whenComplete((count, e) -> {
+				if (e != null) {
+					System.out.println("Bulk import from node " + sender.getID() + " was not received");
+					return;
+				}
 
+				rangeLock.writeLock().lock();
 				try {
-					forward = new Socket(successorIP, successorPort);
-					output = new ObjectOutputStream(forward.getOutputStream());
-					input = new ObjectInputStream(forward.getInputStream());
+					keyRange.putAll(part);
+					for (TokenRanges.Range range : received)
+						replication.copyToReplicas(part, range.getStart(), range.getEnd());
+				} finally {
+					rangeLock.writeLock().unlock();
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Copies the imported part on to the replicas once this node owns its ranges, and
+	 * deletes its file, so a restarted node does not serve pairs the ring has changed
+	 */
+	private void replicateImport() {
+		rangeLock.writeLock().lock();
+		try {
+			for (TokenRanges.Range range : ranges.merged())
+				replication.copyToReplicas(keyRange, range.getStart(), range.getEnd());
+		} finally {
+			rangeLock.writeLock().unlock();
+		}
+		imported.delete();
+		imported = null;
+	}
 
-					// Send command and entering server info
-					output.writeUTF("enter");
-					output.writeInt(nameID);
-					output.writeInt(port);
-					output.writeObject(ip);
+	/*
+	 * Asks a node for the parts of its ranges that come before this node's tokens and
+	 * takes them over as they arrive on the same connection. Returns the number of
+	 * pairs received. A node contacted by address alone, with UNKNOWN_ID, is the
+	 * bootstrap, which is known by the ID it answers with from then on
+	 */
+	private int pullRanges(RingNode owner) throws IOException {
+		try (Socket socket = ConnectionPool.connect(owner.getIP(), owner.getPort())) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
 
-					output.writeObject(currentVisits); // Sends list of visited nodes to successor
+			Frame frame = new Frame();
+			frame.begin(Opcode.ENTER).putNode(new RingNode(serverID, port, serverIP));
+			frame.writeTo(out);
 
-					currentVisits = null;
-				} catch (IOException e) {
-					e.printStackTrace();
+			if (!frame.readFrom(in) || frame.getOpcode() != Opcode.ENTER_REPLY)
+				throw new EOFException();
+
+			RingNode answering = frame.getNode();
+			if (owner.getID() == UNKNOWN_ID)
+				bootstrap = new RingNode(answering.getID(), owner.getPort(), owner.getIP());
+			fingers.readMembers(frame); // Get ring members known to the owner
+
+			CompletableFuture<Integer> received = transfers.expectRanges(frame, keyRange, range -> {
+				rangeLock.writeLock().lock();
+				try {
+					ranges.claim(range.getStart(), range.getEnd());
 				} finally {
-					try {
-						if (output != null)
-							output.close();
-						if (input != null)
-						    input.close();
-						if (input != null)
-							input.close();
-						if (forward != null)
-							forward.close();
-					} catch (IOException e) {
-					}
+					rangeLock.writeLock().unlock();
 				}
+			});
 
+			try {
+				while (!received.isDone() && frame.readFrom(in)) {
+					if (frame.getOpcode() == Opcode.RANGE_CHUNK)
+						transfers.receive(frame, out);
+				}
+			} catch (IOException e) {
+				// Connection broke, the owner resumes the transfer on a new one
+			}
+
+			try {
+				return received.get();
+			} catch (ExecutionException | InterruptedException e) {
+				throw new IOException("Key range from " + owner.getID() + " was not received");
 			}
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
 		}
 	}
 
-	// Handles exit of a node, updating that node's predecessor and successor
-	@SuppressWarnings("unchecked")
-	public void rcvExit(ObjectInputStream in) {
-		try {
-			// Current node is successor of exiting node
-			if (in.readBoolean()) {
-				predecessorID = in.readInt();
-				predecessorPort = in.readInt();
-				predecessorIP = (InetAddress) in.readObject();
+	/*
+	 * Hands every range to the node that owns the token after it, one connection for
+	 * each node. Returns the number of pairs moved
+	 */
+	private int pushRanges(RingNode receiver, List<TokenRanges.Range> arcs) throws IOException {
+		try (Socket socket = ConnectionPool.connect(receiver.getIP(), receiver.getPort())) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+
+			Frame header = new Frame();
+			header.begin(Opcode.EXIT).putNode(new RingNode(serverID, port, serverIP));
+			return RangeTransfer.sendRanges(keyRange, null, arcs, header, in, out, receiver.getIP(), receiver.getPort());
+		}
+	}
 
-				// Include exiting node's key-range in current key-range
-				keyRange.putAll((NavigableMap<Integer, String>) in.readObject());
-				start = predecessorID + 1;
-			}
-			// Current node is predecessor of exiting node
-			else {
-				successorID = in.readInt();
-				successorPort = in.readInt();
-				successorIP = (InetAddress) in.readObject();
+	// Runs a range handover on a handler thread so handovers with different nodes overlap
+	private CompletableFuture<Integer> inParallel(RingNode peer, boolean push, List<TokenRanges.Range> arcs) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return push ? pushRanges(peer, arcs) : pullRanges(peer);
+			} catch (IOException e) {
+				throw new CompletionException(e);
 			}
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
+		}, handlers);
+	}
+
+	/*
+	 * Drops a node that exited or failed from the finger table and tells the rest of
+	 * the ring, once, so the message stops where the node is already gone
+	 */
+	private void leave(RingNode node) {
+		if (takeOver(node)) {
+			announce(Opcode.LEAVE, node);
+			pool.close(node.getIP(), node.getPort());
 		}
 	}
 
-	// Handles entrance of new node once entry point is found via forwarded messages
-	@SuppressWarnings("unchecked")
-	public void nodeEntry(ObjectInputStream in) {
+	/*
+	 * Takes over the ranges of a node that is gone which come just before this node's
+	 * tokens, then removes it from the finger table. An exiting node has handed those
+	 * ranges over already, and extend leaves them alone. For a failed node the keys come
+	 * from the copies this node kept as its replica. Either way every node that became a
+	 * replica of this node's ranges gets copies of them. Returns false if the node was
+	 * not known
+	 */
+	private boolean takeOver(RingNode node) {
+		rangeLock.writeLock().lock();
 		try {
-			// Get predecessor info
-			predecessorID = in.readInt();
-			predecessorPort = in.readInt();
-			predecessorIP = (InetAddress) in.readObject();
+			Map<Long, List<RingNode>> replicas = replication.replicaSets();
+			List<TokenRanges.Range> taken = new ArrayList<TokenRanges.Range>();
+			int owned = keyRange.size();
+
+			for (TokenRanges.Range range : fingers.rangesOf(node.getID())) {
+				if (fingers.ownerAfter(range.getEnd() + 1, node.getID()).getID() != serverID
+						|| !ranges.extend(range.getStart(), range.getEnd()))
+					continue;
+
+				// Pairs already handed over by an exiting node are newer than the copies
+				copies.forEach(range.getStart(), range.getEnd(), (key, utf8, offset, length) -> {
+					if (keyRange.get(key) == null)
+						keyRange.putBytes(key, utf8, offset, length);
+				});
+				copies.removeRange(range.getStart(), range.getEnd());
+				taken.add(range);
+			}
 
-			// Get successor info
-			successorID = in.readInt();
-			successorPort = in.readInt();
-			successorIP = (InetAddress) in.readObject();
+			detector.forget(node.getID());
+			if (!fingers.remove(node.getID()))
+				return false;
 
-			// Get nodes visited before entry
-			visitedNodes = (Vector<Integer>) in.readObject();
+			replication.repair(replicas, ranges, keyRange);
+			for (TokenRanges.Range range : taken)
+				replication.copyTakenOver(keyRange, range.getStart(), range.getEnd(), node.getID());
 
-			// Get key-value pairs from successor
-			keyRange.putAll((NavigableMap<Integer, String>) in.readObject());
-			start = predecessorID + 1;
-			end = serverID;
+			if (keyRange.size() > owned)
+				System.out.println("Took over " + (keyRange.size() - owned) + " keys from node " + node.getID());
+			return true;
+		} finally {
+			rangeLock.writeLock().unlock();
+		}
+	}
 
-			updatePredecessor(); // Send message to predecessor so it can update it's successor info
+	// Adds a node that entered the ring, copying this node's pairs to it where it became a replica
+	private void join(RingNode node) {
+		rangeLock.writeLock().lock();
+		try {
+			Map<Long, List<RingNode>> replicas = replication.replicaSets();
+			if (fingers.add(node))
+				replication.repair(replicas, ranges, keyRange);
+		} finally {
+			rangeLock.writeLock().unlock();
+		}
+	}
 
-			synchronized (System.out) {
-				System.out.println("Entry successful");
-				System.out.println("Range: [" + start + "," + end + "]");
-				System.out.println("Predecessor: " + predecessorID);
-				System.out.println("Successor: " + successorID);
-				System.out.println("Nodes visited: " + visitedNodes.toString());
-			}
+	// Checks to see if a key is in range of one of this node's tokens
+	public boolean inRange(long key) {
+		return ranges.owns(key);
+	}
 
-		} catch (IOException | ClassNotFoundException e) {
+	// Passes a join or leave message on to the node with the next ID so every finger table is refreshed
+	public void announce(byte opcode, RingNode node) {
+		try {
+			RingNode next = fingers.next();
+			if (next.getID() == serverID)
+				return;
+			pool.send(next.getIP(), next.getPort(), frame -> frame.begin(opcode).putNode(node));
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
-
 	}
 
-	// Checks to see if an entering node is in range of the current node
-	public boolean inRange(int value) {
-		if (start <= end)
-			return value >= start && value <= end;
-		else
-			return value >= start || value <= end;
+	/*
+	 * A client that routes by its own copy of the ring sends commands straight to the
+	 * key's owner, with the epoch of its copy after the visited nodes. If the key is not
+	 * this node's and the copy is out of date, the client is told the current epoch
+	 * instead of the command being forwarded, so it fetches the ring again. Returns true
+	 * if the command was answered that way
+	 */
+	private boolean redirect(Frame frame, int requestID, RingNode origin, long key, OutputStream out) throws IOException {
+		if (frame.remaining() < 8)
+			return false;
+		long epoch = frame.getLong();
+		long current = fingers.epoch();
+		if (epoch == current || inRange(key))
+			return false;
+		pool.answer(origin, out, reply -> Reply.writeNotOwner(reply, requestID, current));
+		return true;
 	}
 
-	// Tells predecessor of entering node to update its successor info
-	public void updatePredecessor() {
-		Socket predecessor = null;
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
+	/*
+	 * Sends a command that is not this node's toward the owner of its key. A command
+	 * from a pipeline can only be answered on the connection it came on, so it is
+	 * turned away instead, and the client sends it again with the current ring
+	 */
+	private void passOn(int requestID, RingNode origin, OutputStream out, long key, ConnectionPool.Message message)
+			throws IOException {
+		if (origin.getPort() == RingNode.PIPELINED) {
+			long current = fingers.epoch();
+			pool.answer(origin, out, reply -> Reply.writeNotOwner(reply, requestID, current));
+			return;
+		}
+		forwardToward(key, message);
+	}
 
-		try {
-			predecessor = new Socket(predecessorIP, predecessorPort);
-			out = new ObjectOutputStream(predecessor.getOutputStream());
-			in = new ObjectInputStream(predecessor.getInputStream());
-
-			out.writeUTF("successor");
-			out.writeInt(serverID);
-			out.writeInt(port);
-			out.writeObject(InetAddress.getLocalHost());
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
+	/*
+	 * Sends a command toward the owner of a key. Uses the closest finger preceding the
+	 * key, falling back to the key's owner if there is none or it can't be reached
+	 */
+	private void forwardToward(long key, ConnectionPool.Message message) throws IOException {
+		RingNode finger = fingers.closestPreceding(key);
+		if (finger != null) {
 			try {
-				if (out != null)
-					out.close();
-				if (in != null)
-					in.close();
-				if (predecessor != null)
-					predecessor.close();
+				pool.send(finger.getIP(), finger.getPort(), message);
+				return;
 			} catch (IOException e) {
+				leave(finger); // Finger is gone, take over from it and stop routing through it
 			}
 		}
-
+		RingNode next = fingers.ownerAfter(key, serverID);
+		if (next.getID() == serverID) {
+			// Not on the ring, the bootstrap knows who is
+			pool.send(bnIP, bnPort, message);
+			return;
+		}
+		pool.send(next.getIP(), next.getPort(), message);
 	}
 
-	// Checks if key being looked-up is in this server's key range and returns
-	// message to bootstrap server. If not, forward command
-	public void lookup(int key) {
-		Socket bootstrap = null;
-		Socket successor = null;
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
+	/*
+	 * Answers a scan with at most limit pairs of [from, to] in key order. The part must
+	 * lie in one of this node's ranges, otherwise the node that asked is told this one
+	 * is not its owner, so it splits the range again
+	 */
+	private void scan(Frame frame, OutputStream out) throws IOException {
+		scan(frame.getVarInt(), frame.getNode(), frame.getLong(), frame.getLong(), frame.getVarInt(), out);
+	}
 
+	private void scan(int requestID, RingNode origin, long from, long to, int limit, OutputStream out)
+			throws IOException {
+		Map<Long, String> pairs = null;
+		CompletableFuture<Void> moving = null;
+		rangeLock.readLock().lock();
 		try {
-			// Key can exist in this server's range
-			if (inRange(key)) {
-				// Connect to bootstrap to send info
-				bootstrap = new Socket(bnIP, bnPort);
-				out = new ObjectOutputStream(bootstrap.getOutputStream());
-				in = new ObjectInputStream(bootstrap.getInputStream());
-
-				out.writeUTF("lookup-msg");
-				out.flush();
-
-				// Checks if key is actually in range
-				if (keyRange.containsKey(key)) {
-					out.writeBoolean(true);
-					out.flush();
-
-					out.writeUTF(keyRange.get(key)); // Send value of key
-					out.writeInt(serverID);
-					out.writeObject(visitedNodes);
-					out.flush();
+			if (ranges.ownsAll(from, to))
+				pairs = RangeScan.read(keyRange, from, to, limit);
+			else
+				moving = handovers.overlapping(from, to);
+		} finally {
+			rangeLock.readLock().unlock();
+		}
+
+		// Part is being handed over, scan it again once the new node has it
+		if (moving != null) {
+			moving.thenRunAsync(() -> {
+				try {
+					scan(requestID, origin, from, to, limit, out);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-				// Key does not exist
-				else {
-					out.writeBoolean(false);
-					out.flush();
+			}, handlers);
+			return;
+		}
+
+		Map<Long, String> found = pairs;
+		long epoch = fingers.epoch();
+		VisitedNodes visited = new VisitedNodes();
+		visited.add(serverID);
+		pool.answer(origin, out, reply -> {
+			if (found == null)
+				Reply.writeNotOwner(reply, requestID, epoch);
+			else
+				Reply.writeBatch(reply, requestID, found, serverID, visited);
+		});
+	}
+
+	// Keys, value bytes and share of the ring of this node, read while no range moves
+	private RingStats stats() {
+		rangeLock.readLock().lock();
+		try {
+			return RingStats.of(serverID, keyRange, copies, ranges.merged());
+		} finally {
+			rangeLock.readLock().unlock();
+		}
+	}
+
+	// Checks if key being looked-up is in this server's key range, or this server keeps
+	// a copy of it, and replies to the node that started the request. If not, forward command
+	public void lookup(int requestID, RingNode origin, long key, VisitedNodes visitedNodes, OutputStream out) {
+		try {
+			boolean owned;
+			String value = null;
+			CompletableFuture<Void> moving = null;
+
+			rangeLock.readLock().lock();
+			try {
+				// Key can exist in this server's range
+				owned = inRange(key);
+				if (owned) {
+					if (invalidations.isBootstrap(origin))
+						invalidations.watch(key); // Bootstrap caches what owners answer it
+					value = keyRange.get(key);
 				}
+				else if ((moving = handovers.of(key)) == null && replication.isReplica(key))
+					value = copies.get(key);
+			} finally {
+				rangeLock.readLock().unlock();
+			}
+
+			// Key is being handed over, look it up again once the new node has it
+			if (moving != null) {
+				VisitedNodes visited = visitedNodes.copy(); // List is reused once this returns
+				moving.thenRunAsync(() -> lookup(requestID, origin, key, visited, out), handlers);
+			}
+			else if (owned || value != null) {
+				String found = value;
+				Metrics.visited(visitedNodes.size());
+
+				// Send value, or that the key does not exist, to the node that asked
+				pool.answer(origin, out,
+						frame -> Reply.write(frame, requestID, found != null, found, serverID, visitedNodes));
 			}
 			// Key can't exist in this server's range, forward command
 			else {
-				successor = new Socket(successorIP, successorPort);
-				out = new ObjectOutputStream(successor.getOutputStream());
-				in = new ObjectInputStream(successor.getInputStream());
-
-				out.writeUTF("lookup");
-				out.writeInt(key);
-				out.writeObject(visitedNodes);
-				out.flush();
+				passOn(requestID, origin, out, key, frame -> frame.begin(Opcode.LOOKUP).putVarInt(requestID).putNode(origin)
+						.putLong(key).putVisited(visitedNodes));
 			}
 		} catch (IOException e1) {
 			e1.printStackTrace();
-		} finally {
-			try {
-				if (out != null)
-					out.close();
-				if (in != null)
-					in.close();
-			} catch (IOException e) {
-			}
 		}
 	}
 
 	// Checks if key being looked-up is in this server's key range, inserts key if
-	// in range, and returns message to bootstrap server. If not, forward command
-	public void insert(int key, String value) {
-		Socket successor = null;
-		Socket bootstrap = null;
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
-
+	// in range, and replies to the node that started the request once a quorum of
+	// replicas has it. If not, forward command
+	public void insert(int requestID, RingNode origin, long key, String value, VisitedNodes visitedNodes,
+			OutputStream out) {
 		try {
-			// Key can exist in this server's range
-			if (inRange(key)) {
-				keyRange.put(key, value);
+			CompletableFuture<Void> replicated = null;
+			CompletableFuture<Void> moving = null;
 
-				// Connect to bootstrap to send success msg
-				bootstrap = new Socket(bnIP, bnPort);
-				out = new ObjectOutputStream(bootstrap.getOutputStream());
-				in = new ObjectInputStream(bootstrap.getInputStream());
+			long held = replication.lock(key);
+			rangeLock.readLock().lock();
+			try {
+				// Key can exist in this server's range
+				if (inRange(key)) {
+					keyRange.put(key, value);
+					replicated = CompletableFuture.allOf(replication.replicate(true, Collections.singletonMap(key, value)),
+							invalidations.changed(List.of(key)));
+				}
+				else
+					moving = handovers.of(key);
+			} finally {
+				rangeLock.readLock().unlock();
+				replication.unlock(held);
+			}
 
-				out.writeUTF("insert-msg");
-				out.writeUTF("Key-Value pair inserted into server: (" + key + ", " + value + ")");
-				out.writeUTF("Servers visited: " + visitedNodes.toString());
+			// Key is being handed over, insert it again once the new node has it
+			if (moving != null) {
+				VisitedNodes visited = visitedNodes.copy(); // List is reused once this returns
+				moving.thenRunAsync(() -> insert(requestID, origin, key, value, visited, out), handlers);
+			}
+			else if (replicated != null) {
+				VisitedNodes visited = visitedNodes.copy(); // List is reused before the replicas answer
+				Metrics.visited(visited.size());
+				// Send success to the node that asked
+				replyOnceReplicated(replicated, origin, out,
+						frame -> Reply.write(frame, requestID, true, null, serverID, visited));
 			}
 			// Key can't exist in this server's range, forward command
 			else {
-				successor = new Socket(successorIP, successorPort);
-				out = new ObjectOutputStream(successor.getOutputStream());
-				in = new ObjectInputStream(successor.getInputStream());
-
-				out.writeUTF("insert");
-				out.writeInt(key);
-				out.writeUTF(value);
-				out.writeObject(visitedNodes);
-				out.flush();
+				passOn(requestID, origin, out, key, frame -> frame.begin(Opcode.INSERT).putVarInt(requestID).putNode(origin)
+						.putLong(key).putString(value).putVisited(visitedNodes));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-			try {
-				if (out != null)
-					out.close();
-				if (in != null)
-					in.close();
-			} catch (IOException e) {
-			}
 		}
 
 	}
 
 	// Checks if key being looked-up is in this server's key range, deletes key if
-	// in range, and returns message to bootstrap server. If not, forward command
-	public void delete(int key) {
-		Socket successor = null;
-		Socket bootstrap = null;
-		ObjectOutputStream out = null;
-		ObjectInputStream in = null;
-
+	// in range, and replies to the node that started the request once a quorum of
+	// replicas has removed it. If not, forward command
+	public void delete(int requestID, RingNode origin, long key, VisitedNodes visitedNodes, OutputStream out) {
 		try {
-			// Key can exist in this server's range
-			if (inRange(key)) {
-				// Connect to bootstrap to send info
-				bootstrap = new Socket(bnIP, bnPort);
-				out = new ObjectOutputStream(bootstrap.getOutputStream());
-				in = new ObjectInputStream(bootstrap.getInputStream());
-				
-
-				out.writeUTF("delete-msg");
-
-				// Key exists in this server
-				if (keyRange.containsKey(key)) {
-					keyRange.remove(key);
-					out.writeBoolean(true);
-					out.flush();
-
-					out.writeUTF("Successful deletion");
-					out.writeUTF("Servers visited: " + visitedNodes.toString());
-				}
-				// Key doesn't exist in this server
-				else {
-					out.writeBoolean(false);
-					out.flush();
+			CompletableFuture<Void> replicated = null;
+			CompletableFuture<Void> moving = null;
+			boolean removed = false;
 
-					out.writeUTF("Key not found");
+			long held = replication.lock(key);
+			rangeLock.readLock().lock();
+			try {
+				// Key can exist in this server's range
+				if (inRange(key)) {
+					removed = keyRange.remove(key) != null;
+					replicated = CompletableFuture.allOf(replication.replicate(false, Collections.singletonMap(key, null)),
+							invalidations.changed(List.of(key)));
 				}
+				else
+					moving = handovers.of(key);
+			} finally {
+				rangeLock.readLock().unlock();
+				replication.unlock(held);
+			}
+
+			// Key is being handed over, delete it again once the new node has it
+			if (moving != null) {
+				VisitedNodes visited = visitedNodes.copy(); // List is reused once this returns
+				moving.thenRunAsync(() -> delete(requestID, origin, key, visited, out), handlers);
+			}
+			else if (replicated != null) {
+				VisitedNodes visited = visitedNodes.copy(); // List is reused before the replicas answer
+				Metrics.visited(visited.size());
+				boolean exists = removed;
+
+				// Send whether the key existed in this server and the nodes visited to the node that asked
+				replyOnceReplicated(replicated, origin, out,
+						frame -> Reply.write(frame, requestID, exists, null, serverID, visited));
 			}
 			// Key can't exist in this server's range
 			else {
-				successor = new Socket(successorIP, successorPort);
-				out = new ObjectOutputStream(successor.getOutputStream());
-				in = new ObjectInputStream(successor.getInputStream());
-
-				out.writeUTF("delete");
-				out.writeInt(key);
-				out.writeObject(visitedNodes);
+				passOn(requestID, origin, out, key, frame -> frame.begin(Opcode.DELETE).putVarInt(requestID).putNode(origin)
+						.putLong(key).putVisited(visitedNodes));
 			}
 		} catch (IOException e1) {
 			e1.printStackTrace();
+		}
+	}
+
+	// Applies the keys of a batch that are in this server's key range in one pass. Once
+	// the writes reached a quorum and no keys are left, replies to the node that started
+	// the batch. If not, forward the rest
+	public void batch(byte opcode, int requestID, RingNode origin, Batch batch, VisitedNodes visitedNodes,
+			OutputStream out) {
+		Batch rest;
+		CompletableFuture<Void> replicated = CompletableFuture.completedFuture(null);
+		VisitedNodes visited = visitedNodes.copy();
+
+		long held = replication.lock(batch);
+		rangeLock.readLock().lock();
+		try {
+			// A key is being handed over, apply the batch again once the new node has it
+			CompletableFuture<Void> moving = handovers.of(batch);
+			if (moving != null) {
+				moving.thenRunAsync(() -> batch(opcode, requestID, origin, batch, visited, out), handlers);
+				return;
+			}
+
+			rest = batch.apply(opcode, keyRange, this::inRange);
+			if (opcode != Opcode.MGET)
+				replicated = CompletableFuture.allOf(replication.replicate(opcode == Opcode.MPUT, rest.getAppliedHere()),
+						invalidations.changed(rest.getAppliedHere().keySet()));
 		} finally {
+			rangeLock.readLock().unlock();
+			replication.unlock(held);
+		}
+
+		if (rest.size() == 0) {
+			Metrics.visited(visited.size());
+			replyOnceReplicated(replicated, origin, out,
+					frame -> Reply.writeBatch(frame, requestID, rest.getApplied(), serverID, visited));
+		}
+		// Keys left that belong to other servers, forward them toward the first one's owner
+		else {
+			replicated.whenComplete((done, e) -> {
+				if (e != null) {
+					System.out.println("Batch " + requestID + " did not reach a quorum of replicas or the bootstrap's cache");
+					return;
+				}
+				try {
+					passOn(requestID, origin, out, rest.getKey(0), frame -> {
+						frame.begin(opcode).putVarInt(requestID).putNode(origin);
+						rest.write(frame);
+						frame.putVisited(visited);
+					});
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			});
+		}
+	}
+
+	/*
+	 * Sends a reply to the node that started a request once the write reached a quorum
+	 * of replicas and the bootstrap dropped any cached value it changed. Otherwise
+	 * nothing is sent and the request times out there
+	 */
+	private void replyOnceReplicated(CompletableFuture<Void> replicated, RingNode origin, OutputStream out,
+			ConnectionPool.Message reply) {
+		replicated.whenComplete((done, e) -> {
+			if (e != null) {
+				System.out.println("Write did not reach a quorum of replicas or the bootstrap's cache");
+				return;
+			}
 			try {
-				if (out != null)
-					out.close();
-				if (in != null)
-					in.close();
-			} catch (IOException e) {
+				pool.answer(origin, out, reply);
+			} catch (IOException e1) {
+				e1.printStackTrace();
 			}
-		}
+		});
 	}
 
 	// Prints out all values, primarily for bug-testing purposes
 	public void printValues() {
-		// Convert Tree Map to Map type to iterate
-		Set<Map.Entry<Integer, String>> entries = keyRange.entrySet();
-		// For loop and lambda iterates through the tree map values
-		System.out.println();
-		entries.forEach(entry -> {
-			System.out.println(serverID + " " + entry.getKey() + ", " + entry.getValue());
-		});
-		System.out.print("> ");
+		// Iterate through the stored pairs in hash order, keys are printed as their hash
+		synchronized (System.out) {
+			System.out.println();
+			keyRange.forEach(Long.MIN_VALUE, Long.MAX_VALUE, (key, utf8, offset, length) -> {
+				System.out.println(serverID + " " + Ring.format(key) + ", " + new String(utf8, offset, length, StandardCharsets.UTF_8));
+			});
+			System.out.print("> ");
+		}
 
 		// Pass on command to next ID if it exists
-		if (successorID != serverID) {
-			Socket successor = null;
-			ObjectOutputStream out = null;
-			ObjectInputStream in = null;
-
+		RingNode next = fingers.next();
+		if (next.getID() != serverID) {
 			try {
-				successor = new Socket(successorIP, successorPort);
-				out = new ObjectOutputStream(successor.getOutputStream());
-				in = new ObjectInputStream(successor.getInputStream());
-				Vector<Integer> lookups = new Vector<Integer>();
-
-				out.writeUTF("print");
+				VisitedNodes lookups = new VisitedNodes();
 				lookups.add(serverID);
-				out.writeObject(lookups);
+
+				pool.send(next.getIP(), next.getPort(), frame -> frame.begin(Opcode.PRINT).putVisited(lookups));
 			} catch (IOException e1) {
 				e1.printStackTrace();
 			}
@@ -582,15 +884,14 @@ public class nmserver {
 	}
 
 	/*
-	 * Input Thread. A thread for inputs to handle the enter and exit commands. For
-	 * enter command, handles immediate entry into bootstrap, otherwise waits for
-	 * message to be forwarded from bootstrap until proper node for entry is found.
+	 * Input Thread. A thread for inputs to handle the enter and exit commands. Both
+	 * move keys to or from every node whose tokens sit next to this node's, with all
+	 * of those nodes at the same time.
 	 */
 	class InputThread extends Thread {
 
-		private String listenIP;
-
 		private BufferedReader input;
+		private boolean failed; // Command being run did not finish
 
 		public InputThread() {
 			input = new BufferedReader(new InputStreamReader(System.in));
@@ -601,13 +902,19 @@ public class nmserver {
 			// Handles client commands until they quit
 			while (true) {
 				System.out.print("> ");
-				String[] command = null;
+				String line = null;
 
 				try {
-					command = input.readLine().split(" ");
+					line = input.readLine();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
+				if (line == null)
+					break; // Input closed, taken as quit
+				String[] command = line.split(" ");
+
+				long start = System.nanoTime();
+				failed = false;
 
 				if (command[0].equalsIgnoreCase("enter")) {
 					enter();
@@ -616,6 +923,10 @@ public class nmserver {
 				} else if (command[0].equalsIgnoreCase("quit")) {
 					break;
 				}
+
+				byte opcode = Opcode.of(command[0].toLowerCase());
+				if (opcode > 0)
+					Metrics.typed(opcode, System.nanoTime() - start, failed);
 			}
 			try {
 				input.close();
@@ -625,203 +936,93 @@ public class nmserver {
 
 		}
 
-		public void read(String[] command) {
-			if (command[0].equals("enter")) {
-				enter();
-			}
-		}
-
 		/*
-		 * Contact bootstrap server and if it can enter immediately (is in range), enter
-		 * into ring, otherwise do nothing after contacting bootstrap and wait for
-		 * server in range to contact this node. If not immediate entry, a different
-		 * enter command is utilized when the node in range contacts this node
+		 * Contact bootstrap server, which hands over the parts of its ranges before this
+		 * node's tokens and sends the ring members. Then ask every other node that owned
+		 * one of this node's tokens for its parts, all at the same time, and once every
+		 * part has arrived tell the rest of the ring this node entered
 		 */
-		@SuppressWarnings("unchecked")
 		public void enter() {
-			Socket bnServer = null;
-			ObjectOutputStream out = null;
-			ObjectInputStream in = null;
-
 			try {
-				// Contacts bootstrap node
-				bnServer = new Socket(bnIP, bnPort);
-				out = new ObjectOutputStream(bnServer.getOutputStream());
-				in = new ObjectInputStream(bnServer.getInputStream());
-
-				out.writeUTF("enter");
-				out.writeInt(serverID);
-				out.writeInt(port);
-				out.writeObject(InetAddress.getLocalHost());
-				out.flush();
-
-				boolean entryFound = in.readBoolean(); // Bootstrap confirms that this node can enter immediately
-
-				if (entryFound) {
-					boolean firstEntry = in.readBoolean(); // Bootstrap confirms this is first entry into system
-
-					visitedNodes.add(0); // Update visitedNodes to include bootstrap node
-
-					// If first entry confirmed, set predecessor and successor to bootstrap node
-					if (firstEntry) {
-						predecessorID = 0;
-						predecessorPort = bnPort;
-						predecessorIP = bnIP;
-
-						successorID = 0;
-						successorPort = bnPort;
-						successorIP = bnIP;
-
-						keyRange.putAll((NavigableMap<Integer, String>) in.readObject()); // Get key-value pairs from
-																							// bootstrap node
-						// Update key range
-						start = predecessorID + 1;
-						end = serverID;
-					}
-
-					// If entry in range of bootstrap node, but not first entry
-					else {
-						// Get predecessor info from bootstrap
-						predecessorID = in.readInt();
-						predecessorPort = in.readInt();
-						predecessorIP = (InetAddress) in.readObject();
-
-						// Update successor to be bootstrap node
-						successorID = 0;
-						successorPort = bnPort;
-						successorIP = bnIP;
-
-						keyRange.putAll((NavigableMap<Integer, String>) in.readObject()); // Get key-value pairs from
-
-						// bootstrap node
-						// Update key range
-						start = predecessorID + 1;
-						end = serverID;
-
-						updatePredecessor();
-					}
-
-					// Print success message
-					synchronized (System.out) {
-						System.out.println("Successful entry");
-						System.out.println("Range: [" + start + "," + end + "]");
-						System.out.println("Predecessor: " + predecessorID);
-						System.out.println("Successor: " + successorID);
-						System.out.println("Nodes visited: " + visitedNodes.toString());
-					}
-
+				int received = pullRanges(new RingNode(UNKNOWN_ID, bnPort, bnIP));
+				invalidations.setBootstrap(bootstrap);
+
+				// Nodes that owned this node's tokens before it entered, bootstrap is done already
+				Map<Integer, RingNode> owners = new TreeMap<Integer, RingNode>();
+				for (long token : Ring.tokens(serverID)) {
+					RingNode owner = fingers.ownerAfter(token, serverID);
+					if (owner.getID() != bootstrap.getID())
+						owners.putIfAbsent(owner.getID(), owner);
 				}
-				// Entering node is not in range of bootstrap node
-				else {
-					synchronized (System.out) {
-						System.out.println("Entry started, waiting for entry point to be found");
-						try {
-							sleep(100);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
+
+				List<CompletableFuture<Integer>> pulls = new ArrayList<CompletableFuture<Integer>>();
+				for (RingNode owner : owners.values())
+					pulls.add(inParallel(owner, false, null));
+				for (CompletableFuture<Integer> pull : pulls)
+					received += pull.join();
+
+				announce(Opcode.JOIN, new RingNode(serverID, port, serverIP)); // Tell every other node this one entered
+				if (imported != null)
+					replicateImport();
+
+				List<Integer> peers = new ArrayList<Integer>(owners.keySet());
+				peers.add(0, bootstrap.getID());
+
+				// Print success message
+				synchronized (System.out) {
+					System.out.println("Successful entry");
+					System.out.println("Tokens: " + ranges.size());
+					System.out.println("Keys received: " + received + " from " + peers);
 				}
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
-			} catch (EOFException e) {
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
+			} catch (IOException | CompletionException e) {
+				failed = true;
+				System.out.println("Entry failed, key range was not received");
 			}
 		}
 
 		/*
-		 * Contact successor and predecessor to inform them of leaving. Update successor
-		 * with current node's predecessor info and key range. Update predecessor with
-		 * successor info.
+		 * Hand every range to the node that owns the token after it, all nodes at the
+		 * same time, then tell the rest of the ring this node left
 		 */
 		public void exit() {
-			Socket successor = null;
-			Socket predecessor = null;
-			ObjectOutputStream out = null;
-			ObjectInputStream in = null;
-			NavigableMap<Integer, String> temp;
-
-			visitedNodes.clear();
-
+			rangeLock.writeLock().lock();
 			try {
-				// Current node is only node in the system
-				if (successorID == predecessorID) {
-					successor = new Socket(successorIP, successorPort);
-					out = new ObjectOutputStream(successor.getOutputStream());
-					in = new ObjectInputStream(successor.getInputStream());
-
-					out.writeUTF("exit");
-
-					// Send key range to bootstrap node
-					temp = keyRange.subMap(start, false, end, true);
-					out.writeObject(temp);
-					temp = null;
-					out.flush();
-				}
-				// Update successor and predecessor
-				else {
-					successor = new Socket(successorIP, successorPort);
-					out = new ObjectOutputStream(successor.getOutputStream());
-					in = new ObjectInputStream(successor.getInputStream());
-
-					out.writeUTF("exit");
-					out.writeBoolean(true); // Tells successor to handle exit as successor node
-					out.flush();
-
-					out.writeInt(predecessorID);
-					out.writeInt(predecessorPort);
-					out.writeObject(predecessorIP);
-					out.flush();
-
-					// Send key range to successor
-					temp = keyRange.subMap(start, false, end, true);
-					out.writeObject(temp);
-					temp = null;
-					out.flush();
-
-					if (out != null)
-						out.close();
-					if (successor != null)
-						successor.close();
-
-					// Update predecessor
-					predecessor = new Socket(predecessorIP, predecessorPort);
-					out = new ObjectOutputStream(predecessor.getOutputStream());
-
-					out.writeUTF("exit");
-					out.writeBoolean(false); // Tells predecessor to handle exit as predecessor node
-					out.flush();
-
-					out.writeInt(successorID);
-					out.writeInt(successorPort);
-					out.writeObject(successorIP);
-					out.flush();
+				// Group the ranges by the node taking them over
+				Map<Integer, RingNode> receivers = new TreeMap<Integer, RingNode>();
+				Map<Integer, List<TokenRanges.Range>> handed = new TreeMap<Integer, List<TokenRanges.Range>>();
+				for (TokenRanges.Range range : ranges.merged()) {
+					RingNode receiver = fingers.ownerAfter(range.getEnd() + 1, serverID);
+					receivers.putIfAbsent(receiver.getID(), receiver);
+					handed.computeIfAbsent(receiver.getID(), id -> new ArrayList<TokenRanges.Range>()).add(range);
 				}
 
+				List<CompletableFuture<Integer>> pushes = new ArrayList<CompletableFuture<Integer>>();
+				for (Map.Entry<Integer, List<TokenRanges.Range>> group : handed.entrySet())
+					pushes.add(inParallel(receivers.get(group.getKey()), true, group.getValue()));
+
+				int moved = 0;
+				for (CompletableFuture<Integer> push : pushes)
+					moved += push.join();
+
+				// Tell every other node to drop this one from their finger tables
+				announce(Opcode.LEAVE, new RingNode(serverID, port, serverIP));
+				fingers.clear();
+				invalidations.clear();
+				pool.closeAll();
+				keyRange.clear(); // Key ranges now belong to the receivers
+				ranges.clear();
+				copies.clear();
+
 				// Print successful exit message
 				synchronized (System.out) {
 					System.out.println("Successful exit");
-					System.out.println("SuccessorID: " + successorID);
-					System.out.println("Key-range passed: [" + start + "," + end + "]");
+					System.out.println("Keys passed: " + moved + " to " + receivers.keySet());
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
+			} catch (CompletionException e) {
+				failed = true;
+				e.getCause().printStackTrace();
 			} finally {
-				try {
-					if (out != null)
-						out.close();
-					if (in != null)
-						in.close();
-					if (successor != null)
-						successor.close();
-					if (predecessor != null)
-						predecessor.close();
-				} catch (IOException e) {
-				}
-
+				rangeLock.writeLock().unlock();
 			}
 
 		}
@@ -831,7 +1032,8 @@ public class nmserver {
 	// Main
 	public static void main(String[] args) {
 		File config = new File(System.getProperty("user.dir") + "/" + args[0]);
+		int workers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WORKERS;
 
-		nmserver nmserver = new nmserver(config);
+		nmserver nmserver = new nmserver(config, workers);
 	}
 }
@@ -0,0 +1,69 @@
+#!/bin/bash
+# Runs every smoke script with run.sh and checks what the servers printed. Each
+# check is a script, how many lines of its output hold a text, and the text. The
+# output of every run is kept in smoke/results/SCRIPT.out. Exits with 1 if any check
+# fails, naming it.
+#
+# Usage: smoke/check.sh [SCRIPT...]
+
+cd "$(dirname "$0")"
+CHECKS='
+basic 4 Successful entry
+basic 2 Successful exit
+basic 7 Value:
+basic 1 Value: Kiwi
+basic 1 Key not found
+batch 1 Keys found: 5 of 7
+batch 1 Key-Value pairs inserted: 5
+batch 1 Keys found: 5 of 5
+batch 1 Successful deletions: 5 of 6
+batch 1 Keys found: 0 of 5
+fail 4 Keys found: 1023 of 1023
+scan 1 Pairs scanned: 31
+scan 1 Pairs scanned: 10
+scan 1 Pairs scanned: 16
+import 3 Keys found: 1023 of 1023
+import 1 Value: last
+import 1 Value: w19999
+client 1 Value: Kiwi
+client 1 Value: Grape
+client 1 Pairs scanned: 12
+client 1 Value: Apple
+client 1 Successful deletion
+client 1 Key not found
+client 1 Value: Pear
+client 1 4 of 4 nodes answered
+stats 1 Ring: 31 keys, 207 value bytes, 0 copies, 100.0% of the ring, 1 of 1 nodes answered
+stats 2 Ring: 32 keys, 210 value bytes
+stats 2 4 of 4 nodes answered
+stats 1 3 of 3 nodes answered
+cache 5 Value: Apple
+cache 1 Key not found
+cache 2 Value: Fig
+offline 1 Keys imported: 20000 to {0=
+offline 3 Successful entry
+offline 1 Value: last
+offline 3 Keys found: 1023 of 1023
+offline 4 Keys found:
+repl 3 Value: A1
+repl 3 Value: B
+repl 3 Key not found
+'
+
+scripts=${@:-basic batch fail scan import offline client stats cache repl}
+failed=0
+mkdir -p results
+for script in $scripts; do
+	script=${script%.txt}
+	./run.sh $script.txt > results/$script.out 2>&1
+	while read name count text; do
+		[ "$name" = "$script" ] || continue
+		found=$(grep -c -F -- "$text" results/$script.out)
+		if [ "$found" != "$count" ]; then
+			echo "FAIL $script: \"$text\" $found times, expected $count"
+			failed=1
+		fi
+	done <<< "$CHECKS"
+	echo "ran $script"
+done
+exit $failed
@@ -0,0 +1,81 @@
+#!/bin/bash
+# Runs a ring of a bootstrap and 3 name servers from the example configs on this
+# machine and types a script into them, then prints what every server printed.
+#
+# Usage: smoke/run.sh SCRIPT
+#
+# Every line of the script is "TARGET COMMAND": bn, nm1, nm2 or nm3 types the
+# command into that server, client types it into a RingClient started on the first
+# such line, "sleep SECONDS" waits and "kill N" kills name server N. Commands are
+# typed DELAY seconds apart (1 by default). The servers are compiled into smoke/work,
+# which is also their working directory, and keys.txt there holds 20000 "key value"
+# lines for import. A line "offline ID..." imports keys.txt with BulkImport before
+# the servers start, split among the servers with those IDs, and starts every server
+# with -Ddata=data. BNARGS, NMARGS and JAVA_OPTS are passed on to the servers.
+
+SCRIPT=$(cd "$(dirname "$1")" && pwd)/$(basename "$1")
+cd "$(dirname "$0")"
+ROOT=..
+WORK=work
+
+rm -rf $WORK && mkdir -p $WORK/classes
+javac -nowarn -d $WORK/classes -sourcepath $ROOT/CH-Common/src $ROOT/CH-Bootstrap/src/bnserver.java \
+	$ROOT/CH-NameServer/src/nmserver.java $ROOT/CH-Client/src/*.java || exit 1
+CP=$PWD/$WORK/classes
+
+cd $WORK
+cp ../$ROOT/CH-Bootstrap/bnconfig_example.txt bnconfig.txt
+cp ../$ROOT/CH-NameServer/nsconfig_example.txt ns1.txt
+cp ../$ROOT/CH-NameServer/nsconfig_example2.txt ns2.txt
+cp ../$ROOT/CH-NameServer/nsconfig_example3.txt ns3.txt
+awk 'BEGIN { for (i = 1; i <= 20000; i++) print i, "w" i; print 5, "last" }' > keys.txt
+mkfifo bn.in nm1.in nm2.in nm3.in client.in
+
+offline=$(sed -n 's/^offline //p' "$SCRIPT")
+if [ -n "$offline" ]; then
+	java -cp $CP BulkImport keys.txt data $offline > import.log 2>&1
+	JAVA_OPTS="$JAVA_OPTS -Ddata=data"
+fi
+
+pids=()
+stop() {
+	kill ${pids[@]} 2>/dev/null
+	wait 2>/dev/null
+}
+trap stop EXIT
+
+java $JAVA_OPTS -cp $CP bnserver bnconfig.txt $BNARGS < bn.in > bn.log 2>&1 &
+pids[0]=$!
+exec 3>bn.in
+sleep 1
+for i in 1 2 3; do
+	java $JAVA_OPTS -cp $CP nmserver ns$i.txt $NMARGS < nm$i.in > nm$i.log 2>&1 &
+	pids[$i]=$!
+	eval "exec $((3 + i))>nm$i.in"
+done
+sleep 1.5
+
+while read target command; do
+	case $target in
+	bn) echo "$command" >&3 ;;
+	nm[123]) echo "$command" >&$((3 + ${target#nm})) ;;
+	client)
+		if [ -z "${pids[4]}" ]; then
+			java $JAVA_OPTS -cp $CP RingClient 127.0.0.1 3768 < client.in > client.log 2>&1 &
+			pids[4]=$!
+			exec 7>client.in
+		fi
+		echo "$command" >&7 ;;
+	sleep) sleep $command; continue ;;
+	kill) kill ${pids[$command]}; continue ;;
+	*) continue ;;
+	esac
+	sleep ${DELAY:-1}
+done < "$SCRIPT"
+sleep 1
+stop
+
+for log in import bn nm1 nm2 nm3 client; do
+	[ -s $log.log ] && { echo "=== $log"; tr -d '\0' < $log.log; }
+done
+true